@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * バーコードをラスターラインにしたものです.
+ *
+ * <p>
+ * 同じ内容のラインが連続する区間(ラン)ごとに 1 本のラインと繰り返し回数を保持します。
+ * 1 次元バーコードでは各バーや空白が 1 つのランになるので、
+ * {@link JobEncoder#addLines(BarcodeRaster)} はランごとに 1 回だけ圧縮します。
+ * </p>
+ */
+public final class BarcodeRaster {
+
+    private final List<byte[]> mRunLines = new ArrayList<byte[]>();
+    private final List<Integer> mRunLengths = new ArrayList<Integer>();
+    private int mLineCount;
+
+    BarcodeRaster() {
+        super();
+    }
+
+    /**
+     * ラインを {@code count} 本追加します。直前のランと同じ内容であればランを延長します.
+     */
+    void append(byte[] line, int count) {
+        if (count <= 0) {
+            return;
+        }
+        final int last = mRunLines.size() - 1;
+        if (0 <= last && Arrays.equals(mRunLines.get(last), line)) {
+            mRunLengths.set(last, Integer.valueOf(mRunLengths.get(last).intValue() + count));
+        } else {
+            mRunLines.add(line);
+            mRunLengths.add(Integer.valueOf(count));
+        }
+        mLineCount += count;
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public int getRunCount() {
+        return mRunLines.size();
+    }
+
+    /**
+     * ランのラインを返します.
+     *
+     * @param run ラン番号。
+     * @return {@link RL700SCommands#MAX_LINE_BYTES} バイトのライン。書き換えないこと。
+     */
+    public byte[] getRunLine(int run) {
+        return mRunLines.get(run);
+    }
+
+    /**
+     * ランの長さ(ライン数)を返します.
+     *
+     * @param run ラン番号。
+     * @return ライン数。
+     */
+    public int getRunLength(int run) {
+        return mRunLengths.get(run).intValue();
+    }
+
+    /**
+     * ランを展開したラインの配列を返します.
+     *
+     * @return ラインの配列。同じランのラインは同じ配列を共有します。
+     */
+    public byte[][] toLines() {
+        final byte[][] lines = new byte[mLineCount][];
+        int index = 0;
+        for (int r = 0; r < mRunLines.size(); r++) {
+            final byte[] line = mRunLines.get(r);
+            for (int i = getRunLength(r); 0 < i; i--) {
+                lines[index++] = line;
+            }
+        }
+        return lines;
+    }
+}
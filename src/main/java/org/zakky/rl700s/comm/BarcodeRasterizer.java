@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+
+/**
+ * バーコードのモジュールを、画像を経由せずにラスターラインへ直接並べるクラスです.
+ *
+ * <p>
+ * バーコードはテープ送り方向に読む向きで配置します。1 次元バーコードの各モジュールは
+ * テープ送り方向のラインの並びになり、バーはライン内の {@code top} から {@code height}
+ * ビットを埋めます。QR コードは列をテープ送り方向、行をライン内のビット位置に対応させます。
+ * </p>
+ * <p>
+ * モジュール幅はヘッド方向の解像度(360dpi)のドット数で指定します。
+ * {@link EnhancedMode#FINE_PRINT} ではテープ送り方向が 720dpi になるので、
+ * 1 モジュールあたりのライン数を 2 倍にして物理的な大きさを保ちます。
+ * </p>
+ */
+public final class BarcodeRasterizer {
+
+    /** ヘッド方向の解像度(dpi). */
+    public static final int HEAD_DPI = 360;
+
+    /** Code128 のクワイエットゾーン(モジュール数). */
+    private static final int CODE128_QUIET = 10;
+    /** EAN-13 の左側のクワイエットゾーン(モジュール数). */
+    private static final int EAN13_QUIET_LEFT = 11;
+    /** EAN-13 の右側のクワイエットゾーン(モジュール数). */
+    private static final int EAN13_QUIET_RIGHT = 7;
+    /** QR コードのクワイエットゾーン(モジュール数). */
+    private static final int QR_QUIET = 4;
+
+    private static final int HEAD_BITS = RL700SCommands.MAX_LINE_BYTES * 8;
+
+    private final int mModuleDots;
+    private final int mModuleLines;
+
+    /**
+     * モジュール幅と高精細印刷の有無を指定してインスタンスを構築します.
+     *
+     * @param moduleDots モジュール幅(360dpi のドット数)。
+     * @param finePrint 高精細印刷(テープ送り方向 720dpi)の場合は {@code true}。
+     */
+    public BarcodeRasterizer(int moduleDots, boolean finePrint) {
+        super();
+        if (moduleDots < 1) {
+            throw new IllegalArgumentException("'moduleDots' must be positive: " + moduleDots);
+        }
+        mModuleDots = moduleDots;
+        mModuleLines = finePrint ? moduleDots * 2 : moduleDots;
+    }
+
+    /**
+     * 印刷設定に合わせたインスタンスを構築します.
+     *
+     * @param settings 印刷設定。
+     * @param moduleDots モジュール幅(360dpi のドット数)。
+     * @return インスタンス。
+     */
+    public static BarcodeRasterizer forSettings(PrintSettings settings, int moduleDots) {
+        return new BarcodeRasterizer(moduleDots, settings.isEnabled(EnhancedMode.FINE_PRINT));
+    }
+
+    /**
+     * モジュール幅をミリメートルからドット数に換算します.
+     *
+     * @param moduleMm モジュール幅(mm)。
+     * @return ドット数。1 未満にはなりません。
+     */
+    public static int moduleDots(double moduleMm) {
+        return Math.max(1, (int) Math.round(moduleMm * HEAD_DPI / 25.4));
+    }
+
+    public int getModuleDots() {
+        return mModuleDots;
+    }
+
+    /**
+     * 1 モジュールあたりのライン数を返します.
+     *
+     * @return ライン数。
+     */
+    public int getModuleLines() {
+        return mModuleLines;
+    }
+
+    /**
+     * Code128 をラスターにします.
+     *
+     * @param text 文字列。
+     * @param top バーの上端のビット位置。
+     * @param height バーの高さ(ビット数)。
+     * @return ラスター。
+     */
+    public BarcodeRaster code128(String text, int top, int height) {
+        return linear(LinearBarcode.code128(text), top, height, CODE128_QUIET, CODE128_QUIET);
+    }
+
+    /**
+     * EAN-13 をラスターにします.
+     *
+     * @param digits 12 桁または 13 桁の数字。
+     * @param top バーの上端のビット位置。
+     * @param height バーの高さ(ビット数)。
+     * @return ラスター。
+     */
+    public BarcodeRaster ean13(String digits, int top, int height) {
+        return linear(LinearBarcode.ean13(digits), top, height, EAN13_QUIET_LEFT,
+                EAN13_QUIET_RIGHT);
+    }
+
+    /**
+     * 1 次元バーコードのモジュール列をラスターにします.
+     *
+     * @param modules モジュール列。 {@code true} がバー。
+     * @param top バーの上端のビット位置。
+     * @param height バーの高さ(ビット数)。
+     * @param quietBefore 前側のクワイエットゾーン(モジュール数)。
+     * @param quietAfter 後側のクワイエットゾーン(モジュール数)。
+     * @return ラスター。
+     */
+    public BarcodeRaster linear(boolean[] modules, int top, int height, int quietBefore,
+            int quietAfter) {
+        final long start = RL700STracer.begin();
+        checkRange(top, height);
+        final byte[] space = new byte[RL700SCommands.MAX_LINE_BYTES];
+        final byte[] bar = new byte[RL700SCommands.MAX_LINE_BYTES];
+        PackedBits.fill(bar, top, top + height);
+
+        final BarcodeRaster raster = new BarcodeRaster();
+        raster.append(space, quietBefore * mModuleLines);
+        for (boolean m : modules) {
+            raster.append(m ? bar : space, mModuleLines);
+        }
+        raster.append(space, quietAfter * mModuleLines);
+        RL700STracer.endCurrent(TraceEvent.CATEGORY_RASTERIZE, "barcode", start, "modules="
+                + modules.length);
+        return raster;
+    }
+
+    /**
+     * QR コードをラスターにします.
+     *
+     * @param qr QR コード。
+     * @param top クワイエットゾーンを含めた上端のビット位置。
+     * @return ラスター。
+     */
+    public BarcodeRaster qr(QrCode qr, int top) {
+        final long start = RL700STracer.begin();
+        final int size = qr.getSize();
+        checkRange(top, (size + QR_QUIET * 2) * mModuleDots);
+        final byte[] space = new byte[RL700SCommands.MAX_LINE_BYTES];
+        final BarcodeRaster raster = new BarcodeRaster();
+        raster.append(space, QR_QUIET * mModuleLines);
+        for (int x = 0; x < size; x++) {
+            final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+            for (int y = 0; y < size; y++) {
+                if (qr.get(x, y)) {
+                    final int bit = top + (QR_QUIET + y) * mModuleDots;
+                    PackedBits.fill(line, bit, bit + mModuleDots);
+                }
+            }
+            raster.append(line, mModuleLines);
+        }
+        raster.append(space, QR_QUIET * mModuleLines);
+        RL700STracer.endCurrent(TraceEvent.CATEGORY_RASTERIZE, "qr", start, "version="
+                + qr.getVersion());
+        return raster;
+    }
+
+    private static void checkRange(int top, int height) {
+        if (top < 0 || height < 0 || HEAD_BITS < top + height) {
+            throw new IllegalArgumentException("barcode does not fit in head width: top=" + top
+                    + ", height=" + height);
+        }
+    }
+}
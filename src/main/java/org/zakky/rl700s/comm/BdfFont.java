@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BDF(Glyph Bitmap Distribution Format) 形式のビットマップフォントです.
+ *
+ * <p>
+ * {@link #load(InputStream)} で一度だけ読み込み、 {@link TextRasterizer} から参照します。
+ * 読み込み後は不変で、複数のスレッドから共有できます。
+ * </p>
+ */
+public final class BdfFont {
+
+    /**
+     * 1 文字分のグリフです。ビットマップは横書きの向きのまま、1 行ごとに MSB ファーストで詰めています.
+     */
+    static final class Glyph {
+        /** 送り幅(ドット). */
+        final int advance;
+        final int width;
+        final int height;
+        /** 原点から左端までの距離. */
+        final int xOffset;
+        /** ベースラインから下端までの距離(上向きが正). */
+        final int yOffset;
+        /** 各行のビット列。1 行は (width + 7) / 8 バイト. */
+        final byte[][] rows;
+
+        Glyph(int advance, int width, int height, int xOffset, int yOffset, byte[][] rows) {
+            this.advance = advance;
+            this.width = width;
+            this.height = height;
+            this.xOffset = xOffset;
+            this.yOffset = yOffset;
+            this.rows = rows;
+        }
+
+        boolean get(int x, int y) {
+            return PackedBits.get(rows[y], x);
+        }
+    }
+
+    private final int mAscent;
+    private final int mDescent;
+    private final int mDefaultChar;
+    private final Map<Integer, Glyph> mGlyphs;
+
+    private BdfFont(int ascent, int descent, int defaultChar, Map<Integer, Glyph> glyphs) {
+        mAscent = ascent;
+        mDescent = descent;
+        mDefaultChar = defaultChar;
+        mGlyphs = glyphs;
+    }
+
+    /**
+     * BDF を読み込みます。文字コードは ENCODING の値(通常は Unicode)をそのまま使います.
+     *
+     * @param in 入力。閉じるのは呼び出し側の責任です。
+     * @return フォント。
+     * @throws IOException 読み込みに失敗した場合。
+     * @throws ParseException 書式が不正な場合。
+     */
+    public static BdfFont load(InputStream in) throws IOException, ParseException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        final Map<Integer, Glyph> glyphs = new HashMap<Integer, Glyph>();
+        int ascent = -1;
+        int descent = -1;
+        int defaultChar = -1;
+        int boxHeight = 0;
+        int boxYOffset = 0;
+
+        int lineNumber = 0;
+        boolean started = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            final String[] tokens = line.trim().split("\\s+");
+            final String keyword = tokens[0];
+            if ("STARTFONT".equals(keyword)) {
+                started = true;
+            } else if (!started) {
+                throw new ParseException("missing STARTFONT.", lineNumber);
+            } else if ("FONTBOUNDINGBOX".equals(keyword)) {
+                boxHeight = intAt(tokens, 2, lineNumber);
+                boxYOffset = intAt(tokens, 4, lineNumber);
+            } else if ("FONT_ASCENT".equals(keyword)) {
+                ascent = intAt(tokens, 1, lineNumber);
+            } else if ("FONT_DESCENT".equals(keyword)) {
+                descent = intAt(tokens, 1, lineNumber);
+            } else if ("DEFAULT_CHAR".equals(keyword)) {
+                defaultChar = intAt(tokens, 1, lineNumber);
+            } else if ("STARTCHAR".equals(keyword)) {
+                lineNumber = readChar(reader, lineNumber, glyphs);
+            } else if ("ENDFONT".equals(keyword)) {
+                break;
+            }
+        }
+        if (!started) {
+            throw new ParseException("missing STARTFONT.", lineNumber);
+        }
+        if (ascent < 0 || descent < 0) {
+            // プロパティがない場合はバウンディングボックスから求める
+            descent = Math.max(0, -boxYOffset);
+            ascent = boxHeight - descent;
+        }
+        return new BdfFont(ascent, descent, defaultChar, glyphs);
+    }
+
+    private static int readChar(BufferedReader reader, int lineNumber, Map<Integer, Glyph> glyphs)
+            throws IOException, ParseException {
+        int encoding = -1;
+        int advance = 0;
+        int width = 0;
+        int height = 0;
+        int xOffset = 0;
+        int yOffset = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            final String[] tokens = line.trim().split("\\s+");
+            final String keyword = tokens[0];
+            if ("ENCODING".equals(keyword)) {
+                encoding = intAt(tokens, 1, lineNumber);
+            } else if ("DWIDTH".equals(keyword)) {
+                advance = intAt(tokens, 1, lineNumber);
+            } else if ("BBX".equals(keyword)) {
+                width = intAt(tokens, 1, lineNumber);
+                height = intAt(tokens, 2, lineNumber);
+                xOffset = intAt(tokens, 3, lineNumber);
+                yOffset = intAt(tokens, 4, lineNumber);
+            } else if ("BITMAP".equals(keyword)) {
+                final int rowBytes = (width + 7) / 8;
+                final byte[][] rows = new byte[height][rowBytes];
+                for (int y = 0; y < height; y++) {
+                    final String hex = reader.readLine();
+                    lineNumber++;
+                    if (hex == null) {
+                        throw new ParseException("unexpected end of BITMAP.", lineNumber);
+                    }
+                    final String h = hex.trim();
+                    for (int i = 0; i < rowBytes && i * 2 + 1 < h.length(); i++) {
+                        try {
+                            rows[y][i] = (byte) Integer.parseInt(h.substring(i * 2, i * 2 + 2), 16);
+                        } catch (NumberFormatException e) {
+                            throw new ParseException("invalid BITMAP row: " + h, lineNumber);
+                        }
+                    }
+                }
+                final String end = reader.readLine();
+                lineNumber++;
+                if (end == null || !"ENDCHAR".equals(end.trim())) {
+                    throw new ParseException("missing ENDCHAR.", lineNumber);
+                }
+                if (0 <= encoding) {
+                    glyphs.put(Integer.valueOf(encoding), new Glyph(advance, width, height,
+                            xOffset, yOffset, rows));
+                }
+                return lineNumber;
+            }
+        }
+        throw new ParseException("unexpected end of font.", lineNumber);
+    }
+
+    private static int intAt(String[] tokens, int index, int lineNumber) throws ParseException {
+        if (tokens.length <= index) {
+            throw new ParseException("missing value for " + tokens[0], lineNumber);
+        }
+        try {
+            return Integer.parseInt(tokens[index]);
+        } catch (NumberFormatException e) {
+            throw new ParseException("invalid value for " + tokens[0] + ": " + tokens[index],
+                    lineNumber);
+        }
+    }
+
+    /**
+     * ベースラインより上の高さを返します.
+     *
+     * @return 高さ(ドット)。
+     */
+    public int getAscent() {
+        return mAscent;
+    }
+
+    /**
+     * ベースラインより下の深さを返します.
+     *
+     * @return 深さ(ドット)。
+     */
+    public int getDescent() {
+        return mDescent;
+    }
+
+    /**
+     * 1 行の高さを返します.
+     *
+     * @return 高さ(ドット)。
+     */
+    public int getHeight() {
+        return mAscent + mDescent;
+    }
+
+    /**
+     * 文字を含むかどうかを返します.
+     *
+     * @param codePoint 文字コード。
+     * @return 含む場合は {@code true}。
+     */
+    public boolean hasGlyph(int codePoint) {
+        return mGlyphs.containsKey(Integer.valueOf(codePoint));
+    }
+
+    /**
+     * グリフを返します。含まない場合は DEFAULT_CHAR のグリフを返します.
+     */
+    Glyph getGlyph(int codePoint) {
+        Glyph g = mGlyphs.get(Integer.valueOf(codePoint));
+        if (g == null && 0 <= mDefaultChar) {
+            g = mGlyphs.get(Integer.valueOf(mDefaultChar));
+        }
+        return g;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * プリンタとの通信内容を時刻付きで記録するバイナリログです.
+ *
+ * <p>
+ * ファイルは [マジック "RL7C"(4)][版(1)][記録開始時刻(8)] のヘッダに続き、
+ * [方向(1)][前のレコードからの経過ナノ秒(可変長)][長さ(可変長)][本体] のレコードが並びます。
+ * 可変長の数値は下位 7 ビットずつ、続きがあれば最上位ビットを立てて書きます。
+ * </p>
+ * <p>
+ * 書き込みはメモリマップした領域への追記で、方向バイトを最後に書くので、
+ * 途中で中断されたレコードは方向が 0 のまま残り、読み込み時に終端とみなされます。
+ * 書き込みメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class CaptureLog implements Closeable {
+
+    /**
+     * 通信の方向です.
+     */
+    public enum Direction {
+        /** ホストからプリンタへのコマンド */
+        OUTGOING(1),
+        /** プリンタからホストへのステータス */
+        INCOMING(2);
+
+        private final int mRawValue;
+
+        private Direction(int rawValue) {
+            mRawValue = rawValue;
+        }
+
+        public int rawValue() {
+            return mRawValue;
+        }
+
+        static Direction fromRawValue(int rawValue) {
+            for (Direction d : values()) {
+                if (d.mRawValue == rawValue) {
+                    return d;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 1 回の送信または受信を表すレコードです.
+     */
+    public static final class Record {
+        private final Direction mDirection;
+        private final long mTimeNanos;
+        private final ByteBuffer mData;
+
+        Record(Direction direction, long timeNanos, ByteBuffer data) {
+            mDirection = direction;
+            mTimeNanos = timeNanos;
+            mData = data;
+        }
+
+        public Direction getDirection() {
+            return mDirection;
+        }
+
+        /**
+         * 記録開始からの経過時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        /**
+         * 送受信したバイト列を返します.
+         *
+         * @return 読み取り専用のバッファ。
+         */
+        public ByteBuffer getData() {
+            return mData.duplicate();
+        }
+    }
+
+    /**
+     * ログを先頭から順に読むクラスです.
+     */
+    public static final class Reader {
+        private final ByteBuffer mMap;
+        private final long mStartMillis;
+        private long mTimeNanos;
+
+        Reader(ByteBuffer map, long startMillis) {
+            mMap = map;
+            mStartMillis = startMillis;
+        }
+
+        /**
+         * 記録を開始した時刻を返します.
+         *
+         * @return {@link System#currentTimeMillis()} 基準の時刻。
+         */
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /**
+         * 次のレコードを返します.
+         *
+         * @return レコード。終端に達した場合は {@code null}。
+         */
+        public Record next() {
+            if (!mMap.hasRemaining()) {
+                return null;
+            }
+            final int start = mMap.position();
+            final Direction direction = Direction.fromRawValue(mMap.get());
+            if (direction == null) {
+                return null;
+            }
+            final long delta = getVarLong(mMap);
+            final long length = getVarLong(mMap);
+            if (delta < 0 || length < 0 || mMap.remaining() < length) {
+                // 書き込み途中で中断されたレコード
+                mMap.position(start);
+                return null;
+            }
+            mTimeNanos += delta;
+            final ByteBuffer data = mMap.slice();
+            data.limit((int) length);
+            mMap.position(mMap.position() + (int) length);
+            return new Record(direction, mTimeNanos, data.asReadOnlyBuffer());
+        }
+    }
+
+    /** マップ領域の既定のサイズ. */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte[] MAGIC = {
+            'R', 'L', '7', 'C'
+    };
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+    /** 方向と 2 つの可変長数値の最大長. */
+    private static final int MAX_RECORD_HEADER = 1 + 10 + 5;
+
+    private final RandomAccessFile mFile;
+    private final int mChunkSize;
+    private MappedByteBuffer mMap;
+    /** mMap の先頭のファイル内オフセット. */
+    private long mMapOffset;
+    private long mLastNanos;
+    private boolean mClosed;
+
+    private CaptureLog(RandomAccessFile file, int chunkSize) {
+        super();
+        mFile = file;
+        mChunkSize = chunkSize;
+        mLastNanos = System.nanoTime();
+    }
+
+    /**
+     * 既定のマップ領域のサイズでログを新しく作ります。既存のファイルは上書きします.
+     *
+     * @param file ファイル。
+     * @return インスタンス。
+     * @throws IOException ファイルを作れない場合。
+     */
+    public static CaptureLog create(File file) throws IOException {
+        return create(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * ログを新しく作ります。既存のファイルは上書きします.
+     *
+     * @param file ファイル。
+     * @param chunkSize 一度にマップする領域のサイズ。
+     * @return インスタンス。
+     * @throws IOException ファイルを作れない場合。
+     */
+    public static CaptureLog create(File file, int chunkSize) throws IOException {
+        if (chunkSize < HEADER_SIZE + MAX_RECORD_HEADER) {
+            throw new IllegalArgumentException("'chunkSize' too small: " + chunkSize);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean success = false;
+        try {
+            raf.setLength(0L);
+            final CaptureLog log = new CaptureLog(raf, chunkSize);
+            log.remap(0L, chunkSize);
+            log.mMap.put(MAGIC);
+            log.mMap.put(VERSION);
+            log.mMap.putLong(System.currentTimeMillis());
+            success = true;
+            return log;
+        } finally {
+            if (!success) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * ログを読むために開きます.
+     *
+     * @param file ファイル。
+     * @return 先頭のレコードを指すリーダ。
+     * @throws IOException ファイルを読めない場合、または形式が正しくない場合。
+     */
+    public static Reader open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final MappedByteBuffer map;
+        try {
+            final long size = raf.length();
+            if (Integer.MAX_VALUE < size) {
+                throw new IOException("capture log too large: " + file);
+            }
+            map = raf.getChannel().map(MapMode.READ_ONLY, 0L, size);
+        } finally {
+            raf.close();
+        }
+        if (map.limit() < HEADER_SIZE) {
+            throw new IOException("not a capture log: " + file);
+        }
+        for (byte b : MAGIC) {
+            if (map.get() != b) {
+                throw new IOException("not a capture log: " + file);
+            }
+        }
+        final byte version = map.get();
+        if (version != VERSION) {
+            throw new IOException("unsupported capture log version " + version + ": " + file);
+        }
+        final long startMillis = map.getLong();
+        return new Reader(map.slice(), startMillis);
+    }
+
+    /**
+     * 現在時刻でレコードを追記します.
+     *
+     * @param direction 方向。
+     * @param data position から limit までを記録します。 position は変更しません。
+     * @throws IOException 書き込めない場合。
+     */
+    public void append(Direction direction, ByteBuffer data) throws IOException {
+        append(direction, System.nanoTime(), data);
+    }
+
+    /**
+     * レコードを追記します.
+     *
+     * @param direction 方向。
+     * @param nanoTime {@link System#nanoTime()} 基準の時刻。
+     * @param data position から limit までを記録します。 position は変更しません。
+     * @throws IOException 書き込めない場合。
+     */
+    public synchronized void append(Direction direction, long nanoTime, ByteBuffer data)
+            throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("already closed.");
+        }
+        final int length = data.remaining();
+        if (mMap.remaining() < MAX_RECORD_HEADER + length) {
+            remap(mMapOffset + mMap.position(), Math.max(mChunkSize, MAX_RECORD_HEADER + length));
+        }
+        final long delta = Math.max(0L, nanoTime - mLastNanos);
+        mLastNanos = Math.max(mLastNanos, nanoTime);
+
+        final int start = mMap.position();
+        mMap.put((byte) 0);
+        putVarLong(mMap, delta);
+        putVarLong(mMap, length);
+        mMap.put(data.duplicate());
+        mMap.put(start, (byte) direction.rawValue());
+    }
+
+    /**
+     * 書き込んだ内容をディスクに書き出します.
+     */
+    public synchronized void sync() {
+        if (!mClosed) {
+            mMap.force();
+        }
+    }
+
+    /**
+     * ファイルを記録した長さに切り詰めて閉じます.
+     *
+     * @throws IOException 閉じられない場合。
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mMap.force();
+            mFile.setLength(mMapOffset + mMap.position());
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private void remap(long offset, int size) throws IOException {
+        if (mMap != null) {
+            mMap.force();
+        }
+        mMap = mFile.getChannel().map(MapMode.READ_WRITE, offset, size);
+        mMapOffset = offset;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * 可変長の数値を読みます.
+     *
+     * @return 値。途中で終わっている場合は -1。
+     */
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1L;
+            }
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1L;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.CaptureLog.Direction;
+import org.zakky.rl700s.comm.CaptureLog.Record;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CaptureLog} に記録した通信をプリンタ(または模擬プリンタ)に対して再現するクラスです.
+ *
+ * <p>
+ * 送信レコードは記録時の間隔を速度倍率で割った時刻に送り、受信レコードは同じバイト数を
+ * 受け取るまで待ちます。受信待ちにかかった時間を記録時のものと並べて {@link Report}
+ * に残すので、ステータス待ちでどこに時間がかかっているかを比較できます。
+ * 受け取った内容は記録と比較しません。
+ * </p>
+ */
+public final class CaptureReplayer {
+
+    /** 間隔を空けずにできるだけ速く送ることを表す速度倍率. */
+    public static final double AS_FAST_AS_POSSIBLE = 0.0;
+
+    /**
+     * 1 回の受信待ちの記録です.
+     */
+    public static final class StatusWait {
+        private final int mRecordIndex;
+        private final long mBytesSent;
+        private final long mOriginalNanos;
+        private final long mReplayNanos;
+
+        StatusWait(int recordIndex, long bytesSent, long originalNanos, long replayNanos) {
+            mRecordIndex = recordIndex;
+            mBytesSent = bytesSent;
+            mOriginalNanos = originalNanos;
+            mReplayNanos = replayNanos;
+        }
+
+        /**
+         * ログ内のレコード番号を返します.
+         *
+         * @return 0 始まりの番号。
+         */
+        public int getRecordIndex() {
+            return mRecordIndex;
+        }
+
+        /**
+         * 待ち始めるまでに送信したバイト数を返します.
+         *
+         * @return バイト数。
+         */
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        /**
+         * 記録時に、直前のレコードからこの受信までにかかった時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getOriginalNanos() {
+            return mOriginalNanos;
+        }
+
+        /**
+         * 再現時に受信を待った時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getReplayNanos() {
+            return mReplayNanos;
+        }
+    }
+
+    /**
+     * 再現の結果です.
+     */
+    public static final class Report {
+        private final long mOriginalNanos;
+        private final long mElapsedNanos;
+        private final long mWriteNanos;
+        private final long mPacingNanos;
+        private final long mBytesSent;
+        private final long mBytesReceived;
+        private final List<StatusWait> mWaits;
+
+        Report(long originalNanos, long elapsedNanos, long writeNanos, long pacingNanos,
+                long bytesSent, long bytesReceived, List<StatusWait> waits) {
+            mOriginalNanos = originalNanos;
+            mElapsedNanos = elapsedNanos;
+            mWriteNanos = writeNanos;
+            mPacingNanos = pacingNanos;
+            mBytesSent = bytesSent;
+            mBytesReceived = bytesReceived;
+            mWaits = Collections.unmodifiableList(waits);
+        }
+
+        /**
+         * 記録時の最初から最後のレコードまでの時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getOriginalNanos() {
+            return mOriginalNanos;
+        }
+
+        /**
+         * 再現にかかった時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * 送信にかかった時間の合計を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getWriteNanos() {
+            return mWriteNanos;
+        }
+
+        /**
+         * 記録時の間隔に合わせるために待った時間の合計を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getPacingNanos() {
+            return mPacingNanos;
+        }
+
+        /**
+         * 受信を待った時間の合計を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getStatusWaitNanos() {
+            long total = 0L;
+            for (StatusWait w : mWaits) {
+                total += w.getReplayNanos();
+            }
+            return total;
+        }
+
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        /**
+         * 受信待ちの記録を返します.
+         *
+         * @return ログ内の順に並んだ変更不可のリスト。
+         */
+        public List<StatusWait> getStatusWaits() {
+            return mWaits;
+        }
+
+        /**
+         * 再現時の待ち時間が長いものから順に受信待ちを返します.
+         *
+         * @param count 最大件数。
+         * @return 新しいリスト。
+         */
+        public List<StatusWait> getLongestStatusWaits(int count) {
+            final List<StatusWait> sorted = new ArrayList<StatusWait>(mWaits);
+            Collections.sort(sorted, new Comparator<StatusWait>() {
+                @Override
+                public int compare(StatusWait a, StatusWait b) {
+                    return (a.mReplayNanos < b.mReplayNanos) ? 1
+                            : ((a.mReplayNanos == b.mReplayNanos) ? 0 : -1);
+                }
+            });
+            return sorted.subList(0, Math.min(count, sorted.size()));
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("original=").append(toMillis(mOriginalNanos)).append("ms");
+            sb.append(" elapsed=").append(toMillis(mElapsedNanos)).append("ms");
+            sb.append(" write=").append(toMillis(mWriteNanos)).append("ms");
+            sb.append(" statusWait=").append(toMillis(getStatusWaitNanos())).append("ms");
+            sb.append(" pacing=").append(toMillis(mPacingNanos)).append("ms");
+            sb.append(" sent=").append(mBytesSent);
+            sb.append(" received=").append(mBytesReceived);
+            sb.append(" waits=").append(mWaits.size());
+            return sb.toString();
+        }
+
+        private static long toMillis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    private final ByteChannel mTransport;
+    private final double mSpeed;
+
+    /**
+     * インスタンスを構築します.
+     *
+     * @param transport 再現先の通信路。ブロッキングモードであること。
+     * @param speed 速度倍率。 1.0 で記録時と同じ速さ、 2.0 で 2 倍速、
+     *            {@link #AS_FAST_AS_POSSIBLE} で間隔を空けずに送ります。
+     */
+    public CaptureReplayer(ByteChannel transport, double speed) {
+        super();
+        if (!(0.0 <= speed)) {
+            throw new IllegalArgumentException("'speed' must not be negative: " + speed);
+        }
+        mTransport = transport;
+        mSpeed = speed;
+    }
+
+    /**
+     * ログを最後まで再現します.
+     *
+     * @param reader ログ。
+     * @return 結果。
+     * @throws IOException 通信に失敗した場合、受信中に通信路が閉じられた場合、
+     *             または待機中に割り込まれた場合。
+     */
+    public Report replay(CaptureLog.Reader reader) throws IOException {
+        final List<StatusWait> waits = new ArrayList<StatusWait>();
+        final long start = System.nanoTime();
+        long writeNanos = 0L;
+        long pacingNanos = 0L;
+        long bytesSent = 0L;
+        long bytesReceived = 0L;
+        long firstTime = -1L;
+        long prevTime = 0L;
+        long lastTime = 0L;
+        ByteBuffer in = ByteBuffer.allocate(RL700SStatus.STATUS_SIZE);
+
+        int index = 0;
+        for (Record r = reader.next(); r != null; r = reader.next(), index++) {
+            if (firstTime < 0) {
+                firstTime = r.getTimeNanos();
+                prevTime = firstTime;
+            }
+            final long offset = r.getTimeNanos() - firstTime;
+            final ByteBuffer data = r.getData();
+            if (r.getDirection() == Direction.OUTGOING) {
+                pacingNanos += pace(start, offset);
+                final long t0 = System.nanoTime();
+                while (data.hasRemaining()) {
+                    mTransport.write(data);
+                }
+                writeNanos += System.nanoTime() - t0;
+                bytesSent += r.getData().remaining();
+            } else {
+                if (in.capacity() < data.remaining()) {
+                    in = ByteBuffer.allocate(data.remaining());
+                }
+                in.clear();
+                in.limit(data.remaining());
+                final long t0 = System.nanoTime();
+                while (in.hasRemaining()) {
+                    if (mTransport.read(in) < 0) {
+                        throw new EOFException("transport closed while waiting for record "
+                                + index);
+                    }
+                }
+                waits.add(new StatusWait(index, bytesSent, r.getTimeNanos() - prevTime,
+                        System.nanoTime() - t0));
+                bytesReceived += data.remaining();
+            }
+            prevTime = r.getTimeNanos();
+            lastTime = offset;
+        }
+        return new Report(lastTime, System.nanoTime() - start, writeNanos, pacingNanos,
+                bytesSent, bytesReceived, waits);
+    }
+
+    /**
+     * 記録時の経過時間に合わせて待ちます.
+     *
+     * @return 待った時間(ナノ秒)。
+     */
+    private long pace(long start, long offsetNanos) throws InterruptedIOException {
+        if (mSpeed == AS_FAST_AS_POSSIBLE) {
+            return 0L;
+        }
+        final long target = start + (long) (offsetNanos / mSpeed);
+        final long t0 = System.nanoTime();
+        long remaining = target - t0;
+        while (0 < remaining) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while pacing.");
+            }
+            remaining = target - System.nanoTime();
+        }
+        return System.nanoTime() - t0;
+    }
+
+    /**
+     * ログを TCP で接続したプリンタに対して再現し、結果を標準出力に出力します.
+     *
+     * <p>
+     * 引数は ログファイル ホスト ポート [速度倍率] です。速度倍率を省略するとできるだけ速く送ります。
+     * </p>
+     *
+     * @param args 引数。
+     * @throws IOException 失敗した場合。
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: CaptureReplayer <log> <host> <port> [speed]");
+            System.exit(2);
+        }
+        final CaptureLog.Reader reader = CaptureLog.open(new File(args[0]));
+        final double speed = (args.length < 4) ? AS_FAST_AS_POSSIBLE : Double
+                .parseDouble(args[3]);
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(args[1],
+                Integer.parseInt(args[2])));
+        try {
+            final Report report = new CaptureReplayer(channel, speed).replay(reader);
+            System.out.println(report);
+            for (StatusWait w : report.getLongestStatusWaits(10)) {
+                System.out.println("record=" + w.getRecordIndex() + " sent=" + w.getBytesSent()
+                        + " original=" + TimeUnit.NANOSECONDS.toMillis(w.getOriginalNanos())
+                        + "ms replay=" + TimeUnit.NANOSECONDS.toMillis(w.getReplayNanos())
+                        + "ms");
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.CaptureLog.Direction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ * プリンタとの通信路を包み、送受信したバイト列を {@link CaptureLog} に記録するチャネルです.
+ *
+ * <p>
+ * 書き込みは実際に書き込めた分だけ、読み込みは実際に受け取った分だけを、
+ * それぞれ {@link Direction#OUTGOING} と {@link Direction#INCOMING} として記録します。
+ * ログを閉じるのは呼び出し側の責任です。
+ * </p>
+ */
+public final class CapturingChannel implements ByteChannel {
+
+    private final ByteChannel mDelegate;
+    private final CaptureLog mLog;
+
+    /**
+     * インスタンスを構築します.
+     *
+     * @param delegate 実際の通信路。
+     * @param log 記録先。
+     */
+    public CapturingChannel(ByteChannel delegate, CaptureLog log) {
+        super();
+        mDelegate = delegate;
+        mLog = log;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        final int start = src.position();
+        final int written = mDelegate.write(src);
+        if (0 < written) {
+            mLog.append(Direction.OUTGOING, range(src, start, start + written));
+        }
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final int start = dst.position();
+        final int read = mDelegate.read(dst);
+        if (0 < read) {
+            mLog.append(Direction.INCOMING, range(dst, start, start + read));
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mDelegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDelegate.close();
+    }
+
+    private static ByteBuffer range(ByteBuffer buffer, int start, int end) {
+        final ByteBuffer b = buffer.duplicate();
+        b.limit(end);
+        b.position(start);
+        return b;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link TraceEvent} を Chrome の trace event 形式(JSON 配列)で書き出す {@link RL700STracer.Sink} です.
+ *
+ * <p>
+ * 書き出したファイルは chrome://tracing や Perfetto で開けます。区間は complete event
+ * ("X")、瞬間は instant event ("i") になり、スレッドごとの行に並びます。
+ * トレース ID は args.job に入るので、同じジョブの区間をスレッドをまたいで検索できます。
+ * 時刻は構築時からのマイクロ秒です。
+ * </p>
+ * <p>
+ * 書き込みに失敗した場合は以後の記録を捨て、 {@link #close()} で例外を投げます。
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class ChromeTraceWriter implements RL700STracer.Sink, Closeable {
+
+    private static final int PID = 1;
+
+    private final Writer mWriter;
+    private final long mBaseNanos;
+    private final Set<Long> mNamedThreads = new HashSet<Long>();
+    private final StringBuilder mBuffer = new StringBuilder(256);
+    private boolean mFirst = true;
+    private IOException mError;
+    private boolean mClosed;
+
+    /**
+     * インスタンスを構築し、配列の開始を書き込みます.
+     *
+     * @param writer 書き込み先。 {@link #close()} で閉じます。
+     */
+    public ChromeTraceWriter(Writer writer) {
+        super();
+        mWriter = writer;
+        mBaseNanos = System.nanoTime();
+        write("[\n");
+    }
+
+    @Override
+    public synchronized void onEvent(TraceEvent event) {
+        if (mClosed || mError != null) {
+            return;
+        }
+        final StringBuilder sb = mBuffer;
+        sb.setLength(0);
+        if (mNamedThreads.add(Long.valueOf(event.getThreadId()))) {
+            separator(sb);
+            sb.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(PID);
+            sb.append(",\"tid\":").append(event.getThreadId());
+            sb.append(",\"args\":{\"name\":");
+            appendString(sb, event.getThreadName());
+            sb.append("}}");
+        }
+        separator(sb);
+        sb.append("{\"name\":");
+        appendString(sb, event.getName());
+        sb.append(",\"cat\":");
+        appendString(sb, event.getCategory());
+        if (event.isInstant()) {
+            sb.append(",\"ph\":\"i\",\"s\":\"t\"");
+        } else {
+            sb.append(",\"ph\":\"X\",\"dur\":");
+            appendMicros(sb, event.getDurationNanos());
+        }
+        sb.append(",\"ts\":");
+        appendMicros(sb, event.getStartNanos() - mBaseNanos);
+        sb.append(",\"pid\":").append(PID);
+        sb.append(",\"tid\":").append(event.getThreadId());
+        sb.append(",\"args\":{\"job\":").append(event.getTraceId());
+        if (event.getDetail() != null) {
+            sb.append(",\"detail\":");
+            appendString(sb, event.getDetail());
+        }
+        sb.append("}}");
+        write(sb);
+    }
+
+    /**
+     * 配列を閉じて書き込み先を閉じます.
+     *
+     * @throws IOException 途中の書き込みか、閉じる処理に失敗した場合。
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        write("\n]\n");
+        mClosed = true;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private void separator(StringBuilder sb) {
+        if (mFirst) {
+            mFirst = false;
+        } else {
+            sb.append(",\n");
+        }
+    }
+
+    private void write(CharSequence s) {
+        try {
+            mWriter.append(s);
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    static void appendMicros(StringBuilder sb, long nanos) {
+        // -999 から -1 ナノ秒では整数部が 0 になり符号が落ちるので、符号は別に書く
+        if (nanos < 0) {
+            sb.append('-');
+        }
+        sb.append(Math.abs(nanos / 1000L)).append('.');
+        final long frac = Math.abs(nanos % 1000L);
+        if (frac < 100) {
+            sb.append('0');
+        }
+        if (frac < 10) {
+            sb.append('0');
+        }
+        sb.append(frac);
+    }
+
+    static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * エンコード済みの印刷ジョブを表すクラスです.
+ *
+ * <p>
+ * ジョブはセットアップコマンドと、それに続く 1 つ以上のページから成るバイト列です。
+ * 各ページは印字司令コマンドで終わり、ページ境界のオフセットを保持しているため、
+ * 任意のページからの再送やページ単位の切り替えができます。
+ * </p>
+ */
+public final class EncodedJob {
+
+    /** 先頭を position 0 とする読み取り専用のバッファ. */
+    private final ByteBuffer mData;
+    private final int mSetupLength;
+    /** 各ページの終端オフセット(印字司令コマンドの直後). */
+    private final int[] mPageEnds;
+    /** 各ページまでのライン数の累積. */
+    private final int[] mPageLineEnds;
+    private final PrintSettings mSettings;
+    private final long mTraceId;
+
+    /**
+     * エンコード済みのデータとページ境界を指定してインスタンスを構築します.
+     *
+     * @param data ジョブ全体のバイト列。 position から limit までをジョブとして扱います。
+     * @param setupLength 先頭のセットアップコマンドの長さ。
+     * @param pageEnds 各ページの終端オフセット。
+     * @param pageLineEnds 各ページまでのライン数の累積。
+     * @param settings ジョブの印刷設定。
+     */
+    public EncodedJob(ByteBuffer data, int setupLength, int[] pageEnds, int[] pageLineEnds,
+            PrintSettings settings) {
+        this(data, setupLength, pageEnds, pageLineEnds, settings, RL700STracer.NO_TRACE);
+    }
+
+    EncodedJob(ByteBuffer data, int setupLength, int[] pageEnds, int[] pageLineEnds,
+            PrintSettings settings, long traceId) {
+        super();
+        if (pageEnds.length != pageLineEnds.length) {
+            throw new IllegalArgumentException("length of 'pageEnds' and 'pageLineEnds' differ.");
+        }
+        if (pageEnds.length == 0) {
+            throw new IllegalArgumentException("job has no page.");
+        }
+        final ByteBuffer d = data.slice().asReadOnlyBuffer();
+        if (setupLength < 0 || d.limit() < setupLength) {
+            throw new IllegalArgumentException("invalid setup length: " + setupLength);
+        }
+        int prev = setupLength;
+        for (int end : pageEnds) {
+            if (end < prev || d.limit() < end) {
+                throw new IllegalArgumentException("invalid page offset: " + end);
+            }
+            prev = end;
+        }
+        int prevLines = 0;
+        for (int lines : pageLineEnds) {
+            if (lines < prevLines) {
+                throw new IllegalArgumentException("invalid line count: " + lines);
+            }
+            prevLines = lines;
+        }
+        mData = d;
+        mSetupLength = setupLength;
+        mPageEnds = pageEnds.clone();
+        mPageLineEnds = pageLineEnds.clone();
+        mSettings = settings;
+        mTraceId = traceId;
+    }
+
+    /**
+     * ジョブ全体のバイト列を返します.
+     *
+     * @return 読み取り専用のバッファ。呼び出しごとに独立した position と limit を持ちます。
+     */
+    public ByteBuffer getData() {
+        return mData.duplicate();
+    }
+
+    public int getLength() {
+        return mData.limit();
+    }
+
+    public int getSetupLength() {
+        return mSetupLength;
+    }
+
+    public int getPageCount() {
+        return mPageEnds.length;
+    }
+
+    public int getLineCount() {
+        return mPageEnds.length == 0 ? 0 : mPageLineEnds[mPageEnds.length - 1];
+    }
+
+    public PrintSettings getSettings() {
+        return mSettings;
+    }
+
+    /**
+     * エンコード時に {@link RL700STracer#setCurrentJob(long)} で指定されていたトレース ID を返します.
+     *
+     * @return トレース ID。指定がなかった場合は {@link RL700STracer#NO_TRACE}。
+     */
+    public long getTraceId() {
+        return mTraceId;
+    }
+
+    /**
+     * ページの開始オフセットを返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return 開始オフセット。
+     */
+    public int getPageStart(int page) {
+        checkPage(page);
+        return (page == 0) ? mSetupLength : mPageEnds[page - 1];
+    }
+
+    /**
+     * ページの終端オフセットを返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return 終端オフセット(印字司令コマンドの直後)。
+     */
+    public int getPageEnd(int page) {
+        checkPage(page);
+        return mPageEnds[page];
+    }
+
+    /**
+     * ページに含まれるライン数を返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return ライン数。
+     */
+    public int getPageLineCount(int page) {
+        checkPage(page);
+        return mPageLineEnds[page] - ((page == 0) ? 0 : mPageLineEnds[page - 1]);
+    }
+
+    /**
+     * セットアップコマンドのバイト列を返します.
+     *
+     * @return 読み取り専用のバッファ。
+     */
+    public ByteBuffer getSetup() {
+        return range(0, mSetupLength);
+    }
+
+    /**
+     * 1 ページ分のバイト列を返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return 読み取り専用のバッファ。
+     */
+    public ByteBuffer getPage(int page) {
+        return range(getPageStart(page), getPageEnd(page));
+    }
+
+    /**
+     * 指定したページから最後までを印刷するためのバイト列を返します.
+     *
+     * <p>
+     * セットアップコマンドを先頭に付け直すので、途中で他のジョブを印刷した後や
+     * エラーから復帰した後でもそのままプリンタへ送ることができます。
+     * </p>
+     *
+     * @param page 再開するページ番号(0 始まり)。
+     * @return 新しく割り当てたバッファ。
+     */
+    public ByteBuffer resumeFrom(int page) {
+        final int start = getPageStart(page);
+        final int end = mData.limit();
+        final ByteBuffer result = ByteBuffer.allocate(mSetupLength + (end - start));
+        result.put(range(0, mSetupLength));
+        result.put(range(start, end));
+        result.flip();
+        return result;
+    }
+
+    /**
+     * 同じページ境界を持ち、データだけを別のバッファに置いたジョブを返します.
+     *
+     * @param data {@link #getData()} と同じ内容のバッファ。
+     * @return 新しいインスタンス。
+     */
+    EncodedJob withData(ByteBuffer data) {
+        if (data.remaining() != mData.limit()) {
+            throw new IllegalArgumentException("length differs: " + data.remaining());
+        }
+        return new EncodedJob(data, mSetupLength, mPageEnds, mPageLineEnds, mSettings, mTraceId);
+    }
+
+    private ByteBuffer range(int start, int end) {
+        final ByteBuffer d = mData.duplicate();
+        d.position(start);
+        d.limit(end);
+        return d.slice();
+    }
+
+    private void checkPage(int page) {
+        if (page < 0 || mPageEnds.length <= page) {
+            throw new IndexOutOfBoundsException("page " + page + " out of range: [0, "
+                    + mPageEnds.length + ")");
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ラベルの内容を表すキーから、エンコード済みのジョブを引くキャッシュです.
+ *
+ * <p>
+ * 同じラベルを繰り返し印刷する場合に、ラスタライズと {@code packBits} をやり直さずに済むよう、
+ * {@link EncodedJob} のバイト列をヒープ外(ダイレクトバッファ)に保持します。
+ * 保持するバイト数の合計が上限を超えると、最も長く使われていないものから捨てます。
+ * </p>
+ * <p>
+ * エントリはキーとエンコード時の {@link PrintSettings} の組で保持するため、設定の異なる複数の
+ * プリンタから同じキーで引いても互いのエントリを追い出しません。設定の変更が分かっている場合は
+ * {@link #invalidateOtherThan(PrintSettings)} で古い設定のエントリをまとめて無効化できます。
+ * </p>
+ * <p>
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class EncodedJobCache {
+
+    /**
+     * キャッシュにないジョブをエンコードするためのインターフェースです.
+     */
+    public interface Loader {
+        /**
+         * ジョブをエンコードします.
+         *
+         * @param key ラベルの内容を表すキー。
+         * @param settings 印刷設定。
+         * @return エンコード済みのジョブ。
+         */
+        EncodedJob load(String key, PrintSettings settings);
+    }
+
+    /**
+     * ラベルの内容を表すキーと印刷設定の組です.
+     */
+    private static final class Key {
+        private final String mLabel;
+        private final PrintSettings mSettings;
+
+        Key(String label, PrintSettings settings) {
+            super();
+            mLabel = label;
+            mSettings = settings;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mLabel.hashCode() + mSettings.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return mLabel.equals(other.mLabel) && mSettings.equals(other.mSettings);
+        }
+    }
+
+    private final long mMaxBytes;
+    /** アクセス順の {@link LinkedHashMap}。先頭が最も長く使われていないエントリ. */
+    private final LinkedHashMap<Key, EncodedJob> mEntries = new LinkedHashMap<Key, EncodedJob>(16,
+            0.75f, true);
+    private long mBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mInvalidationCount;
+
+    /**
+     * 保持するバイト数の上限を指定してキャッシュを構築します.
+     *
+     * @param maxBytes 上限(バイト)。
+     */
+    public EncodedJobCache(long maxBytes) {
+        super();
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("'maxBytes' must be positive: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * キャッシュからジョブを取得します.
+     *
+     * @param key ラベルの内容を表すキー。
+     * @param settings 印刷設定。
+     * @return ジョブ。指定した設定でエンコードしたものがない場合は {@code null}。
+     */
+    public synchronized EncodedJob get(String key, PrintSettings settings) {
+        final EncodedJob job = mEntries.get(new Key(key, settings));
+        if (job == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return job;
+    }
+
+    /**
+     * キャッシュからジョブを取得し、ない場合はエンコードして追加します.
+     *
+     * @param key ラベルの内容を表すキー。
+     * @param settings 印刷設定。
+     * @param loader キャッシュにない場合にエンコードを行うインスタンス。
+     * @return ジョブ。
+     */
+    public EncodedJob get(String key, PrintSettings settings, Loader loader) {
+        final EncodedJob cached = get(key, settings);
+        if (cached != null) {
+            return cached;
+        }
+        // エンコードはロックの外で行う
+        final EncodedJob job = loader.load(key, settings);
+        final EncodedJob stored = put(key, job);
+        return (stored == null) ? job : stored;
+    }
+
+    /**
+     * ジョブをキャッシュに追加します.
+     *
+     * <p>
+     * ジョブは {@link EncodedJob#getSettings()} の設定とキーの組で保持します。
+     * </p>
+     *
+     * @param key ラベルの内容を表すキー。
+     * @param job ジョブ。
+     * @return ヒープ外にコピーしたジョブ。上限より大きく保持できない場合は {@code null}。
+     */
+    public synchronized EncodedJob put(String key, EncodedJob job) {
+        final Key entryKey = new Key(key, job.getSettings());
+        removeEntry(entryKey);
+        final int length = job.getLength();
+        if (mMaxBytes < length) {
+            return null;
+        }
+        final Iterator<EncodedJob> it = mEntries.values().iterator();
+        while (mMaxBytes < mBytes + length && it.hasNext()) {
+            mBytes -= it.next().getLength();
+            it.remove();
+            mEvictionCount++;
+        }
+        final ByteBuffer direct = ByteBuffer.allocateDirect(length);
+        direct.put(job.getData());
+        direct.flip();
+        final EncodedJob stored = job.withData(direct);
+        mEntries.put(entryKey, stored);
+        mBytes += length;
+        return stored;
+    }
+
+    /**
+     * キーのエントリを、印刷設定によらずすべて無効化します.
+     *
+     * @param key ラベルの内容を表すキー。
+     */
+    public synchronized void invalidate(String key) {
+        final Iterator<Map.Entry<Key, EncodedJob>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, EncodedJob> entry = it.next();
+            if (entry.getKey().mLabel.equals(key)) {
+                mBytes -= entry.getValue().getLength();
+                it.remove();
+                mInvalidationCount++;
+            }
+        }
+    }
+
+    /**
+     * 指定した設定以外でエンコードされたエントリをすべて無効化します.
+     *
+     * <p>
+     * {@code Mode} や {@code EnhancedMode}、用紙、圧縮モードを切り替えたときに呼び出してください。
+     * </p>
+     *
+     * @param current 現在の印刷設定。
+     */
+    public synchronized void invalidateOtherThan(PrintSettings current) {
+        final Iterator<EncodedJob> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final EncodedJob job = it.next();
+            if (!job.getSettings().equals(current)) {
+                mBytes -= job.getLength();
+                it.remove();
+                mInvalidationCount++;
+            }
+        }
+    }
+
+    /**
+     * すべてのエントリを無効化します.
+     */
+    public synchronized void clear() {
+        mInvalidationCount += mEntries.size();
+        mEntries.clear();
+        mBytes = 0L;
+    }
+
+    private void removeEntry(Key key) {
+        final EncodedJob old = mEntries.remove(key);
+        if (old != null) {
+            mBytes -= old.getLength();
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EncodedJobCache[size=" + mEntries.size() + ", bytes=" + mBytes + ", hit="
+                + mHitCount + ", miss=" + mMissCount + ", eviction=" + mEvictionCount
+                + ", invalidation=" + mInvalidationCount + "]";
+    }
+}
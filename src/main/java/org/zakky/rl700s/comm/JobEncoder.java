@@ -0,0 +1,385 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CommandMode;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link RL700SCommands} のコマンドを組み立てて {@link EncodedJob} を生成するクラスです.
+ *
+ * <p>
+ * 構築時に {@link PrintSettings} に従ったセットアップコマンドを書き込み、その後
+ * {@link #addLine(byte[])} でラインを追加、 {@link #endPage(boolean)} でページを区切り、
+ * {@link #finish()} で最後のページを排出動作付きの印字司令で閉じます。
+ * スレッドセーフではありません。
+ * </p>
+ */
+public final class JobEncoder {
+
+    private static final int INITIAL_CAPACITY = 4096;
+    /** セットアップコマンドの合計の上限。 7 つのコマンドがそれぞれ 64 バイトに収まります. */
+    private static final int MAX_SETUP_SIZE = 512;
+
+    private final PrintSettings mSettings;
+    private final ByteBuffer mCommand = RL700SCommands.allocateOutBuffer();
+
+    private byte[] mBytes = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    private final int mSetupLength;
+
+    private int[] mPageEnds = new int[4];
+    private int[] mPageLineEnds = new int[4];
+    private int mPageCount;
+    private int mLineCount;
+    private boolean mFinished;
+    /** 計測が有効な間にライン追加にかかった時間. */
+    private long mEncodeNanos;
+    private final long mTraceId;
+    /** トレース中の、現在のページのエンコード開始時刻. */
+    private long mPageTraceStart;
+
+    /**
+     * セットアップコマンドを書き込んだ状態のエンコーダを構築します.
+     *
+     * @param settings 印刷設定。
+     */
+    public JobEncoder(PrintSettings settings) {
+        super();
+        mSettings = settings;
+        mTraceId = RL700STracer.getCurrentJob();
+        mPageTraceStart = RL700STracer.begin();
+        final ByteBuffer out = ByteBuffer.wrap(mBytes);
+        writeSetup(out, mCommand, settings);
+        mLength = out.position();
+        mSetupLength = mLength;
+    }
+
+    /**
+     * ジョブ先頭で送るセットアップコマンドを順に書き込みます.
+     *
+     * @param out 書き込み先。 {@link #MAX_SETUP_SIZE} バイト以上の空きが必要です。
+     * @param cmd コマンドの組み立てに使うバッファ。
+     * @param s 印刷設定。
+     */
+    private static void writeSetup(ByteBuffer out, ByteBuffer cmd, PrintSettings s) {
+        RL700SCommands.getInit(cmd);
+        out.put(cmd);
+        RL700SCommands.getSwitchCommandMode(cmd, CommandMode.RASTER);
+        out.put(cmd);
+        RL700SCommands.getSetPrintInformation(cmd, s.getPaperKind(), s.getPaperWidth(),
+                s.getPaperLength(), s.isEnableRecover(), s.isLowPowerPrint());
+        out.put(cmd);
+        RL700SCommands.getSetMode(cmd, s.getModes());
+        out.put(cmd);
+        RL700SCommands.getSetEnhancedMode(cmd, s.getEnhancedModes());
+        out.put(cmd);
+        RL700SCommands.getSetMergin(cmd, s.getMergin());
+        out.put(cmd);
+        RL700SCommands.getSelectCompressionMode(cmd, s.getCompressionMode());
+        out.put(cmd);
+    }
+
+    /**
+     * 印刷設定に従ったセットアップコマンドのバイト列を返します.
+     *
+     * <p>
+     * エンコーダは構築しないので、ジョブのバッファやトレースのスパンは作りません。
+     * </p>
+     *
+     * @param settings 印刷設定。
+     * @return セットアップコマンド。
+     */
+    static byte[] setupBytes(PrintSettings settings) {
+        final ByteBuffer out = ByteBuffer.allocate(MAX_SETUP_SIZE);
+        writeSetup(out, RL700SCommands.allocateOutBuffer(), settings);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    public PrintSettings getSettings() {
+        return mSettings;
+    }
+
+    /**
+     * ラインを 1 つ追加します。すべてのビットが 0 の場合はゼロラスターラインとして送ります.
+     *
+     * @param line 非圧縮のラインビット列。
+     */
+    public void addLine(byte[] line) {
+        checkNotFinished();
+        final int from = mLength;
+        final long start = encodeStart();
+        lineCommand(mCommand, line, mSettings.getCompressionMode());
+        append(mCommand);
+        mLineCount++;
+        encodeEnd(start);
+        countLines(from);
+    }
+
+    /**
+     * 同じラインを {@code count} 本追加します。圧縮は 1 回だけ行います.
+     *
+     * @param line 非圧縮のラインビット列。
+     * @param count 本数。
+     */
+    public void addLine(byte[] line, int count) {
+        checkNotFinished();
+        if (count <= 0) {
+            return;
+        }
+        final int from = mLength;
+        final long start = encodeStart();
+        lineCommand(mCommand, line, mSettings.getCompressionMode());
+        final int size = mCommand.remaining();
+        ensureCapacity(mLength + size * count);
+        for (int i = 0; i < count; i++) {
+            mCommand.get(mBytes, mLength, size);
+            mCommand.rewind();
+            mLength += size;
+        }
+        mLineCount += count;
+        encodeEnd(start);
+        countLines(from);
+    }
+
+    /**
+     * バーコードのラインを追加します。ランごとに圧縮は 1 回だけ行います.
+     *
+     * @param raster バーコード。
+     */
+    public void addLines(BarcodeRaster raster) {
+        for (int r = 0; r < raster.getRunCount(); r++) {
+            addLine(raster.getRunLine(r), raster.getRunLength(r));
+        }
+    }
+
+    /**
+     * 描画領域のすべてのラインを追加します。描画していないラインは読まずにゼロラスターラインにします.
+     *
+     * @param canvas 描画領域。
+     */
+    public void addLines(LabelCanvas canvas) {
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int l = 0; l < canvas.getLineCount(); l++) {
+            if (canvas.isZeroLine(l)) {
+                addZeroLine();
+            } else {
+                canvas.getLine(l, line);
+                addLine(line);
+            }
+        }
+    }
+
+    /**
+     * ラスターのすべてのラインを追加します.
+     *
+     * <p>
+     * ラインはバッファから直接コマンドにするので、ヒープ上にラインの配列を作りません。
+     * 直前と同じ内容のラインは圧縮し直さずに直前のコマンドを繰り返します。
+     * </p>
+     *
+     * @param source ラスター。
+     */
+    public void addLines(RasterSource source) {
+        checkNotFinished();
+        final int from = mLength;
+        final long start = encodeStart();
+        final LineCommandEncoder lines = new LineCommandEncoder(mSettings.getCompressionMode());
+        for (int l = 0; l < source.getLineCount(); l++) {
+            append(lines.encode(source, l));
+            mLineCount++;
+        }
+        encodeEnd(start);
+        countLines(from);
+    }
+
+    /**
+     * エンコード済みのラインコマンドをそのまま追加します.
+     *
+     * @param commands {@link #lineCommand(ByteBuffer, byte[], CompressionMode)}
+     *            で生成したコマンドを連結したもの。
+     * @param offset {@code commands} 内の開始位置。
+     * @param length バイト数。
+     * @param lineCount 含まれるライン数。
+     */
+    void addEncodedLines(byte[] commands, int offset, int length, int lineCount) {
+        checkNotFinished();
+        final int from = mLength;
+        final long start = encodeStart();
+        ensureCapacity(mLength + length);
+        System.arraycopy(commands, offset, mBytes, mLength, length);
+        mLength += length;
+        mLineCount += lineCount;
+        encodeEnd(start);
+        countLines(from);
+    }
+
+    /**
+     * 1 ライン分のコマンドを生成します。すべてのビットが 0 の場合はゼロラスターラインになります.
+     *
+     * @param buffer コマンド書き込み先バッファ。
+     * @param line 非圧縮のラインビット列。
+     * @param mode 圧縮モード。
+     */
+    static void lineCommand(ByteBuffer buffer, byte[] line, CompressionMode mode) {
+        if (isZero(line)) {
+            RL700SCommands.getSendZeroRasterLine(buffer);
+        } else {
+            RL700SCommands.getSendRasterLine(buffer, line, mode);
+        }
+    }
+
+    /**
+     * ゼロラスターラインを 1 つ追加します.
+     */
+    public void addZeroLine() {
+        checkNotFinished();
+        final int from = mLength;
+        final long start = encodeStart();
+        RL700SCommands.getSendZeroRasterLine(mCommand);
+        append(mCommand);
+        mLineCount++;
+        encodeEnd(start);
+        countLines(from);
+    }
+
+    /**
+     * 現在のページを閉じ、次のページを開始します.
+     *
+     * @param halfCut {@code true} の場合はカットライン前の印字司令、 {@code false}
+     *            の場合は通常の印字司令でページを閉じます。
+     */
+    public void endPage(boolean halfCut) {
+        checkNotFinished();
+        if (halfCut) {
+            RL700SCommands.getStartPrintWithHalfCut(mCommand);
+        } else {
+            RL700SCommands.getStartPrint(mCommand);
+        }
+        append(mCommand);
+        markPageEnd();
+    }
+
+    /**
+     * 最後のページを排出動作を伴う印字司令で閉じ、ジョブを完成させます.
+     *
+     * @return エンコード済みのジョブ。
+     */
+    public EncodedJob finish() {
+        checkNotFinished();
+        RL700SCommands.getStartPrintWithEvacuation(mCommand);
+        append(mCommand);
+        markPageEnd();
+        mFinished = true;
+
+        final RL700SMetrics metrics = RL700SMetrics.get();
+        if (metrics != null) {
+            metrics.onJobEncoded(mLength, mLineCount, mEncodeNanos);
+        }
+
+        final int[] pageEnds = new int[mPageCount];
+        System.arraycopy(mPageEnds, 0, pageEnds, 0, mPageCount);
+        final int[] pageLineEnds = new int[mPageCount];
+        System.arraycopy(mPageLineEnds, 0, pageLineEnds, 0, mPageCount);
+        return new EncodedJob(ByteBuffer.wrap(mBytes, 0, mLength), mSetupLength, pageEnds,
+                pageLineEnds, mSettings, mTraceId);
+    }
+
+    private void markPageEnd() {
+        if (mPageCount == mPageEnds.length) {
+            mPageEnds = grow(mPageEnds);
+            mPageLineEnds = grow(mPageLineEnds);
+        }
+        mPageEnds[mPageCount] = mLength;
+        mPageLineEnds[mPageCount] = mLineCount;
+        mPageCount++;
+
+        if (mPageTraceStart != 0L) {
+            final int lines = mLineCount - ((mPageCount == 1) ? 0 : mPageLineEnds[mPageCount - 2]);
+            RL700STracer.end(mTraceId, TraceEvent.CATEGORY_ENCODE, "encode-page",
+                    mPageTraceStart, "page=" + (mPageCount - 1) + " lines=" + lines);
+        }
+        mPageTraceStart = RL700STracer.begin();
+    }
+
+    private void append(ByteBuffer command) {
+        final int size = command.remaining();
+        ensureCapacity(mLength + size);
+        command.get(mBytes, mLength, size);
+        mLength += size;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= mBytes.length) {
+            return;
+        }
+        int newCapacity = mBytes.length * 2;
+        while (newCapacity < required) {
+            newCapacity *= 2;
+        }
+        final byte[] newBytes = new byte[newCapacity];
+        System.arraycopy(mBytes, 0, newBytes, 0, mLength);
+        mBytes = newBytes;
+    }
+
+    /**
+     * 計測が有効な場合だけ現在時刻を返します.
+     */
+    private static long encodeStart() {
+        return (RL700SMetrics.get() == null) ? 0L : System.nanoTime();
+    }
+
+    private void encodeEnd(long start) {
+        if (start != 0L) {
+            mEncodeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * 計測が有効な場合、 {@code from} 以降に書き込んだラインコマンドを数えます.
+     */
+    private void countLines(int from) {
+        final RL700SMetrics metrics = RL700SMetrics.get();
+        if (metrics != null) {
+            metrics.onLineCommands(mBytes, from, mLength - from, mSettings.getCompressionMode());
+        }
+    }
+
+    private void checkNotFinished() {
+        if (mFinished) {
+            throw new IllegalStateException("already finished.");
+        }
+    }
+
+    private static int[] grow(int[] array) {
+        final int[] result = new int[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    static boolean isZero(byte[] line) {
+        for (byte b : line) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
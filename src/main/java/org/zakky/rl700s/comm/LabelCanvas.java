@@ -0,0 +1,330 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.util.BitSet;
+
+/**
+ * 1 ビット 1 ドットに詰めたラベルの描画領域です.
+ *
+ * <p>
+ * 幅はヘッド幅(384 ドット、 {@link RL700SCommands#MAX_LINE_BYTES} バイト)に固定で、
+ * 1 ラインを 6 つの {@code long} で保持します。ロゴ、文字、バーコード、罫線などの要素を
+ * 任意のビット位置に {@link Op} で合成でき、範囲外にはみ出す部分は切り捨てます。
+ * </p>
+ * <p>
+ * 一度でも描画したラインを記録しているので、 {@link JobEncoder#addLines(LabelCanvas)}
+ * は描画していないラインを読まずにゼロラスターラインとして送ります。
+ * スレッドセーフではありません。
+ * </p>
+ */
+public final class LabelCanvas {
+
+    /**
+     * 合成方法です.
+     */
+    public enum Op {
+        /** 転送元で置き換える */
+        COPY,
+        /** 論理和 */
+        OR,
+        /** 論理積 */
+        AND,
+        /** 排他的論理和 */
+        XOR;
+    }
+
+    /** 1 ラインのビット数. */
+    public static final int WIDTH = RL700SCommands.MAX_LINE_BYTES * 8;
+
+    private static final int WORDS_PER_LINE = WIDTH / 64;
+
+    private final int mLineCount;
+    private final long[] mWords;
+    private final BitSet mDirty;
+
+    /**
+     * ライン数を指定して、すべて 0 の描画領域を構築します.
+     *
+     * @param lineCount ライン数(テープ送り方向の長さ)。
+     */
+    public LabelCanvas(int lineCount) {
+        super();
+        if (lineCount < 0) {
+            throw new IllegalArgumentException("'lineCount' must not be negative: " + lineCount);
+        }
+        mLineCount = lineCount;
+        mWords = new long[lineCount * WORDS_PER_LINE];
+        mDirty = new BitSet(lineCount);
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * 矩形を塗りつぶします.
+     *
+     * @param line 開始ライン。
+     * @param bit 開始ビット位置。
+     * @param lines ライン数。
+     * @param bits ビット数。
+     * @param value {@code true} なら 1、 {@code false} なら 0 で塗ります。
+     */
+    public void fill(int line, int bit, int lines, int bits, boolean value) {
+        final int from = Math.max(0, bit);
+        final int to = Math.min(WIDTH, bit + bits);
+        final int firstLine = Math.max(0, line);
+        final int endLine = Math.min(mLineCount, line + lines);
+        if (to <= from || endLine <= firstLine) {
+            return;
+        }
+        for (int l = firstLine; l < endLine; l++) {
+            final int base = l * WORDS_PER_LINE;
+            for (int w = from >>> 6; w <= (to - 1) >>> 6; w++) {
+                final long mask = rangeMask(w, from, to);
+                if (value) {
+                    mWords[base + w] |= mask;
+                } else {
+                    mWords[base + w] &= ~mask;
+                }
+            }
+        }
+        mDirty.set(firstLine, endLine);
+    }
+
+    /**
+     * 枠線を描きます.
+     *
+     * @param line 開始ライン。
+     * @param bit 開始ビット位置。
+     * @param lines ライン数。
+     * @param bits ビット数。
+     * @param thickness 線の太さ。
+     */
+    public void frame(int line, int bit, int lines, int bits, int thickness) {
+        fill(line, bit, Math.min(thickness, lines), bits, true);
+        fill(line + lines - thickness, bit, Math.min(thickness, lines), bits, true);
+        fill(line, bit, lines, Math.min(thickness, bits), true);
+        fill(line, bit + bits - thickness, lines, Math.min(thickness, bits), true);
+    }
+
+    /**
+     * ラインの配列を合成します.
+     *
+     * @param src 転送元のライン。各ラインの先頭 {@code srcBits} ビットを使います。
+     *            {@code null} のラインは 0 として扱います。
+     * @param srcBits 転送元の 1 ラインのビット数。
+     * @param line 転送先の開始ライン。
+     * @param bit 転送先の開始ビット位置。負でもかまいません。
+     * @param op 合成方法。
+     */
+    public void blit(byte[][] src, int srcBits, int line, int bit, Op op) {
+        final long[] row = new long[PackedBits.words(srcBits)];
+        for (int i = 0; i < src.length; i++) {
+            final int l = line + i;
+            if (l < 0 || mLineCount <= l) {
+                continue;
+            }
+            toWords(src[i], srcBits, row);
+            blitRow(row, srcBits, l, bit, op);
+        }
+    }
+
+    /**
+     * 別の描画領域を合成します.
+     *
+     * @param src 転送元。
+     * @param line 転送先の開始ライン。
+     * @param bit 転送先の開始ビット位置。負でもかまいません。
+     * @param op 合成方法。
+     */
+    public void blit(LabelCanvas src, int line, int bit, Op op) {
+        final long[] row = new long[WORDS_PER_LINE];
+        for (int i = 0; i < src.mLineCount; i++) {
+            final int l = line + i;
+            if (l < 0 || mLineCount <= l) {
+                continue;
+            }
+            if (!src.mDirty.get(i) && (op == Op.OR || op == Op.XOR)) {
+                // 0 との OR と XOR は何も変えない
+                continue;
+            }
+            System.arraycopy(src.mWords, i * WORDS_PER_LINE, row, 0, WORDS_PER_LINE);
+            blitRow(row, WIDTH, l, bit, op);
+        }
+    }
+
+    /**
+     * 1 ライン分のビット列を、 {@code long} 単位で転送先のビット位置に合わせて合成します.
+     */
+    private void blitRow(long[] src, int srcBits, int line, int bit, Op op) {
+        final int from = Math.max(0, bit);
+        final int to = Math.min(WIDTH, bit + srcBits);
+        if (to <= from) {
+            return;
+        }
+        final int base = line * WORDS_PER_LINE;
+        for (int w = from >>> 6; w <= (to - 1) >>> 6; w++) {
+            final long mask = rangeMask(w, from, to);
+            final long s = extract(src, w * 64 - bit) & mask;
+            final int index = base + w;
+            switch (op) {
+                case COPY:
+                    mWords[index] = (mWords[index] & ~mask) | s;
+                    break;
+                case OR:
+                    mWords[index] |= s;
+                    break;
+                case AND:
+                    mWords[index] &= s | ~mask;
+                    break;
+                case XOR:
+                    mWords[index] ^= s;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("unsupported op: " + op.name());
+            }
+        }
+        mDirty.set(line);
+    }
+
+    /**
+     * ビット列の {@code pos} ビット目から 64 ビットを取り出します。範囲外は 0 です.
+     */
+    private static long extract(long[] words, int pos) {
+        final int index = pos >> 6;
+        final int shift = pos & 63;
+        final long hi = (0 <= index && index < words.length) ? words[index] : 0L;
+        if (shift == 0) {
+            return hi;
+        }
+        final long lo = (0 <= index + 1 && index + 1 < words.length) ? words[index + 1] : 0L;
+        return (hi << shift) | (lo >>> (64 - shift));
+    }
+
+    /**
+     * ワード {@code w} のうち、ビット位置 {@code from} から {@code to} の直前までに当たるマスクを返します.
+     */
+    private static long rangeMask(int w, int from, int to) {
+        final int start = Math.max(from - w * 64, 0);
+        final int end = Math.min(to - w * 64, 64);
+        final long head = (start == 0) ? -1L : (-1L >>> start);
+        final long tail = (end == 64) ? -1L : ~(-1L >>> end);
+        return head & tail;
+    }
+
+    private static void toWords(byte[] src, int srcBits, long[] dst) {
+        final int bytes = (src == null) ? 0 : Math.min(src.length, (srcBits + 7) >>> 3);
+        for (int w = 0; w < dst.length; w++) {
+            long word = 0L;
+            for (int k = 0; k < 8; k++) {
+                final int i = w * 8 + k;
+                word = (word << 8) | ((i < bytes) ? (src[i] & 0xffL) : 0L);
+            }
+            dst[w] = word;
+        }
+    }
+
+    /**
+     * ラインの内容をバイト列として取り出します.
+     *
+     * @param line ライン番号。
+     * @param dst 書き込み先。 {@link RL700SCommands#MAX_LINE_BYTES} バイト以上であること。
+     */
+    public void getLine(int line, byte[] dst) {
+        final int base = line * WORDS_PER_LINE;
+        for (int w = 0; w < WORDS_PER_LINE; w++) {
+            final long word = mWords[base + w];
+            for (int k = 0; k < 8; k++) {
+                dst[w * 8 + k] = (byte) (word >>> (56 - 8 * k));
+            }
+        }
+    }
+
+    /**
+     * ビットが立っているかどうかを返します.
+     *
+     * @param line ライン番号。
+     * @param bit ビット位置。
+     * @return 立っていれば {@code true}。
+     */
+    public boolean get(int line, int bit) {
+        final long word = mWords[line * WORDS_PER_LINE + (bit >>> 6)];
+        return (word & (1L << (63 - (bit & 63)))) != 0;
+    }
+
+    /**
+     * ラインが 0 かどうかを返します.
+     *
+     * @param line ライン番号。
+     * @return すべてのビットが 0 であれば {@code true}。
+     */
+    public boolean isZeroLine(int line) {
+        if (!mDirty.get(line)) {
+            return true;
+        }
+        final int base = line * WORDS_PER_LINE;
+        for (int w = 0; w < WORDS_PER_LINE; w++) {
+            if (mWords[base + w] != 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ラインに描画したことがあるかどうかを返します.
+     *
+     * @param line ライン番号。
+     * @return 描画したことがあれば {@code true}。
+     */
+    public boolean isDirty(int line) {
+        return mDirty.get(line);
+    }
+
+    /**
+     * 描画したことのある最初のラインを返します.
+     *
+     * @return ライン番号。ない場合は -1。
+     */
+    public int getFirstDirtyLine() {
+        return mDirty.nextSetBit(0);
+    }
+
+    /**
+     * 描画したことのある最後のラインの次を返します.
+     *
+     * @return ライン番号。ない場合は 0。
+     */
+    public int getDirtyEnd() {
+        return mDirty.length();
+    }
+
+    /**
+     * すべてのビットを 0 にし、描画の記録を消します.
+     */
+    public void clear() {
+        for (int l = mDirty.nextSetBit(0); 0 <= l; l = mDirty.nextSetBit(l + 1)) {
+            final int base = l * WORDS_PER_LINE;
+            for (int w = 0; w < WORDS_PER_LINE; w++) {
+                mWords[base + w] = 0L;
+            }
+        }
+        mDirty.clear();
+    }
+}
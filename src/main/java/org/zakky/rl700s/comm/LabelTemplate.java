@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 可変部分だけを再エンコードするラベルテンプレートです.
+ *
+ * <p>
+ * 構築時に固定部分のラインをエンコードしておき、 {@link #instantiate(Map)} では
+ * {@link VariableField} が覆うラインだけを描画・圧縮し直して、エンコード済みの固定部分と
+ * つなぎ合わせます。シリアル番号や日付コードのように一部だけが異なるラベルを、
+ * 可変部分のライン数に比例するコストで生成できます。
+ * </p>
+ * <p>
+ * 構築後は不変で、 {@link #instantiate(Map)} は複数のスレッドから同時に呼び出せます。
+ * </p>
+ */
+public final class LabelTemplate {
+
+    /**
+     * テンプレートの可変部分です.
+     */
+    public interface VariableField {
+        /**
+         * フィールド名を返します。 {@link LabelTemplate#instantiate(Map)} に渡す値のキーになります.
+         *
+         * @return フィールド名。
+         */
+        String getName();
+
+        /**
+         * フィールドが覆う最初のライン番号を返します.
+         *
+         * @return ライン番号(0 始まり)。
+         */
+        int getFirstLine();
+
+        /**
+         * フィールドが覆うライン数を返します.
+         *
+         * @return ライン数。
+         */
+        int getLineCount();
+
+        /**
+         * 1 ライン分を描画します.
+         *
+         * @param value フィールドの値。値が渡されなかった場合は {@code null}。
+         * @param line 描画するライン番号(テンプレート先頭からの 0 始まり)。
+         * @param dest 描画先。固定部分の内容が入った状態で渡されるので、必要なビットを書き換えること。
+         */
+        void render(String value, int line, byte[] dest);
+    }
+
+    /**
+     * エンコード済みの固定ラインが連続する区間、または 1 本の可変ライン.
+     */
+    private static final class Span {
+        final int firstLine;
+        final int lineCount;
+        /** 固定区間のエンコード済みコマンド。可変ラインの場合は {@code null}. */
+        final byte[] encoded;
+        /** 可変ラインを覆うフィールド. */
+        final VariableField[] fields;
+
+        Span(int firstLine, int lineCount, byte[] encoded, VariableField[] fields) {
+            this.firstLine = firstLine;
+            this.lineCount = lineCount;
+            this.encoded = encoded;
+            this.fields = fields;
+        }
+    }
+
+    private final PrintSettings mSettings;
+    private final byte[][] mLines;
+    private final List<VariableField> mFields;
+    private final List<Span> mSpans;
+
+    /**
+     * 固定部分をエンコードしてテンプレートを構築します.
+     *
+     * @param settings 印刷設定。
+     * @param lines 固定部分のライン。可変部分のラインも下地として使われます。
+     * @param fields 可変部分。
+     */
+    public LabelTemplate(PrintSettings settings, byte[][] lines, List<VariableField> fields) {
+        super();
+        mSettings = settings;
+        mLines = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            mLines[i] = new byte[RL700SCommands.MAX_LINE_BYTES];
+            System.arraycopy(lines[i], 0, mLines[i], 0,
+                    Math.min(lines[i].length, RL700SCommands.MAX_LINE_BYTES));
+        }
+        mFields = Collections.unmodifiableList(new ArrayList<VariableField>(fields));
+        for (VariableField f : mFields) {
+            if (f.getFirstLine() < 0 || f.getLineCount() < 0
+                    || lines.length < f.getFirstLine() + f.getLineCount()) {
+                throw new IllegalArgumentException("field '" + f.getName()
+                        + "' out of range.");
+            }
+        }
+        mSpans = compile();
+    }
+
+    private List<Span> compile() {
+        final List<Span> spans = new ArrayList<Span>();
+        final ByteBuffer command = RL700SCommands.allocateOutBuffer();
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        int staticStart = 0;
+        for (int line = 0; line < mLines.length; line++) {
+            final VariableField[] covering = fieldsAt(line);
+            if (covering.length == 0) {
+                JobEncoder.lineCommand(command, mLines[line], mSettings.getCompressionMode());
+                encoded.write(command.array(), command.arrayOffset() + command.position(),
+                        command.remaining());
+                continue;
+            }
+            if (staticStart < line) {
+                spans.add(new Span(staticStart, line - staticStart, encoded.toByteArray(), null));
+                encoded.reset();
+            }
+            spans.add(new Span(line, 1, null, covering));
+            staticStart = line + 1;
+        }
+        if (staticStart < mLines.length) {
+            spans.add(new Span(staticStart, mLines.length - staticStart, encoded.toByteArray(),
+                    null));
+        }
+        return spans;
+    }
+
+    private VariableField[] fieldsAt(int line) {
+        final List<VariableField> result = new ArrayList<VariableField>(1);
+        for (VariableField f : mFields) {
+            if (f.getFirstLine() <= line && line < f.getFirstLine() + f.getLineCount()) {
+                result.add(f);
+            }
+        }
+        return result.toArray(new VariableField[result.size()]);
+    }
+
+    public PrintSettings getSettings() {
+        return mSettings;
+    }
+
+    public int getLineCount() {
+        return mLines.length;
+    }
+
+    /**
+     * 可変部分が覆うライン数を返します.
+     *
+     * @return 可変ライン数。
+     */
+    public int getVariableLineCount() {
+        int count = 0;
+        for (Span s : mSpans) {
+            if (s.encoded == null) {
+                count += s.lineCount;
+            }
+        }
+        return count;
+    }
+
+    public List<VariableField> getFields() {
+        return mFields;
+    }
+
+    /**
+     * 可変部分に値を埋め込んでジョブを生成します.
+     *
+     * @param values フィールド名から値へのマップ。
+     * @return エンコード済みのジョブ。
+     */
+    public EncodedJob instantiate(Map<String, String> values) {
+        final JobEncoder encoder = new JobEncoder(mSettings);
+        final byte[] scratch = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (Span s : mSpans) {
+            if (s.encoded != null) {
+                encoder.addEncodedLines(s.encoded, 0, s.encoded.length, s.lineCount);
+                continue;
+            }
+            System.arraycopy(mLines[s.firstLine], 0, scratch, 0, scratch.length);
+            for (VariableField f : s.fields) {
+                f.render(values.get(f.getName()), s.firstLine, scratch);
+            }
+            encoder.addLine(scratch);
+        }
+        return encoder.finish();
+    }
+}
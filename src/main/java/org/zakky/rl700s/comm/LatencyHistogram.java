@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 0 以上の値の分布を、相対誤差 1/16 以内で記録するヒストグラムです.
+ *
+ * <p>
+ * HdrHistogram と同じく、値の最上位ビットの位置ごとにその下の 4 ビットで 16
+ * 区間に分けたバケットを数えます。バケットは固定長の配列なので、記録は割り当てなしの
+ * 加算 1 回で済み、ナノ秒単位の時間でもバイト数でもそのまま記録できます。
+ * すべてのメソッドはスレッドセーフですが、読み出し中の記録は一部だけ反映されることがあります。
+ * </p>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * 値を記録します.
+     *
+     * @param value 値。負の値は 0 として記録します。
+     */
+    public void record(long value) {
+        final long v = Math.max(0L, value);
+        mBuckets.incrementAndGet(bucketOf(v));
+        mCount.incrementAndGet();
+        mSum.addAndGet(v);
+        long max = mMax.get();
+        while (max < v && !mMax.compareAndSet(max, v)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * 平均値を返します.
+     *
+     * @return 平均値。記録がない場合は 0。
+     */
+    public double getMean() {
+        final long count = mCount.get();
+        return (count == 0) ? 0.0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * 指定した割合の記録がそれ以下に収まる値を返します.
+     *
+     * @param percentile 0 から 100 までの割合。
+     * @return バケットの上限値(記録した最大値を超えない)。記録がない場合は 0。
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(0.0 <= percentile && percentile <= 100.0)) {
+            throw new IllegalArgumentException("'percentile' must be in [0, 100]: " + percentile);
+        }
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0L;
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            seen += mBuckets.get(b);
+            if (rank <= seen) {
+                return Math.min(upperBoundOf(b), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * 記録をすべて消します.
+     */
+    public void reset() {
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            mBuckets.set(b, 0L);
+        }
+        mCount.set(0L);
+        mSum.set(0L);
+        mMax.set(0L);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exp - SUB_BITS)) - SUB_COUNT;
+        return SUB_COUNT + (exp - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        final int exp = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        final long sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        final long lower = (SUB_COUNT + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
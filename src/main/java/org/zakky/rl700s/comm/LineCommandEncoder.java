@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ラインを順に 'G' または 'Z' のコマンドにするクラスです.
+ *
+ * <p>
+ * すべてのビットが 0 のラインはゼロラスターラインにし、直前と同じ内容のラインは
+ * 圧縮し直さずに直前のコマンドを返します。ラインを順にコマンドにするクラスが共通で使います。
+ * スレッドセーフではありません。
+ * </p>
+ */
+final class LineCommandEncoder {
+
+    private final CompressionMode mMode;
+    private final ByteBuffer mCommand = RL700SCommands.allocateOutBuffer();
+
+    /**
+     * 直前の {@link RasterSource} のラインの複製. ラスターは同じバッファを書き換えて
+     * 返すことがあるので、バッファそのものではなく内容を覚えておきます.
+     */
+    private final byte[] mPrevSourceLine = new byte[RL700SCommands.MAX_LINE_BYTES];
+    private int mPrevSourceLength;
+    /** {@link #mPrevSourceLine} が直前のラインかどうか. */
+    private boolean mHasPrevSourceLine;
+    /** 直前の配列のラインの複製. */
+    private byte[] mPrevLine = new byte[RL700SCommands.MAX_LINE_BYTES];
+    /** {@link #mPrevLine} が直前のラインかどうか. */
+    private boolean mHasPrevLine;
+
+    /**
+     * @param mode 圧縮モード。
+     */
+    LineCommandEncoder(CompressionMode mode) {
+        super();
+        mMode = mode;
+    }
+
+    /**
+     * ラスターの 1 ライン分のコマンドを返します.
+     *
+     * @param source ラスター。
+     * @param line ライン番号(0 始まり)。
+     * @return コマンド。次にこのインスタンスを使うまで有効です。
+     */
+    ByteBuffer encode(RasterSource source, int line) {
+        mHasPrevLine = false;
+        if (source.isZeroLine(line)) {
+            RL700SCommands.getSendZeroRasterLine(mCommand);
+            mHasPrevSourceLine = false;
+            return mCommand;
+        }
+        final ByteBuffer bits = source.getLine(line);
+        if (mHasPrevSourceLine && isSameAsPrevSourceLine(bits)) {
+            mCommand.rewind();
+        } else {
+            RL700SCommands.getSendRasterLine(mCommand, bits, mMode);
+            mPrevSourceLength = Math.min(bits.remaining(), mPrevSourceLine.length);
+            bits.duplicate().get(mPrevSourceLine, 0, mPrevSourceLength);
+            mHasPrevSourceLine = true;
+        }
+        return mCommand;
+    }
+
+    private boolean isSameAsPrevSourceLine(ByteBuffer bits) {
+        if (Math.min(bits.remaining(), mPrevSourceLine.length) != mPrevSourceLength) {
+            return false;
+        }
+        final int base = bits.position();
+        for (int i = 0; i < mPrevSourceLength; i++) {
+            if (bits.get(base + i) != mPrevSourceLine[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 1 ライン分のコマンドを返します.
+     *
+     * @param line 非圧縮のラインビット列。呼び出し後に書き換えてもかまいません。
+     * @return コマンド。次にこのインスタンスを使うまで有効です。
+     */
+    ByteBuffer encode(byte[] line) {
+        mHasPrevSourceLine = false;
+        if (JobEncoder.isZero(line)) {
+            RL700SCommands.getSendZeroRasterLine(mCommand);
+            mHasPrevLine = false;
+            return mCommand;
+        }
+        if (mHasPrevLine && Arrays.equals(mPrevLine, line)) {
+            mCommand.rewind();
+        } else {
+            RL700SCommands.getSendRasterLine(mCommand, line, mMode);
+            if (mPrevLine.length != line.length) {
+                mPrevLine = new byte[line.length];
+            }
+            System.arraycopy(line, 0, mPrevLine, 0, line.length);
+            mHasPrevLine = true;
+        }
+        return mCommand;
+    }
+}
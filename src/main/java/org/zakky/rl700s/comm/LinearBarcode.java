@@ -0,0 +1,230 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+/**
+ * 1 次元バーコードのモジュール列を生成するクラスです.
+ *
+ * <p>
+ * モジュール列は {@code true} がバー、 {@code false} がスペースを表し、クワイエットゾーンは含みません。
+ * </p>
+ */
+public final class LinearBarcode {
+
+    /**
+     * インスタンス生成禁止.
+     */
+    private LinearBarcode() {
+        throw new AssertionError("instatiation prohibited.");
+    }
+
+    /** Code128 の各シンボルのバーとスペースの幅(0 から 106)。106 はストップ. */
+    private static final String[] CODE128_WIDTHS = {
+            "212222", "222122", "222221", "121223", "121322", "131222", "122213", "122312",
+            "132212", "221213", "221312", "231212", "112232", "122132", "122231", "113222",
+            "123122", "123221", "223211", "221132", "221231", "213212", "223112", "312131",
+            "311222", "321122", "321221", "312212", "322112", "322211", "212123", "212321",
+            "232121", "111323", "131123", "131321", "112313", "132113", "132311", "211313",
+            "231113", "231311", "112133", "112331", "132131", "113123", "113321", "133121",
+            "313121", "211331", "231131", "213113", "213311", "213131", "311123", "311321",
+            "331121", "312113", "312311", "332111", "314111", "221411", "431111", "111224",
+            "111422", "121124", "121421", "141122", "141221", "112214", "112412", "122114",
+            "122411", "142112", "142211", "241211", "221114", "413111", "241112", "134111",
+            "111242", "121142", "121241", "114212", "124112", "124211", "411212", "421112",
+            "421211", "212141", "214121", "412121", "111143", "111341", "131141", "114113",
+            "114311", "411113", "411311", "113141", "114131", "311141", "411131", "211412",
+            "211214", "211232", "2331112"
+    };
+
+    private static final int CODE128_CODE_C = 99;
+    private static final int CODE128_CODE_B = 100;
+    private static final int CODE128_START_B = 104;
+    private static final int CODE128_START_C = 105;
+    private static final int CODE128_STOP = 106;
+
+    /** EAN-13 の L パターン(奇数パリティ)。R パターンはこの反転、G パターンは R の逆順. */
+    private static final int[] EAN_L = {
+            0x0d, 0x19, 0x13, 0x3d, 0x23, 0x31, 0x2f, 0x3b, 0x37, 0x0b
+    };
+
+    /** 先頭の数字ごとの、左側 6 桁のパリティ(ビットが立っていれば G パターン). */
+    private static final int[] EAN_PARITY = {
+            0x00, 0x0b, 0x0d, 0x0e, 0x13, 0x19, 0x1c, 0x15, 0x16, 0x1a
+    };
+
+    /**
+     * Code128 のモジュール列を生成します.
+     *
+     * <p>
+     * コードセット B を基本とし、4 桁以上連続する数字はコードセット C で 2 桁ずつ符号化します。
+     * </p>
+     *
+     * @param text 文字列。 ASCII の 32 から 127 の文字のみ使えます。
+     * @return モジュール列。
+     */
+    public static boolean[] code128(String text) {
+        if (text.length() == 0) {
+            throw new IllegalArgumentException("'text' must not be empty.");
+        }
+        final int[] symbols = new int[text.length() * 2 + 3];
+        int count = 0;
+        boolean codeC = 4 <= digitRun(text, 0);
+        symbols[count++] = codeC ? CODE128_START_C : CODE128_START_B;
+        int i = 0;
+        while (i < text.length()) {
+            if (codeC) {
+                if (2 <= digitRun(text, i)) {
+                    symbols[count++] = (text.charAt(i) - '0') * 10 + (text.charAt(i + 1) - '0');
+                    i += 2;
+                } else {
+                    symbols[count++] = CODE128_CODE_B;
+                    codeC = false;
+                }
+                continue;
+            }
+            final int run = digitRun(text, i);
+            if (4 <= run) {
+                if (run % 2 != 0) {
+                    // 奇数桁の場合は先頭の 1 桁を B で送ってから C に切り替える
+                    symbols[count++] = text.charAt(i++) - ' ';
+                }
+                symbols[count++] = CODE128_CODE_C;
+                codeC = true;
+                continue;
+            }
+            final char c = text.charAt(i++);
+            if (c < ' ' || 127 < c) {
+                throw new IllegalArgumentException("unsupported character: " + (int) c);
+            }
+            symbols[count++] = c - ' ';
+        }
+
+        int checksum = symbols[0];
+        for (int k = 1; k < count; k++) {
+            checksum += symbols[k] * k;
+        }
+        symbols[count++] = checksum % 103;
+        symbols[count++] = CODE128_STOP;
+
+        final StringBuilder widths = new StringBuilder(count * 6 + 1);
+        for (int k = 0; k < count; k++) {
+            widths.append(CODE128_WIDTHS[symbols[k]]);
+        }
+        return fromWidths(widths);
+    }
+
+    private static int digitRun(String text, int from) {
+        int i = from;
+        while (i < text.length() && '0' <= text.charAt(i) && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i - from;
+    }
+
+    /**
+     * バーから始まり、バーとスペースが交互に並ぶ幅の列をモジュール列にします.
+     */
+    private static boolean[] fromWidths(CharSequence widths) {
+        int total = 0;
+        for (int i = 0; i < widths.length(); i++) {
+            total += widths.charAt(i) - '0';
+        }
+        final boolean[] modules = new boolean[total];
+        int pos = 0;
+        for (int i = 0; i < widths.length(); i++) {
+            final int w = widths.charAt(i) - '0';
+            if (i % 2 == 0) {
+                for (int k = 0; k < w; k++) {
+                    modules[pos + k] = true;
+                }
+            }
+            pos += w;
+        }
+        return modules;
+    }
+
+    /**
+     * EAN-13 のモジュール列を生成します.
+     *
+     * @param digits 12 桁(チェックデジットを計算する)または 13 桁(チェックデジットを検証する)の数字。
+     * @return 95 モジュールのモジュール列。
+     */
+    public static boolean[] ean13(String digits) {
+        if (digits.length() != 12 && digits.length() != 13) {
+            throw new IllegalArgumentException("EAN-13 requires 12 or 13 digits: " + digits);
+        }
+        if (digitRun(digits, 0) != digits.length()) {
+            throw new IllegalArgumentException("EAN-13 accepts only digits: " + digits);
+        }
+        final int check = ean13CheckDigit(digits.substring(0, 12));
+        if (digits.length() == 13 && digits.charAt(12) - '0' != check) {
+            throw new IllegalArgumentException("invalid check digit: " + digits);
+        }
+        final int[] d = new int[13];
+        for (int i = 0; i < 12; i++) {
+            d[i] = digits.charAt(i) - '0';
+        }
+        d[12] = check;
+
+        final boolean[] modules = new boolean[95];
+        int pos = 0;
+        pos = putBits(modules, pos, 0x5, 3); // 開始ガード
+        final int parity = EAN_PARITY[d[0]];
+        for (int i = 1; i <= 6; i++) {
+            final boolean g = (parity & (1 << (6 - i))) != 0;
+            final int pattern = g ? reverse7(~EAN_L[d[i]] & 0x7f) : EAN_L[d[i]];
+            pos = putBits(modules, pos, pattern, 7);
+        }
+        pos = putBits(modules, pos, 0x0a, 5); // センターガード
+        for (int i = 7; i <= 12; i++) {
+            pos = putBits(modules, pos, ~EAN_L[d[i]] & 0x7f, 7);
+        }
+        pos = putBits(modules, pos, 0x5, 3); // 終了ガード
+        assert pos == modules.length;
+        return modules;
+    }
+
+    /**
+     * EAN-13 のチェックデジットを計算します.
+     *
+     * @param digits 先頭 12 桁。
+     * @return チェックデジット。
+     */
+    public static int ean13CheckDigit(String digits) {
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            final int d = digits.charAt(i) - '0';
+            sum += (i % 2 == 0) ? d : d * 3;
+        }
+        return (10 - sum % 10) % 10;
+    }
+
+    private static int putBits(boolean[] modules, int pos, int bits, int length) {
+        for (int i = 0; i < length; i++) {
+            modules[pos++] = (bits & (1 << (length - 1 - i))) != 0;
+        }
+        return pos;
+    }
+
+    private static int reverse7(int bits) {
+        int result = 0;
+        for (int i = 0; i < 7; i++) {
+            result = (result << 1) | ((bits >>> i) & 1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * 幅の狭いラベルを、広いテープのヘッド幅方向に並べて 1 つのジョブにまとめるクラスです.
+ *
+ * <p>
+ * ラベルは幅方向に {@link #getColumns()} 枚ずつ並べた行にし、行ごとにページを分けて
+ * ページの間はカットライン前の印字司令(ハーフカット)で区切ります。
+ * ラベルごとに送り、余白、カットの時間がかからず、テープの使用量も減ります。
+ * </p>
+ * <p>
+ * ラベルのラインは先頭バイトの最上位ビットから {@code labelWidthDots} ビットが内容です。
+ * 構築後は不変で、複数のスレッドから同時に使えます。
+ * </p>
+ */
+public final class MultiUpLayout {
+
+    /**
+     * テープ幅(mm)と印字可能なドット数(360dpi)の表.
+     *
+     * <p>
+     * Brother P-touch のラスターコマンドリファレンスにある 180dpi 機の印字可能ドット数
+     * (3.5mm: 24、 6mm: 32、 9mm: 50、 12mm: 70、 18mm: 112、 24mm: 128)を、
+     * ヘッド方向 360dpi({@link BarcodeRasterizer#HEAD_DPI})の 2 倍に換算した値です。
+     * 36mm はヘッド全幅の {@link LabelCanvas#WIDTH} ドットです。
+     * </p>
+     */
+    private static final int[][] PRINTABLE_DOTS = {
+            {
+                    4, 48
+            }, {
+                    6, 64
+            }, {
+                    9, 100
+            }, {
+                    12, 140
+            }, {
+                    18, 224
+            }, {
+                    24, 256
+            }, {
+                    36, LabelCanvas.WIDTH
+            },
+    };
+
+    private final int mPrintableDots;
+    private final int mLabelWidthDots;
+    private final int mLabelLines;
+    private final int mGapDots;
+    private final int mColumns;
+    /** 最初の列の左端のビット位置. */
+    private final int mFirstBit;
+
+    /**
+     * テープ幅に対する印字可能なドット数を返します.
+     *
+     * @param mediaWidthMm {@link RL700SStatus#getMediaWidth()} が返すテープ幅(mm)。
+     * @return ヘッド中央に寄せた印字可能範囲のドット数。
+     * @throws IllegalArgumentException 対応していないテープ幅の場合。
+     */
+    public static int printableDots(int mediaWidthMm) {
+        for (int[] entry : PRINTABLE_DOTS) {
+            if (entry[0] == mediaWidthMm) {
+                return entry[1];
+            }
+        }
+        throw new IllegalArgumentException("unsupported media width: " + mediaWidthMm);
+    }
+
+    /**
+     * 装着されているテープに合わせた配置を構築します.
+     *
+     * @param status プリンタのステータス。
+     * @param labelWidthDots ラベルの幅(ドット)。
+     * @param labelLines ラベルの長さ(ライン数)。
+     * @param gapDots 幅方向のラベルの間隔(ドット)。
+     * @return 配置。
+     */
+    public static MultiUpLayout forMedia(RL700SStatus status, int labelWidthDots,
+            int labelLines, int gapDots) {
+        return new MultiUpLayout(printableDots(status.getMediaWidth()), labelWidthDots,
+                labelLines, gapDots);
+    }
+
+    /**
+     * 配置を構築します.
+     *
+     * @param printableDots 印字可能範囲のドット数。ヘッド中央に寄せて使います。
+     * @param labelWidthDots ラベルの幅(ドット)。
+     * @param labelLines ラベルの長さ(ライン数)。
+     * @param gapDots 幅方向のラベルの間隔(ドット)。
+     * @throws IllegalArgumentException ラベルが印字可能範囲に 1 枚も入らない場合。
+     */
+    public MultiUpLayout(int printableDots, int labelWidthDots, int labelLines, int gapDots) {
+        super();
+        if (printableDots <= 0 || LabelCanvas.WIDTH < printableDots) {
+            throw new IllegalArgumentException("'printableDots' out of range: " + printableDots);
+        }
+        if (labelWidthDots <= 0 || labelLines <= 0 || gapDots < 0) {
+            throw new IllegalArgumentException("invalid label size: " + labelWidthDots + "x"
+                    + labelLines + ", gap " + gapDots);
+        }
+        mPrintableDots = printableDots;
+        mLabelWidthDots = labelWidthDots;
+        mLabelLines = labelLines;
+        mGapDots = gapDots;
+        mColumns = (printableDots + gapDots) / (labelWidthDots + gapDots);
+        if (mColumns == 0) {
+            throw new IllegalArgumentException("label wider than printable area: "
+                    + labelWidthDots + " > " + printableDots);
+        }
+        // 並べた全体をヘッド中央に寄せる
+        final int used = mColumns * labelWidthDots + (mColumns - 1) * gapDots;
+        mFirstBit = (LabelCanvas.WIDTH - used) / 2;
+    }
+
+    public int getPrintableDots() {
+        return mPrintableDots;
+    }
+
+    /**
+     * 幅方向に並べるラベルの枚数を返します.
+     *
+     * @return 1 以上の値。
+     */
+    public int getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * 列の左端のビット位置を返します.
+     *
+     * @param column 列番号(0 始まり)。
+     * @return ライン内のビット位置。
+     */
+    public int getColumnBit(int column) {
+        if (column < 0 || mColumns <= column) {
+            throw new IndexOutOfBoundsException("column " + column + " out of range: [0, "
+                    + mColumns + ")");
+        }
+        return mFirstBit + column * (mLabelWidthDots + mGapDots);
+    }
+
+    /**
+     * ラベルの枚数に対するページ(行)数を返します.
+     *
+     * @param labelCount ラベルの枚数。
+     * @return ページ数。
+     */
+    public int getPageCount(int labelCount) {
+        return (labelCount + mColumns - 1) / mColumns;
+    }
+
+    /**
+     * ラベルを並べてエンコードします.
+     *
+     * @param labels ラベルのラインの配列。それぞれ {@code labelLines} 本以下であること。
+     * @param settings 印刷設定。 {@link EnhancedMode#HALF_CUT} がなければ追加します。
+     * @return 行ごとにページを分けたジョブ。
+     */
+    public EncodedJob layout(List<byte[][]> labels, PrintSettings settings) {
+        if (labels.isEmpty()) {
+            throw new IllegalArgumentException("'labels' must not be empty.");
+        }
+        final JobEncoder encoder = new JobEncoder(withHalfCut(settings));
+        final LabelCanvas canvas = new LabelCanvas(mLabelLines);
+        final int pages = getPageCount(labels.size());
+        for (int page = 0; page < pages; page++) {
+            if (page != 0) {
+                encoder.endPage(true);
+                canvas.clear();
+            }
+            for (int column = 0; column < mColumns; column++) {
+                final int index = page * mColumns + column;
+                if (labels.size() <= index) {
+                    break;
+                }
+                final byte[][] label = labels.get(index);
+                if (mLabelLines < label.length) {
+                    throw new IllegalArgumentException("label " + index + " too long: "
+                            + label.length);
+                }
+                canvas.blit(label, mLabelWidthDots, 0, getColumnBit(column), LabelCanvas.Op.OR);
+            }
+            encoder.addLines(canvas);
+        }
+        return encoder.finish();
+    }
+
+    private static PrintSettings withHalfCut(PrintSettings s) {
+        if (s.isEnabled(EnhancedMode.HALF_CUT)) {
+            return s;
+        }
+        final EnumSet<EnhancedMode> enhancedModes = EnumSet.copyOf(s.getEnhancedModes());
+        enhancedModes.add(EnhancedMode.HALF_CUT);
+        return new PrintSettings(s.getPaperKind(), s.getPaperWidth(), s.getPaperLength(),
+                s.getModes(), enhancedModes, s.getMergin(), s.getCompressionMode(),
+                s.isEnableRecover(), s.isLowPowerPrint());
+    }
+}
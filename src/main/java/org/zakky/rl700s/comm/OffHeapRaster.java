@@ -0,0 +1,262 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * ラインを Java ヒープの外に保持するラスターです.
+ *
+ * <p>
+ * 長さ数メートルのバナーのように数万ラインになるラベルを {@code byte[][]} で保持すると、
+ * 配列ごとのオブジェクトヘッダと GC の負荷が大きくなります。このクラスは 1 ライン
+ * {@link RL700SCommands#MAX_LINE_BYTES} バイトを詰めてダイレクトバッファに置き、
+ * 容量がしきい値を超えるとテンポラリファイルをメモリマップした領域に移します。
+ * </p>
+ * <p>
+ * ゼロラインの判定は 8 バイト単位で行います。使い終わったら {@link #close()} で
+ * テンポラリファイルを削除してください。スレッドセーフではありません。
+ * </p>
+ */
+public final class OffHeapRaster implements RasterSource {
+
+    /** テンポラリファイルに移す容量の既定値(バイト). */
+    public static final int DEFAULT_SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+    private static final int LINE_BYTES = RL700SCommands.MAX_LINE_BYTES;
+    private static final int INITIAL_LINES = 256;
+
+    private final int mSpillThreshold;
+    private final File mTempDir;
+
+    private ByteBuffer mBuffer;
+    private int mLineCount;
+    private File mSpillFile;
+    private RandomAccessFile mSpillRaf;
+
+    /**
+     * 既定のしきい値とテンポラリディレクトリでインスタンスを構築します.
+     */
+    public OffHeapRaster() {
+        this(DEFAULT_SPILL_THRESHOLD, null);
+    }
+
+    /**
+     * しきい値とテンポラリディレクトリを指定してインスタンスを構築します.
+     *
+     * @param spillThreshold ダイレクトバッファで保持する最大バイト数。これを超えると
+     *            テンポラリファイルに移します。
+     * @param tempDir テンポラリファイルを作るディレクトリ。 {@code null} の場合はシステムの既定値。
+     */
+    public OffHeapRaster(int spillThreshold, File tempDir) {
+        super();
+        if (spillThreshold < 0) {
+            throw new IllegalArgumentException("'spillThreshold' must not be negative: "
+                    + spillThreshold);
+        }
+        mSpillThreshold = spillThreshold;
+        mTempDir = tempDir;
+        mBuffer = ByteBuffer.allocateDirect(
+                Math.min(INITIAL_LINES * LINE_BYTES, Math.max(spillThreshold, LINE_BYTES)));
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    @Override
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * テンポラリファイルに移したかどうかを返します.
+     *
+     * @return 移した場合は {@code true}。
+     */
+    public boolean isSpilled() {
+        return mSpillFile != null;
+    }
+
+    /**
+     * ラインを末尾に追加します.
+     *
+     * @param line 非圧縮のラインビット列。 {@link RL700SCommands#MAX_LINE_BYTES}
+     *            バイトに満たない分は 0、超える分は無視します。
+     * @throws IOException テンポラリファイルへの書き出しに失敗した場合。
+     */
+    public void addLine(byte[] line) throws IOException {
+        ensureCapacity(mLineCount + 1);
+        final ByteBuffer b = mBuffer.duplicate();
+        b.position(mLineCount * LINE_BYTES);
+        final int length = Math.min(line.length, LINE_BYTES);
+        b.put(line, 0, length);
+        for (int i = length; i < LINE_BYTES; i++) {
+            b.put((byte) 0);
+        }
+        mLineCount++;
+    }
+
+    /**
+     * ゼロラインを末尾に追加します.
+     *
+     * @param count 本数。
+     * @throws IOException テンポラリファイルへの書き出しに失敗した場合。
+     */
+    public void addZeroLines(int count) throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        ensureCapacity(mLineCount + count);
+        final int end = (mLineCount + count) * LINE_BYTES;
+        for (int i = mLineCount * LINE_BYTES; i < end; i += 8) {
+            mBuffer.putLong(i, 0L);
+        }
+        mLineCount += count;
+    }
+
+    /**
+     * 追加済みのラインを書き換えます.
+     *
+     * @param line ライン番号(0 始まり)。
+     * @param data 非圧縮のラインビット列。
+     */
+    public void setLine(int line, byte[] data) {
+        checkLine(line);
+        final ByteBuffer b = mBuffer.duplicate();
+        b.position(line * LINE_BYTES);
+        final int length = Math.min(data.length, LINE_BYTES);
+        b.put(data, 0, length);
+        for (int i = length; i < LINE_BYTES; i++) {
+            b.put((byte) 0);
+        }
+    }
+
+    @Override
+    public ByteBuffer getLine(int line) {
+        checkLine(line);
+        final ByteBuffer b = mBuffer.asReadOnlyBuffer();
+        b.limit((line + 1) * LINE_BYTES);
+        b.position(line * LINE_BYTES);
+        return b;
+    }
+
+    @Override
+    public boolean isZeroLine(int line) {
+        checkLine(line);
+        final int base = line * LINE_BYTES;
+        for (int i = 0; i < LINE_BYTES; i += 8) {
+            if (mBuffer.getLong(base + i) != 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 指定したライン以降で最初にゼロラインでないラインを探します.
+     *
+     * @param from 探し始めるライン番号。
+     * @return ライン番号。見つからない場合は {@link #getLineCount()}。
+     */
+    public int nextNonZeroLine(int from) {
+        final int end = mLineCount * LINE_BYTES;
+        for (int i = Math.max(from, 0) * LINE_BYTES; i < end; i += 8) {
+            if (mBuffer.getLong(i) != 0L) {
+                return i / LINE_BYTES;
+            }
+        }
+        return mLineCount;
+    }
+
+    /**
+     * テンポラリファイルを使っていれば削除します。以後このインスタンスは使えません.
+     *
+     * @throws IOException ファイルを閉じられなかった場合。
+     */
+    public void close() throws IOException {
+        mBuffer = ByteBuffer.allocate(0);
+        mLineCount = 0;
+        if (mSpillRaf != null) {
+            try {
+                mSpillRaf.close();
+            } finally {
+                mSpillRaf = null;
+                if (!mSpillFile.delete()) {
+                    mSpillFile.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int lines) throws IOException {
+        final long required = (long) lines * LINE_BYTES;
+        if (required <= mBuffer.capacity()) {
+            return;
+        }
+        long newCapacity = Math.max((long) mBuffer.capacity() * 2, LINE_BYTES);
+        while (newCapacity < required) {
+            newCapacity *= 2;
+        }
+        if (Integer.MAX_VALUE < newCapacity) {
+            newCapacity = Integer.MAX_VALUE - (Integer.MAX_VALUE % LINE_BYTES);
+            if (newCapacity < required) {
+                throw new IOException("raster too long: " + lines + " lines");
+            }
+        }
+
+        if (mSpillRaf == null && newCapacity <= mSpillThreshold) {
+            final ByteBuffer newBuffer = ByteBuffer.allocateDirect((int) newCapacity);
+            copyUsed(newBuffer);
+            mBuffer = newBuffer;
+            return;
+        }
+        if (mSpillRaf == null) {
+            mSpillFile = File.createTempFile("rl700s-raster", ".tmp", mTempDir);
+            mSpillRaf = new RandomAccessFile(mSpillFile, "rw");
+            final ByteBuffer mapped = map(newCapacity);
+            copyUsed(mapped);
+            mBuffer = mapped;
+        } else {
+            // 既存の内容はファイルに残っているので、大きくしてマップし直すだけでよい
+            mBuffer = map(newCapacity);
+        }
+    }
+
+    private ByteBuffer map(long capacity) throws IOException {
+        mSpillRaf.setLength(capacity);
+        final ByteBuffer mapped = mSpillRaf.getChannel().map(MapMode.READ_WRITE, 0L, capacity);
+        mapped.order(ByteOrder.BIG_ENDIAN);
+        return mapped;
+    }
+
+    private void copyUsed(ByteBuffer dest) {
+        final ByteBuffer src = mBuffer.duplicate();
+        src.position(0);
+        src.limit(mLineCount * LINE_BYTES);
+        dest.put(src);
+        dest.clear();
+    }
+
+    private void checkLine(int line) {
+        if (line < 0 || mLineCount <= line) {
+            throw new IndexOutOfBoundsException("line " + line + " out of range: [0, "
+                    + mLineCount + ")");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * {@link RL700SCommands} が TIFF(PackBits)圧縮モードで生成したラインを展開するクラスです.
+ *
+ * <p>
+ * 繰り返しのブロックは {@link Arrays#fill(byte[], int, int, byte)}、
+ * 非圧縮のブロックはバッファからの一括コピーで展開するので、 1 バイトずつの分岐がありません。
+ * </p>
+ */
+public final class PackBitsDecoder {
+
+    /**
+     * インスタンス生成禁止.
+     */
+    private PackBitsDecoder() {
+        throw new AssertionError("instatiation prohibited.");
+    }
+
+    /**
+     * 圧縮されたバイト列をすべて展開します.
+     *
+     * @param src 圧縮されたバイト列。 position から limit までを読み、 limit まで進めます。
+     * @param dst 展開先。
+     * @param offset 展開先の開始位置。
+     * @param length 展開先の最大バイト数。
+     * @return 展開したバイト数。
+     * @throws ParseException ブロックが途中で終わっている場合、または展開後のバイト数が
+     *             {@code length} を超える場合。エラーオフセットは {@code src} 内の位置です。
+     */
+    public static int decode(ByteBuffer src, byte[] dst, int offset, int length)
+            throws ParseException {
+        final int end = offset + length;
+        int out = offset;
+        while (src.hasRemaining()) {
+            final int header = src.get();
+            if (header == -128) {
+                // 何もしないブロック
+                continue;
+            }
+            if (0 <= header) {
+                final int n = header + 1;
+                if (src.remaining() < n) {
+                    throw new ParseException("truncated literal block.", src.position() - 1);
+                }
+                if (end - out < n) {
+                    throw new ParseException("decoded line too long.", src.position() - 1);
+                }
+                src.get(dst, out, n);
+                out += n;
+            } else {
+                final int n = 1 - header;
+                if (!src.hasRemaining()) {
+                    throw new ParseException("truncated run block.", src.position() - 1);
+                }
+                if (end - out < n) {
+                    throw new ParseException("decoded line too long.", src.position() - 1);
+                }
+                final byte value = src.get();
+                Arrays.fill(dst, out, out + n, value);
+                out += n;
+            }
+        }
+        return out - offset;
+    }
+
+    /**
+     * 圧縮されたバイト列を 1 ライン({@link RL700SCommands#MAX_LINE_BYTES} バイト)に展開します.
+     *
+     * @param src 圧縮されたバイト列。 position から limit までを読みます。
+     * @param line 展開先。展開したバイトの後ろは 0 で埋めます。
+     * @throws ParseException 展開できない場合。
+     */
+    public static void decodeLine(ByteBuffer src, byte[] line) throws ParseException {
+        final int n = decode(src, line, 0, RL700SCommands.MAX_LINE_BYTES);
+        Arrays.fill(line, n, RL700SCommands.MAX_LINE_BYTES, (byte) 0);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+/**
+ * 1 ビット 1 ドットに詰めたビット列を扱うユーティリティです.
+ *
+ * <p>
+ * ラスターラインと同じく、バイトの最上位ビットを先頭とする並び(MSB ファースト)で扱います。
+ * {@code long} のビット列も同様に、最上位ビットを先頭とします。
+ * </p>
+ */
+final class PackedBits {
+
+    /**
+     * インスタンス生成禁止.
+     */
+    private PackedBits() {
+        throw new AssertionError("instatiation prohibited.");
+    }
+
+    /**
+     * {@code word} の先頭 {@code nbits} ビットを、 {@code dst} の {@code dstBit} ビット目から OR します.
+     *
+     * <p>
+     * {@code dst} からはみ出すビットは捨てます。
+     * </p>
+     *
+     * @param dst 書き込み先。
+     * @param dstBit 書き込み先の先頭ビット位置。負でもよい。
+     * @param word 書き込むビット列(最上位ビットが先頭)。
+     * @param nbits 書き込むビット数(1 から 64)。
+     */
+    static void orWord(byte[] dst, int dstBit, long word, int nbits) {
+        if (nbits <= 0) {
+            return;
+        }
+        long w = (nbits == 64) ? word : (word & (-1L << (64 - nbits)));
+        if (dstBit < 0) {
+            if (dstBit <= -nbits) {
+                return;
+            }
+            w <<= -dstBit;
+            nbits += dstBit;
+            dstBit = 0;
+        }
+        final int limitBit = dst.length * 8;
+        if (limitBit <= dstBit) {
+            return;
+        }
+        final int index = dstBit >>> 3;
+        final int shift = dstBit & 7;
+        // 先頭 8 バイトと、シフトではみ出した 1 バイト
+        final long head = w >>> shift;
+        final int tail = (int) (w << (8 - shift)) & 0xff;
+        final int bytes = Math.min(8, dst.length - index);
+        for (int i = 0; i < bytes; i++) {
+            dst[index + i] |= (byte) (head >>> (56 - 8 * i));
+        }
+        if (shift != 0 && index + 8 < dst.length) {
+            dst[index + 8] |= (byte) tail;
+        }
+    }
+
+    /**
+     * 複数ワードから成るビット列を、 {@code dst} の {@code dstBit} ビット目から OR します.
+     *
+     * @param dst 書き込み先。
+     * @param dstBit 書き込み先の先頭ビット位置。
+     * @param words 書き込むビット列。
+     * @param nbits 書き込むビット数。
+     */
+    static void orBits(byte[] dst, int dstBit, long[] words, int nbits) {
+        for (int i = 0; 0 < nbits; i++) {
+            final int n = Math.min(64, nbits);
+            orWord(dst, dstBit, words[i], n);
+            dstBit += 64;
+            nbits -= 64;
+        }
+    }
+
+    /**
+     * バイト列の {@code from} ビット目から {@code to} ビット目の直前までを立てます.
+     *
+     * @param dst 書き込み先。
+     * @param from 開始ビット位置。
+     * @param to 終了ビット位置(このビットは含まない)。
+     */
+    static void fill(byte[] dst, int from, int to) {
+        for (int bit = from; bit < to; bit += 64) {
+            orWord(dst, bit, -1L, Math.min(64, to - bit));
+        }
+    }
+
+    /**
+     * ビット列の {@code bit} ビット目を立てます.
+     *
+     * @param words ビット列。
+     * @param bit ビット位置。
+     */
+    static void set(long[] words, int bit) {
+        words[bit >>> 6] |= (1L << (63 - (bit & 63)));
+    }
+
+    /**
+     * バイト列の {@code bit} ビット目が立っているかを返します.
+     *
+     * @param bytes バイト列。
+     * @param bit ビット位置。
+     * @return 立っていれば {@code true}。
+     */
+    static boolean get(byte[] bytes, int bit) {
+        return (bytes[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    /**
+     * {@code nbits} ビットを保持するのに必要なワード数を返します.
+     *
+     * @param nbits ビット数。
+     * @return ワード数。
+     */
+    static int words(int nbits) {
+        return (nbits + 63) >>> 6;
+    }
+}
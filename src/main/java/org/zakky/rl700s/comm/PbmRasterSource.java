@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * 1 ビット画像ファイルをメモリマップして、ラインをコピーせずに読み出すラスターです.
+ *
+ * <p>
+ * バイナリ形式の PBM (P4) と、ヘッダのない固定長ラインの並び(raw)を扱えます。
+ * 画像の 1 行がそのまま 1 ラスターライン(ヘッドの幅方向)になり、
+ * 画素の 1 は印字するドットです。幅はヘッド幅の 384 ドット以下でなければならず、
+ * 足りない分は 0 として送ります。幅が 8 の倍数でない場合、行末の余りビットは PBM
+ * の仕様では不定なので 0 とみなします。
+ * </p>
+ * <p>
+ * ファイルの内容はヒープに読み込まないので、数百 MB のファイルでも使用するヒープは一定です。
+ * 余りビットがある場合だけ、ラインを作業領域に写して余りビットを消したものを返します。
+ * その内容は次の次の {@link #getLine(int)} で上書きされます。
+ * スレッドセーフではありません。
+ * </p>
+ */
+public final class PbmRasterSource implements RasterSource {
+
+    private static final int MAX_HEADER_BYTES = 1024;
+
+    private final ByteBuffer mData;
+    private final int mStride;
+    private final int mWidth;
+    private final int mLineCount;
+    /** 各ラインの最後のバイトのうち、画素として使うビット. */
+    private final int mLastByteMask;
+    /**
+     * 余りビットを消したラインを置く作業領域. 直前に返したバッファを上書きしないために 2 つ持ちます.
+     */
+    private final byte[][] mScratch;
+    private int mCurrent;
+
+    private PbmRasterSource(ByteBuffer data, int stride, int width, int lineCount) {
+        super();
+        mData = data;
+        mStride = stride;
+        mWidth = width;
+        mLineCount = lineCount;
+        final int rest = width & 7;
+        mLastByteMask = (rest == 0) ? 0xff : (0xff << (8 - rest)) & 0xff;
+        mScratch = (rest == 0) ? null : new byte[2][stride];
+    }
+
+    /**
+     * PBM (P4) ファイルを開きます.
+     *
+     * @param file ファイル。
+     * @return インスタンス。
+     * @throws IOException ファイルを読めない場合、または形式が正しくない場合。
+     */
+    public static PbmRasterSource openPbm(File file) throws IOException {
+        final MappedByteBuffer map = map(file);
+        final int[] header = parseHeader(map, file);
+        final int width = header[0];
+        final int height = header[1];
+        final int offset = header[2];
+        checkWidth(width, file);
+        final int stride = (width + 7) / 8;
+        final long required = offset + (long) stride * height;
+        if (map.limit() < required) {
+            throw new IOException("truncated PBM: " + file + " (" + map.limit() + " < "
+                    + required + " bytes)");
+        }
+        map.position(offset);
+        map.limit((int) required);
+        return new PbmRasterSource(map.slice(), stride, width, height);
+    }
+
+    /**
+     * ヘッダのない固定長ラインの並びのファイルを開きます.
+     *
+     * @param file ファイル。
+     * @param stride 1 ラインのバイト数。 {@link RL700SCommands#MAX_LINE_BYTES} 以下であること。
+     * @return インスタンス。
+     * @throws IOException ファイルを読めない場合、またはファイルの長さが {@code stride} の倍数でない場合。
+     */
+    public static PbmRasterSource openRaw(File file, int stride) throws IOException {
+        if (stride <= 0 || RL700SCommands.MAX_LINE_BYTES < stride) {
+            throw new IllegalArgumentException("'stride' must be in [1, "
+                    + RL700SCommands.MAX_LINE_BYTES + "]: " + stride);
+        }
+        final MappedByteBuffer map = map(file);
+        if (map.limit() % stride != 0) {
+            throw new IOException("file length " + map.limit() + " is not a multiple of stride "
+                    + stride + ": " + file);
+        }
+        return new PbmRasterSource(map, stride, stride * 8, map.limit() / stride);
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (Integer.MAX_VALUE < size) {
+                throw new IOException("file too large: " + file + " (" + size + " bytes)");
+            }
+            // マップした領域はチャネルを閉じた後も有効
+            return channel.map(MapMode.READ_ONLY, 0L, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * P4 ヘッダを解析して { 幅, 高さ, 画素データの開始位置 } を返します.
+     */
+    private static int[] parseHeader(ByteBuffer data, File file) throws IOException {
+        if (data.limit() < 2 || data.get(0) != 'P' || data.get(1) != '4') {
+            throw new IOException("not a binary PBM (P4): " + file);
+        }
+        final int[] result = new int[3];
+        int pos = 2;
+        for (int field = 0; field < 2; field++) {
+            pos = skipSpaceAndComments(data, pos, file);
+            long value = 0;
+            final int start = pos;
+            while (pos < data.limit() && isDigit(data.get(pos))) {
+                value = value * 10 + (data.get(pos) - '0');
+                if (Integer.MAX_VALUE < value) {
+                    throw new IOException("PBM size too large: " + file);
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw new IOException("malformed PBM header: " + file);
+            }
+            result[field] = (int) value;
+        }
+        // 画素データの直前には空白がちょうど 1 つ
+        if (data.limit() <= pos || !isSpace(data.get(pos))) {
+            throw new IOException("malformed PBM header: " + file);
+        }
+        result[2] = pos + 1;
+        return result;
+    }
+
+    private static int skipSpaceAndComments(ByteBuffer data, int pos, File file)
+            throws IOException {
+        while (pos < data.limit() && pos < MAX_HEADER_BYTES) {
+            final byte b = data.get(pos);
+            if (b == '#') {
+                while (pos < data.limit() && data.get(pos) != '\n' && data.get(pos) != '\r') {
+                    pos++;
+                }
+            } else if (isSpace(b)) {
+                pos++;
+            } else {
+                return pos;
+            }
+        }
+        throw new IOException("malformed PBM header: " + file);
+    }
+
+    private static boolean isDigit(byte b) {
+        return '0' <= b && b <= '9';
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == 0x0b || b == 0x0c;
+    }
+
+    private static void checkWidth(int width, File file) throws IOException {
+        if (width <= 0 || RL700SCommands.MAX_LINE_BYTES * 8 < width) {
+            throw new IOException("image width " + width + " does not fit the "
+                    + (RL700SCommands.MAX_LINE_BYTES * 8) + "-dot head: " + file);
+        }
+    }
+
+    /**
+     * 画像の幅を返します.
+     *
+     * @return ドット数。 raw の場合は 1 ラインのバイト数の 8 倍。
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * 1 ラインのバイト数を返します.
+     *
+     * @return バイト数。
+     */
+    public int getStride() {
+        return mStride;
+    }
+
+    @Override
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    @Override
+    public ByteBuffer getLine(int line) {
+        checkLine(line);
+        final ByteBuffer b = mData.asReadOnlyBuffer();
+        b.limit((line + 1) * mStride);
+        b.position(line * mStride);
+        if (mScratch == null) {
+            return b;
+        }
+        mCurrent ^= 1;
+        final byte[] scratch = mScratch[mCurrent];
+        b.get(scratch);
+        scratch[mStride - 1] &= (byte) mLastByteMask;
+        return ByteBuffer.wrap(scratch).asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean isZeroLine(int line) {
+        checkLine(line);
+        final int base = line * mStride;
+        final int last = mStride - 1;
+        int i = 0;
+        for (; i + 8 <= last; i += 8) {
+            if (mData.getLong(base + i) != 0L) {
+                return false;
+            }
+        }
+        for (; i < last; i++) {
+            if (mData.get(base + i) != 0) {
+                return false;
+            }
+        }
+        return (mData.get(base + last) & mLastByteMask) == 0;
+    }
+
+    private void checkLine(int line) {
+        if (line < 0 || mLineCount <= line) {
+            throw new IndexOutOfBoundsException("line " + line + " out of range: [0, "
+                    + mLineCount + ")");
+        }
+    }
+}
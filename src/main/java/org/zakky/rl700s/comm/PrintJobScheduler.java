@@ -0,0 +1,345 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1 台のプリンタを共有する複数の {@link EncodedJob} を、優先度と期限に従って
+ * ページ単位で切り替えながら送り出すスケジューラです.
+ *
+ * <p>
+ * {@link #next(long)} はページ 1 枚分(印字司令コマンドまで)のバイト列を返すので、
+ * チェイン印刷中のジョブもページ境界でしか中断されません。
+ * 直前に送ったページと別のジョブに切り替わる場合は、セットアップコマンドを付け直します。
+ * </p>
+ * <p>
+ * ジョブの選択は次の順で行います。
+ * </p>
+ * <ol>
+ * <li>有効優先度が高いもの。期限のあるジョブは、残りの見積もり時間から期限に
+ * 間に合わないと判断された時点で {@link Priority#URGENT} に昇格します。</li>
+ * <li>期限が早いもの(期限なしは最後)。</li>
+ * <li>上記が同じなら、印刷途中のジョブを続けます。</li>
+ * <li>投入順。</li>
+ * </ol>
+ * <p>
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class PrintJobScheduler {
+
+    /**
+     * ジョブの優先度クラスです。先に宣言したものほど優先度が高くなります.
+     */
+    public enum Priority {
+        /** 至急(単発の割り込みラベルなど) */
+        URGENT(0),
+        /** 高 */
+        HIGH(1),
+        /** 通常 */
+        NORMAL(2),
+        /** 低(大量のバッチなど) */
+        LOW(3);
+
+        /** {@link PrintServerProtocol} で送る値. 宣言順とは独立に固定します. */
+        private final int mRawValue;
+
+        private Priority(int rawValue) {
+            mRawValue = rawValue;
+        }
+
+        public int rawValue() {
+            return mRawValue;
+        }
+
+        /**
+         * 送る値に対応する値を返します。
+         *
+         * @param rawValue 送る値。
+         * @return 対応する値。ない場合は {@code null}。
+         */
+        static Priority fromRawValue(int rawValue) {
+            for (Priority v : values()) {
+                if (v.mRawValue == rawValue) {
+                    return v;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** 期限を指定しないことを表す値. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * {@link PrintJobScheduler#next(long)} が返す、送信すべき 1 ページ分のバイト列です.
+     */
+    public static final class Chunk {
+        private final long mJobId;
+        private final long mTraceId;
+        private final int mPage;
+        private final boolean mLastPage;
+        private final ByteBuffer mData;
+
+        Chunk(long jobId, long traceId, int page, boolean lastPage, ByteBuffer data) {
+            mJobId = jobId;
+            mTraceId = traceId;
+            mPage = page;
+            mLastPage = lastPage;
+            mData = data;
+        }
+
+        public long getJobId() {
+            return mJobId;
+        }
+
+        /**
+         * {@link RL700STracer} に記録するときのトレース ID を返します.
+         *
+         * @return ジョブにトレース ID があればその値、なければジョブ ID。
+         */
+        public long getTraceId() {
+            return mTraceId;
+        }
+
+        public int getPage() {
+            return mPage;
+        }
+
+        public boolean isLastPage() {
+            return mLastPage;
+        }
+
+        /**
+         * 送信するバイト列を返します.
+         *
+         * @return 必要に応じてセットアップコマンドを先頭に含む、読み取り専用のバッファ。
+         */
+        public ByteBuffer getData() {
+            return mData.duplicate();
+        }
+    }
+
+    private static final class Entry {
+        final long id;
+        final EncodedJob job;
+        final Priority priority;
+        final long deadline;
+        final long traceId;
+        final long submitted = RL700STracer.begin();
+        int nextPage;
+        /** 送っていないページのライン数の合計. 期限のあるジョブだけ保持します. */
+        int remainingLines;
+        /** 送っていないページの見積もり印刷時間. 期限のあるジョブだけ保持します. */
+        long remainingMillis;
+
+        Entry(long id, EncodedJob job, Priority priority, long deadline) {
+            this.id = id;
+            this.job = job;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.traceId = (job.getTraceId() == RL700STracer.NO_TRACE) ? id : job.getTraceId();
+        }
+    }
+
+    private final PrintTimeEstimator mEstimator;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private long mNextId = 1L;
+    /** 直前にページを送ったジョブ. */
+    private Entry mCurrent;
+
+    /**
+     * 既定の {@link PrintTimeEstimator} を使うスケジューラを構築します.
+     */
+    public PrintJobScheduler() {
+        this(new PrintTimeEstimator());
+    }
+
+    /**
+     * 印刷時間の見積もり方法を指定してスケジューラを構築します.
+     *
+     * @param estimator 印刷時間の見積もりに使うインスタンス。
+     */
+    public PrintJobScheduler(PrintTimeEstimator estimator) {
+        super();
+        mEstimator = estimator;
+    }
+
+    /**
+     * 期限なしでジョブを投入します.
+     *
+     * @param job ジョブ。
+     * @param priority 優先度。
+     * @return ジョブ ID。
+     */
+    public long submit(EncodedJob job, Priority priority) {
+        return submit(job, priority, NO_DEADLINE);
+    }
+
+    /**
+     * ジョブを投入します.
+     *
+     * @param job ジョブ。
+     * @param priority 優先度。
+     * @param deadlineMillis 印刷完了の期限({@link System#currentTimeMillis()} 基準)。
+     *            期限がない場合は {@link #NO_DEADLINE}。
+     * @return ジョブ ID。
+     */
+    public synchronized long submit(EncodedJob job, Priority priority, long deadlineMillis) {
+        if (job == null || priority == null) {
+            throw new IllegalArgumentException("'job' and 'priority' must not be null.");
+        }
+        if (job.getPageCount() == 0) {
+            throw new IllegalArgumentException("job has no page.");
+        }
+        final long id = mNextId++;
+        final Entry e = new Entry(id, job, priority, deadlineMillis);
+        if (deadlineMillis != NO_DEADLINE) {
+            for (int i = 0; i < job.getPageCount(); i++) {
+                e.remainingLines += job.getPageLineCount(i);
+            }
+            e.remainingMillis = mEstimator.estimateMillis(job.getSettings(), e.remainingLines,
+                    job.getPageCount());
+        }
+        mEntries.add(e);
+        return id;
+    }
+
+    /**
+     * まだ送り終わっていないジョブを取り消します。送信済みのページは取り消せません.
+     *
+     * @param jobId ジョブ ID。
+     * @return 取り消した場合は {@code true}。
+     */
+    public synchronized boolean cancel(long jobId) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry e = mEntries.get(i);
+            if (e.id == jobId) {
+                mEntries.remove(i);
+                if (mCurrent == e) {
+                    mCurrent = null;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 送り終わっていないジョブの数を返します.
+     *
+     * @return ジョブ数。
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * 現在時刻で次に送るページを選びます.
+     *
+     * @return 次に送るページ。ジョブがない場合は {@code null}。
+     */
+    public Chunk next() {
+        return next(System.currentTimeMillis());
+    }
+
+    /**
+     * 次に送るページを選びます.
+     *
+     * @param nowMillis 現在時刻({@link System#currentTimeMillis()} 基準)。
+     * @return 次に送るページ。ジョブがない場合は {@code null}。
+     */
+    public synchronized Chunk next(long nowMillis) {
+        Entry best = null;
+        int bestPriority = 0;
+        for (Entry e : mEntries) {
+            final int p = effectivePriority(e, nowMillis);
+            if (best == null || isBetter(e, p, best, bestPriority)) {
+                best = e;
+                bestPriority = p;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        final EncodedJob job = best.job;
+        final int page = best.nextPage++;
+        if (best.deadline != NO_DEADLINE) {
+            // 選ぶたびに全ページを見積もり直さないよう、送ったページの分だけ減らす
+            best.remainingLines -= job.getPageLineCount(page);
+            best.remainingMillis = mEstimator.estimateMillis(job.getSettings(),
+                    best.remainingLines, job.getPageCount() - best.nextPage);
+        }
+        if (page == 0) {
+            RL700STracer.end(best.traceId, TraceEvent.CATEGORY_QUEUE, "queue-wait",
+                    best.submitted, "priority=" + best.priority.name());
+        }
+        final boolean needsSetup = (page == 0 || mCurrent != best);
+        final ByteBuffer data;
+        if (needsSetup) {
+            final ByteBuffer setup = job.getSetup();
+            final ByteBuffer body = job.getPage(page);
+            data = ByteBuffer.allocate(setup.remaining() + body.remaining());
+            data.put(setup);
+            data.put(body);
+            data.flip();
+        } else {
+            data = job.getPage(page);
+        }
+
+        final boolean lastPage = (best.nextPage == job.getPageCount());
+        if (lastPage) {
+            mEntries.remove(best);
+            mCurrent = null;
+        } else {
+            mCurrent = best;
+        }
+        return new Chunk(best.id, best.traceId, page, lastPage, data.asReadOnlyBuffer());
+    }
+
+    /**
+     * 期限に間に合わない見込みのジョブを至急に昇格させた優先度を返します.
+     */
+    private int effectivePriority(Entry e, long nowMillis) {
+        if (e.deadline != NO_DEADLINE) {
+            if (e.deadline - e.remainingMillis <= nowMillis) {
+                return Priority.URGENT.ordinal();
+            }
+        }
+        return e.priority.ordinal();
+    }
+
+    private boolean isBetter(Entry e, int priority, Entry best, int bestPriority) {
+        if (priority != bestPriority) {
+            return priority < bestPriority;
+        }
+        if (e.deadline != best.deadline) {
+            return e.deadline < best.deadline;
+        }
+        if (best == mCurrent) {
+            return false;
+        }
+        if (e == mCurrent) {
+            return true;
+        }
+        return e.id < best.id;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * ラベルの描画、エンコード、送信を重ねて行い、プリンタが印刷を始めるまでの時間を縮めるクラスです.
+ *
+ * <p>
+ * セットアップコマンドは描画を待たずにすぐ送信し、ラベルは {@link BandRenderer}
+ * が描画したバンド(数十ライン)ごとにエンコードして送信します。
+ * 描画は {@link #print(BandRenderer)} を呼んだスレッドで、エンコードと送信は構築時に渡した
+ * {@link Executor} のスレッドで行います。ステージ間の受け渡しは容量を固定したキューで行い、
+ * バンドのバッファは使い回すので、送信が遅ければ描画も待ちます。
+ * </p>
+ * <p>
+ * チャネルはブロッキングモードであること。 1 つのインスタンスで同時に印刷できるジョブは 1 つです。
+ * </p>
+ */
+public final class PrintPipeline {
+
+    /**
+     * ラベルをバンドごとに描画するインターフェースです.
+     */
+    public interface BandRenderer {
+        /**
+         * 次のバンドを描画します.
+         *
+         * @param firstLine バンドの先頭のライン番号。
+         * @param band 描画先。すべてのビットを 0 にした {@link RL700SCommands#MAX_LINE_BYTES}
+         *            バイトのラインの配列です。
+         * @return 描画したライン数。ラベルの終わりに達した場合は {@code band.length} 未満、
+         *         続きがない場合は 0。
+         */
+        int render(int firstLine, byte[][] band);
+    }
+
+    /**
+     * 1 つのジョブの時間の内訳です。時間はすべて {@link PrintPipeline#print(BandRenderer)}
+     * を呼んでからのナノ秒です.
+     */
+    public static final class Report {
+        private final long mFirstByteNanos;
+        private final long mFirstLineNanos;
+        private final long mFirstPrintNanos;
+        private final long mTotalNanos;
+        private final long mRenderNanos;
+        private final long mEncodeNanos;
+        private final long mTransmitNanos;
+        private final int mLineCount;
+        private final long mBytesWritten;
+
+        Report(long firstByteNanos, long firstLineNanos, long firstPrintNanos, long totalNanos,
+                long renderNanos, long encodeNanos, long transmitNanos, int lineCount,
+                long bytesWritten) {
+            mFirstByteNanos = firstByteNanos;
+            mFirstLineNanos = firstLineNanos;
+            mFirstPrintNanos = firstPrintNanos;
+            mTotalNanos = totalNanos;
+            mRenderNanos = renderNanos;
+            mEncodeNanos = encodeNanos;
+            mTransmitNanos = transmitNanos;
+            mLineCount = lineCount;
+            mBytesWritten = bytesWritten;
+        }
+
+        /**
+         * セットアップコマンドを送り終えるまでの時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getFirstByteNanos() {
+            return mFirstByteNanos;
+        }
+
+        /**
+         * 最初のバンドを送り終えるまでの時間を返します.
+         *
+         * @return ナノ秒。ラインがなかった場合は -1。
+         */
+        public long getFirstLineNanos() {
+            return mFirstLineNanos;
+        }
+
+        /**
+         * 印字司令を送り終え、プリンタが印刷を始められるまでの時間を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getFirstPrintNanos() {
+            return mFirstPrintNanos;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /**
+         * 描画にかかった時間の合計を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getRenderNanos() {
+            return mRenderNanos;
+        }
+
+        /**
+         * エンコードにかかった時間の合計を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getEncodeNanos() {
+            return mEncodeNanos;
+        }
+
+        /**
+         * チャネルへの書き込みにかかった時間の合計を返します.
+         *
+         * @return ナノ秒。
+         */
+        public long getTransmitNanos() {
+            return mTransmitNanos;
+        }
+
+        public int getLineCount() {
+            return mLineCount;
+        }
+
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+    }
+
+    /** バンドの既定のライン数. */
+    public static final int DEFAULT_BAND_LINES = 32;
+    /** ステージ間で受け渡し中にできるバンドの既定の数. */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * ステージ間で受け渡すバンドです.
+     */
+    private static final class Band {
+        final byte[][] lines;
+        int lineCount;
+        /** 最後のバンドの後に流す終端. */
+        boolean end;
+        byte[] encoded = new byte[256];
+        int encodedLength;
+
+        Band(int bandLines) {
+            lines = new byte[bandLines][RL700SCommands.MAX_LINE_BYTES];
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final PrintSettings mSettings;
+    private final Executor mExecutor;
+    private final int mBandLines;
+    private final byte[] mSetup;
+    private final BlockingQueue<Band> mFree;
+    private final BlockingQueue<Band> mRendered;
+    private final BlockingQueue<Band> mEncoded;
+
+    // 1 ジョブの間だけ使う
+    private volatile Throwable mFailure;
+    private long mStart;
+    private long mFirstByte;
+    private long mFirstLine;
+    private long mFirstPrint;
+    private long mEncodeNanos;
+    private long mTransmitNanos;
+    private long mBytesWritten;
+
+    /**
+     * 既定のバンドのライン数と受け渡しの数でインスタンスを構築します.
+     *
+     * @param channel 書き出し先。
+     * @param settings 印刷設定。
+     * @param executor エンコードと送信のステージを実行するもの。 2 つのタスクを同時に実行できること。
+     */
+    public PrintPipeline(WritableByteChannel channel, PrintSettings settings, Executor executor) {
+        this(channel, settings, executor, DEFAULT_BAND_LINES, DEFAULT_DEPTH);
+    }
+
+    /**
+     * インスタンスを構築します.
+     *
+     * @param channel 書き出し先。
+     * @param settings 印刷設定。
+     * @param executor エンコードと送信のステージを実行するもの。 2 つのタスクを同時に実行できること。
+     * @param bandLines 1 バンドのライン数。
+     * @param depth ステージ間で受け渡し中にできるバンドの数。
+     */
+    public PrintPipeline(WritableByteChannel channel, PrintSettings settings, Executor executor,
+            int bandLines, int depth) {
+        super();
+        if (bandLines <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("'bandLines' and 'depth' must be positive.");
+        }
+        mChannel = channel;
+        mSettings = settings;
+        mExecutor = executor;
+        mBandLines = bandLines;
+        mSetup = JobEncoder.setupBytes(settings);
+        // 各ステージが 1 つずつ持った上で depth 個を受け渡せるようにする
+        final int bands = depth + 3;
+        mFree = new ArrayBlockingQueue<Band>(bands);
+        mRendered = new ArrayBlockingQueue<Band>(bands);
+        mEncoded = new ArrayBlockingQueue<Band>(bands);
+        for (int i = 0; i < depth + 2; i++) {
+            mFree.add(new Band(bandLines));
+        }
+    }
+
+    /**
+     * 1 枚のラベルを描画しながら送信し、排出動作を伴う印字司令で閉じます.
+     *
+     * @param renderer ラベルを描画するもの。
+     * @return 時間の内訳。
+     * @throws IOException 書き出しに失敗した場合。
+     * @throws InterruptedException 待っている間に割り込まれた場合。
+     */
+    public synchronized Report print(BandRenderer renderer) throws IOException,
+            InterruptedException {
+        mFailure = null;
+        mFirstLine = -1L;
+        mEncodeNanos = 0L;
+        mTransmitNanos = 0L;
+        mBytesWritten = 0L;
+        mStart = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(2);
+        mExecutor.execute(stage(done, true));
+        mExecutor.execute(stage(done, false));
+
+        long renderNanos = 0L;
+        int lineCount = 0;
+        boolean more = true;
+        try {
+            while (more && mFailure == null) {
+                final Band band = mFree.take();
+                final long t = System.nanoTime();
+                for (byte[] line : band.lines) {
+                    Arrays.fill(line, (byte) 0);
+                }
+                band.lineCount = renderer.render(lineCount, band.lines);
+                renderNanos += System.nanoTime() - t;
+                lineCount += band.lineCount;
+                more = band.lineCount == mBandLines;
+                if (band.lineCount == 0) {
+                    mFree.add(band);
+                } else {
+                    mRendered.put(band);
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        } finally {
+            final Band end = mFree.take();
+            end.end = true;
+            mRendered.put(end);
+            done.await();
+        }
+
+        final Throwable failure = mFailure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw new InterruptedIOException();
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return new Report(mFirstByte, mFirstLine, mFirstPrint, System.nanoTime() - mStart,
+                renderNanos, mEncodeNanos, mTransmitNanos, lineCount, mBytesWritten);
+    }
+
+    private Runnable stage(final CountDownLatch done, final boolean encode) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (encode) {
+                        runEncoder();
+                    } else {
+                        runTransmitter();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    /**
+     * 描画済みのバンドをエンコードします。失敗した後も、前後のステージが止まらないよう
+     * 終端までは受け取って流します.
+     */
+    private void runEncoder() {
+        final LineCommandEncoder lines = new LineCommandEncoder(mSettings.getCompressionMode());
+        try {
+            while (true) {
+                final Band band = mRendered.take();
+                if (!band.end && mFailure == null) {
+                    try {
+                        final long t = System.nanoTime();
+                        encode(band, lines);
+                        mEncodeNanos += System.nanoTime() - t;
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+                // 渡した後のバンドは送信側が書き換えるので、終端かどうかは先に調べる
+                final boolean end = band.end;
+                mEncoded.put(band);
+                if (end) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+    }
+
+    private void encode(Band band, LineCommandEncoder lines) {
+        band.encodedLength = 0;
+        for (int i = 0; i < band.lineCount; i++) {
+            final ByteBuffer command = lines.encode(band.lines[i]);
+            final int length = command.remaining();
+            ensureCapacity(band, length);
+            command.get(band.encoded, band.encodedLength, length);
+            band.encodedLength += length;
+        }
+        final RL700SMetrics metrics = RL700SMetrics.get();
+        if (metrics != null) {
+            metrics.onLineCommands(band.encoded, 0, band.encodedLength,
+                    mSettings.getCompressionMode());
+        }
+    }
+
+    private static void ensureCapacity(Band band, int additional) {
+        final int required = band.encodedLength + additional;
+        if (band.encoded.length < required) {
+            band.encoded = Arrays.copyOf(band.encoded, Math.max(required, band.encoded.length * 2));
+        }
+    }
+
+    /**
+     * セットアップコマンドをすぐに送り、エンコード済みのバンドを順に送ります。
+     * 失敗した後も終端までは受け取ってバンドを戻します.
+     */
+    private void runTransmitter() {
+        try {
+            try {
+                write(ByteBuffer.wrap(mSetup));
+                mFirstByte = System.nanoTime() - mStart;
+            } catch (IOException e) {
+                fail(e);
+            }
+            while (true) {
+                final Band band = mEncoded.take();
+                if (mFailure == null) {
+                    try {
+                        if (band.end) {
+                            final ByteBuffer command = RL700SCommands.allocateOutBuffer();
+                            RL700SCommands.getStartPrintWithEvacuation(command);
+                            write(command);
+                            mFirstPrint = System.nanoTime() - mStart;
+                        } else {
+                            write(ByteBuffer.wrap(band.encoded, 0, band.encodedLength));
+                            if (mFirstLine < 0L) {
+                                mFirstLine = System.nanoTime() - mStart;
+                            }
+                        }
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+                final boolean end = band.end;
+                band.end = false;
+                mFree.put(band);
+                if (end) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        final long t = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+        mTransmitNanos += System.nanoTime() - t;
+    }
+
+    private void fail(Throwable t) {
+        if (mFailure == null) {
+            mFailure = t;
+        }
+    }
+}
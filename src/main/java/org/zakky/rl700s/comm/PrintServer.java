@@ -0,0 +1,610 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.zakky.rl700s.comm.PrintServerProtocol.HEADER_SIZE;
+import static org.zakky.rl700s.comm.PrintServerProtocol.MAX_PAYLOAD_SIZE;
+import static org.zakky.rl700s.comm.PrintServerProtocol.TYPE_SUBMIT_BITMAP;
+import static org.zakky.rl700s.comm.PrintServerProtocol.TYPE_SUBMIT_JOB;
+import static org.zakky.rl700s.comm.PrintServerProtocol.TYPE_SUBSCRIBE;
+
+import org.zakky.rl700s.comm.PrintJobScheduler.Chunk;
+import org.zakky.rl700s.comm.PrintJobScheduler.Priority;
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * 複数のアプリケーションから 1 つ以上のプリンタを共有するための組み込みの印刷サーバです.
+ *
+ * <p>
+ * クライアントとは {@link PrintServerProtocol} のフレームでやり取りします。
+ * すべての接続を 1 つの {@link Selector} のスレッドで扱い、プリンタごとに 1 つのスレッドが
+ * {@link PrintJobScheduler} からページを取り出して送信し、印刷終了のステータスを待ちます。
+ * 受け取ったステータスは {@link StatusMonitor} で変化だけにして購読中の接続へ送ります。
+ * </p>
+ * <p>
+ * ステータスの変化は接続ごとに、送信待ちのフレームを送り終えてから次を組み立てるので、
+ * 読み出さないクライアントがいても変化は種類ごとにまとまり、送信待ちは増え続けません。
+ * 応答の送信待ちが {@link #MAX_PENDING_BYTES} を超えた接続は閉じます。
+ * ビットマップのエンコードはセレクタのスレッドで行います。
+ * </p>
+ */
+public final class PrintServer implements Closeable {
+
+    /** 1 接続あたりの送信待ちバイト数の上限. */
+    public static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    /**
+     * 1 台のプリンタです.
+     */
+    private final class Port implements Runnable {
+        final int mIndex;
+        final ByteChannel mChannel;
+        final PrintJobScheduler mScheduler = new PrintJobScheduler();
+        final StatusMonitor mMonitor = new StatusMonitor(DIRECT);
+        private final RL700SMetrics.StatusTracker mTracker = new RL700SMetrics.StatusTracker();
+        private final ByteBuffer mStatus = RL700SStatus.allocateInBuffer();
+        /** ジョブ ID から投入した接続. */
+        private final Map<Long, Connection> mOwners = new HashMap<Long, Connection>();
+        private boolean mFailed;
+
+        Port(int index, ByteChannel channel) {
+            super();
+            mIndex = index;
+            mChannel = channel;
+        }
+
+        /**
+         * ジョブを投入し、受け付けの応答を送ります.
+         *
+         * @return 受け付けた場合は {@code true}、プリンタが停止している場合は {@code false}。
+         */
+        synchronized boolean submit(EncodedJob job, Priority priority, Connection owner,
+                int requestId) {
+            if (mFailed || mClosed) {
+                return false;
+            }
+            final long jobId = mScheduler.submit(job, priority);
+            mOwners.put(Long.valueOf(jobId), owner);
+            // 印刷終了より先に届くよう、ロックを持ったまま応答を積む
+            owner.send(PrintServerProtocol.acceptedFrame(requestId, jobId));
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Chunk chunk = take();
+                    if (chunk == null) {
+                        return;
+                    }
+                    final ByteBuffer data = chunk.getData();
+                    while (data.hasRemaining()) {
+                        mChannel.write(data);
+                    }
+                    RL700SStatus status;
+                    do {
+                        status = readStatus();
+                        mTracker.onStatus(status);
+                        mMonitor.onStatus(status);
+                        RL700STracer.onStatus(chunk.getTraceId(), status);
+                    } while (status.getStatusType() != RL700SStatus.STATUS_TYPE_PRINT_COMPLETE
+                            && status.getStatusType() != RL700SStatus.STATUS_TYPE_ERROR);
+
+                    final boolean error = status.getStatusType() == RL700SStatus.STATUS_TYPE_ERROR;
+                    if (chunk.isLastPage() || error) {
+                        RL700STracer.endJob(chunk.getTraceId());
+                        if (error) {
+                            mScheduler.cancel(chunk.getJobId());
+                        }
+                        complete(chunk.getJobId(), status.getErrorInfoRawValue());
+                    }
+                }
+            } catch (IOException e) {
+                fail();
+            } catch (InterruptedException e) {
+                fail();
+            } catch (RuntimeException e) {
+                // 想定外のジョブで止まったスレッドにジョブを受け付け続けないようにする
+                fail();
+            }
+        }
+
+        private synchronized Chunk take() throws InterruptedException {
+            while (!mClosed) {
+                final Chunk chunk = mScheduler.next();
+                if (chunk != null) {
+                    return chunk;
+                }
+                wait();
+            }
+            return null;
+        }
+
+        private RL700SStatus readStatus() throws IOException {
+            mStatus.clear();
+            while (mStatus.hasRemaining()) {
+                if (mChannel.read(mStatus) < 0) {
+                    throw new EOFException();
+                }
+            }
+            mStatus.flip();
+            try {
+                return RL700SStatus.parse(mStatus);
+            } catch (ParseException e) {
+                throw new IOException("invalid status: " + e.getMessage());
+            }
+        }
+
+        private synchronized void complete(long jobId, int errors) {
+            final Connection owner = mOwners.remove(Long.valueOf(jobId));
+            if (owner != null) {
+                owner.send(PrintServerProtocol.jobCompleteFrame(mIndex, jobId, errors));
+            }
+        }
+
+        /**
+         * 通信できなくなったプリンタを停止し、残りのジョブを通信エラーで終わらせます.
+         */
+        private synchronized void fail() {
+            mFailed = true;
+            for (Map.Entry<Long, Connection> e : mOwners.entrySet()) {
+                mScheduler.cancel(e.getKey().longValue());
+                e.getValue().send(PrintServerProtocol.jobCompleteFrame(mIndex, e.getKey()
+                        .longValue(), ErrorInfo.COMMUNICATION_ERROR.rawValue()));
+            }
+            mOwners.clear();
+        }
+
+        synchronized void wakeUp() {
+            notifyAll();
+        }
+    }
+
+    /**
+     * クライアントとの 1 つの接続です.
+     *
+     * <p>
+     * {@link Executor} としては、渡されたタスクを送信待ちのフレームがなくなった時点で
+     * セレクタのスレッドで実行します。
+     * </p>
+     */
+    private final class Connection implements Executor {
+        final SocketChannel mChannel;
+        SelectionKey mKey;
+        private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer mPayload;
+        private final Map<Port, StatusMonitor.Listener> mSubscriptions = new HashMap<Port, StatusMonitor.Listener>();
+
+        // 以下は this で保護する
+        private final LinkedList<ByteBuffer> mOutgoing = new LinkedList<ByteBuffer>();
+        private final List<Runnable> mDeferred = new ArrayList<Runnable>();
+        private int mPendingBytes;
+        private boolean mWakeupQueued;
+        private boolean mOverflow;
+        private boolean mDisconnected;
+
+        Connection(SocketChannel channel) {
+            super();
+            mChannel = channel;
+        }
+
+        void send(ByteBuffer frame) {
+            synchronized (this) {
+                if (mDisconnected || mOverflow) {
+                    return;
+                }
+                if (MAX_PENDING_BYTES < mPendingBytes + frame.remaining()) {
+                    mOverflow = true;
+                    mOutgoing.clear();
+                } else {
+                    mOutgoing.add(frame);
+                    mPendingBytes += frame.remaining();
+                }
+            }
+            requestWrite();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (mDisconnected) {
+                    return;
+                }
+                mDeferred.add(command);
+            }
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            synchronized (this) {
+                if (mWakeupQueued) {
+                    return;
+                }
+                mWakeupQueued = true;
+            }
+            mWakeups.add(this);
+            mSelector.wakeup();
+        }
+
+        /**
+         * セレクタのスレッドで、書き込みの要求を反映します.
+         */
+        void onWakeup() {
+            final boolean overflow;
+            synchronized (this) {
+                mWakeupQueued = false;
+                overflow = mOverflow;
+            }
+            if (overflow) {
+                disconnect();
+            } else if (mKey.isValid()) {
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (true) {
+                final ByteBuffer head;
+                final List<Runnable> tasks;
+                synchronized (this) {
+                    head = mOutgoing.peek();
+                    if (head == null) {
+                        if (mDeferred.isEmpty()) {
+                            mKey.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        tasks = new ArrayList<Runnable>(mDeferred);
+                        mDeferred.clear();
+                    } else {
+                        tasks = null;
+                    }
+                }
+                if (tasks != null) {
+                    for (Runnable r : tasks) {
+                        r.run();
+                    }
+                    continue;
+                }
+                mChannel.write(head);
+                if (head.hasRemaining()) {
+                    return;
+                }
+                synchronized (this) {
+                    mOutgoing.removeFirst();
+                    mPendingBytes -= head.limit();
+                }
+            }
+        }
+
+        void onReadable() throws IOException {
+            while (true) {
+                if (mPayload == null) {
+                    if (mChannel.read(mHeader) < 0) {
+                        disconnect();
+                        return;
+                    }
+                    if (mHeader.hasRemaining()) {
+                        return;
+                    }
+                    final int length = mHeader.getInt(1);
+                    if (length < 0 || MAX_PAYLOAD_SIZE < length) {
+                        disconnect();
+                        return;
+                    }
+                    mPayload = ByteBuffer.allocate(length);
+                }
+                if (mPayload.hasRemaining()) {
+                    if (mChannel.read(mPayload) < 0) {
+                        disconnect();
+                        return;
+                    }
+                    if (mPayload.hasRemaining()) {
+                        return;
+                    }
+                }
+                final ByteBuffer payload = mPayload;
+                payload.flip();
+                mPayload = null;
+                mHeader.clear();
+                if (!handle(mHeader.get(0) & 0xff, payload)) {
+                    disconnect();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return プロトコル違反の場合は {@code false}。
+         */
+        private boolean handle(int type, ByteBuffer payload) {
+            if (payload.remaining() < 2) {
+                return false;
+            }
+            final Port port = getPort(payload.getShort() & 0xffff);
+            if (type == TYPE_SUBSCRIBE) {
+                if (port != null && !mSubscriptions.containsKey(port)) {
+                    final StatusMonitor.Listener listener = new StatusMonitor.Listener() {
+                        @Override
+                        public void onStatusChanged(StatusChangeEvent event) {
+                            send(PrintServerProtocol.statusFrame(port.mIndex, event));
+                        }
+                    };
+                    mSubscriptions.put(port, listener);
+                    port.mMonitor.addListener(listener, this);
+                }
+                return true;
+            }
+            if (type != TYPE_SUBMIT_JOB && type != TYPE_SUBMIT_BITMAP) {
+                return false;
+            }
+            if (payload.remaining() < 4 + 1) {
+                return false;
+            }
+            final int requestId = payload.getInt();
+            final String error;
+            if (port == null) {
+                error = "unknown printer.";
+            } else {
+                final int priority = payload.get() & 0xff;
+                EncodedJob job = null;
+                String invalid = null;
+                try {
+                    job = PrintServerProtocol.decodeJob(type, payload);
+                } catch (RuntimeException e) {
+                    invalid = "invalid job: " + e;
+                }
+                if (invalid != null) {
+                    error = invalid;
+                } else if (Priority.fromRawValue(priority) == null) {
+                    error = "invalid priority: " + priority;
+                } else {
+                    error = submit(port, job, Priority.fromRawValue(priority), requestId);
+                }
+            }
+            if (error != null) {
+                send(PrintServerProtocol.rejectedFrame(requestId, error));
+            }
+            return true;
+        }
+
+        /**
+         * @return 受け付けなかった理由。受け付けた場合は {@code null}。
+         */
+        private String submit(Port port, EncodedJob job, Priority priority, int requestId) {
+            try {
+                if (!port.submit(job, priority, this, requestId)) {
+                    return "printer unavailable.";
+                }
+            } catch (RuntimeException e) {
+                return "invalid job: " + e;
+            }
+            return null;
+        }
+
+        void disconnect() {
+            synchronized (this) {
+                mDisconnected = true;
+                mOutgoing.clear();
+                mDeferred.clear();
+            }
+            for (Map.Entry<Port, StatusMonitor.Listener> e : mSubscriptions.entrySet()) {
+                e.getKey().mMonitor.removeListener(e.getValue());
+            }
+            mSubscriptions.clear();
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // 閉じるときの失敗は無視する
+            }
+        }
+    }
+
+    /** 通知を呼び出したスレッドでそのまま実行する Executor. */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final List<Port> mPorts = new ArrayList<Port>();
+    private final ConcurrentLinkedQueue<Connection> mWakeups = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean mClosed;
+    private boolean mStarted;
+
+    /**
+     * 指定したアドレスで接続を待ち受けるサーバを構築します.
+     *
+     * <p>
+     * 同じホスト内のアプリケーションだけから使う場合はループバックアドレスを指定してください。
+     * 接続の受け付けは {@link #start()} を呼ぶまで始まりません。
+     * </p>
+     *
+     * @param address 待ち受けるアドレス。ポート番号 0 の場合は空いているポートを使います。
+     * @throws IOException 待ち受けを開始できなかった場合。
+     */
+    public PrintServer(SocketAddress address) throws IOException {
+        super();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().setReuseAddress(true);
+        mServer.socket().bind(address);
+        mServer.configureBlocking(false);
+        mSelector = Selector.open();
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * プリンタを追加します。 {@link #start()} の前に呼んでください.
+     *
+     * @param channel ブロッキングモードでプリンタと通信するチャネル。
+     *            サーバを閉じると一緒に閉じます。
+     * @return プリンタ番号(0 始まりの追加順)。
+     */
+    public synchronized int addPrinter(ByteChannel channel) {
+        if (mStarted) {
+            throw new IllegalStateException("already started.");
+        }
+        mPorts.add(new Port(mPorts.size(), channel));
+        return mPorts.size() - 1;
+    }
+
+    /**
+     * 待ち受けているアドレスを返します.
+     *
+     * @return アドレス。
+     */
+    public SocketAddress getLocalAddress() {
+        return mServer.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * セレクタのスレッドとプリンタごとのスレッドを開始します.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("already started.");
+        }
+        mStarted = true;
+        for (Port p : mPorts) {
+            new Thread(p, "PrintServer-printer-" + p.mIndex).start();
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "PrintServer-selector").start();
+    }
+
+    /**
+     * 待ち受けとすべての接続、プリンタのチャネルを閉じます.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mSelector.wakeup();
+        for (Port p : mPorts) {
+            p.wakeUp();
+            p.mChannel.close();
+        }
+        synchronized (this) {
+            if (!mStarted) {
+                closeSelector();
+            }
+        }
+    }
+
+    private Port getPort(int index) {
+        return (index < mPorts.size()) ? mPorts.get(index) : null;
+    }
+
+    private void serve() {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                for (Connection c = mWakeups.poll(); c != null; c = mWakeups.poll()) {
+                    c.onWakeup();
+                }
+                final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else {
+                        handle(key, (Connection) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // セレクタが使えなくなったので停止する
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).disconnect();
+                }
+            }
+            closeSelector();
+        }
+    }
+
+    private void accept() throws IOException {
+        for (SocketChannel channel = mServer.accept(); channel != null; channel = mServer
+                .accept()) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Connection c = new Connection(channel);
+            c.mKey = channel.register(mSelector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    private static void handle(SelectionKey key, Connection c) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                c.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                c.onWritable();
+            }
+        } catch (IOException e) {
+            c.disconnect();
+        } catch (RuntimeException e) {
+            // その接続だけを閉じ、他の接続と待ち受けは続ける
+            c.disconnect();
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // 閉じるときの失敗は無視する
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // 閉じるときの失敗は無視する
+        }
+    }
+}
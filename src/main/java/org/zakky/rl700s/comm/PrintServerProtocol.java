@@ -0,0 +1,350 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.PrintJobScheduler.Priority;
+import org.zakky.rl700s.comm.StatusChangeEvent.Type;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link PrintServer} とクライアントの間でやり取りするフレームの定義です.
+ *
+ * <p>
+ * フレームは 1 バイトの種別、 4 バイトのペイロード長、ペイロードから成ります。
+ * 数値はすべてビッグエンディアンです。
+ * </p>
+ */
+public final class PrintServerProtocol {
+
+    private PrintServerProtocol() {
+    }
+
+    /** フレームヘッダのバイト数. */
+    public static final int HEADER_SIZE = 1 + 4;
+    /** ペイロードの最大バイト数. */
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * エンコード済みのジョブの投入。
+     * プリンタ番号(2)、リクエスト ID(4)、優先度(1)、印刷設定の長さ(1)、印刷設定、
+     * セットアップコマンドの長さ(4)、ページ数(4)、ページごとの終端オフセット(4)と
+     * 累積ライン数(4)、ジョブのバイト列.
+     */
+    public static final int TYPE_SUBMIT_JOB = 0x01;
+    /**
+     * ビットマップの投入。
+     * プリンタ番号(2)、リクエスト ID(4)、優先度(1)、印刷設定の長さ(1)、印刷設定、
+     * 1 ラインのバイト数(1)、ライン数(4)、ラインのビット列.
+     */
+    public static final int TYPE_SUBMIT_BITMAP = 0x02;
+    /** ステータスの変化の購読。プリンタ番号(2). */
+    public static final int TYPE_SUBSCRIBE = 0x03;
+    /** 投入の受け付け。リクエスト ID(4)、ジョブ ID(8). */
+    public static final int TYPE_ACCEPTED = 0x81;
+    /** 投入の拒否。リクエスト ID(4)、 UTF-8 の理由. */
+    public static final int TYPE_REJECTED = 0x82;
+    /**
+     * ステータスの変化。プリンタ番号(2)、変化の種類(1)、まとめた数(4)、時刻(8)、
+     * 立ったエラー(2)、解除されたエラー(2)、変化前の有無(1)、変化前と変化後それぞれの
+     * {@link StatusHistory#pack(RL700SStatus)} の値(8)とフェーズ番号(2).
+     */
+    public static final int TYPE_STATUS = 0x83;
+    /** ジョブの印刷終了。プリンタ番号(2)、ジョブ ID(8)、最後のステータスのエラー情報(2). */
+    public static final int TYPE_JOB_COMPLETE = 0x84;
+
+    /**
+     * 受け取ったフレームです.
+     */
+    public static final class Frame {
+        private final int mType;
+        private final ByteBuffer mPayload;
+
+        Frame(int type, ByteBuffer payload) {
+            mType = type;
+            mPayload = payload;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * ペイロードを返します.
+         *
+         * @return 呼び出しごとに独立した position と limit を持つ読み取り専用のバッファ。
+         */
+        public ByteBuffer getPayload() {
+            return mPayload.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * エンコード済みのジョブを投入するフレームを生成します.
+     *
+     * @param printer プリンタ番号。
+     * @param requestId 応答と対応付けるための ID。
+     * @param priority 優先度。
+     * @param job ジョブ。
+     * @return フレーム。
+     */
+    public static ByteBuffer jobFrame(int printer, int requestId, Priority priority, EncodedJob job) {
+        final byte[] settings = SpoolJournal.encodeSettings(job.getSettings());
+        final int pageCount = job.getPageCount();
+        final ByteBuffer frame = allocate(TYPE_SUBMIT_JOB, 2 + 4 + 1 + 1 + settings.length + 4 + 4
+                + 8 * pageCount + job.getLength());
+        putSubmitHeader(frame, printer, requestId, priority, settings);
+        frame.putInt(job.getSetupLength());
+        frame.putInt(pageCount);
+        int lines = 0;
+        for (int i = 0; i < pageCount; i++) {
+            frame.putInt(job.getPageEnd(i));
+            lines += job.getPageLineCount(i);
+            frame.putInt(lines);
+        }
+        frame.put(job.getData());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * ビットマップを投入するフレームを生成します.
+     *
+     * @param printer プリンタ番号。
+     * @param requestId 応答と対応付けるための ID。
+     * @param priority 優先度。
+     * @param settings 印刷設定。
+     * @param lines 非圧縮のラインビット列。すべて同じ長さで、
+     *            {@link RL700SCommands#MAX_LINE_BYTES} 以下であること。
+     * @return フレーム。
+     */
+    public static ByteBuffer bitmapFrame(int printer, int requestId, Priority priority,
+            PrintSettings settings, byte[][] lines) {
+        final int lineBytes = (lines.length == 0) ? 0 : lines[0].length;
+        if (RL700SCommands.MAX_LINE_BYTES < lineBytes) {
+            throw new IllegalArgumentException("line too long: " + lineBytes);
+        }
+        final byte[] s = SpoolJournal.encodeSettings(settings);
+        final ByteBuffer frame = allocate(TYPE_SUBMIT_BITMAP, 2 + 4 + 1 + 1 + s.length + 1 + 4
+                + lineBytes * lines.length);
+        putSubmitHeader(frame, printer, requestId, priority, s);
+        frame.put((byte) lineBytes);
+        frame.putInt(lines.length);
+        for (byte[] line : lines) {
+            if (line.length != lineBytes) {
+                throw new IllegalArgumentException("line length differs: " + line.length);
+            }
+            frame.put(line);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * ステータスの変化を購読するフレームを生成します.
+     *
+     * @param printer プリンタ番号。
+     * @return フレーム。
+     */
+    public static ByteBuffer subscribeFrame(int printer) {
+        final ByteBuffer frame = allocate(TYPE_SUBSCRIBE, 2);
+        frame.putShort((short) printer);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * ブロッキングモードのチャネルからフレームを 1 つ読み込みます.
+     *
+     * @param channel チャネル。
+     * @return フレーム。フレームの境界でストリームが終わった場合は {@code null}。
+     * @throws IOException 読み込みに失敗した場合、またはフレームの途中でストリームが終わった場合。
+     */
+    public static Frame read(ReadableByteChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(channel, header, true)) {
+            return null;
+        }
+        final int type = header.get(0) & 0xff;
+        final int length = header.getInt(1);
+        if (length < 0 || MAX_PAYLOAD_SIZE < length) {
+            throw new IOException("invalid frame length: " + length);
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, false);
+        payload.flip();
+        return new Frame(type, payload);
+    }
+
+    /**
+     * {@link #TYPE_STATUS} のフレームからステータスの変化を取り出します.
+     *
+     * @param frame フレーム。
+     * @return 変化。
+     */
+    public static StatusChangeEvent toStatusChangeEvent(Frame frame) {
+        if (frame.getType() != TYPE_STATUS) {
+            throw new IllegalArgumentException("not a status frame: " + frame.getType());
+        }
+        final ByteBuffer p = frame.getPayload();
+        p.getShort();
+        final int rawType = p.get() & 0xff;
+        final Type type = Type.fromRawValue(rawType);
+        if (type == null) {
+            throw new IllegalArgumentException("unknown status change type: " + rawType);
+        }
+        final int count = p.getInt();
+        final long time = p.getLong();
+        final int raised = p.getShort() & 0xffff;
+        final int cleared = p.getShort() & 0xffff;
+        final boolean hasPrevious = p.get() != 0;
+        final long prevPacked = p.getLong();
+        final int prevPhase = p.getShort() & 0xffff;
+        final long packed = p.getLong();
+        final int phase = p.getShort() & 0xffff;
+        return new StatusChangeEvent(type, time, hasPrevious ? StatusHistory.unpack(prevPacked,
+                prevPhase) : null, StatusHistory.unpack(packed, phase), raised, cleared, count);
+    }
+
+    static ByteBuffer statusFrame(int printer, StatusChangeEvent event) {
+        final ByteBuffer frame = allocate(TYPE_STATUS, 2 + 1 + 4 + 8 + 2 + 2 + 1 + 10 + 10);
+        frame.putShort((short) printer);
+        frame.put((byte) event.getType().rawValue());
+        frame.putInt(event.getCount());
+        frame.putLong(event.getTimeMillis());
+        frame.putShort((short) event.getRaisedErrors());
+        frame.putShort((short) event.getClearedErrors());
+        final RL700SStatus prev = event.getPrevious();
+        frame.put((byte) ((prev == null) ? 0 : 1));
+        frame.putLong((prev == null) ? 0L : StatusHistory.pack(prev));
+        frame.putShort((short) ((prev == null) ? 0 : prev.getPhaseNumber()));
+        frame.putLong(StatusHistory.pack(event.getCurrent()));
+        frame.putShort((short) event.getCurrent().getPhaseNumber());
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer acceptedFrame(int requestId, long jobId) {
+        final ByteBuffer frame = allocate(TYPE_ACCEPTED, 4 + 8);
+        frame.putInt(requestId);
+        frame.putLong(jobId);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer rejectedFrame(int requestId, String reason) {
+        final byte[] message = toUtf8(reason);
+        final ByteBuffer frame = allocate(TYPE_REJECTED, 4 + message.length);
+        frame.putInt(requestId);
+        frame.put(message);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer jobCompleteFrame(int printer, long jobId, int errors) {
+        final ByteBuffer frame = allocate(TYPE_JOB_COMPLETE, 2 + 8 + 2);
+        frame.putShort((short) printer);
+        frame.putLong(jobId);
+        frame.putShort((short) errors);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 投入フレームのペイロードからジョブを組み立てます.
+     *
+     * @param type {@link #TYPE_SUBMIT_JOB} または {@link #TYPE_SUBMIT_BITMAP}。
+     * @param payload プリンタ番号、リクエスト ID、優先度を読み終えたペイロード。
+     * @return ジョブ。
+     */
+    static EncodedJob decodeJob(int type, ByteBuffer payload) {
+        final byte[] s = new byte[payload.get() & 0xff];
+        payload.get(s);
+        final PrintSettings settings = SpoolJournal.decodeSettings(s);
+        if (type == TYPE_SUBMIT_JOB) {
+            final int setupLength = payload.getInt();
+            final int pageCount = payload.getInt();
+            if (pageCount < 1 || payload.remaining() / 8 < pageCount) {
+                throw new IllegalArgumentException("invalid page count: " + pageCount);
+            }
+            final int[] pageEnds = new int[pageCount];
+            final int[] pageLineEnds = new int[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                pageEnds[i] = payload.getInt();
+                pageLineEnds[i] = payload.getInt();
+            }
+            return new EncodedJob(payload, setupLength, pageEnds, pageLineEnds, settings);
+        }
+        final int lineBytes = payload.get() & 0xff;
+        final int lineCount = payload.getInt();
+        if (RL700SCommands.MAX_LINE_BYTES < lineBytes || lineCount < 0
+                || (lineBytes != 0 && payload.remaining() / lineBytes < lineCount)) {
+            throw new IllegalArgumentException("invalid bitmap: " + lineBytes + " x " + lineCount);
+        }
+        final JobEncoder encoder = new JobEncoder(settings);
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < lineCount; i++) {
+            payload.get(line, 0, lineBytes);
+            encoder.addLine(line);
+        }
+        return encoder.finish();
+    }
+
+    private static void putSubmitHeader(ByteBuffer frame, int printer, int requestId,
+            Priority priority, byte[] settings) {
+        frame.putShort((short) printer);
+        frame.putInt(requestId);
+        frame.put((byte) priority.rawValue());
+        frame.put((byte) settings.length);
+        frame.put(settings);
+    }
+
+    private static ByteBuffer allocate(int type, int payloadLength) {
+        if (MAX_PAYLOAD_SIZE < payloadLength) {
+            throw new IllegalArgumentException("frame too large: " + payloadLength);
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        frame.put((byte) type);
+        frame.putInt(payloadLength);
+        return frame;
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer,
+            boolean eofAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toUtf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+import org.zakky.rl700s.comm.RL700SCommands.Paper;
+
+import java.util.EnumSet;
+
+/**
+ * 1 ジョブ分の印刷設定を保持するクラスです.
+ *
+ * <p>
+ * {@link JobEncoder} がジョブ先頭で送るセットアップコマンドの内容はすべてこのクラスで決まります。
+ * インスタンスは不変で、 {@link #equals(Object)} により設定の同一性を判定できます。
+ * </p>
+ */
+public final class PrintSettings {
+
+    private final Paper mPaperKind;
+    private final Integer mPaperWidth;
+    private final Integer mPaperLength;
+    private final EnumSet<Mode> mModes;
+    private final EnumSet<EnhancedMode> mEnhancedModes;
+    private final int mMergin;
+    private final CompressionMode mCompressionMode;
+    private final boolean mEnableRecover;
+    private final boolean mLowPowerPrint;
+
+    /**
+     * 印刷設定を構築します.
+     *
+     * @param paperKind 用紙の種別。指定しない場合は {@code null}。
+     * @param paperWidth 用紙の幅。指定しない場合は {@code null}。
+     * @param paperLength 用紙の長さ。指定しない場合は {@code null}。
+     * @param modes 有効にするモードの集合。
+     * @param enhancedModes 有効にする拡張モードの集合。
+     * @param mergin 余白量(ドット)。
+     * @param compressionMode 圧縮モード。
+     * @param enableRecover 本体でリカバリー処理を行うかどうか。
+     * @param lowPowerPrint 印字エネルギーを弱にするかどうか。
+     */
+    public PrintSettings(Paper paperKind, Integer paperWidth, Integer paperLength,
+            EnumSet<Mode> modes, EnumSet<EnhancedMode> enhancedModes, int mergin,
+            CompressionMode compressionMode, boolean enableRecover, boolean lowPowerPrint) {
+        super();
+        if (modes == null) {
+            throw new IllegalArgumentException("'modes' must not be null.");
+        }
+        if (enhancedModes == null) {
+            throw new IllegalArgumentException("'enhancedModes' must not be null.");
+        }
+        if (compressionMode == null) {
+            throw new IllegalArgumentException("'compressionMode' must not be null.");
+        }
+        if (mergin < 0 || (1 << 16) <= mergin) {
+            throw new IllegalArgumentException("'mergin' out of range: " + mergin);
+        }
+        mPaperKind = paperKind;
+        mPaperWidth = paperWidth;
+        mPaperLength = paperLength;
+        mModes = EnumSet.copyOf(modes);
+        mEnhancedModes = EnumSet.copyOf(enhancedModes);
+        mMergin = mergin;
+        mCompressionMode = compressionMode;
+        mEnableRecover = enableRecover;
+        mLowPowerPrint = lowPowerPrint;
+    }
+
+    public Paper getPaperKind() {
+        return mPaperKind;
+    }
+
+    public Integer getPaperWidth() {
+        return mPaperWidth;
+    }
+
+    public Integer getPaperLength() {
+        return mPaperLength;
+    }
+
+    public EnumSet<Mode> getModes() {
+        return EnumSet.copyOf(mModes);
+    }
+
+    public EnumSet<EnhancedMode> getEnhancedModes() {
+        return EnumSet.copyOf(mEnhancedModes);
+    }
+
+    /**
+     * 指定した拡張モードが有効かどうかを返します.
+     *
+     * @param mode 拡張モード。
+     * @return 有効であれば {@code true}。
+     */
+    public boolean isEnabled(EnhancedMode mode) {
+        return mEnhancedModes.contains(mode);
+    }
+
+    public int getMergin() {
+        return mMergin;
+    }
+
+    public CompressionMode getCompressionMode() {
+        return mCompressionMode;
+    }
+
+    public boolean isEnableRecover() {
+        return mEnableRecover;
+    }
+
+    public boolean isLowPowerPrint() {
+        return mLowPowerPrint;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + (mPaperKind == null ? 0 : mPaperKind.hashCode());
+        result = 31 * result + (mPaperWidth == null ? 0 : mPaperWidth.hashCode());
+        result = 31 * result + (mPaperLength == null ? 0 : mPaperLength.hashCode());
+        result = 31 * result + mModes.hashCode();
+        result = 31 * result + mEnhancedModes.hashCode();
+        result = 31 * result + mMergin;
+        result = 31 * result + mCompressionMode.hashCode();
+        result = 31 * result + (mEnableRecover ? 1 : 0);
+        result = 31 * result + (mLowPowerPrint ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PrintSettings)) {
+            return false;
+        }
+        final PrintSettings other = (PrintSettings) obj;
+        return mPaperKind == other.mPaperKind && equalsOrBothNull(mPaperWidth, other.mPaperWidth)
+                && equalsOrBothNull(mPaperLength, other.mPaperLength)
+                && mModes.equals(other.mModes) && mEnhancedModes.equals(other.mEnhancedModes)
+                && mMergin == other.mMergin && mCompressionMode == other.mCompressionMode
+                && mEnableRecover == other.mEnableRecover
+                && mLowPowerPrint == other.mLowPowerPrint;
+    }
+
+    private static boolean equalsOrBothNull(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "PrintSettings[paperKind=" + mPaperKind + ", paperWidth=" + mPaperWidth
+                + ", paperLength=" + mPaperLength + ", modes=" + mModes + ", enhancedModes="
+                + mEnhancedModes + ", mergin=" + mMergin + ", compressionMode="
+                + mCompressionMode + ", enableRecover=" + mEnableRecover + ", lowPowerPrint="
+                + mLowPowerPrint + "]";
+    }
+}
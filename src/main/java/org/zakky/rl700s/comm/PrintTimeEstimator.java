@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+
+/**
+ * {@link EncodedJob} の印刷に要する時間を見積もるクラスです.
+ *
+ * <p>
+ * テープ送り方向の長さをライン数と余白量から求め、送り速度で割って見積もります。
+ * 通常は 360dpi、 {@link EnhancedMode#FINE_PRINT} の場合は 720dpi として長さを計算し、
+ * 高精細印刷時の送り速度を別に指定できます。余白はページの前後に付くものとして
+ * 360dpi で計算します。
+ * </p>
+ */
+public final class PrintTimeEstimator {
+
+    /** 通常印刷時の送り速度の既定値(mm/秒). */
+    public static final double DEFAULT_SPEED = 20.0;
+
+    /** 高精細印刷時の送り速度の既定値(mm/秒). */
+    public static final double DEFAULT_FINE_SPEED = 10.0;
+
+    /** ページごとのカットや印字開始にかかる時間の既定値(ミリ秒). */
+    public static final long DEFAULT_PAGE_OVERHEAD_MILLIS = 500L;
+
+    private static final double MM_PER_INCH = 25.4;
+    private static final double NORMAL_DPI = 360.0;
+    private static final double FINE_DPI = 720.0;
+
+    private final double mSpeed;
+    private final double mFineSpeed;
+    private final long mPageOverheadMillis;
+
+    /**
+     * 既定値で見積もりを行うインスタンスを構築します.
+     */
+    public PrintTimeEstimator() {
+        this(DEFAULT_SPEED, DEFAULT_FINE_SPEED, DEFAULT_PAGE_OVERHEAD_MILLIS);
+    }
+
+    /**
+     * 送り速度とページごとのオーバーヘッドを指定してインスタンスを構築します.
+     *
+     * @param speed 通常印刷時の送り速度(mm/秒)。
+     * @param fineSpeed 高精細印刷時の送り速度(mm/秒)。
+     * @param pageOverheadMillis ページごとのオーバーヘッド(ミリ秒)。
+     */
+    public PrintTimeEstimator(double speed, double fineSpeed, long pageOverheadMillis) {
+        super();
+        if (!(0.0 < speed) || !(0.0 < fineSpeed)) {
+            throw new IllegalArgumentException("speed must be positive.");
+        }
+        if (pageOverheadMillis < 0) {
+            throw new IllegalArgumentException("'pageOverheadMillis' must not be negative.");
+        }
+        mSpeed = speed;
+        mFineSpeed = fineSpeed;
+        mPageOverheadMillis = pageOverheadMillis;
+    }
+
+    /**
+     * 1 ページの印刷時間を見積もります.
+     *
+     * @param job ジョブ。
+     * @param page ページ番号(0 始まり)。
+     * @return 見積もり時間(ミリ秒)。
+     */
+    public long estimatePageMillis(EncodedJob job, int page) {
+        return estimateMillis(job.getSettings(), job.getPageLineCount(page), 1);
+    }
+
+    /**
+     * 指定したページ以降の印刷時間を見積もります.
+     *
+     * @param job ジョブ。
+     * @param fromPage 開始ページ番号(0 始まり)。
+     * @return 見積もり時間(ミリ秒)。
+     */
+    public long estimateRemainingMillis(EncodedJob job, int fromPage) {
+        final int pages = job.getPageCount() - fromPage;
+        if (pages <= 0) {
+            return 0L;
+        }
+        int lines = 0;
+        for (int i = fromPage; i < job.getPageCount(); i++) {
+            lines += job.getPageLineCount(i);
+        }
+        return estimateMillis(job.getSettings(), lines, pages);
+    }
+
+    /**
+     * ジョブ全体の印刷時間を見積もります.
+     *
+     * @param job ジョブ。
+     * @return 見積もり時間(ミリ秒)。
+     */
+    public long estimateMillis(EncodedJob job) {
+        return estimateRemainingMillis(job, 0);
+    }
+
+    /**
+     * 印刷設定とライン数から印刷時間を見積もります.
+     *
+     * @param settings 印刷設定。
+     * @param lines ライン数。
+     * @param pages ページ数。
+     * @return 見積もり時間(ミリ秒)。
+     */
+    public long estimateMillis(PrintSettings settings, int lines, int pages) {
+        final boolean fine = settings.isEnabled(EnhancedMode.FINE_PRINT);
+        final double linesMm = lines * MM_PER_INCH / (fine ? FINE_DPI : NORMAL_DPI);
+        final double merginMm = 2.0 * settings.getMergin() * MM_PER_INCH / NORMAL_DPI;
+        final double seconds = (linesMm + merginMm * pages) / (fine ? mFineSpeed : mSpeed);
+        return (long) Math.ceil(seconds * 1000.0) + mPageOverheadMillis * pages;
+    }
+}
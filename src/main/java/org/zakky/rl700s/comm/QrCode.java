@@ -0,0 +1,506 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+/**
+ * QR コード(モデル 2)のモジュール行列を生成するクラスです.
+ *
+ * <p>
+ * 8 ビットバイトモードのみ、型番 1 から 10 までに対応します。384 ドットのヘッド幅には
+ * これ以上大きな型番は実用的な大きさで収まらないためです。
+ * 型番はデータが収まる最小のものを選び、マスクは失点が最小のものを選びます。
+ * </p>
+ */
+public final class QrCode {
+
+    /**
+     * 誤り訂正レベルです.
+     */
+    public enum ErrorCorrection {
+        /** 約 7% */
+        L(1),
+        /** 約 15% */
+        M(0),
+        /** 約 25% */
+        Q(3),
+        /** 約 30% */
+        H(2);
+
+        /** 形式情報での値. */
+        final int mFormatBits;
+
+        private ErrorCorrection(int formatBits) {
+            mFormatBits = formatBits;
+        }
+    }
+
+    /** 対応する最大の型番. */
+    public static final int MAX_VERSION = 10;
+
+    /**
+     * 型番ごと、誤り訂正レベル(L, M, Q, H の順)ごとの
+     * {1 ブロックの誤り訂正コード語数, グループ 1 のブロック数, グループ 1 のデータコード語数,
+     * グループ 2 のブロック数, グループ 2 のデータコード語数}.
+     */
+    private static final int[][][] BLOCKS = {
+            null,
+            { {7, 1, 19, 0, 0}, {10, 1, 16, 0, 0}, {13, 1, 13, 0, 0}, {17, 1, 9, 0, 0} },
+            { {10, 1, 34, 0, 0}, {16, 1, 28, 0, 0}, {22, 1, 22, 0, 0}, {28, 1, 16, 0, 0} },
+            { {15, 1, 55, 0, 0}, {26, 1, 44, 0, 0}, {18, 2, 17, 0, 0}, {22, 2, 13, 0, 0} },
+            { {20, 1, 80, 0, 0}, {18, 2, 32, 0, 0}, {26, 2, 24, 0, 0}, {16, 4, 9, 0, 0} },
+            { {26, 1, 108, 0, 0}, {24, 2, 43, 0, 0}, {18, 2, 15, 2, 16}, {22, 2, 11, 2, 12} },
+            { {18, 2, 68, 0, 0}, {16, 4, 27, 0, 0}, {24, 4, 19, 0, 0}, {28, 4, 15, 0, 0} },
+            { {20, 2, 78, 0, 0}, {18, 4, 31, 0, 0}, {18, 2, 14, 4, 15}, {26, 4, 13, 1, 14} },
+            { {24, 2, 97, 0, 0}, {22, 2, 38, 2, 39}, {22, 4, 18, 2, 19}, {26, 4, 14, 2, 15} },
+            { {30, 2, 116, 0, 0}, {22, 3, 36, 2, 37}, {20, 4, 16, 4, 17}, {24, 4, 12, 4, 13} },
+            { {18, 2, 68, 2, 69}, {26, 4, 43, 1, 44}, {24, 6, 19, 2, 20}, {28, 6, 15, 2, 16} },
+    };
+
+    /** 型番ごとの位置合わせパターンの中心座標. */
+    private static final int[][] ALIGNMENT = {
+            null, {}, {6, 18}, {6, 22}, {6, 26}, {6, 30}, {6, 34}, {6, 22, 38}, {6, 24, 42},
+            {6, 26, 46}, {6, 28, 50},
+    };
+
+    private final int mVersion;
+    private final int mSize;
+    private final boolean[][] mModules;
+    /** 機能パターン(データを置かない)モジュール. */
+    private final boolean[][] mFunction;
+
+    private QrCode(int version) {
+        mVersion = version;
+        mSize = version * 4 + 17;
+        mModules = new boolean[mSize][mSize];
+        mFunction = new boolean[mSize][mSize];
+    }
+
+    /**
+     * データを符号化します.
+     *
+     * @param data データ。
+     * @param ecl 誤り訂正レベル。
+     * @return QR コード。
+     */
+    public static QrCode encode(byte[] data, ErrorCorrection ecl) {
+        int version = 1;
+        for (; version <= MAX_VERSION; version++) {
+            final int countBits = (version <= 9) ? 8 : 16;
+            if (4 + countBits + data.length * 8 <= dataCodewords(version, ecl) * 8) {
+                break;
+            }
+        }
+        if (MAX_VERSION < version) {
+            throw new IllegalArgumentException("data too long: " + data.length + " bytes");
+        }
+        final QrCode qr = new QrCode(version);
+        qr.drawFunctionPatterns();
+        qr.drawCodewords(qr.addErrorCorrection(qr.dataCodewords(data, ecl), ecl));
+        qr.applyBestMask(ecl);
+        return qr;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 1 辺のモジュール数を返します(クワイエットゾーンは含みません).
+     *
+     * @return モジュール数。
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * モジュールが暗(黒)かどうかを返します.
+     *
+     * @param x 列(左端が 0)。
+     * @param y 行(上端が 0)。
+     * @return 暗モジュールであれば {@code true}。
+     */
+    public boolean get(int x, int y) {
+        return mModules[y][x];
+    }
+
+    /*
+     * データとエラー訂正
+     */
+
+    private static int dataCodewords(int version, ErrorCorrection ecl) {
+        final int[] b = BLOCKS[version][ecl.ordinal()];
+        return b[1] * b[2] + b[3] * b[4];
+    }
+
+    private byte[] dataCodewords(byte[] data, ErrorCorrection ecl) {
+        final int capacity = dataCodewords(mVersion, ecl);
+        final byte[] result = new byte[capacity];
+        final int[] bitLength = new int[1];
+        appendBits(result, bitLength, 0x4, 4); // 8 ビットバイトモード
+        appendBits(result, bitLength, data.length, (mVersion <= 9) ? 8 : 16);
+        for (byte b : data) {
+            appendBits(result, bitLength, b & 0xff, 8);
+        }
+        // 終端パターンとバイト境界までの 0
+        final int terminator = Math.min(4, capacity * 8 - bitLength[0]);
+        appendBits(result, bitLength, 0, terminator);
+        appendBits(result, bitLength, 0, (8 - bitLength[0] % 8) % 8);
+        for (int pad = 0xec; bitLength[0] < capacity * 8; pad ^= 0xec ^ 0x11) {
+            appendBits(result, bitLength, pad, 8);
+        }
+        return result;
+    }
+
+    private static void appendBits(byte[] dst, int[] bitLength, int value, int length) {
+        for (int i = length - 1; 0 <= i; i--) {
+            if (((value >>> i) & 1) != 0) {
+                dst[bitLength[0] >>> 3] |= (byte) (0x80 >>> (bitLength[0] & 7));
+            }
+            bitLength[0]++;
+        }
+    }
+
+    private byte[] addErrorCorrection(byte[] data, ErrorCorrection ecl) {
+        final int[] b = BLOCKS[mVersion][ecl.ordinal()];
+        final int ecLength = b[0];
+        final int blockCount = b[1] + b[3];
+        final byte[][] dataBlocks = new byte[blockCount][];
+        final byte[][] ecBlocks = new byte[blockCount][];
+        final byte[] generator = ReedSolomon.generator(ecLength);
+        int offset = 0;
+        for (int i = 0; i < blockCount; i++) {
+            final int length = (i < b[1]) ? b[2] : b[4];
+            dataBlocks[i] = new byte[length];
+            System.arraycopy(data, offset, dataBlocks[i], 0, length);
+            offset += length;
+            ecBlocks[i] = ReedSolomon.remainder(dataBlocks[i], generator);
+        }
+
+        // データ、誤り訂正コード語の順に、ブロックをまたいでインターリーブする
+        final int maxData = Math.max(b[2], b[4]);
+        final byte[] result = new byte[data.length + ecLength * blockCount];
+        int pos = 0;
+        for (int i = 0; i < maxData; i++) {
+            for (int k = 0; k < blockCount; k++) {
+                if (i < dataBlocks[k].length) {
+                    result[pos++] = dataBlocks[k][i];
+                }
+            }
+        }
+        for (int i = 0; i < ecLength; i++) {
+            for (int k = 0; k < blockCount; k++) {
+                result[pos++] = ecBlocks[k][i];
+            }
+        }
+        assert pos == result.length;
+        return result;
+    }
+
+    /**
+     * GF(2^8) 上のリード・ソロモン符号(原始多項式 0x11d).
+     */
+    private static final class ReedSolomon {
+        static byte[] generator(int degree) {
+            // 最高次の係数(常に 1)を除いた係数を高次から並べる
+            final byte[] result = new byte[degree];
+            result[degree - 1] = 1;
+            int root = 1;
+            for (int i = 0; i < degree; i++) {
+                for (int j = 0; j < degree; j++) {
+                    result[j] = (byte) multiply(result[j] & 0xff, root);
+                    if (j + 1 < degree) {
+                        result[j] ^= result[j + 1];
+                    }
+                }
+                root = multiply(root, 0x02);
+            }
+            return result;
+        }
+
+        static byte[] remainder(byte[] data, byte[] generator) {
+            final byte[] result = new byte[generator.length];
+            for (byte b : data) {
+                final int factor = (b ^ result[0]) & 0xff;
+                System.arraycopy(result, 1, result, 0, result.length - 1);
+                result[result.length - 1] = 0;
+                for (int i = 0; i < result.length; i++) {
+                    result[i] ^= (byte) multiply(generator[i] & 0xff, factor);
+                }
+            }
+            return result;
+        }
+
+        static int multiply(int x, int y) {
+            int z = 0;
+            for (int i = 7; 0 <= i; i--) {
+                z = (z << 1) ^ ((z >>> 7) * 0x11d);
+                z ^= ((y >>> i) & 1) * x;
+            }
+            return z;
+        }
+    }
+
+    /*
+     * 配置
+     */
+
+    private void drawFunctionPatterns() {
+        // タイミングパターン
+        for (int i = 0; i < mSize; i++) {
+            setFunction(6, i, i % 2 == 0);
+            setFunction(i, 6, i % 2 == 0);
+        }
+        // 位置検出パターン
+        drawFinder(3, 3);
+        drawFinder(mSize - 4, 3);
+        drawFinder(3, mSize - 4);
+        // 位置合わせパターン
+        final int[] align = ALIGNMENT[mVersion];
+        for (int i = 0; i < align.length; i++) {
+            for (int j = 0; j < align.length; j++) {
+                final boolean onFinder = (i == 0 && j == 0) || (i == 0 && j == align.length - 1)
+                        || (i == align.length - 1 && j == 0);
+                if (!onFinder) {
+                    drawAlignment(align[i], align[j]);
+                }
+            }
+        }
+        // 形式情報の領域を予約し、型番情報を描く
+        drawFormatBits(ErrorCorrection.M, 0);
+        drawVersion();
+    }
+
+    private void drawFinder(int cx, int cy) {
+        for (int dy = -4; dy <= 4; dy++) {
+            for (int dx = -4; dx <= 4; dx++) {
+                final int dist = Math.max(Math.abs(dx), Math.abs(dy));
+                final int x = cx + dx;
+                final int y = cy + dy;
+                if (0 <= x && x < mSize && 0 <= y && y < mSize) {
+                    setFunction(x, y, dist != 2 && dist != 4);
+                }
+            }
+        }
+    }
+
+    private void drawAlignment(int cx, int cy) {
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                setFunction(cx + dx, cy + dy, Math.max(Math.abs(dx), Math.abs(dy)) != 1);
+            }
+        }
+    }
+
+    private void drawFormatBits(ErrorCorrection ecl, int mask) {
+        final int data = (ecl.mFormatBits << 3) | mask;
+        int rem = data;
+        for (int i = 0; i < 10; i++) {
+            rem = (rem << 1) ^ ((rem >>> 9) * 0x537);
+        }
+        final int bits = ((data << 10) | rem) ^ 0x5412;
+
+        // 左上
+        for (int i = 0; i <= 5; i++) {
+            setFunction(8, i, bit(bits, i));
+        }
+        setFunction(8, 7, bit(bits, 6));
+        setFunction(8, 8, bit(bits, 7));
+        setFunction(7, 8, bit(bits, 8));
+        for (int i = 9; i < 15; i++) {
+            setFunction(14 - i, 8, bit(bits, i));
+        }
+        // 右上と左下
+        for (int i = 0; i < 8; i++) {
+            setFunction(mSize - 1 - i, 8, bit(bits, i));
+        }
+        for (int i = 8; i < 15; i++) {
+            setFunction(8, mSize - 15 + i, bit(bits, i));
+        }
+        setFunction(8, mSize - 8, true); // 常に暗
+    }
+
+    private void drawVersion() {
+        if (mVersion < 7) {
+            return;
+        }
+        int rem = mVersion;
+        for (int i = 0; i < 12; i++) {
+            rem = (rem << 1) ^ ((rem >>> 11) * 0x1f25);
+        }
+        final int bits = (mVersion << 12) | rem;
+        for (int i = 0; i < 18; i++) {
+            final boolean b = bit(bits, i);
+            final int a = mSize - 11 + i % 3;
+            final int c = i / 3;
+            setFunction(a, c, b);
+            setFunction(c, a, b);
+        }
+    }
+
+    private void drawCodewords(byte[] codewords) {
+        int i = 0;
+        final int total = codewords.length * 8;
+        // 右下から 2 列ずつ上下に往復する。 6 列目(タイミングパターン)は飛ばす
+        for (int right = mSize - 1; 1 <= right; right -= 2) {
+            if (right == 6) {
+                right = 5;
+            }
+            for (int vert = 0; vert < mSize; vert++) {
+                for (int j = 0; j < 2; j++) {
+                    final int x = right - j;
+                    final boolean upward = ((right + 1) & 2) == 0;
+                    final int y = upward ? mSize - 1 - vert : vert;
+                    if (!mFunction[y][x] && i < total) {
+                        mModules[y][x] = ((codewords[i >>> 3] >>> (7 - (i & 7))) & 1) != 0;
+                        i++;
+                    }
+                    // 残りビットは 0 のまま
+                }
+            }
+        }
+        assert i == total;
+    }
+
+    private void applyBestMask(ErrorCorrection ecl) {
+        int best = 0;
+        int minPenalty = Integer.MAX_VALUE;
+        for (int mask = 0; mask < 8; mask++) {
+            applyMask(mask);
+            drawFormatBits(ecl, mask);
+            final int penalty = penalty();
+            if (penalty < minPenalty) {
+                minPenalty = penalty;
+                best = mask;
+            }
+            applyMask(mask); // XOR なので 2 回で元に戻る
+        }
+        applyMask(best);
+        drawFormatBits(ecl, best);
+    }
+
+    private void applyMask(int mask) {
+        for (int y = 0; y < mSize; y++) {
+            for (int x = 0; x < mSize; x++) {
+                if (mFunction[y][x]) {
+                    continue;
+                }
+                final boolean invert;
+                switch (mask) {
+                    case 0:
+                        invert = (x + y) % 2 == 0;
+                        break;
+                    case 1:
+                        invert = y % 2 == 0;
+                        break;
+                    case 2:
+                        invert = x % 3 == 0;
+                        break;
+                    case 3:
+                        invert = (x + y) % 3 == 0;
+                        break;
+                    case 4:
+                        invert = (x / 3 + y / 2) % 2 == 0;
+                        break;
+                    case 5:
+                        invert = x * y % 2 + x * y % 3 == 0;
+                        break;
+                    case 6:
+                        invert = (x * y % 2 + x * y % 3) % 2 == 0;
+                        break;
+                    default:
+                        invert = ((x + y) % 2 + x * y % 3) % 2 == 0;
+                        break;
+                }
+                mModules[y][x] ^= invert;
+            }
+        }
+    }
+
+    /**
+     * JIS X 0510 の失点計算を行います.
+     */
+    private int penalty() {
+        int result = 0;
+        // 同色の連続(N1)と、1:1:3:1:1 のパターン(N3)
+        for (int pass = 0; pass < 2; pass++) {
+            for (int a = 0; a < mSize; a++) {
+                int run = 0;
+                boolean color = false;
+                for (int b = 0; b < mSize; b++) {
+                    final boolean m = (pass == 0) ? mModules[a][b] : mModules[b][a];
+                    if (b != 0 && m == color) {
+                        run++;
+                        if (run == 5) {
+                            result += 3;
+                        } else if (5 < run) {
+                            result++;
+                        }
+                    } else {
+                        color = m;
+                        run = 1;
+                    }
+                    if (10 <= b && isFinderLike(pass, a, b)) {
+                        result += 40;
+                    }
+                }
+            }
+        }
+        // 2x2 の同色ブロック(N2)
+        int dark = 0;
+        for (int y = 0; y < mSize; y++) {
+            for (int x = 0; x < mSize; x++) {
+                if (mModules[y][x]) {
+                    dark++;
+                }
+                if (x + 1 < mSize && y + 1 < mSize) {
+                    final boolean c = mModules[y][x];
+                    if (c == mModules[y][x + 1] && c == mModules[y + 1][x]
+                            && c == mModules[y + 1][x + 1]) {
+                        result += 3;
+                    }
+                }
+            }
+        }
+        // 暗モジュールの比率(N4)
+        final int total = mSize * mSize;
+        final int k = (Math.abs(dark * 20 - total * 10) + total - 1) / total - 1;
+        result += Math.max(0, k) * 10;
+        return result;
+    }
+
+    /**
+     * {@code b} で終わる 11 モジュールが 0000 1011101 か 1011101 0000 かを返します.
+     */
+    private boolean isFinderLike(int pass, int a, int b) {
+        int bits = 0;
+        for (int i = b - 10; i <= b; i++) {
+            final boolean m = (pass == 0) ? mModules[a][i] : mModules[i][a];
+            bits = (bits << 1) | (m ? 1 : 0);
+        }
+        return bits == 0x05d || bits == 0x5d0;
+    }
+
+    private void setFunction(int x, int y, boolean dark) {
+        mModules[y][x] = dark;
+        mFunction[y][x] = true;
+    }
+
+    private static boolean bit(int value, int i) {
+        return ((value >>> i) & 1) != 0;
+    }
+}
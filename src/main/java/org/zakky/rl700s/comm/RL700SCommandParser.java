@@ -0,0 +1,374 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * {@link RL700SCommands} で生成したコマンド列を、プリンタと同じように先頭から解釈するクラスです.
+ *
+ * <p>
+ * {@link #feed(ByteBuffer)} には任意の位置で区切ったバイト列を渡せます。
+ * コマンドの途中で区切られた場合は、続きを受け取るまで内部のバッファに保持します。
+ * スレッドセーフではありません。
+ * </p>
+ */
+public final class RL700SCommandParser {
+
+    /**
+     * 解釈したコマンドを受け取るインターフェースです.
+     */
+    public interface Handler {
+        /** 無効司令. */
+        void onVoid();
+
+        /** 初期化. */
+        void onInit();
+
+        /** ステータス情報リクエスト. */
+        void onStatusRequest();
+
+        /**
+         * コマンドモード切り替え.
+         *
+         * @param mode ワイヤー上の値。
+         */
+        void onSwitchCommandMode(int mode);
+
+        /**
+         * 印刷情報.
+         *
+         * @param mask 有効な項目のマスク。
+         * @param paperKind 用紙の種別。
+         * @param paperWidth 用紙の幅。
+         * @param paperLength 用紙の長さ。
+         * @param lowPowerPrint 印字エネルギーが弱かどうか。
+         */
+        void onPrintInformation(int mask, int paperKind, int paperWidth, int paperLength,
+                boolean lowPowerPrint);
+
+        /**
+         * 各種モード設定.
+         *
+         * @param modes ワイヤー上の値。
+         */
+        void onSetMode(int modes);
+
+        /**
+         * 拡張モード設定.
+         *
+         * @param modes ワイヤー上の値。
+         */
+        void onSetEnhancedMode(int modes);
+
+        /**
+         * 余白量指定.
+         *
+         * @param mergin ドット数。
+         */
+        void onSetMergin(int mergin);
+
+        /**
+         * 圧縮モード選択.
+         *
+         * @param mode ワイヤー上の値。
+         */
+        void onSelectCompressionMode(int mode);
+
+        /**
+         * ラスターライン.
+         *
+         * @param data 'G' コマンドのデータ部。圧縮モードが TIFF の場合は圧縮されたままです。
+         *            呼び出しの間だけ有効です。
+         */
+        void onRasterLine(ByteBuffer data);
+
+        /** ゼロラスターライン. */
+        void onZeroRasterLine();
+
+        /**
+         * 印字司令.
+         *
+         * @param command {@link #PRINT}、 {@link #PRINT_WITH_HALF_CUT}、
+         *            {@link #PRINT_WITH_EVACUATION} のいずれか。
+         */
+        void onPrint(int command);
+    }
+
+    /**
+     * 何もしない {@link Handler} です。必要なメソッドだけをオーバーライドして使います.
+     */
+    public static class Adapter implements Handler {
+        @Override
+        public void onVoid() {
+        }
+
+        @Override
+        public void onInit() {
+        }
+
+        @Override
+        public void onStatusRequest() {
+        }
+
+        @Override
+        public void onSwitchCommandMode(int mode) {
+        }
+
+        @Override
+        public void onPrintInformation(int mask, int paperKind, int paperWidth,
+                int paperLength, boolean lowPowerPrint) {
+        }
+
+        @Override
+        public void onSetMode(int modes) {
+        }
+
+        @Override
+        public void onSetEnhancedMode(int modes) {
+        }
+
+        @Override
+        public void onSetMergin(int mergin) {
+        }
+
+        @Override
+        public void onSelectCompressionMode(int mode) {
+        }
+
+        @Override
+        public void onRasterLine(ByteBuffer data) {
+        }
+
+        @Override
+        public void onZeroRasterLine() {
+        }
+
+        @Override
+        public void onPrint(int command) {
+        }
+    }
+
+    /** 印字司令(カットライン前). */
+    public static final int PRINT_WITH_HALF_CUT = 0x0b;
+    /** 印字司令. */
+    public static final int PRINT = 0x0c;
+    /** 排出動作を伴う印字司令. */
+    public static final int PRINT_WITH_EVACUATION = 0x1a;
+
+    /** 'G' コマンドのデータ部の最大長. */
+    public static final int MAX_RASTER_DATA = 1024;
+
+    private static final byte ESC = 0x1b;
+
+    private final Handler mHandler;
+    /** 解釈しきれなかった残り. */
+    private final ByteBuffer mPending = ByteBuffer.allocate(3 + MAX_RASTER_DATA);
+    private long mOffset;
+
+    public RL700SCommandParser(Handler handler) {
+        super();
+        mHandler = handler;
+        mPending.flip();
+    }
+
+    /**
+     * バイト列を解釈し、コマンドごとに {@link Handler} を呼び出します.
+     *
+     * @param in 解釈するバイト列。すべて読み終えた状態で返ります。
+     * @throws ParseException 不明なコマンドがあった場合。エラーオフセットはストリーム先頭からの
+     *             位置です。
+     */
+    public void feed(ByteBuffer in) throws ParseException {
+        while (in.hasRemaining()) {
+            if (!mPending.hasRemaining()) {
+                // 保持しているものがなければ入力から直接解釈する
+                parse(in);
+                if (!in.hasRemaining()) {
+                    return;
+                }
+            }
+            mPending.compact();
+            final int n = Math.min(mPending.remaining(), in.remaining());
+            final ByteBuffer part = in.duplicate();
+            part.limit(part.position() + n);
+            mPending.put(part);
+            in.position(in.position() + n);
+            mPending.flip();
+            parse(mPending);
+        }
+    }
+
+    /**
+     * 解釈途中のコマンドがないかを返します.
+     *
+     * @return コマンドの境界まで解釈し終えている場合は {@code true}。
+     */
+    public boolean isAtBoundary() {
+        return !mPending.hasRemaining();
+    }
+
+    /**
+     * ストリーム先頭から解釈し終えたバイト数を返します.
+     *
+     * @return バイト数。
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * 完結したコマンドを解釈し、途中で終わっているコマンドは position に残します.
+     */
+    private void parse(ByteBuffer b) throws ParseException {
+        while (b.hasRemaining()) {
+            final int p = b.position();
+            final int size = commandSize(b, p);
+            if (size < 0) {
+                return;
+            }
+            dispatch(b, p, size);
+            b.position(p + size);
+            mOffset += size;
+        }
+    }
+
+    /**
+     * @return コマンドのバイト数。判断できるだけのバイトがない場合は -1。
+     */
+    private int commandSize(ByteBuffer b, int p) throws ParseException {
+        final int available = b.limit() - p;
+        final int c = b.get(p) & 0xff;
+        switch (c) {
+            case 0x00:
+            case 'Z':
+            case PRINT_WITH_HALF_CUT:
+            case PRINT:
+            case PRINT_WITH_EVACUATION:
+                return 1;
+            case 'M':
+                return (available < 2) ? -1 : 2;
+            case 'G': {
+                if (available < 3) {
+                    return -1;
+                }
+                final int length = (b.get(p + 1) & 0xff) | ((b.get(p + 2) & 0xff) << 8);
+                if (MAX_RASTER_DATA < length) {
+                    throw new ParseException("raster line too long: " + length, (int) mOffset);
+                }
+                return (available < 3 + length) ? -1 : 3 + length;
+            }
+            case ESC: {
+                if (available < 2) {
+                    return -1;
+                }
+                final int c1 = b.get(p + 1) & 0xff;
+                if (c1 == '@') {
+                    return 2;
+                }
+                if (c1 != 'i') {
+                    break;
+                }
+                if (available < 3) {
+                    return -1;
+                }
+                final int size;
+                switch (b.get(p + 2) & 0xff) {
+                    case 'S':
+                        size = 3;
+                        break;
+                    case 'a':
+                    case 'M':
+                    case 'K':
+                        size = 4;
+                        break;
+                    case 'd':
+                        size = 5;
+                        break;
+                    case 'c':
+                        size = 8;
+                        break;
+                    default:
+                        throw new ParseException("unknown command: ESC i 0x"
+                                + Integer.toHexString(b.get(p + 2) & 0xff), (int) mOffset);
+                }
+                return (available < size) ? -1 : size;
+            }
+            default:
+                break;
+        }
+        throw new ParseException("unknown command: 0x" + Integer.toHexString(c), (int) mOffset);
+    }
+
+    private void dispatch(ByteBuffer b, int p, int size) {
+        final int c = b.get(p) & 0xff;
+        switch (c) {
+            case 0x00:
+                mHandler.onVoid();
+                return;
+            case 'Z':
+                mHandler.onZeroRasterLine();
+                return;
+            case PRINT_WITH_HALF_CUT:
+            case PRINT:
+            case PRINT_WITH_EVACUATION:
+                mHandler.onPrint(c);
+                return;
+            case 'M':
+                mHandler.onSelectCompressionMode(b.get(p + 1) & 0xff);
+                return;
+            case 'G': {
+                final ByteBuffer data = b.duplicate();
+                data.position(p + 3);
+                data.limit(p + size);
+                mHandler.onRasterLine(data.slice());
+                return;
+            }
+            default:
+                break;
+        }
+        if ((b.get(p + 1) & 0xff) == '@') {
+            mHandler.onInit();
+            return;
+        }
+        final int arg = (size < 4) ? 0 : (b.get(p + 3) & 0xff);
+        switch (b.get(p + 2) & 0xff) {
+            case 'S':
+                mHandler.onStatusRequest();
+                break;
+            case 'a':
+                mHandler.onSwitchCommandMode(arg);
+                break;
+            case 'M':
+                mHandler.onSetMode(arg);
+                break;
+            case 'K':
+                mHandler.onSetEnhancedMode(arg);
+                break;
+            case 'd':
+                mHandler.onSetMergin(arg | ((b.get(p + 4) & 0xff) << 8));
+                break;
+            case 'c':
+                mHandler.onPrintInformation(arg, b.get(p + 4) & 0xff, b.get(p + 5) & 0xff,
+                        b.get(p + 6) & 0xff, b.get(p + 7) != 0);
+                break;
+            default:
+                throw new AssertionError();
+        }
+    }
+}
@@ -201,6 +201,21 @@ public final class RL700SCommands {
         public int rawValue() {
             return mRawValue;
         }
+
+        /**
+         * ワイヤー上での値に対応する値を返します。
+         *
+         * @param rawValue ワイヤー上での値。
+         * @return 対応する値。ない場合は {@code null}。
+         */
+        static CompressionMode fromRawValue(int rawValue) {
+            for (CompressionMode v : values()) {
+                if (v.mRawValue == rawValue) {
+                    return v;
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -238,6 +253,21 @@ public final class RL700SCommands {
         public int rawValue() {
             return mRawValue;
         }
+
+        /**
+         * ワイヤー上での値に対応する値を返します。
+         *
+         * @param rawValue ワイヤー上での値。
+         * @return 対応する値。ない場合は {@code null}。
+         */
+        static Paper fromRawValue(int rawValue) {
+            for (Paper v : values()) {
+                if (v.mRawValue == rawValue) {
+                    return v;
+                }
+            }
+            return null;
+        }
     }
 
     private static final byte ESC = (byte) 0x1b;
@@ -386,6 +416,41 @@ public final class RL700SCommands {
         buffer.flip();
     }
 
+    /**
+     * ラスターライン送信コマンド。
+     *
+     * <p>
+     * {@link #getSendRasterLine(ByteBuffer, byte[], CompressionMode)} と同じコマンドを、
+     * ヒープにコピーせずにダイレクトバッファなどのラインから直接生成します。
+     * </p>
+     *
+     * @param buffer コマンド書き込み先バッファ。 {@link ByteBuffer#clear() clear()} し、
+     *            コマンド書き込み後で {@link ByteBuffer#flip() flip()} したものを返します。
+     * @param line ラインビット列。 position から {@link #MAX_LINE_BYTES} バイトを非圧縮の
+     *            ビット列として読み、足りない分は 0 とみなします。 position は変更しません。
+     * @param mode 圧縮モード。
+     */
+    public static void getSendRasterLine(ByteBuffer buffer, ByteBuffer line, CompressionMode mode) {
+        buffer.clear();
+        buffer.put((byte) 'G');
+        buffer.position(3);
+        final int length;
+        if (mode == CompressionMode.NONE) {
+            length = MAX_LINE_BYTES;
+            final int available = Math.min(line.remaining(), MAX_LINE_BYTES);
+            for (int i = 0; i < MAX_LINE_BYTES; i++) {
+                buffer.put(byteAt(line, line.position(), available, i));
+            }
+        } else if (mode == CompressionMode.TIFF) {
+            length = packBits(line, buffer);
+        } else {
+            throw new UnsupportedOperationException("unsupported compression mode: " + mode.name());
+        }
+        buffer.put(1, (byte) ((length >>> 0) & 0xFF));
+        buffer.put(2, (byte) ((length >>> 8) & 0xFF));
+        buffer.flip();
+    }
+
     /**
      * ゼロラスターライン(すべてのbitが0のライン)送信コマンド。
      *
@@ -481,100 +546,119 @@ public final class RL700SCommands {
      * 内部で使用するユーティリティメソッド。
      */
 
-    private static final int MAX_LINE_BYTES = 48;
+    /** 1 ラインのバイト数(384 ドット). */
+    static final int MAX_LINE_BYTES = 48;
 
     static byte[] packBits(byte[] line) {
-        if (line.length != MAX_LINE_BYTES) {
-            final byte[] orig = line;
-            line = new byte[MAX_LINE_BYTES];
-            System.arraycopy(orig, 0, line, 0, Math.min(orig.length, line.length));
-        }
+        final ByteBuffer packed = ByteBuffer.allocate(MAX_LINE_BYTES + 1);
+        packBits(ByteBuffer.wrap(line), packed);
+        packed.flip();
+        final byte[] result = new byte[packed.remaining()];
+        packed.get(result);
+        return result;
+    }
 
-        final byte[] packed = new byte[line.length + 1];
+    /**
+     * ラインを PackBits で圧縮して {@code out} の position 以降に書き込みます.
+     *
+     * <p>
+     * {@code line} の position から {@link #MAX_LINE_BYTES} バイトを 1 ラインとして扱い、
+     * 足りない分は 0 とみなします。 {@code line} の position は変更しません。
+     * 圧縮すると元より長くなる場合は無圧縮のブロック 1 つにします。
+     * </p>
+     *
+     * @param line 非圧縮のラインビット列。
+     * @param out 書き込み先。 {@link #MAX_LINE_BYTES} + 1 バイト以上の空きが必要です。
+     * @return 書き込んだバイト数。
+     */
+    static int packBits(ByteBuffer line, ByteBuffer out) {
+        final int base = line.position();
+        final int available = Math.min(line.remaining(), MAX_LINE_BYTES);
+        final int outStart = out.position();
         int inConsumed = 0; // line の消費済みバイト数
-        int outConsumed = 0; // packed の消費済みバイト数
+        int outConsumed = 0; // out の消費済みバイト数
         boolean same = true;
-        for (int current = 0; current < line.length; current++) {
+        for (int current = 0; current < MAX_LINE_BYTES; current++) {
             if (inConsumed == current) {
                 // １つ目は仮に same として扱う(ここが末尾の場合に常にsameとして扱われるようにするため)
                 same = true;
                 continue;
             }
             assert inConsumed < current;
+            final boolean equalsPrev = (byteAt(line, base, available, current - 1) == byteAt(
+                    line, base, available, current));
             if (current == inConsumed + 1) {
                 // ２つ目なのでモードを確定
-                same = (line[current - 1] == line[current]);
+                same = equalsPrev;
                 continue;
             }
             // ３つ目以降
-            if (same == (line[current - 1] == line[current])) {
+            if (same == equalsPrev) {
                 // モード継続中なのでなにもしない
                 continue;
             }
             if (same) {
                 final int length = current - inConsumed;
-                byte[] unpacked = makeUnpackedIfOverflow(line, outConsumed + 2, packed);
-                if (unpacked != null) {
-                    return unpacked;
+                if (MAX_LINE_BYTES < outConsumed + 2) {
+                    return putUnpacked(line, base, available, out, outStart);
                 }
-                packed[outConsumed++] = (byte) (-1 * (length - 1)); // １つ減らしたものを負にするのが仕様
-                packed[outConsumed++] = line[current - 1];
+                out.put(outStart + outConsumed++, (byte) (-1 * (length - 1))); // １つ減らしたものを負にするのが仕様
+                out.put(outStart + outConsumed++, byteAt(line, base, available, current - 1));
                 inConsumed = current; // 数にインデックスを代入しているが、１つ前までの数はインデックスと一致する
             } else {
                 // 違うで着ていたがここに来て１つ前と同じだった
                 // ２つ前までを違うものとして消費し、１つ前から「同じ」が始まったものとして扱う
                 final int length = current - inConsumed - 1;
-                byte[] unpacked = makeUnpackedIfOverflow(line, outConsumed + 1 + length, packed);
-                if (unpacked != null) {
-                    return unpacked;
+                if (MAX_LINE_BYTES < outConsumed + 1 + length) {
+                    return putUnpacked(line, base, available, out, outStart);
+                }
+                out.put(outStart + outConsumed++, (byte) (length - 1)); // １つ減らして書くのが仕様
+                for (int i = 0; i < length; i++) {
+                    out.put(outStart + outConsumed++, byteAt(line, base, available, inConsumed + i));
                 }
-                packed[outConsumed++] = (byte) (length - 1); // １つ減らして書くのが仕様
-                System.arraycopy(line, inConsumed, packed, outConsumed, length);
-                outConsumed += length;
                 inConsumed = current - 1;
             }
             same = !same;
         }
 
-        final int length = line.length - inConsumed;
+        final int length = MAX_LINE_BYTES - inConsumed;
         if (length != 0) {
             // 末尾に残された分を現在のモードに従いすべて消費する
             if (same) {
-                byte[] unpacked = makeUnpackedIfOverflow(line, outConsumed + 2, packed);
-                if (unpacked != null) {
-                    return unpacked;
+                if (MAX_LINE_BYTES < outConsumed + 2) {
+                    return putUnpacked(line, base, available, out, outStart);
                 }
-                packed[outConsumed++] = (byte) (-1 * (length - 1)); // １つ減らしたものを負にするのが仕様
-                packed[outConsumed++] = line[line.length - 1];
+                out.put(outStart + outConsumed++, (byte) (-1 * (length - 1))); // １つ減らしたものを負にするのが仕様
+                out.put(outStart + outConsumed++, byteAt(line, base, available, MAX_LINE_BYTES - 1));
             } else {
-                byte[] unpacked = makeUnpackedIfOverflow(line, outConsumed + 1 + length, packed);
-                if (unpacked != null) {
-                    return unpacked;
+                if (MAX_LINE_BYTES < outConsumed + 1 + length) {
+                    return putUnpacked(line, base, available, out, outStart);
+                }
+                out.put(outStart + outConsumed++, (byte) (length - 1)); // １つ減らして書くのが仕様
+                for (int i = 0; i < length; i++) {
+                    out.put(outStart + outConsumed++, byteAt(line, base, available, inConsumed + i));
                 }
-                packed[outConsumed++] = (byte) (length - 1); // １つ減らして書くのが仕様
-                System.arraycopy(line, inConsumed, packed, outConsumed, length);
-                outConsumed += length;
             }
-            inConsumed = line.length; // 更新する必要はないが念のため
         }
+        out.position(outStart + outConsumed);
+        return outConsumed;
+    }
 
-        // packed は後ろに余分なスペースが残っているので切り詰める
-        final byte[] result = new byte[outConsumed];
-        System.arraycopy(packed, 0, result, 0, outConsumed);
-
-        return result;
+    private static byte byteAt(ByteBuffer line, int base, int available, int index) {
+        return (index < available) ? line.get(base + index) : 0;
     }
 
-    private static byte[] makeUnpackedIfOverflow(byte[] in, int outLength, byte[] out) {
-        if (outLength <= in.length) {
-            // まだ元より長くはなってないのでセーフ
-            return null;
+    /**
+     * 圧縮すると元より長くなる場合に、無圧縮のブロック 1 つを書き込みます.
+     */
+    private static int putUnpacked(ByteBuffer line, int base, int available, ByteBuffer out,
+            int outStart) {
+        out.position(outStart);
+        out.put((byte) (MAX_LINE_BYTES - 1));
+        for (int i = 0; i < MAX_LINE_BYTES; i++) {
+            out.put(byteAt(line, base, available, i));
         }
-        // 収まらない場合は無圧縮
-        assert out.length == in.length + 1;
-        out[0] = (byte) (in.length - 1);
-        System.arraycopy(in, 0, out, 1, in.length);
-        return out;
+        return MAX_LINE_BYTES + 1;
     }
 
 }
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * エンコード、送信、プリンタの状態に関する計測値です.
+ *
+ * <p>
+ * 計測は {@link #enable()} を呼ぶまで行いません。無効の間、計測箇所のコストは
+ * volatile フィールドの読み出しと null 判定だけです。
+ * </p>
+ * <ul>
+ * <li>ライン: {@link JobEncoder}、 {@link StreamingJobWriter}、 {@link PrintPipeline}
+ * がジョブに書き込んだ 'G' と 'Z' のコマンド数、圧縮すると長くなるため無圧縮にしたライン数、
+ * 圧縮前後のバイト数。同じラインのコマンドを使い回した分やエンコード済みのラインも数えます。</li>
+ * <li>ジョブ: {@link JobEncoder} と {@link StreamingJobWriter} が完成させたジョブのバイト数、
+ * ライン数、 1 ラインあたりのエンコード時間({@link JobEncoder} のみ)。</li>
+ * <li>ステータス: ステータスリクエストから応答までの時間と、各 {@link ErrorInfo}
+ * の状態が続いた時間。プリンタごとの {@link StatusTracker} から記録します。</li>
+ * </ul>
+ * <p>
+ * 値は JMX({@link #registerMBean()})か、定期的に {@link Snapshot} を受け取る
+ * {@link Reporter}({@link #startReporter(Reporter, long, TimeUnit)})で取り出せます。
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class RL700SMetrics implements RL700SMetricsMXBean {
+
+    /** JMX に登録する名前. */
+    public static final String OBJECT_NAME = "org.zakky.rl700s:type=Metrics";
+
+    /** エラーがない状態を表す {@link #getErrorStateMillis()} のキー. */
+    public static final String NO_ERROR = "NONE";
+
+    /**
+     * 計測値を定期的に受け取るインターフェースです.
+     */
+    public interface Reporter {
+        /**
+         * 計測値を受け取ります.
+         *
+         * @param snapshot 計測値。
+         */
+        void report(Snapshot snapshot);
+    }
+
+    /**
+     * ある時点の計測値です.
+     */
+    public static final class Snapshot {
+        private final long mTimeMillis;
+        private final long mRasterLineCommands;
+        private final long mZeroLineCommands;
+        private final long mLiteralFallbackLines;
+        private final double mCompressionRatio;
+        private final long mJobsEncoded;
+        private final long mLinesEncoded;
+        private final double mMeanJobBytes;
+        private final long mEncodeNanosPerLineP50;
+        private final long mEncodeNanosPerLineP99;
+        private final long mStatusRoundTripMicrosP50;
+        private final long mStatusRoundTripMicrosP99;
+        private final Map<String, Long> mErrorStateMillis;
+
+        Snapshot(RL700SMetrics m) {
+            mTimeMillis = System.currentTimeMillis();
+            mRasterLineCommands = m.getRasterLineCommands();
+            mZeroLineCommands = m.getZeroLineCommands();
+            mLiteralFallbackLines = m.getLiteralFallbackLines();
+            mCompressionRatio = m.getCompressionRatio();
+            mJobsEncoded = m.getJobsEncoded();
+            mLinesEncoded = m.getLinesEncoded();
+            mMeanJobBytes = m.getMeanJobBytes();
+            mEncodeNanosPerLineP50 = m.getEncodeNanosPerLineP50();
+            mEncodeNanosPerLineP99 = m.getEncodeNanosPerLineP99();
+            mStatusRoundTripMicrosP50 = m.getStatusRoundTripMicrosP50();
+            mStatusRoundTripMicrosP99 = m.getStatusRoundTripMicrosP99();
+            mErrorStateMillis = m.getErrorStateMillis();
+        }
+
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        public long getRasterLineCommands() {
+            return mRasterLineCommands;
+        }
+
+        public long getZeroLineCommands() {
+            return mZeroLineCommands;
+        }
+
+        public long getLiteralFallbackLines() {
+            return mLiteralFallbackLines;
+        }
+
+        public double getCompressionRatio() {
+            return mCompressionRatio;
+        }
+
+        public long getJobsEncoded() {
+            return mJobsEncoded;
+        }
+
+        public long getLinesEncoded() {
+            return mLinesEncoded;
+        }
+
+        public double getMeanJobBytes() {
+            return mMeanJobBytes;
+        }
+
+        public long getEncodeNanosPerLineP50() {
+            return mEncodeNanosPerLineP50;
+        }
+
+        public long getEncodeNanosPerLineP99() {
+            return mEncodeNanosPerLineP99;
+        }
+
+        public long getStatusRoundTripMicrosP50() {
+            return mStatusRoundTripMicrosP50;
+        }
+
+        public long getStatusRoundTripMicrosP99() {
+            return mStatusRoundTripMicrosP99;
+        }
+
+        /**
+         * エラー情報ごとの、その状態が続いた時間の合計を返します.
+         *
+         * @return キーは {@link ErrorInfo#name()} または {@link RL700SMetrics#NO_ERROR}、値はミリ秒。
+         */
+        public Map<String, Long> getErrorStateMillis() {
+            return mErrorStateMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "G=" + mRasterLineCommands + " Z=" + mZeroLineCommands + " literal="
+                    + mLiteralFallbackLines + " ratio=" + mCompressionRatio + " jobs="
+                    + mJobsEncoded + " lines=" + mLinesEncoded + " jobBytes=" + mMeanJobBytes
+                    + " encodeNsPerLine(p50/p99)=" + mEncodeNanosPerLineP50 + "/"
+                    + mEncodeNanosPerLineP99 + " statusRttUs(p50/p99)="
+                    + mStatusRoundTripMicrosP50 + "/" + mStatusRoundTripMicrosP99
+                    + " errorStateMillis=" + mErrorStateMillis;
+        }
+    }
+
+    /**
+     * 1 台のプリンタのステータスを有効な計測値に記録するクラスです.
+     *
+     * <p>
+     * 往復時間とエラー状態の継続時間はプリンタごとに求める必要があるため、
+     * プリンタと通信する側がプリンタごとに 1 つ持ち、リクエストの送信と
+     * ステータスの受信を知らせます。計測が無効の間は何も記録しません。
+     * </p>
+     */
+    public static final class StatusTracker {
+        /** ステータスリクエストを送った時刻. 0 は要求なし. */
+        private long mRequestedAt;
+        private EnumSet<ErrorInfo> mLastErrors;
+        private long mLastStatusAt;
+
+        public StatusTracker() {
+            super();
+        }
+
+        /**
+         * ステータスリクエストを送ったことを知らせます.
+         */
+        public void onStatusRequested() {
+            onStatusRequested(System.nanoTime());
+        }
+
+        /**
+         * ステータスを受け取ったことを知らせます.
+         *
+         * @param status 受け取ったステータス。
+         */
+        public void onStatus(RL700SStatus status) {
+            onStatus(status, System.nanoTime());
+        }
+
+        synchronized void onStatusRequested(long nanoTime) {
+            mRequestedAt = (get() == null) ? 0L : nanoTime;
+        }
+
+        synchronized void onStatus(RL700SStatus status, long nanoTime) {
+            final RL700SMetrics metrics = get();
+            if (metrics == null) {
+                mRequestedAt = 0L;
+                mLastErrors = null;
+                return;
+            }
+            if (mRequestedAt != 0L && status.getStatusType() == RL700SStatus.STATUS_TYPE_REPLY) {
+                metrics.recordStatusRoundTrip(nanoTime - mRequestedAt);
+                mRequestedAt = 0L;
+            }
+            if (mLastErrors != null) {
+                metrics.onErrorState(mLastErrors, Math.max(0L, nanoTime - mLastStatusAt));
+            }
+            mLastErrors = status.getErrorInfoSet();
+            mLastStatusAt = nanoTime;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+    private static volatile RL700SMetrics sActive;
+
+    private static final ErrorInfo[] ERROR_INFOS = ErrorInfo.values();
+
+    private final AtomicLong mRasterLineCommands = new AtomicLong();
+    private final AtomicLong mZeroLineCommands = new AtomicLong();
+    private final AtomicLong mLiteralFallbackLines = new AtomicLong();
+    private final AtomicLong mRawBytes = new AtomicLong();
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+    private final AtomicLong mLinesEncoded = new AtomicLong();
+    private final LatencyHistogram mJobBytes = new LatencyHistogram();
+    private final LatencyHistogram mEncodeNanosPerLine = new LatencyHistogram();
+    private final LatencyHistogram mStatusRoundTripNanos = new LatencyHistogram();
+
+    /** 添字は ErrorInfo の ordinal、最後の 1 つはエラーなし. */
+    private final AtomicLongArray mErrorStateNanos = new AtomicLongArray(ERROR_INFOS.length + 1);
+
+    private RL700SMetrics() {
+        super();
+    }
+
+    /**
+     * 計測を有効にします。すでに有効であれば何もしません.
+     *
+     * @return 計測値を保持するインスタンス。
+     */
+    public static RL700SMetrics enable() {
+        synchronized (LOCK) {
+            if (sActive == null) {
+                sActive = new RL700SMetrics();
+            }
+            return sActive;
+        }
+    }
+
+    /**
+     * 計測を無効にします。それまでの計測値は {@link #enable()} が返したインスタンスに残ります.
+     */
+    public static void disable() {
+        synchronized (LOCK) {
+            sActive = null;
+        }
+    }
+
+    /**
+     * 有効な計測値のインスタンスを返します.
+     *
+     * @return インスタンス。無効の場合は {@code null}。
+     */
+    public static RL700SMetrics get() {
+        return sActive;
+    }
+
+    /*
+     * 計測箇所から呼ばれるメソッド。
+     */
+
+    /**
+     * ジョブに書き込んだラインコマンドを数えます.
+     *
+     * @param commands 'G' と 'Z' のコマンドを連結したもの。
+     * @param offset 開始位置。
+     * @param length バイト数。
+     * @param mode コマンドの圧縮モード。
+     */
+    void onLineCommands(byte[] commands, int offset, int length, CompressionMode mode) {
+        long raster = 0L;
+        long zero = 0L;
+        long literal = 0L;
+        long compressed = 0L;
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (commands[i] == 'Z') {
+                zero++;
+                i++;
+                continue;
+            }
+            final int payload = (commands[i + 1] & 0xff) | ((commands[i + 2] & 0xff) << 8);
+            raster++;
+            compressed += payload;
+            if (mode == CompressionMode.TIFF && payload == RL700SCommands.MAX_LINE_BYTES + 1) {
+                // packBits の結果がこの長さになるのは無圧縮のブロックにしたときだけ
+                literal++;
+            }
+            i += 3 + payload;
+        }
+        mRasterLineCommands.addAndGet(raster);
+        mZeroLineCommands.addAndGet(zero);
+        mLiteralFallbackLines.addAndGet(literal);
+        mRawBytes.addAndGet(raster * RL700SCommands.MAX_LINE_BYTES);
+        mCompressedBytes.addAndGet(compressed);
+    }
+
+    /**
+     * ジョブに書き込んだラインコマンドを数えます.
+     *
+     * @param commands 'G' と 'Z' のコマンドを連結したもの。 position から limit までを読み、
+     *            position は変更しません。
+     * @param mode コマンドの圧縮モード。
+     */
+    void onLineCommands(ByteBuffer commands, CompressionMode mode) {
+        if (commands.hasArray()) {
+            onLineCommands(commands.array(), commands.arrayOffset() + commands.position(),
+                    commands.remaining(), mode);
+        } else {
+            final byte[] copy = new byte[commands.remaining()];
+            commands.duplicate().get(copy);
+            onLineCommands(copy, 0, copy.length, mode);
+        }
+    }
+
+    void onJobEncoded(long bytes, int lines, long encodeNanos) {
+        mLinesEncoded.addAndGet(lines);
+        mJobBytes.record(bytes);
+        if (0 < lines && 0 <= encodeNanos) {
+            mEncodeNanosPerLine.record(encodeNanos / lines);
+        }
+    }
+
+    void onErrorState(EnumSet<ErrorInfo> errors, long nanos) {
+        if (errors.isEmpty()) {
+            mErrorStateNanos.addAndGet(ERROR_INFOS.length, nanos);
+        }
+        for (ErrorInfo e : errors) {
+            mErrorStateNanos.addAndGet(e.ordinal(), nanos);
+        }
+    }
+
+    /**
+     * ステータスの往復時間を記録します.
+     *
+     * @param nanos 要求を送ってからステータスを受け取るまでの時間(ナノ秒)。
+     */
+    public void recordStatusRoundTrip(long nanos) {
+        mStatusRoundTripNanos.record(nanos);
+    }
+
+    /*
+     * 読み出し。
+     */
+
+    @Override
+    public long getRasterLineCommands() {
+        return mRasterLineCommands.get();
+    }
+
+    @Override
+    public long getZeroLineCommands() {
+        return mZeroLineCommands.get();
+    }
+
+    @Override
+    public long getLiteralFallbackLines() {
+        return mLiteralFallbackLines.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        final long raw = mRawBytes.get();
+        return (raw == 0) ? 1.0 : (double) mCompressedBytes.get() / raw;
+    }
+
+    @Override
+    public long getJobsEncoded() {
+        return mJobBytes.getCount();
+    }
+
+    @Override
+    public long getLinesEncoded() {
+        return mLinesEncoded.get();
+    }
+
+    @Override
+    public double getMeanJobBytes() {
+        return mJobBytes.getMean();
+    }
+
+    @Override
+    public long getJobBytesP99() {
+        return mJobBytes.getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getEncodeNanosPerLineP50() {
+        return mEncodeNanosPerLine.getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getEncodeNanosPerLineP99() {
+        return mEncodeNanosPerLine.getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getStatusRoundTripMicrosP50() {
+        return TimeUnit.NANOSECONDS.toMicros(mStatusRoundTripNanos.getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getStatusRoundTripMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(mStatusRoundTripNanos.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getStatusRoundTripMicrosMax() {
+        return TimeUnit.NANOSECONDS.toMicros(mStatusRoundTripNanos.getMax());
+    }
+
+    @Override
+    public Map<String, Long> getErrorStateMillis() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put(NO_ERROR, TimeUnit.NANOSECONDS.toMillis(mErrorStateNanos
+                .get(ERROR_INFOS.length)));
+        for (ErrorInfo e : ERROR_INFOS) {
+            final long nanos = mErrorStateNanos.get(e.ordinal());
+            if (nanos != 0L) {
+                result.put(e.name(), TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ジョブのバイト数の分布を返します.
+     *
+     * @return ヒストグラム。
+     */
+    public LatencyHistogram getJobBytes() {
+        return mJobBytes;
+    }
+
+    /**
+     * 1 ラインのエンコード時間(ナノ秒)の分布を返します.
+     *
+     * @return ヒストグラム。
+     */
+    public LatencyHistogram getEncodeNanosPerLine() {
+        return mEncodeNanosPerLine;
+    }
+
+    /**
+     * ステータスの往復時間(ナノ秒)の分布を返します.
+     *
+     * @return ヒストグラム。
+     */
+    public LatencyHistogram getStatusRoundTripNanos() {
+        return mStatusRoundTripNanos;
+    }
+
+    /**
+     * 現在の計測値を返します.
+     *
+     * @return 計測値。
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public void reset() {
+        mRasterLineCommands.set(0L);
+        mZeroLineCommands.set(0L);
+        mLiteralFallbackLines.set(0L);
+        mRawBytes.set(0L);
+        mCompressedBytes.set(0L);
+        mLinesEncoded.set(0L);
+        mJobBytes.reset();
+        mEncodeNanosPerLine.reset();
+        mStatusRoundTripNanos.reset();
+        for (int i = 0; i < mErrorStateNanos.length(); i++) {
+            mErrorStateNanos.set(i, 0L);
+        }
+    }
+
+    /**
+     * プラットフォームの MBean サーバに {@value #OBJECT_NAME} として登録します.
+     *
+     * @throws JMException 登録できない場合。
+     */
+    public void registerMBean() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * 計測値を定期的に渡すデーモンスレッドを開始します.
+     *
+     * @param reporter 受け取り先。
+     * @param period 間隔。
+     * @param unit 間隔の単位。
+     * @return 閉じると報告を止めるオブジェクト。
+     */
+    public Closeable startReporter(final Reporter reporter, long period, TimeUnit unit) {
+        final ScheduledExecutorService executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "rl700s-metrics-reporter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                reporter.report(snapshot());
+            }
+        }, period, period, unit);
+        return new Closeable() {
+            @Override
+            public void close() {
+                executor.shutdown();
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.util.Map;
+
+/**
+ * {@link RL700SMetrics} を JMX で公開するためのインターフェースです.
+ */
+public interface RL700SMetricsMXBean {
+
+    /** @return 生成したラスターライン送信コマンド('G')の数。 */
+    long getRasterLineCommands();
+
+    /** @return 生成したゼロラスターライン送信コマンド('Z')の数。 */
+    long getZeroLineCommands();
+
+    /** @return 圧縮すると長くなるため無圧縮のブロックにしたラインの数。 */
+    long getLiteralFallbackLines();
+
+    /** @return 圧縮後のバイト数を圧縮前のバイト数で割った値。 */
+    double getCompressionRatio();
+
+    /** @return エンコードを終えたジョブの数。 */
+    long getJobsEncoded();
+
+    /** @return エンコードを終えたジョブのライン数の合計。 */
+    long getLinesEncoded();
+
+    /** @return ジョブのバイト数の平均。 */
+    double getMeanJobBytes();
+
+    /** @return ジョブのバイト数の 99 パーセンタイル。 */
+    long getJobBytesP99();
+
+    /** @return 1 ラインのエンコード時間の中央値(ナノ秒)。 */
+    long getEncodeNanosPerLineP50();
+
+    /** @return 1 ラインのエンコード時間の 99 パーセンタイル(ナノ秒)。 */
+    long getEncodeNanosPerLineP99();
+
+    /** @return ステータス要求から受信までの時間の中央値(マイクロ秒)。 */
+    long getStatusRoundTripMicrosP50();
+
+    /** @return ステータス要求から受信までの時間の 99 パーセンタイル(マイクロ秒)。 */
+    long getStatusRoundTripMicrosP99();
+
+    /** @return ステータス要求から受信までの時間の最大値(マイクロ秒)。 */
+    long getStatusRoundTripMicrosMax();
+
+    /** @return エラー情報ごとの、その状態が続いた時間の合計(ミリ秒)。エラーなしは "NONE"。 */
+    Map<String, Long> getErrorStateMillis();
+
+    /**
+     * すべての値を 0 に戻します.
+     */
+    void reset();
+}
@@ -39,57 +39,72 @@ public final class RL700SStatus {
         return buffer;
     }
 
+    /**
+     * ステータスを解釈します.
+     *
+     * <p>
+     * 絶対位置の {@link ByteBuffer#get(int)} で読むので、ダイレクトバッファや
+     * 読み取り専用のバッファからもコピーせずに解釈できます。
+     * </p>
+     *
+     * @param buffer position から {@value #STATUS_SIZE} バイトを読み、その後ろまで position を進めます。
+     * @return ステータス。
+     * @throws ParseException 固定値が一致しない場合。エラーオフセットはバッファ内の位置です。
+     */
     public static RL700SStatus parse(ByteBuffer buffer) throws ParseException {
         if (buffer.remaining() < STATUS_SIZE) {
             throw new BufferUnderflowException();
         }
-        final byte[] array = buffer.array();
-        int current = buffer.arrayOffset() + buffer.position();
-        if (array[current++] != (byte) 0x80) {
+        final int start = buffer.position();
+        int current = start;
+        if (buffer.get(current++) != (byte) 0x80) {
             // ヘッダーマーカーエラー
             throw new ParseException("missing header marker.", current - 1);
         }
-        if (array[current++] != (byte) 0x20) {
+        if (buffer.get(current++) != (byte) 0x20) {
             // サイズエラー
             throw new ParseException("invalid size.", current - 1);
         }
-        if (array[current++] != (byte) 'B') {
+        if (buffer.get(current++) != (byte) 'B') {
             // エラー
             throw new ParseException("invalid value.", current - 1);
         }
-        if (array[current++] != (byte) '3') {
+        if (buffer.get(current++) != (byte) '3') {
             // エラー
             throw new ParseException("invalid value.", current - 1);
         }
-        if (array[current++] != (byte) '1') {
+        if (buffer.get(current++) != (byte) '1') {
             // エラー
             throw new ParseException("invalid value.", current - 1);
         }
-        if (array[current++] != (byte) '0') {
+        if (buffer.get(current++) != (byte) '0') {
             // エラー
             throw new ParseException("invalid value.", current - 1);
         }
-        if (array[current++] != (byte) 0x00) {
+        if (buffer.get(current++) != (byte) 0x00) {
             // エラー
             throw new ParseException("invalid value.", current - 1);
         }
-        final int enhancedErrorCode = array[current++] & 0xff;
-        final int enhancedInfo1 = array[current++] & 0xff;
-        final int enhancedInfo2 = array[current++] & 0xff;
-        final int mediaWidth = array[current++] & 0xff;
-        final int mediaType = array[current++] & 0xff;
+        final int enhancedErrorCode = buffer.get(current++) & 0xff;
+        final int enhancedInfo1 = buffer.get(current++) & 0xff;
+        final int enhancedInfo2 = buffer.get(current++) & 0xff;
+        final int mediaWidth = buffer.get(current++) & 0xff;
+        final int mediaType = buffer.get(current++) & 0xff;
         current += 5; // 不定領域
-        final int mediaLength = array[current++] & 0xff;
-        final int statusType = array[current++] & 0xff;
-        final int phaseType = array[current++] & 0xff;
-        final int phaseNumber = ((array[current++] & 0xff) << 8) | (array[current++] & 0xff);
+        final int mediaLength = buffer.get(current++) & 0xff;
+        final int statusType = buffer.get(current++) & 0xff;
+        final int phaseType = buffer.get(current++) & 0xff;
+        final int phaseNumber = ((buffer.get(current++) & 0xff) << 8)
+                | (buffer.get(current++) & 0xff);
         current += 10; // 不定領域
 
-        assert current == buffer.arrayOffset() + buffer.position() + STATUS_SIZE;
-        buffer.position(buffer.position() + STATUS_SIZE);
+        assert current == start + STATUS_SIZE;
+        buffer.position(current);
 
-        return new RL700SStatus(enhancedErrorCode, enhancedInfo1, enhancedInfo2, mediaWidth,
-                mediaType, mediaLength, statusType, phaseType, phaseNumber);
+        final RL700SStatus status = new RL700SStatus(enhancedErrorCode, enhancedInfo1,
+                enhancedInfo2, mediaWidth, mediaType, mediaLength, statusType, phaseType,
+                phaseNumber);
+        return status;
     }
 
     public enum ErrorInfo {
@@ -134,6 +149,15 @@ public final class RL700SStatus {
             mRawValue = value;
         }
 
+        /**
+         * エラー情報 1 を下位 8 ビット、エラー情報 2 を上位 8 ビットとした中でのビットを返します.
+         *
+         * @return 1 ビットだけが立った値。
+         */
+        public int rawValue() {
+            return mRawValue;
+        }
+
         private static int bytesToInt(int errorInfo1, int errorInfo2) {
             if (errorInfo1 < 0 || 255 < errorInfo1) {
                 throw new RuntimeException("'errorInfo1' out of range: " + errorInfo1);
@@ -159,6 +183,7 @@ public final class RL700SStatus {
 
     private final int mEnhancedErrorCode;
     private final EnumSet<ErrorInfo> mErrorInfoSet;
+    private final int mErrorInfoRawValue;
     private final int mMediaWidth;
     private final int mMediaType;
     private final int mMediaLength;
@@ -172,6 +197,7 @@ public final class RL700SStatus {
         super();
         mEnhancedErrorCode = enhancedErrorCode;
         mErrorInfoSet = ErrorInfo.fromRawValue(errorInfo1, errorInfo2);
+        mErrorInfoRawValue = (errorInfo1 & 0xff) | ((errorInfo2 & 0xff) << 8);
         mMediaWidth = mediaWidth;
         mMediaType = mediaType;
         mMediaLength = mediaLength;
@@ -182,6 +208,20 @@ public final class RL700SStatus {
 
     public static final int EERR_MEDIA_FINISHED = 0x10;
 
+    /** ステータス種別: ステータスリクエストへの返信. */
+    public static final int STATUS_TYPE_REPLY = 0x00;
+    /** ステータス種別: 印刷終了. */
+    public static final int STATUS_TYPE_PRINT_COMPLETE = 0x01;
+    /** ステータス種別: エラー発生. */
+    public static final int STATUS_TYPE_ERROR = 0x02;
+    /** ステータス種別: フェーズ変更. */
+    public static final int STATUS_TYPE_PHASE_CHANGE = 0x06;
+
+    /** フェーズ種別: 受信可能(待機中). */
+    public static final int PHASE_TYPE_RECEIVING = 0x00;
+    /** フェーズ種別: 印刷中. */
+    public static final int PHASE_TYPE_PRINTING = 0x01;
+
     /**
      * 拡張エラーコードを返します。
      *
@@ -201,6 +241,16 @@ public final class RL700SStatus {
         return EnumSet.copyOf(mErrorInfoSet);
     }
 
+    /**
+     * エラー情報をビット列のまま返します。
+     *
+     * @return エラー情報 1 を下位 8 ビット、エラー情報 2 を上位 8 ビットとした値。
+     * @see ErrorInfo#rawValue()
+     */
+    public int getErrorInfoRawValue() {
+        return mErrorInfoRawValue;
+    }
+
     public int getMediaWidth() {
         return mMediaWidth;
     }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ジョブごとの処理の流れを区間と瞬間の列として記録するトレーサです.
+ *
+ * <p>
+ * {@link #enable(Sink)} で記録先を指定するまで何も記録しません。無効の間、記録箇所の
+ * コストは volatile フィールドの読み出しと null 判定だけです。
+ * </p>
+ * <p>
+ * ジョブはトレース ID で識別します。ラスター化とエンコードはスレッドごとに
+ * {@link #setCurrentJob(long)} で指定したジョブのものとして記録し、
+ * {@link JobEncoder} はそのときのトレース ID を {@link EncodedJob} に引き継ぐので、
+ * 別のスレッドで行われる {@link PrintJobScheduler} の待ちや送信も同じジョブとして記録されます。
+ * 記録する区間と瞬間は次のとおりです。
+ * </p>
+ * <ul>
+ * <li>{@link TraceEvent#CATEGORY_RASTERIZE}: {@link TextRasterizer} と {@link BarcodeRasterizer} の描画。</li>
+ * <li>{@link TraceEvent#CATEGORY_ENCODE}: {@link JobEncoder} のページごとのエンコード。</li>
+ * <li>{@link TraceEvent#CATEGORY_QUEUE}: {@link PrintJobScheduler} に投入してから最初のページを取り出すまで。</li>
+ * <li>{@link TraceEvent#CATEGORY_TRANSMIT}: {@link StreamingJobWriter} の書き出しと、
+ * {@link #begin()} と {@link #end(long, String, String, long, String)} で囲んだ送信。</li>
+ * <li>{@link TraceEvent#CATEGORY_PRINTER}: {@link #onStatus(long, RL700SStatus)} に渡したステータスの
+ * フェーズの変化、印刷終了、エラー。</li>
+ * </ul>
+ */
+public final class RL700STracer {
+
+    /**
+     * 記録を受け取るインターフェースです。複数のスレッドから呼ばれます.
+     */
+    public interface Sink {
+        /**
+         * 区間または瞬間を受け取ります.
+         *
+         * @param event 記録。
+         */
+        void onEvent(TraceEvent event);
+    }
+
+    /** トレース ID を指定していないことを表す値. */
+    public static final long NO_TRACE = 0L;
+
+    private static volatile Sink sSink;
+
+    private static final ThreadLocal<long[]> CURRENT_JOB = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {
+                NO_TRACE
+            };
+        }
+    };
+
+    /** フェーズを覚えておくジョブ数の上限. */
+    static final int MAX_TRACKED_JOBS = 256;
+
+    /**
+     * トレース ID ごとの直前の { フェーズ種別, フェーズ番号 }. {@link #endJob(long)}
+     * が呼ばれずに終わったジョブが残り続けないよう、最も長く使われていないものから捨てます.
+     */
+    private static final Map<Long, int[]> LAST_PHASES = new LinkedHashMap<Long, int[]>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            return MAX_TRACKED_JOBS < size();
+        }
+    };
+
+    private RL700STracer() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 記録を開始します.
+     *
+     * @param sink 記録先。
+     */
+    public static void enable(Sink sink) {
+        if (sink == null) {
+            throw new IllegalArgumentException("'sink' must not be null.");
+        }
+        sSink = sink;
+    }
+
+    /**
+     * 記録を止めます.
+     */
+    public static void disable() {
+        sSink = null;
+        synchronized (LAST_PHASES) {
+            LAST_PHASES.clear();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sSink != null;
+    }
+
+    /**
+     * このスレッドで以後行う処理を、指定したジョブのものとして記録します.
+     *
+     * @param traceId トレース ID。
+     */
+    public static void setCurrentJob(long traceId) {
+        CURRENT_JOB.get()[0] = traceId;
+    }
+
+    /**
+     * {@link #setCurrentJob(long)} の指定を取り消します.
+     */
+    public static void clearCurrentJob() {
+        CURRENT_JOB.get()[0] = NO_TRACE;
+    }
+
+    /**
+     * このスレッドで処理中のジョブを返します.
+     *
+     * @return トレース ID。指定がない場合は {@link #NO_TRACE}。
+     */
+    public static long getCurrentJob() {
+        return CURRENT_JOB.get()[0];
+    }
+
+    /**
+     * 区間の開始時刻を返します.
+     *
+     * @return 記録中であれば {@link System#nanoTime()}、そうでなければ 0。
+     */
+    public static long begin() {
+        return (sSink == null) ? 0L : System.nanoTime();
+    }
+
+    /**
+     * 区間を記録します.
+     *
+     * @param traceId トレース ID。
+     * @param category 分類。
+     * @param name 名前。
+     * @param start {@link #begin()} が返した値。 0 の場合は何もしません。
+     * @param detail 補足情報。 {@code null} 可。
+     */
+    public static void end(long traceId, String category, String name, long start,
+            String detail) {
+        final Sink sink = sSink;
+        if (sink == null || start == 0L) {
+            return;
+        }
+        sink.onEvent(new TraceEvent(traceId, category, name, start, System.nanoTime() - start,
+                Thread.currentThread(), detail));
+    }
+
+    /**
+     * このスレッドで処理中のジョブの区間を記録します.
+     *
+     * @param category 分類。
+     * @param name 名前。
+     * @param start {@link #begin()} が返した値。 0 の場合は何もしません。
+     * @param detail 補足情報。 {@code null} 可。
+     */
+    static void endCurrent(String category, String name, long start, String detail) {
+        if (start != 0L) {
+            end(getCurrentJob(), category, name, start, detail);
+        }
+    }
+
+    /**
+     * 瞬間を記録します.
+     *
+     * @param traceId トレース ID。
+     * @param category 分類。
+     * @param name 名前。
+     * @param detail 補足情報。 {@code null} 可。
+     */
+    public static void instant(long traceId, String category, String name, String detail) {
+        final Sink sink = sSink;
+        if (sink == null) {
+            return;
+        }
+        sink.onEvent(new TraceEvent(traceId, category, name, System.nanoTime(), -1L, Thread
+                .currentThread(), detail));
+    }
+
+    /**
+     * プリンタから受け取ったステータスを記録します.
+     *
+     * <p>
+     * フェーズ種別かフェーズ番号が直前と変わった場合、印刷終了、エラーのそれぞれで
+     * 瞬間を記録します。ジョブの最後のページの印刷終了を受け取ったら
+     * {@link #endJob(long)} を呼んでください。呼ばれなかったジョブのフェーズは、
+     * {@value #MAX_TRACKED_JOBS} 件を超えた時点で古いものから忘れます。
+     * </p>
+     *
+     * @param traceId トレース ID。
+     * @param status ステータス。
+     */
+    public static void onStatus(long traceId, RL700SStatus status) {
+        if (sSink == null) {
+            return;
+        }
+        final int[] phase = {
+                status.getPhaseType(), status.getPhaseNumber()
+        };
+        final int[] prev;
+        synchronized (LAST_PHASES) {
+            prev = LAST_PHASES.put(Long.valueOf(traceId), phase);
+        }
+        if (prev == null || prev[0] != phase[0] || prev[1] != phase[1]) {
+            instant(traceId, TraceEvent.CATEGORY_PRINTER, "phase", "type=" + phase[0]
+                    + " number=" + phase[1]);
+        }
+        if (status.getStatusType() == RL700SStatus.STATUS_TYPE_PRINT_COMPLETE) {
+            instant(traceId, TraceEvent.CATEGORY_PRINTER, "print-complete", "page="
+                    + phase[1]);
+        } else if (status.getStatusType() == RL700SStatus.STATUS_TYPE_ERROR) {
+            instant(traceId, TraceEvent.CATEGORY_PRINTER, "error", status.getErrorInfoSet()
+                    .toString());
+        }
+    }
+
+    /**
+     * フェーズを覚えているジョブの数を返します.
+     *
+     * @return ジョブ数。
+     */
+    static int getTrackedJobCount() {
+        synchronized (LAST_PHASES) {
+            return LAST_PHASES.size();
+        }
+    }
+
+    /**
+     * ジョブの記録を終えます.
+     *
+     * @param traceId トレース ID。
+     */
+    public static void endJob(long traceId) {
+        synchronized (LAST_PHASES) {
+            LAST_PHASES.remove(Long.valueOf(traceId));
+        }
+        instant(traceId, TraceEvent.CATEGORY_PRINTER, "job-complete", null);
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * コマンド列を解釈し、プリンタが印字するビットマップを復元するクラスです.
+ *
+ * <p>
+ * 'G' と 'Z' のラスターラインを圧縮モード('M' コマンド)に従って展開し、印字司令ごとに
+ * 1 ページとします。動作モードでミラー印字が指定されたページは、ラインの並びを反転します。
+ * 最後の印字司令より後ろのラインはプリンタが印字しないので捨てます。
+ * </p>
+ * <p>
+ * エンコード結果の往復確認や、ゴールデンイメージとの比較に使います。
+ * </p>
+ */
+public final class RasterPreview {
+
+    /** ビットマップの幅(ドット). */
+    public static final int WIDTH = RL700SCommands.MAX_LINE_BYTES * 8;
+
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final class Page {
+        final byte[] bits;
+        final int lineCount;
+        final boolean mirror;
+
+        Page(byte[] bits, int lineCount, boolean mirror) {
+            this.bits = bits;
+            this.lineCount = lineCount;
+            this.mirror = mirror;
+        }
+    }
+
+    /**
+     * コマンドを受け取ってページを組み立てるハンドラ.
+     */
+    private static final class Builder extends RL700SCommandParser.Adapter {
+        final List<Page> pages = new ArrayList<Page>();
+        private final byte[] mLine = new byte[RL700SCommands.MAX_LINE_BYTES];
+        private byte[] mBits = new byte[RL700SCommands.MAX_LINE_BYTES * 64];
+        private int mLineCount;
+        private int mModes;
+        private int mCompressionMode = CompressionMode.NONE.rawValue();
+        /** ラインの展開に失敗した場合の最初の例外. */
+        ParseException error;
+
+        @Override
+        public void onInit() {
+            mModes = 0;
+            mCompressionMode = CompressionMode.NONE.rawValue();
+        }
+
+        @Override
+        public void onSetMode(int modes) {
+            mModes = modes;
+        }
+
+        @Override
+        public void onSelectCompressionMode(int mode) {
+            mCompressionMode = mode;
+        }
+
+        @Override
+        public void onRasterLine(ByteBuffer data) {
+            if (error != null) {
+                return;
+            }
+            try {
+                if (mCompressionMode == CompressionMode.TIFF.rawValue()) {
+                    PackBitsDecoder.decodeLine(data, mLine);
+                } else if (mCompressionMode == CompressionMode.NONE.rawValue()) {
+                    if (RL700SCommands.MAX_LINE_BYTES < data.remaining()) {
+                        throw new ParseException("raster line too long: " + data.remaining(), 0);
+                    }
+                    final int n = data.remaining();
+                    data.get(mLine, 0, n);
+                    Arrays.fill(mLine, n, mLine.length, (byte) 0);
+                } else {
+                    throw new ParseException("unsupported compression mode: "
+                            + mCompressionMode, 0);
+                }
+            } catch (ParseException e) {
+                error = e;
+                return;
+            }
+            appendLine(mLine);
+        }
+
+        @Override
+        public void onZeroRasterLine() {
+            ensureCapacity(mLineCount + 1);
+            Arrays.fill(mBits, mLineCount * RL700SCommands.MAX_LINE_BYTES, (mLineCount + 1)
+                    * RL700SCommands.MAX_LINE_BYTES, (byte) 0);
+            mLineCount++;
+        }
+
+        @Override
+        public void onPrint(int command) {
+            final int size = mLineCount * RL700SCommands.MAX_LINE_BYTES;
+            pages.add(new Page(Arrays.copyOf(mBits, size), mLineCount,
+                    (mModes & Mode.MIRROR.rawValue()) != 0));
+            mLineCount = 0;
+        }
+
+        private void appendLine(byte[] line) {
+            ensureCapacity(mLineCount + 1);
+            System.arraycopy(line, 0, mBits, mLineCount * RL700SCommands.MAX_LINE_BYTES,
+                    RL700SCommands.MAX_LINE_BYTES);
+            mLineCount++;
+        }
+
+        private void ensureCapacity(int lines) {
+            final int required = lines * RL700SCommands.MAX_LINE_BYTES;
+            if (required <= mBits.length) {
+                return;
+            }
+            mBits = Arrays.copyOf(mBits, Math.max(required, mBits.length * 2));
+        }
+    }
+
+    private final List<Page> mPages;
+
+    private RasterPreview(List<Page> pages) {
+        super();
+        mPages = pages;
+    }
+
+    /**
+     * コマンド列全体を解釈します.
+     *
+     * @param commands コマンド列。 position から limit までを読みます。 position は変更しません。
+     * @return 復元したビットマップ。
+     * @throws ParseException 不明なコマンドや展開できないラインがあった場合、
+     *             またはコマンドが途中で終わっている場合。
+     */
+    public static RasterPreview render(ByteBuffer commands) throws ParseException {
+        final Builder builder = new Builder();
+        final RL700SCommandParser parser = new RL700SCommandParser(builder);
+        parser.feed(commands.duplicate());
+        if (builder.error != null) {
+            throw builder.error;
+        }
+        if (!parser.isAtBoundary()) {
+            throw new ParseException("truncated command.", (int) parser.getOffset());
+        }
+        return new RasterPreview(builder.pages);
+    }
+
+    /**
+     * エンコード済みのジョブを解釈します.
+     *
+     * @param job ジョブ。
+     * @return 復元したビットマップ。
+     * @throws ParseException ジョブを解釈できない場合。
+     */
+    public static RasterPreview render(EncodedJob job) throws ParseException {
+        return render(job.getData());
+    }
+
+    public int getPageCount() {
+        return mPages.size();
+    }
+
+    /**
+     * ページのライン数を返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return ライン数。
+     */
+    public int getLineCount(int page) {
+        return page(page).lineCount;
+    }
+
+    /**
+     * ページがミラー印字かどうかを返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return ミラー印字の場合は {@code true}。
+     */
+    public boolean isMirror(int page) {
+        return page(page).mirror;
+    }
+
+    /**
+     * 印字される順に数えたラインのビット列を返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @param line ライン番号(0 始まり)。
+     * @return 新しく割り当てた {@link RL700SCommands#MAX_LINE_BYTES} バイトの配列。
+     */
+    public byte[] getLine(int page, int line) {
+        final Page p = page(page);
+        final int offset = lineOffset(p, line);
+        return Arrays.copyOfRange(p.bits, offset, offset + RL700SCommands.MAX_LINE_BYTES);
+    }
+
+    /**
+     * ドットが印字されるかを返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @param line ライン番号(0 始まり)。
+     * @param dot ライン内のドット位置。先頭バイトの最上位ビットが 0 です。
+     * @return 印字される場合は {@code true}。
+     */
+    public boolean isSet(int page, int line, int dot) {
+        if (dot < 0 || WIDTH <= dot) {
+            throw new IndexOutOfBoundsException("dot " + dot + " out of range: [0, " + WIDTH
+                    + ")");
+        }
+        final Page p = page(page);
+        return (p.bits[lineOffset(p, line) + (dot >>> 3)] & (0x80 >>> (dot & 7))) != 0;
+    }
+
+    /**
+     * ページが期待するラインと一致するかを比較します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @param expected 印字される順のライン。長さが {@link RL700SCommands#MAX_LINE_BYTES}
+     *            に満たないラインは残りを 0 とみなします。
+     * @return ライン数と内容がすべて一致する場合は {@code true}。
+     */
+    public boolean matches(int page, byte[][] expected) {
+        final Page p = page(page);
+        if (expected.length != p.lineCount) {
+            return false;
+        }
+        for (int l = 0; l < expected.length; l++) {
+            final int offset = lineOffset(p, l);
+            final byte[] e = expected[l];
+            for (int i = 0; i < RL700SCommands.MAX_LINE_BYTES; i++) {
+                final byte b = (i < e.length) ? e[i] : 0;
+                if (p.bits[offset + i] != b) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ページを PNG 画像として書き出します.
+     *
+     * <p>
+     * 1 ラインを画像の 1 行とした幅 {@link #WIDTH}、高さがライン数の 1 ビットグレースケール画像で、
+     * 印字されるドットを黒にします。テープの送り方向が画像の下方向になります。
+     * </p>
+     *
+     * @param page ページ番号(0 始まり)。
+     * @param out 出力先。閉じません。
+     * @throws IOException 書き込みに失敗した場合。
+     * @throws IllegalArgumentException ページにラインがない場合。
+     */
+    public void writePng(int page, OutputStream out) throws IOException {
+        final Page p = page(page);
+        if (p.lineCount == 0) {
+            throw new IllegalArgumentException("page " + page + " has no lines.");
+        }
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(PNG_SIGNATURE);
+
+        final ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        final DataOutputStream header = new DataOutputStream(ihdr);
+        header.writeInt(WIDTH);
+        header.writeInt(p.lineCount);
+        header.writeByte(1); // bit depth
+        header.writeByte(0); // grayscale
+        header.writeByte(0); // deflate
+        header.writeByte(0); // filter method
+        header.writeByte(0); // no interlace
+        writeChunk(data, "IHDR", ihdr.toByteArray());
+
+        final ByteArrayOutputStream idat = new ByteArrayOutputStream(p.lineCount
+                * (RL700SCommands.MAX_LINE_BYTES + 1) / 4 + 64);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final DeflaterOutputStream z = new DeflaterOutputStream(idat, deflater);
+            final byte[] row = new byte[1 + RL700SCommands.MAX_LINE_BYTES];
+            for (int l = 0; l < p.lineCount; l++) {
+                final int offset = lineOffset(p, l);
+                row[0] = 0; // filter: none
+                for (int i = 0; i < RL700SCommands.MAX_LINE_BYTES; i++) {
+                    // 0 が黒なので反転する
+                    row[1 + i] = (byte) ~p.bits[offset + i];
+                }
+                z.write(row);
+            }
+            z.finish();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(data, "IDAT", idat.toByteArray());
+        writeChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    /**
+     * ページを PNG 画像のバイト列として返します.
+     *
+     * @param page ページ番号(0 始まり)。
+     * @return PNG 画像。
+     * @see #writePng(int, OutputStream)
+     */
+    public byte[] toPng(int page) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writePng(page, out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] body)
+            throws IOException {
+        final byte[] typeBytes = type.getBytes("US-ASCII");
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(body);
+        out.writeInt(body.length);
+        out.write(typeBytes);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private Page page(int page) {
+        if (page < 0 || mPages.size() <= page) {
+            throw new IndexOutOfBoundsException("page " + page + " out of range: [0, "
+                    + mPages.size() + ")");
+        }
+        return mPages.get(page);
+    }
+
+    private static int lineOffset(Page p, int line) {
+        if (line < 0 || p.lineCount <= line) {
+            throw new IndexOutOfBoundsException("line " + line + " out of range: [0, "
+                    + p.lineCount + ")");
+        }
+        final int l = p.mirror ? (p.lineCount - 1 - line) : line;
+        return l * RL700SCommands.MAX_LINE_BYTES;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link JobEncoder#addLines(RasterSource)} に渡す、ラインを順に読み出せるラスターです.
+ *
+ * <p>
+ * ラインはヒープ上の配列ではなくバッファのビューとして返すので、
+ * ダイレクトバッファやメモリマップしたファイルの内容をコピーせずにエンコードできます。
+ * </p>
+ */
+public interface RasterSource {
+
+    /**
+     * ライン数を返します.
+     *
+     * @return ライン数。
+     */
+    int getLineCount();
+
+    /**
+     * ラインの内容を返します.
+     *
+     * @param line ライン番号(0 始まり)。
+     * @return position から limit までが非圧縮のラインビット列である読み取り専用のバッファ。
+     *         長さは {@link RL700SCommands#MAX_LINE_BYTES} バイト以下で、足りない分は 0 とみなします。
+     */
+    ByteBuffer getLine(int line);
+
+    /**
+     * ラインのすべてのビットが 0 かどうかを返します.
+     *
+     * @param line ライン番号(0 始まり)。
+     * @return すべてのビットが 0 であれば {@code true}。
+     */
+    boolean isZeroLine(int line);
+}
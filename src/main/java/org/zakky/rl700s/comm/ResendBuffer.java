@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 送信中のジョブを保持し、エラーからの復帰時に途中のページから再送するためのバッファです.
+ *
+ * <p>
+ * ジョブは {@link EncodedJob} のままページ境界付きで保持するので、
+ * {@link ErrorInfo#MEDIA_END} や {@link ErrorInfo#CUTTER_JAM} からの復帰時には
+ * セットアップコマンドと、印刷途中だったページ以降だけを送り直せます。
+ * 印刷途中のページは、 {@link #onStatus(long, RL700SStatus)} に渡された印刷終了のステータスを
+ * ジョブごとに数えて求めます。フェーズ番号はジョブをまたいで数え続けるプリンタがあるので使いません。
+ * </p>
+ * <p>
+ * 保持するジョブの合計サイズが上限を超えると、古いジョブから捨てます。
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class ResendBuffer {
+
+    /** 再送が必要なエラー. */
+    private static final EnumSet<ErrorInfo> RESEND_ERRORS = EnumSet.of(ErrorInfo.MEDIA_END,
+            ErrorInfo.CUTTER_JAM);
+
+    private static final class Entry {
+        final EncodedJob job;
+        /** 印刷を終えたページ数. */
+        int printedPages;
+
+        Entry(EncodedJob job) {
+            this.job = job;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final Map<Long, Entry> mJobs = new LinkedHashMap<Long, Entry>();
+    private long mBytes;
+
+    /**
+     * 保持するジョブの合計サイズの上限を指定してバッファを構築します.
+     *
+     * @param maxBytes 合計サイズの上限(バイト)。
+     */
+    public ResendBuffer(long maxBytes) {
+        super();
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("'maxBytes' must be positive: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * ステータスが再送の必要なエラーを含むかどうかを返します.
+     *
+     * @param status ステータス。
+     * @return {@link ErrorInfo#MEDIA_END} か {@link ErrorInfo#CUTTER_JAM} を含む場合は
+     *         {@code true}。
+     */
+    public static boolean needsResend(RL700SStatus status) {
+        final EnumSet<ErrorInfo> errors = status.getErrorInfoSet();
+        errors.retainAll(RESEND_ERRORS);
+        return !errors.isEmpty();
+    }
+
+    /**
+     * 送信を始めるジョブを登録します.
+     *
+     * @param jobId ジョブ ID。
+     * @param job ジョブ。
+     * @return 登録できた場合は {@code true}。ジョブ単体で上限を超える場合は {@code false}。
+     */
+    public synchronized boolean put(long jobId, EncodedJob job) {
+        remove(jobId);
+        if (mMaxBytes < job.getLength()) {
+            return false;
+        }
+        final Iterator<Entry> it = mJobs.values().iterator();
+        while (mMaxBytes < mBytes + job.getLength() && it.hasNext()) {
+            mBytes -= it.next().job.getLength();
+            it.remove();
+        }
+        mJobs.put(Long.valueOf(jobId), new Entry(job));
+        mBytes += job.getLength();
+        return true;
+    }
+
+    /**
+     * 印刷が完了したジョブを取り除きます.
+     *
+     * @param jobId ジョブ ID。
+     */
+    public synchronized void remove(long jobId) {
+        final Entry e = mJobs.remove(Long.valueOf(jobId));
+        if (e != null) {
+            mBytes -= e.job.getLength();
+        }
+    }
+
+    /**
+     * 送信中のジョブについて受信したステータスを渡します。印刷終了のステータスを数えます.
+     *
+     * @param jobId ジョブ ID。
+     * @param status ステータス。
+     */
+    public synchronized void onStatus(long jobId, RL700SStatus status) {
+        if (status.getStatusType() != RL700SStatus.STATUS_TYPE_PRINT_COMPLETE) {
+            return;
+        }
+        final Entry e = mJobs.get(Long.valueOf(jobId));
+        if (e != null) {
+            e.printedPages++;
+        }
+    }
+
+    /**
+     * 保持しているジョブを返します.
+     *
+     * @param jobId ジョブ ID。
+     * @return ジョブ。保持していない場合は {@code null}。
+     */
+    public synchronized EncodedJob get(long jobId) {
+        final Entry e = mJobs.get(Long.valueOf(jobId));
+        return (e == null) ? null : e.job;
+    }
+
+    /**
+     * エラーで止まったジョブを再開するためのバイト列を返します.
+     *
+     * @param jobId ジョブ ID。
+     * @return セットアップコマンドと印刷途中のページ以降から成るバッファ。
+     *         ジョブを保持していない場合は {@code null}。
+     */
+    public synchronized ByteBuffer recover(long jobId) {
+        final Entry e = mJobs.get(Long.valueOf(jobId));
+        if (e == null) {
+            return null;
+        }
+        return e.job.resumeFrom(Math.min(e.printedPages, e.job.getPageCount() - 1));
+    }
+
+    public synchronized int size() {
+        return mJobs.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+}
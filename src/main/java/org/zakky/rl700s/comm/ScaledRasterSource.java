@@ -0,0 +1,262 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 別の解像度で描画したラスターを、印刷設定の解像度に合わせて読み出すラスターです.
+ *
+ * <p>
+ * ヘッド方向は 360dpi 固定、テープ送り方向は通常 360dpi、 {@link EnhancedMode#FINE_PRINT}
+ * の場合は 720dpi です。 180dpi、 360dpi、 720dpi で描画した正方画素のラスターを、
+ * ビット列を展開せずに次のように変換します。
+ * </p>
+ * <ul>
+ * <li>ヘッド方向の 2 倍は、 1 バイトを 2 バイトに広げる表を引いてビットを複製します。</li>
+ * <li>ヘッド方向の 1/2 は、隣り合う 2 ビットの OR を 4 ビットにする表を引きます。</li>
+ * <li>送り方向の整数倍は、同じラインを繰り返して返します。</li>
+ * <li>送り方向の 1/2 は、隣り合う 2 ラインの OR をとります。</li>
+ * </ul>
+ * <p>
+ * 繰り返すラインは同じバッファのインスタンスを返すので、
+ * {@link JobEncoder#addLines(RasterSource)} は圧縮し直さずに直前のコマンドを繰り返します。
+ * 返したバッファの内容は次の次の {@link #getLine(int)} で上書きされます。
+ * スレッドセーフではありません。
+ * </p>
+ */
+public final class ScaledRasterSource implements RasterSource {
+
+    /** ヘッド方向の解像度(dpi). */
+    public static final int HEAD_DPI = BarcodeRasterizer.HEAD_DPI;
+
+    /** 高精細印刷でのテープ送り方向の解像度(dpi). */
+    public static final int FINE_FEED_DPI = HEAD_DPI * 2;
+
+    /** 1 バイトの各ビットを 2 ビットに複製した値. */
+    private static final char[] DOUBLE = new char[256];
+    /** 1 バイトの隣り合う 2 ビットの OR を 1 ビットにした 4 ビットの値. */
+    private static final byte[] HALF = new byte[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int d = 0;
+            int h = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                if ((b & (0x80 >>> bit)) != 0) {
+                    d |= 0xc000 >>> (bit * 2);
+                    h |= 0x8 >>> (bit / 2);
+                }
+            }
+            DOUBLE[b] = (char) d;
+            HALF[b] = (byte) h;
+        }
+    }
+
+    private final RasterSource mSource;
+    /** ヘッド方向の倍率の分子と分母. どちらかは 1 です. */
+    private final int mHeadNum;
+    private final int mHeadDen;
+    /** 送り方向の倍率の分子と分母. どちらかは 1 で、分母は 1 か 2 です. */
+    private final int mFeedNum;
+    private final int mFeedDen;
+    private final int mLineCount;
+
+    /** 交互に使うライン. 直前に返したバッファを上書きしないために 2 つ持ちます. */
+    private final byte[][] mLines = new byte[2][RL700SCommands.MAX_LINE_BYTES];
+    private final ByteBuffer[] mViews = new ByteBuffer[2];
+    /** 送り方向の 1/2 で 2 ラインの OR をとるための作業領域. */
+    private final byte[] mMerged;
+    private int mCurrent;
+    /** {@code mLines[mCurrent]} に入っている変換後のライン番号. */
+    private int mCachedLine = -1;
+
+    /**
+     * 描画時の解像度と出力先の解像度を指定してインスタンスを構築します.
+     *
+     * @param source 描画したラスター。ヘッド方向を 720dpi で描画した場合は、
+     *            {@link RL700SCommands#MAX_LINE_BYTES} の 2 倍までのラインを返してよい。
+     * @param sourceDpi 描画時の解像度。 180、 360、 720 のいずれか。
+     * @param finePrint 出力先が高精細印刷(テープ送り方向 720dpi)の場合は {@code true}。
+     */
+    public ScaledRasterSource(RasterSource source, int sourceDpi, boolean finePrint) {
+        super();
+        final int[] head = ratio(HEAD_DPI, sourceDpi);
+        final int[] feed = ratio(finePrint ? FINE_FEED_DPI : HEAD_DPI, sourceDpi);
+        mSource = source;
+        mHeadNum = head[0];
+        mHeadDen = head[1];
+        mFeedNum = feed[0];
+        mFeedDen = feed[1];
+        if (mFeedDen == 1) {
+            mLineCount = source.getLineCount() * mFeedNum;
+        } else {
+            mLineCount = (source.getLineCount() + 1) / 2;
+        }
+        mMerged = (mFeedDen == 1) ? null : new byte[RL700SCommands.MAX_LINE_BYTES * 2];
+        for (int i = 0; i < mViews.length; i++) {
+            mViews[i] = ByteBuffer.wrap(mLines[i]).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * 印刷設定の高精細印刷の有無に合わせたインスタンスを構築します.
+     *
+     * @param source 描画したラスター。
+     * @param sourceDpi 描画時の解像度。 180、 360、 720 のいずれか。
+     * @param settings 印刷設定。
+     * @return インスタンス。
+     */
+    public static ScaledRasterSource forSettings(RasterSource source, int sourceDpi,
+            PrintSettings settings) {
+        return new ScaledRasterSource(source, sourceDpi,
+                settings.isEnabled(EnhancedMode.FINE_PRINT));
+    }
+
+    private static int[] ratio(int target, int source) {
+        if (source != 180 && source != 360 && source != 720) {
+            throw new IllegalArgumentException("unsupported dpi: " + source);
+        }
+        if (source <= target) {
+            return new int[] {
+                    target / source, 1
+            };
+        }
+        return new int[] {
+                1, source / target
+        };
+    }
+
+    @Override
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    @Override
+    public ByteBuffer getLine(int line) {
+        checkLine(line);
+        if (0 <= mCachedLine && line / mFeedNum == mCachedLine / mFeedNum) {
+            return view(mCurrent);
+        }
+        final int next = mCurrent ^ 1;
+        final byte[] dst = mLines[next];
+        if (mFeedDen == 1) {
+            scale(mSource.getLine(line / mFeedNum), dst);
+        } else {
+            scale(merge(line * 2), dst);
+        }
+        mCurrent = next;
+        mCachedLine = line;
+        return view(next);
+    }
+
+    private ByteBuffer view(int index) {
+        final ByteBuffer view = mViews[index];
+        view.clear();
+        return view;
+    }
+
+    @Override
+    public boolean isZeroLine(int line) {
+        checkLine(line);
+        if (mFeedDen == 1) {
+            return mSource.isZeroLine(line / mFeedNum);
+        }
+        final int first = line * 2;
+        return mSource.isZeroLine(first)
+                && (mSource.getLineCount() <= first + 1 || mSource.isZeroLine(first + 1));
+    }
+
+    /**
+     * 送り方向に隣り合う 2 ラインの OR をとります.
+     */
+    private ByteBuffer merge(int first) {
+        Arrays.fill(mMerged, (byte) 0);
+        int length = or(mSource.getLine(first), mMerged);
+        if (first + 1 < mSource.getLineCount()) {
+            length = Math.max(length, or(mSource.getLine(first + 1), mMerged));
+        }
+        return ByteBuffer.wrap(mMerged, 0, length);
+    }
+
+    private static int or(ByteBuffer src, byte[] dst) {
+        final int p = src.position();
+        final int n = Math.min(src.remaining(), dst.length);
+        for (int i = 0; i < n; i++) {
+            dst[i] |= src.get(p + i);
+        }
+        return n;
+    }
+
+    /**
+     * ヘッド方向の倍率に従って 1 ラインを変換します. {@code src} の position は変更しません.
+     */
+    private void scale(ByteBuffer src, byte[] dst) {
+        if (mHeadNum == 2) {
+            doubleBits(src, dst);
+        } else if (mHeadDen == 2) {
+            halveBits(src, dst);
+        } else {
+            final int n = Math.min(src.remaining(), dst.length);
+            src.duplicate().get(dst, 0, n);
+            Arrays.fill(dst, n, dst.length, (byte) 0);
+        }
+    }
+
+    /**
+     * 各ビットを 2 ビットに複製します.
+     *
+     * @param src 変換元。 position から {@code dst} の半分の長さまでを読みます。
+     * @param dst 変換先。
+     */
+    static void doubleBits(ByteBuffer src, byte[] dst) {
+        final int p = src.position();
+        final int n = Math.min(src.remaining(), dst.length / 2);
+        for (int i = 0; i < n; i++) {
+            final char d = DOUBLE[src.get(p + i) & 0xff];
+            dst[i * 2] = (byte) (d >>> 8);
+            dst[i * 2 + 1] = (byte) d;
+        }
+        Arrays.fill(dst, n * 2, dst.length, (byte) 0);
+    }
+
+    /**
+     * 隣り合う 2 ビットの OR を 1 ビットにします. 細い線が消えないように OR をとります.
+     *
+     * @param src 変換元。 position から {@code dst} の 2 倍の長さまでを読みます。
+     * @param dst 変換先。
+     */
+    static void halveBits(ByteBuffer src, byte[] dst) {
+        final int p = src.position();
+        final int n = Math.min(src.remaining(), dst.length * 2);
+        Arrays.fill(dst, (byte) 0);
+        for (int i = 0; i < n; i++) {
+            final int h = HALF[src.get(p + i) & 0xff];
+            dst[i >>> 1] |= (byte) (((i & 1) == 0) ? (h << 4) : h);
+        }
+    }
+
+    private void checkLine(int line) {
+        if (line < 0 || mLineCount <= line) {
+            throw new IndexOutOfBoundsException("line " + line + " out of range: [0, "
+                    + mLineCount + ")");
+        }
+    }
+}
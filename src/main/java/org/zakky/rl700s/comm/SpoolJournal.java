@@ -0,0 +1,751 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+import org.zakky.rl700s.comm.RL700SCommands.Paper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * エンコード済みのジョブを永続化するスプールです.
+ *
+ * <p>
+ * ジョブは追記専用のセグメントファイル({@value #SEGMENT_PREFIX}NNNNNNNN{@value #SEGMENT_SUFFIX})
+ * にメモリマップ経由で書き込まれ、印刷の進み具合はページ単位のコミットレコードとして
+ * 同じセグメントに追記されます。プロセスが途中で終了しても、再度 {@link #open(File, int, long)}
+ * すれば {@link #getPendingJobs()} から最初の未確認ページ以降を再エンコードせずに再送できます。
+ * </p>
+ * <p>
+ * 印刷の進み具合は、 {@link #onStatus(long, RL700SStatus)} に渡された印刷終了のステータスを
+ * ジョブごとに数えて求めます。フェーズ番号はジョブをまたいで数え続けるプリンタがあるので使いません。
+ * </p>
+ * <p>
+ * レコードは [種別(1)][長さ(4)][本体][CRC32(4)] の形式で、種別バイトを最後に書き込みます。
+ * 読み込み時は CRC が一致しない、あるいは種別が 0 のレコードでセグメントの終端とみなすので、
+ * 書き込み途中で中断されたレコードは無視されます。
+ * </p>
+ * <p>
+ * すべてのジョブが完了したセグメントは削除され、 {@link #compact()} は生きているジョブを
+ * 新しいセグメントへ詰め直します。セグメントの合計サイズは構築時に指定した上限を超えません。
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class SpoolJournal implements Closeable {
+
+    /** セグメントファイル名の接頭辞. */
+    public static final String SEGMENT_PREFIX = "spool-";
+
+    /** セグメントファイル名の接尾辞. */
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    /** セグメントサイズの既定値. */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_JOB = 1;
+    private static final byte TYPE_COMMIT = 2;
+    private static final byte TYPE_DONE = 3;
+
+    /** 種別、長さ、CRC の合計. */
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+
+    /**
+     * 再送待ちのジョブです.
+     */
+    public static final class PendingJob {
+        private final long mJobId;
+        private final EncodedJob mJob;
+        private final int mFirstUnconfirmedPage;
+
+        PendingJob(long jobId, EncodedJob job, int firstUnconfirmedPage) {
+            mJobId = jobId;
+            mJob = job;
+            mFirstUnconfirmedPage = firstUnconfirmedPage;
+        }
+
+        public long getJobId() {
+            return mJobId;
+        }
+
+        public EncodedJob getJob() {
+            return mJob;
+        }
+
+        public int getFirstUnconfirmedPage() {
+            return mFirstUnconfirmedPage;
+        }
+
+        /**
+         * 最初の未確認ページから印刷を再開するためのバイト列を返します.
+         *
+         * @return セットアップコマンドを先頭に含むバッファ。
+         */
+        public ByteBuffer getResumeData() {
+            return mJob.resumeFrom(mFirstUnconfirmedPage);
+        }
+    }
+
+    private static final class Segment {
+        final int index;
+        final File file;
+        final MappedByteBuffer map;
+        int position;
+        /**
+         * このセグメントにある、未完了ジョブの JOB レコードと最新の COMMIT レコード、
+         * および JOB レコードがまだ残っている完了ジョブの DONE レコードの数.
+         */
+        int live;
+
+        Segment(int index, File file, MappedByteBuffer map) {
+            this.index = index;
+            this.file = file;
+            this.map = map;
+        }
+
+        int capacity() {
+            return map.capacity();
+        }
+    }
+
+    private static final class JobState {
+        final long id;
+        EncodedJob job;
+        Segment segment;
+        Segment commitSegment;
+        int confirmedPages;
+        /** このジョブの JOB レコードを持つセグメント. {@link #compact()} で詰め直す前のものも含みます. */
+        final List<Segment> jobSegments = new ArrayList<Segment>();
+
+        JobState(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * 完了したジョブの DONE レコードです.
+     *
+     * <p>
+     * JOB レコードを持つセグメントが 1 つでも残っている間は、再オープン時にジョブが
+     * 復活しないよう DONE レコードのセグメントを生かしておきます。
+     * </p>
+     */
+    private static final class Tombstone {
+        final Segment doneSegment;
+        final List<Segment> jobSegments;
+
+        Tombstone(Segment doneSegment, List<Segment> jobSegments) {
+            this.doneSegment = doneSegment;
+            this.jobSegments = jobSegments;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final long mMaxBytes;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final Map<Long, JobState> mJobs = new LinkedHashMap<Long, JobState>();
+    private final List<Tombstone> mTombstones = new ArrayList<Tombstone>();
+    private final CRC32 mCrc = new CRC32();
+    private long mNextJobId = 1L;
+    private boolean mClosed;
+
+    private SpoolJournal(File directory, int segmentSize, long maxBytes) {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * スプールを開きます。既存のセグメントがあれば読み込み、未完了のジョブを復元します.
+     *
+     * @param directory セグメントファイルを置くディレクトリ。
+     * @param segmentSize 1 セグメントのサイズ(バイト)。
+     * @param maxBytes セグメントの合計サイズの上限(バイト)。
+     * @return スプール。
+     * @throws IOException 読み書きに失敗した場合。
+     */
+    public static SpoolJournal open(File directory, int segmentSize, long maxBytes)
+            throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("'segmentSize' too small: " + segmentSize);
+        }
+        if (maxBytes < segmentSize) {
+            throw new IllegalArgumentException("'maxBytes' must not be less than 'segmentSize'.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create directory: " + directory);
+        }
+        final SpoolJournal journal = new SpoolJournal(directory, segmentSize, maxBytes);
+        journal.recover();
+        return journal;
+    }
+
+    /**
+     * ジョブをスプールに追加します.
+     *
+     * @param job ジョブ。
+     * @return スプール内のジョブ ID。
+     * @throws IOException 書き込みに失敗した場合や、上限を超える場合。
+     */
+    public synchronized long append(EncodedJob job) throws IOException {
+        checkNotClosed();
+        final long id = mNextJobId++;
+        final JobState state = new JobState(id);
+        state.job = job;
+        writeJob(state);
+        mJobs.put(Long.valueOf(id), state);
+        return id;
+    }
+
+    /**
+     * 印刷を終えたページ数を記録します。記録済みの値以下の場合は何もしません.
+     *
+     * @param jobId ジョブ ID。
+     * @param confirmedPages 印刷を終えたページ数。
+     * @throws IOException 書き込みに失敗した場合。
+     */
+    public synchronized void commitPages(long jobId, int confirmedPages) throws IOException {
+        checkNotClosed();
+        final JobState state = mJobs.get(Long.valueOf(jobId));
+        if (state == null) {
+            throw new IllegalArgumentException("unknown job: " + jobId);
+        }
+        final int pages = Math.min(confirmedPages, state.job.getPageCount());
+        if (pages <= state.confirmedPages) {
+            return;
+        }
+        if (pages == state.job.getPageCount()) {
+            complete(jobId);
+            return;
+        }
+        writeCommit(state, pages);
+    }
+
+    /**
+     * 印刷終了のステータスを受け取るたびに、印刷を終えたページを 1 つ記録します.
+     *
+     * @param jobId ジョブ ID。
+     * @param status 印刷中に受信したステータス。印刷終了以外は無視します。
+     * @throws IOException 書き込みに失敗した場合。
+     */
+    public synchronized void onStatus(long jobId, RL700SStatus status) throws IOException {
+        if (status.getStatusType() != RL700SStatus.STATUS_TYPE_PRINT_COMPLETE) {
+            return;
+        }
+        checkNotClosed();
+        final JobState state = mJobs.get(Long.valueOf(jobId));
+        if (state == null) {
+            throw new IllegalArgumentException("unknown job: " + jobId);
+        }
+        commitPages(jobId, state.confirmedPages + 1);
+    }
+
+    /**
+     * ジョブの完了を記録します。完了したジョブしか持たないセグメントは削除されます.
+     *
+     * @param jobId ジョブ ID。
+     * @throws IOException 書き込みに失敗した場合。
+     */
+    public synchronized void complete(long jobId) throws IOException {
+        checkNotClosed();
+        final JobState state = mJobs.get(Long.valueOf(jobId));
+        if (state == null) {
+            return;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.putLong(jobId);
+        payload.flip();
+        final Segment segment = writeRecord(TYPE_DONE, payload);
+        mJobs.remove(Long.valueOf(jobId));
+        release(state);
+        bury(state, segment);
+        deleteDeadSegments();
+    }
+
+    /**
+     * 未完了のジョブを投入順に返します.
+     *
+     * @return 未完了のジョブのリスト。
+     */
+    public synchronized List<PendingJob> getPendingJobs() {
+        final List<PendingJob> result = new ArrayList<PendingJob>(mJobs.size());
+        for (JobState state : mJobs.values()) {
+            result.add(new PendingJob(state.id, state.job, state.confirmedPages));
+        }
+        return result;
+    }
+
+    /**
+     * 生きているジョブを新しいセグメントへ詰め直し、古いセグメントを削除します.
+     *
+     * @throws IOException 読み書きに失敗した場合。
+     */
+    public synchronized void compact() throws IOException {
+        checkNotClosed();
+        final List<Segment> old = new ArrayList<Segment>(mSegments);
+        if (old.isEmpty()) {
+            return;
+        }
+        // 新しいセグメントから書き始めることで、古いセグメントをすべて解放できるようにする
+        final Segment active = old.get(old.size() - 1);
+        if (active.position != 0) {
+            addSegment(mSegmentSize);
+        }
+        for (JobState state : mJobs.values()) {
+            final Segment from = state.segment;
+            if (old.contains(from)) {
+                // 書き写してから元のセグメントの参照を外す
+                writeJob(state);
+                from.live--;
+            }
+        }
+        deleteDeadSegments();
+    }
+
+    /**
+     * セグメントファイルの合計サイズを返します.
+     *
+     * @return 合計サイズ(バイト)。
+     */
+    public synchronized long getDiskUsage() {
+        long total = 0L;
+        for (Segment s : mSegments) {
+            total += s.capacity();
+        }
+        return total;
+    }
+
+    /**
+     * マップしたセグメントをストレージへ書き出します.
+     */
+    public synchronized void sync() {
+        for (Segment s : mSegments) {
+            s.map.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        sync();
+        mClosed = true;
+    }
+
+    /*
+     * 書き込み
+     */
+
+    private void writeJob(JobState state) throws IOException {
+        final EncodedJob job = state.job;
+        final int pageCount = job.getPageCount();
+        final byte[] settings = encodeSettings(job.getSettings());
+        final int length = 8 + 4 + 4 + 8 * pageCount + 4 + settings.length + 4
+                + job.getLength();
+
+        final int pos = reserve(length);
+        final Segment segment = mSegments.get(mSegments.size() - 1);
+        final ByteBuffer map = segment.map;
+        map.position(pos + 1 + 4);
+        map.putLong(state.id);
+        map.putInt(job.getSetupLength());
+        map.putInt(pageCount);
+        int lines = 0;
+        for (int i = 0; i < pageCount; i++) {
+            map.putInt(job.getPageEnd(i));
+            lines += job.getPageLineCount(i);
+            map.putInt(lines);
+        }
+        map.putInt(settings.length);
+        map.put(settings);
+        map.putInt(job.getLength());
+        final int dataOffset = map.position();
+        map.put(job.getData());
+        finishRecord(segment, pos, TYPE_JOB, length);
+
+        // 以降はマップ上のデータを参照し、ヒープ上のコピーを手放す
+        final ByteBuffer data = map.duplicate();
+        data.position(dataOffset);
+        data.limit(dataOffset + job.getLength());
+        state.job = job.withData(data);
+        state.segment = segment;
+        if (!state.jobSegments.contains(segment)) {
+            state.jobSegments.add(segment);
+        }
+        segment.live++;
+
+        if (0 < state.confirmedPages) {
+            writeCommit(state, state.confirmedPages);
+        }
+    }
+
+    private void writeCommit(JobState state, int pages) throws IOException {
+        final ByteBuffer payload = ByteBuffer.allocate(8 + 4);
+        payload.putLong(state.id);
+        payload.putInt(pages);
+        payload.flip();
+        final Segment segment = writeRecord(TYPE_COMMIT, payload);
+        state.confirmedPages = pages;
+        moveCommit(state, segment);
+    }
+
+    private Segment writeRecord(byte type, ByteBuffer payload) throws IOException {
+        final int length = payload.remaining();
+        final int pos = reserve(length);
+        final Segment segment = mSegments.get(mSegments.size() - 1);
+        segment.map.position(pos + 1 + 4);
+        segment.map.put(payload);
+        finishRecord(segment, pos, type, length);
+        return segment;
+    }
+
+    /**
+     * 最新の COMMIT レコードを持つセグメントを付け替えます.
+     */
+    private static void moveCommit(JobState state, Segment segment) {
+        if (state.commitSegment != null) {
+            state.commitSegment.live--;
+        }
+        state.commitSegment = segment;
+        segment.live++;
+    }
+
+    /**
+     * 完了したジョブが参照していたセグメントを解放します.
+     */
+    private static void release(JobState state) {
+        state.segment.live--;
+        if (state.commitSegment != null) {
+            state.commitSegment.live--;
+        }
+    }
+
+    /**
+     * 完了したジョブの DONE レコードを、 JOB レコードが残っている間だけ生かしておきます.
+     */
+    private void bury(JobState state, Segment doneSegment) {
+        final List<Segment> jobSegments = new ArrayList<Segment>(state.jobSegments);
+        // 同じセグメントの JOB レコードは DONE レコードと一緒に消える
+        jobSegments.remove(doneSegment);
+        if (jobSegments.isEmpty()) {
+            return;
+        }
+        mTombstones.add(new Tombstone(doneSegment, jobSegments));
+        doneSegment.live++;
+    }
+
+    /**
+     * 長さ {@code length} の本体を持つレコードの領域を確保し、その先頭位置を返します.
+     */
+    private int reserve(int length) throws IOException {
+        final int recordSize = RECORD_OVERHEAD + length;
+        Segment active = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        // 後続レコードの種別バイト(0)を置く余地を常に残す
+        if (active == null || active.capacity() < active.position + recordSize + 1) {
+            active = addSegment(Math.max(mSegmentSize, recordSize + 1));
+        }
+        final int pos = active.position;
+        active.position += recordSize;
+        return pos;
+    }
+
+    private void finishRecord(Segment segment, int pos, byte type, int length) {
+        final ByteBuffer map = segment.map;
+        map.putInt(pos + 1, length);
+        mCrc.reset();
+        mCrc.update(type);
+        for (int i = 0; i < length; i++) {
+            mCrc.update(map.get(pos + 1 + 4 + i));
+        }
+        map.putInt(pos + 1 + 4 + length, (int) mCrc.getValue());
+        // 種別は最後に書く
+        map.put(pos, type);
+    }
+
+    /**
+     * 上限を超えないことを確認してから、新しいアクティブセグメントを追加します.
+     */
+    private Segment addSegment(int size) throws IOException {
+        if (mMaxBytes < getDiskUsage() + size) {
+            deleteDeadSegments();
+        }
+        if (mMaxBytes < getDiskUsage() + size) {
+            throw new IOException("spool is full: usage=" + getDiskUsage() + ", max="
+                    + mMaxBytes);
+        }
+        final Segment active = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        final Segment segment = createSegment(active == null ? 0 : active.index + 1, size);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private Segment createSegment(int index, int size) throws IOException {
+        final File file = new File(mDirectory, segmentName(index));
+        final Segment segment = new Segment(index, file, map(file, size));
+        return segment;
+    }
+
+    private void deleteDeadSegments() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // アクティブなセグメントは残す
+            for (int i = mSegments.size() - 2; 0 <= i; i--) {
+                final Segment s = mSegments.get(i);
+                if (s.live == 0) {
+                    mSegments.remove(i);
+                    // MappedByteBuffer は明示的に解放できないので、ファイルのみ削除する
+                    if (!s.file.delete()) {
+                        s.file.deleteOnExit();
+                    }
+                    changed |= forget(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * 削除したセグメントへの参照を外します.
+     *
+     * @return DONE レコードのセグメントを解放した場合は {@code true}。
+     */
+    private boolean forget(Segment deleted) {
+        for (JobState state : mJobs.values()) {
+            state.jobSegments.remove(deleted);
+        }
+        boolean released = false;
+        for (Iterator<Tombstone> it = mTombstones.iterator(); it.hasNext();) {
+            final Tombstone t = it.next();
+            t.jobSegments.remove(deleted);
+            if (t.jobSegments.isEmpty()) {
+                it.remove();
+                t.doneSegment.live--;
+                released = true;
+            }
+        }
+        return released;
+    }
+
+    /*
+     * 読み込み
+     */
+
+    private void recover() throws IOException {
+        final String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            throw new IOException("failed to list directory: " + mDirectory);
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            final int index = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            final File file = new File(mDirectory, name);
+            final Segment segment = new Segment(index, file, map(file, (int) file.length()));
+            mSegments.add(segment);
+            scan(segment);
+        }
+        deleteDeadSegments();
+    }
+
+    private void scan(Segment segment) {
+        final ByteBuffer map = segment.map;
+        int pos = 0;
+        while (pos + RECORD_OVERHEAD <= segment.capacity()) {
+            final byte type = map.get(pos);
+            if (type == TYPE_END) {
+                break;
+            }
+            final int length = map.getInt(pos + 1);
+            if (length < 0 || segment.capacity() < pos + RECORD_OVERHEAD + length) {
+                break;
+            }
+            mCrc.reset();
+            mCrc.update(type);
+            for (int i = 0; i < length; i++) {
+                mCrc.update(map.get(pos + 1 + 4 + i));
+            }
+            if (map.getInt(pos + 1 + 4 + length) != (int) mCrc.getValue()) {
+                break;
+            }
+            final ByteBuffer payload = map.duplicate();
+            payload.position(pos + 1 + 4);
+            payload.limit(pos + 1 + 4 + length);
+            apply(segment, type, payload.slice());
+            pos += RECORD_OVERHEAD + length;
+        }
+        // 書き込み途中のレコードが残っていれば消しておく
+        for (int i = pos; i < segment.capacity(); i++) {
+            if (map.get(i) != 0) {
+                map.put(i, (byte) 0);
+            }
+        }
+        segment.position = pos;
+    }
+
+    private void apply(Segment segment, byte type, ByteBuffer payload) {
+        final long id = payload.getLong();
+        mNextJobId = Math.max(mNextJobId, id + 1);
+        final Long key = Long.valueOf(id);
+        if (type == TYPE_JOB) {
+            final int setupLength = payload.getInt();
+            final int pageCount = payload.getInt();
+            final int[] pageEnds = new int[pageCount];
+            final int[] pageLineEnds = new int[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                pageEnds[i] = payload.getInt();
+                pageLineEnds[i] = payload.getInt();
+            }
+            final byte[] settings = new byte[payload.getInt()];
+            payload.get(settings);
+            final int dataLength = payload.getInt();
+            final ByteBuffer data = payload.slice();
+            data.limit(dataLength);
+
+            JobState state = mJobs.get(key);
+            if (state == null) {
+                state = new JobState(id);
+                mJobs.put(key, state);
+            } else {
+                // compact() で詰め直されたレコード
+                state.segment.live--;
+            }
+            state.job = new EncodedJob(data, setupLength, pageEnds, pageLineEnds,
+                    decodeSettings(settings));
+            state.segment = segment;
+            if (!state.jobSegments.contains(segment)) {
+                state.jobSegments.add(segment);
+            }
+            segment.live++;
+        } else if (type == TYPE_COMMIT) {
+            final JobState state = mJobs.get(key);
+            if (state != null) {
+                state.confirmedPages = Math.max(state.confirmedPages, payload.getInt());
+                moveCommit(state, segment);
+            }
+        } else if (type == TYPE_DONE) {
+            final JobState state = mJobs.remove(key);
+            if (state != null) {
+                release(state);
+                bury(state, segment);
+            }
+        }
+    }
+
+    /*
+     * ユーティリティ
+     */
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            // マップ後はチャネルを閉じてもマップは有効
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String segmentName(int index) {
+        return SEGMENT_PREFIX + String.format("%08d", Integer.valueOf(index)) + SEGMENT_SUFFIX;
+    }
+
+    static byte[] encodeSettings(PrintSettings s) {
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) (s.getPaperKind() == null ? -1 : s.getPaperKind().rawValue()));
+        buffer.putShort((short) (s.getPaperWidth() == null ? -1 : s.getPaperWidth().intValue()));
+        buffer.putShort((short) (s.getPaperLength() == null ? -1 : s.getPaperLength()
+                .intValue()));
+        buffer.put(Mode.modesValue(s.getModes()));
+        buffer.put(EnhancedMode.modesValue(s.getEnhancedModes()));
+        buffer.putShort((short) s.getMergin());
+        buffer.put((byte) s.getCompressionMode().rawValue());
+        buffer.put((byte) ((s.isEnableRecover() ? 1 : 0) | (s.isLowPowerPrint() ? 2 : 0)));
+        final byte[] result = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(result);
+        return result;
+    }
+
+    static PrintSettings decodeSettings(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int paperValue = buffer.get();
+        final int width = buffer.getShort();
+        final int length = buffer.getShort();
+        final int modesValue = buffer.get() & 0xff;
+        final int enhancedValue = buffer.get() & 0xff;
+        final int mergin = buffer.getShort() & 0xffff;
+        final int compressionValue = buffer.get() & 0xff;
+        final int flags = buffer.get();
+
+        // enum の宣言順に依存しないよう、ワイヤー上での値で保存する
+        final Paper paper = (paperValue < 0) ? null : Paper.fromRawValue(paperValue);
+        if (0 <= paperValue && paper == null) {
+            throw new IllegalArgumentException("unknown paper: " + paperValue);
+        }
+        final CompressionMode compression = CompressionMode.fromRawValue(compressionValue);
+        if (compression == null) {
+            throw new IllegalArgumentException("unknown compression mode: " + compressionValue);
+        }
+        final EnumSet<Mode> modes = EnumSet.noneOf(Mode.class);
+        for (Mode m : Mode.values()) {
+            if ((m.rawValue() & modesValue) != 0) {
+                modes.add(m);
+            }
+        }
+        final EnumSet<EnhancedMode> enhancedModes = EnumSet.noneOf(EnhancedMode.class);
+        for (EnhancedMode m : EnhancedMode.values()) {
+            if ((m.rawValue() & enhancedValue) != 0) {
+                enhancedModes.add(m);
+            }
+        }
+        return new PrintSettings(paper,
+                width < 0 ? null : Integer.valueOf(width),
+                length < 0 ? null : Integer.valueOf(length), modes, enhancedModes, mergin,
+                compression, (flags & 1) != 0, (flags & 2) != 0);
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("already closed.");
+        }
+    }
+}
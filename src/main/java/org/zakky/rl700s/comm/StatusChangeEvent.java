@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+
+import java.util.EnumSet;
+
+/**
+ * {@link StatusMonitor} が通知するステータスの変化です.
+ *
+ * <p>
+ * リスナーの処理が追いつかなかった場合、同じ種類の変化は 1 つにまとめて通知します。
+ * まとめた場合、 {@link #getPrevious()} は最初の変化の前、 {@link #getCurrent()}
+ * は最後の変化の後のステータスになり、立ったエラーと解除されたエラーは途中の変化をすべて含みます。
+ * </p>
+ */
+public final class StatusChangeEvent {
+
+    /**
+     * 変化の種類です.
+     */
+    public enum Type {
+        /** エラー情報または拡張エラー番号の変化 */
+        ERRORS_CHANGED(0),
+        /** メディアの幅、種類、長さの変化 */
+        MEDIA_CHANGED(1),
+        /** フェーズ種別またはフェーズ番号の変化 */
+        PHASE_CHANGED(2),
+        /** ページの印刷終了 */
+        PRINT_COMPLETE(3);
+
+        /** {@link PrintServerProtocol} で送る値. 宣言順とは独立に固定します. */
+        private final int mRawValue;
+
+        private Type(int rawValue) {
+            mRawValue = rawValue;
+        }
+
+        public int rawValue() {
+            return mRawValue;
+        }
+
+        /**
+         * 送る値に対応する値を返します。
+         *
+         * @param rawValue 送る値。
+         * @return 対応する値。ない場合は {@code null}。
+         */
+        static Type fromRawValue(int rawValue) {
+            for (Type v : values()) {
+                if (v.mRawValue == rawValue) {
+                    return v;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Type mType;
+    private final long mTimeMillis;
+    private final RL700SStatus mPrevious;
+    private final RL700SStatus mCurrent;
+    private final int mRaisedErrors;
+    private final int mClearedErrors;
+    private final int mCount;
+
+    StatusChangeEvent(Type type, long timeMillis, RL700SStatus previous, RL700SStatus current,
+            int raisedErrors, int clearedErrors, int count) {
+        super();
+        mType = type;
+        mTimeMillis = timeMillis;
+        mPrevious = previous;
+        mCurrent = current;
+        mRaisedErrors = raisedErrors;
+        mClearedErrors = clearedErrors;
+        mCount = count;
+    }
+
+    /**
+     * 同じ種類の後続の変化をまとめたイベントを返します.
+     *
+     * @param next このイベントより後に起きた同じ種類の変化。
+     * @return 新しいインスタンス。
+     */
+    StatusChangeEvent merge(StatusChangeEvent next) {
+        assert mType == next.mType;
+        return new StatusChangeEvent(mType, next.mTimeMillis, mPrevious, next.mCurrent,
+                mRaisedErrors | next.mRaisedErrors, mClearedErrors | next.mClearedErrors, mCount
+                        + next.mCount);
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * 変化を検出した時刻を返します.
+     *
+     * @return {@link System#currentTimeMillis()} 基準の時刻。まとめた場合は最後の変化の時刻。
+     */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /**
+     * 変化前のステータスを返します.
+     *
+     * @return 変化前のステータス。最初に受け取ったステータスによる通知では {@code null}。
+     */
+    public RL700SStatus getPrevious() {
+        return mPrevious;
+    }
+
+    public RL700SStatus getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * 新しく立ったエラー情報を返します.
+     *
+     * @return エラー情報 1 を下位 8 ビット、エラー情報 2 を上位 8 ビットとした値。
+     */
+    public int getRaisedErrors() {
+        return mRaisedErrors;
+    }
+
+    /**
+     * 解除されたエラー情報を返します.
+     *
+     * @return エラー情報 1 を下位 8 ビット、エラー情報 2 を上位 8 ビットとした値。
+     */
+    public int getClearedErrors() {
+        return mClearedErrors;
+    }
+
+    public EnumSet<ErrorInfo> getRaisedErrorSet() {
+        return ErrorInfo.fromRawValue(mRaisedErrors & 0xff, mRaisedErrors >>> 8);
+    }
+
+    public EnumSet<ErrorInfo> getClearedErrorSet() {
+        return ErrorInfo.fromRawValue(mClearedErrors & 0xff, mClearedErrors >>> 8);
+    }
+
+    public boolean isRaised(ErrorInfo error) {
+        return (mRaisedErrors & error.rawValue()) != 0;
+    }
+
+    public boolean isCleared(ErrorInfo error) {
+        return (mClearedErrors & error.rawValue()) != 0;
+    }
+
+    /**
+     * まとめた変化の数を返します.
+     *
+     * @return 1 以上の値。 {@link Type#PRINT_COMPLETE} では印刷を終えたページ数。
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String toString() {
+        return mType + "[count=" + mCount + ", raised=" + getRaisedErrorSet() + ", cleared="
+                + getClearedErrorSet() + "]";
+    }
+}
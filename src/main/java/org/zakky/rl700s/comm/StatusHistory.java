@@ -0,0 +1,457 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * 1 台のプリンタのステータスの履歴を、詰めた {@code long} の固定長リングで保持するクラスです.
+ *
+ * <p>
+ * ステータスは {@link #pack(RL700SStatus)} で 1 つの {@code long} に、
+ * フェーズ番号は連続回数とともにもう 1 つの {@code long} に詰めます。
+ * 直前と同じステータスが続いた場合は新しいエントリを作らずに連続回数と最終時刻だけを
+ * 更新するので、変化のない定期ポーリングは何日分でもエントリ 1 つで済みます。
+ * リングがいっぱいになると古いエントリから上書きします。
+ * </p>
+ * <p>
+ * エントリは時刻順に並ぶので、時刻の範囲指定は二分探索で行います。
+ * すべてのメソッドはスレッドセーフです。
+ * </p>
+ */
+public final class StatusHistory {
+
+    /**
+     * 変化を調べる項目です.
+     */
+    public enum Field {
+        /** エラー情報 */
+        ERRORS(0xffffL, 0L),
+        /** 拡張エラー番号 */
+        ENHANCED_ERROR(0xffL << 16, 0L),
+        /** メディアの幅、種類、長さ */
+        MEDIA(0xffffffL << 24, 0L),
+        /** ステータス種別 */
+        STATUS_TYPE(0xffL << 48, 0L),
+        /** フェーズ種別とフェーズ番号 */
+        PHASE(0xffL << 56, PHASE_NUMBER_MASK);
+
+        private final long mStatusMask;
+        private final long mExtraMask;
+
+        private Field(long statusMask, long extraMask) {
+            mStatusMask = statusMask;
+            mExtraMask = extraMask;
+        }
+    }
+
+    /**
+     * 同じステータスが続いた区間です.
+     */
+    public static final class Entry {
+        private final long mFirstMillis;
+        private final long mLastMillis;
+        private final long mStatus;
+        private final long mExtra;
+
+        Entry(long firstMillis, long lastMillis, long status, long extra) {
+            mFirstMillis = firstMillis;
+            mLastMillis = lastMillis;
+            mStatus = status;
+            mExtra = extra;
+        }
+
+        /**
+         * 最初に受け取った時刻を返します.
+         *
+         * @return {@link System#currentTimeMillis()} 基準の時刻。
+         */
+        public long getFirstMillis() {
+            return mFirstMillis;
+        }
+
+        /**
+         * 最後に受け取った時刻を返します.
+         *
+         * @return {@link System#currentTimeMillis()} 基準の時刻。
+         */
+        public long getLastMillis() {
+            return mLastMillis;
+        }
+
+        /**
+         * 続けて受け取った回数を返します.
+         *
+         * @return 回数。
+         */
+        public long getPollCount() {
+            return mExtra >>> 16;
+        }
+
+        /**
+         * {@link StatusHistory#pack(RL700SStatus)} で詰めた値を返します.
+         *
+         * @return 詰めた値。
+         */
+        public long getPackedStatus() {
+            return mStatus;
+        }
+
+        public int getErrorInfoRawValue() {
+            return (int) (mStatus & 0xffff);
+        }
+
+        /**
+         * エラー情報が立っているかどうかを返します.
+         *
+         * @param error エラー情報。
+         * @return 立っていれば {@code true}。
+         */
+        public boolean hasError(ErrorInfo error) {
+            return (mStatus & error.rawValue()) != 0;
+        }
+
+        public int getPhaseNumber() {
+            return (int) (mExtra & PHASE_NUMBER_MASK);
+        }
+
+        /**
+         * ステータスを復元します.
+         *
+         * @return 新しいインスタンス。
+         */
+        public RL700SStatus getStatus() {
+            return unpack(mStatus, getPhaseNumber());
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mFirstMillis + ".." + mLastMillis + " x" + getPollCount() + "] "
+                    + Long.toHexString(mStatus) + "/" + getPhaseNumber();
+        }
+    }
+
+    /**
+     * 指定した項目が変化した箇所です.
+     */
+    public static final class Transition {
+        private final Entry mBefore;
+        private final Entry mAfter;
+
+        Transition(Entry before, Entry after) {
+            mBefore = before;
+            mAfter = after;
+        }
+
+        /**
+         * 変化を検出した時刻を返します.
+         *
+         * @return {@link System#currentTimeMillis()} 基準の時刻。
+         */
+        public long getTimeMillis() {
+            return mAfter.getFirstMillis();
+        }
+
+        public Entry getBefore() {
+            return mBefore;
+        }
+
+        public Entry getAfter() {
+            return mAfter;
+        }
+
+        /**
+         * 新しく立ったエラー情報を返します.
+         *
+         * @return エラー情報 1 を下位 8 ビット、エラー情報 2 を上位 8 ビットとした値。
+         */
+        public int getRaisedErrors() {
+            return mAfter.getErrorInfoRawValue() & ~mBefore.getErrorInfoRawValue();
+        }
+
+        /**
+         * 解除されたエラー情報を返します.
+         *
+         * @return エラー情報 1 を下位 8 ビット、エラー情報 2 を上位 8 ビットとした値。
+         */
+        public int getClearedErrors() {
+            return mBefore.getErrorInfoRawValue() & ~mAfter.getErrorInfoRawValue();
+        }
+    }
+
+    private static final long PHASE_NUMBER_MASK = 0xffffL;
+    private static final long ONE_POLL = 1L << 16;
+
+    private final long[] mFirstMillis;
+    private final long[] mLastMillis;
+    private final long[] mStatus;
+    /** 下位 16 ビットがフェーズ番号、上位 48 ビットが連続回数. */
+    private final long[] mExtra;
+    /** 最も古いエントリの位置. */
+    private int mHead;
+    private int mSize;
+    private long mPollCount;
+
+    /**
+     * インスタンスを構築します.
+     *
+     * @param capacity 保持するエントリ(変化)の最大数。
+     */
+    public StatusHistory(int capacity) {
+        super();
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("'capacity' must be positive: " + capacity);
+        }
+        mFirstMillis = new long[capacity];
+        mLastMillis = new long[capacity];
+        mStatus = new long[capacity];
+        mExtra = new long[capacity];
+    }
+
+    /**
+     * ステータスのフェーズ番号以外を 1 つの {@code long} に詰めます.
+     *
+     * <p>
+     * 下位から順に、エラー情報(16 ビット)、拡張エラー番号、メディア幅、メディア種類、
+     * メディア長さ、ステータス種別、フェーズ種別(各 8 ビット)です。
+     * </p>
+     *
+     * @param status ステータス。
+     * @return 詰めた値。
+     */
+    public static long pack(RL700SStatus status) {
+        return (status.getErrorInfoRawValue() & 0xffffL)
+                | ((status.getEnhancedErrorCode() & 0xffL) << 16)
+                | ((status.getMediaWidth() & 0xffL) << 24)
+                | ((status.getMediaType() & 0xffL) << 32)
+                | ((status.getMediaLength() & 0xffL) << 40)
+                | ((status.getStatusType() & 0xffL) << 48)
+                | ((status.getPhaseType() & 0xffL) << 56);
+    }
+
+    /**
+     * {@link #pack(RL700SStatus)} で詰めた値からステータスを復元します.
+     *
+     * @param packed 詰めた値。
+     * @param phaseNumber フェーズ番号。
+     * @return 新しいインスタンス。
+     */
+    public static RL700SStatus unpack(long packed, int phaseNumber) {
+        return new RL700SStatus((int) (packed >>> 16) & 0xff, (int) packed & 0xff,
+                (int) (packed >>> 8) & 0xff, (int) (packed >>> 24) & 0xff,
+                (int) (packed >>> 32) & 0xff, (int) (packed >>> 40) & 0xff,
+                (int) (packed >>> 48) & 0xff, (int) (packed >>> 56) & 0xff, phaseNumber);
+    }
+
+    /**
+     * ステータスを記録します.
+     *
+     * @param timeMillis 受け取った時刻({@link System#currentTimeMillis()} 基準)。
+     *            直前の記録より前の時刻は直前の記録と同じ時刻として扱います。
+     * @param status ステータス。
+     */
+    public void record(long timeMillis, RL700SStatus status) {
+        record(timeMillis, pack(status), status.getPhaseNumber());
+    }
+
+    /**
+     * 詰めたステータスを記録します.
+     *
+     * @param timeMillis 受け取った時刻({@link System#currentTimeMillis()} 基準)。
+     * @param packed {@link #pack(RL700SStatus)} で詰めた値。
+     * @param phaseNumber フェーズ番号。
+     */
+    public synchronized void record(long timeMillis, long packed, int phaseNumber) {
+        mPollCount++;
+        final long phase = phaseNumber & PHASE_NUMBER_MASK;
+        if (0 < mSize) {
+            final int newest = index(mSize - 1);
+            final long time = Math.max(timeMillis, mLastMillis[newest]);
+            if (mStatus[newest] == packed && (mExtra[newest] & PHASE_NUMBER_MASK) == phase) {
+                mLastMillis[newest] = time;
+                mExtra[newest] += ONE_POLL;
+                return;
+            }
+            timeMillis = time;
+        }
+        final int i;
+        if (mSize < mStatus.length) {
+            i = index(mSize);
+            mSize++;
+        } else {
+            i = mHead;
+            mHead = index(1);
+        }
+        mFirstMillis[i] = timeMillis;
+        mLastMillis[i] = timeMillis;
+        mStatus[i] = packed;
+        mExtra[i] = ONE_POLL | phase;
+    }
+
+    /**
+     * 保持しているエントリの数を返します.
+     *
+     * @return エントリ数。
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * これまでに記録したステータスの数を返します.
+     *
+     * @return 上書きされたものも含めた数。
+     */
+    public synchronized long getPollCount() {
+        return mPollCount;
+    }
+
+    /**
+     * 最新のエントリを返します.
+     *
+     * @return エントリ。記録がない場合は {@code null}。
+     */
+    public synchronized Entry getLatest() {
+        return (mSize == 0) ? null : entry(index(mSize - 1));
+    }
+
+    /**
+     * 時刻の範囲に重なるエントリを返します。各エントリは次のエントリの最初の時刻まで続いたものとみなします.
+     *
+     * @param fromMillis 開始時刻(この時刻を含む)。
+     * @param toMillis 終了時刻(この時刻を含まない)。
+     * @return 時刻順のエントリのリスト。
+     */
+    public synchronized List<Entry> query(long fromMillis, long toMillis) {
+        final List<Entry> result = new ArrayList<Entry>();
+        for (int n = firstInEffect(fromMillis); n < mSize; n++) {
+            final int i = index(n);
+            if (toMillis <= mFirstMillis[i]) {
+                break;
+            }
+            result.add(entry(i));
+        }
+        return result;
+    }
+
+    /**
+     * 時刻の範囲内で、指定した項目が変化した箇所を返します.
+     *
+     * @param fromMillis 開始時刻(この時刻を含む)。
+     * @param toMillis 終了時刻(この時刻を含まない)。
+     * @param fields 比較する項目。
+     * @return 時刻順の変化のリスト。
+     */
+    public synchronized List<Transition> getTransitions(long fromMillis, long toMillis,
+            EnumSet<Field> fields) {
+        long statusMask = 0L;
+        long extraMask = 0L;
+        for (Field f : fields) {
+            statusMask |= f.mStatusMask;
+            extraMask |= f.mExtraMask;
+        }
+        final List<Transition> result = new ArrayList<Transition>();
+        // 範囲の先頭のエントリは、その直前のエントリからの変化として扱う
+        final int first = lowerBound(fromMillis);
+        int prev = (first == 0) ? -1 : index(first - 1);
+        for (int n = first; n < mSize; n++) {
+            final int i = index(n);
+            if (toMillis <= mFirstMillis[i]) {
+                break;
+            }
+            if (0 <= prev && (((mStatus[prev] ^ mStatus[i]) & statusMask) != 0
+                    || ((mExtra[prev] ^ mExtra[i]) & extraMask) != 0)) {
+                result.add(new Transition(entry(prev), entry(i)));
+            }
+            prev = i;
+        }
+        return result;
+    }
+
+    /**
+     * 時刻の範囲内で、エラー情報が立っていた時間を返します.
+     *
+     * <p>
+     * 各エントリは次のエントリの最初の時刻まで(最新のエントリは最後に受け取った時刻まで)
+     * 続いたものとみなします。
+     * </p>
+     *
+     * @param fromMillis 開始時刻(この時刻を含む)。
+     * @param toMillis 終了時刻(この時刻を含まない)。
+     * @param error エラー情報。
+     * @return ミリ秒。
+     */
+    public synchronized long getDurationMillis(long fromMillis, long toMillis, ErrorInfo error) {
+        final long bit = error.rawValue();
+        long total = 0L;
+        for (int n = firstInEffect(fromMillis); n < mSize; n++) {
+            final int i = index(n);
+            if (toMillis <= mFirstMillis[i]) {
+                break;
+            }
+            if ((mStatus[i] & bit) == 0) {
+                continue;
+            }
+            final long end = (n + 1 < mSize) ? mFirstMillis[index(n + 1)] : mLastMillis[i];
+            final long overlap = Math.min(end, toMillis) - Math.max(mFirstMillis[i], fromMillis);
+            if (0 < overlap) {
+                total += overlap;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 最初の時刻が {@code timeMillis} 以上である最初のエントリの順番を返します.
+     */
+    private int lowerBound(long timeMillis) {
+        int lo = 0;
+        int hi = mSize;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mFirstMillis[index(mid)] < timeMillis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * {@code timeMillis} の時点で続いていたエントリ(なければその後の最初のエントリ)の順番を返します.
+     */
+    private int firstInEffect(long timeMillis) {
+        final int lo = lowerBound(timeMillis);
+        if (0 < lo && (lo == mSize || timeMillis < mFirstMillis[index(lo)])) {
+            return lo - 1;
+        }
+        return lo;
+    }
+
+    private int index(int n) {
+        final int i = mHead + n;
+        return (i < mStatus.length) ? i : i - mStatus.length;
+    }
+
+    private Entry entry(int i) {
+        return new Entry(mFirstMillis[i], mLastMillis[i], mStatus[i], mExtra[i]);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.StatusChangeEvent.Type;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * ポーリングで受け取ったステータスを直前のものと比べ、変化だけをリスナーへ通知するクラスです.
+ *
+ * <p>
+ * 比較は {@link StatusHistory#pack(RL700SStatus)} で詰めた値の排他的論理和を項目ごとのマスクで
+ * 調べて行うので、変化のないポーリングではオブジェクトを生成しません。
+ * </p>
+ * <p>
+ * 通知はリスナーごとに登録時の {@link Executor} で行い、 {@link #onStatus(long, RL700SStatus)}
+ * はリスナーの処理を待ちません。リスナーが前の通知を処理している間に起きた変化は種類ごとに
+ * 1 つにまとめて保留するので、止まったリスナーがあっても保留される通知は種類の数を超えません。
+ * 同じリスナーへの通知が並行して呼ばれることはありません。
+ * </p>
+ */
+public final class StatusMonitor {
+
+    /**
+     * ステータスの変化を受け取るインターフェースです.
+     */
+    public interface Listener {
+        /**
+         * ステータスの変化を受け取ります.
+         *
+         * @param event 変化。
+         */
+        void onStatusChanged(StatusChangeEvent event);
+    }
+
+    private static final long ERRORS_MASK = 0xffffffL;
+    private static final long MEDIA_MASK = 0xffffffL << 24;
+    private static final long PHASE_MASK = 0xffL << 56;
+
+    /**
+     * リスナーごとの保留中の通知です.
+     */
+    private static final class Subscription implements Runnable {
+        final Listener mListener;
+        private final Executor mExecutor;
+        /** 種類ごとの保留中の通知。最初に保留した順に通知する. */
+        private final EnumMap<Type, StatusChangeEvent> mPending = new EnumMap<Type, StatusChangeEvent>(
+                Type.class);
+        private final List<Type> mOrder = new ArrayList<Type>();
+        private boolean mScheduled;
+
+        Subscription(Listener listener, Executor executor) {
+            super();
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void offer(List<StatusChangeEvent> events) {
+            synchronized (this) {
+                for (StatusChangeEvent e : events) {
+                    final StatusChangeEvent prev = mPending.get(e.getType());
+                    if (prev == null) {
+                        mPending.put(e.getType(), e);
+                        mOrder.add(e.getType());
+                    } else {
+                        mPending.put(e.getType(), prev.merge(e));
+                    }
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            boolean submitted = false;
+            try {
+                mExecutor.execute(this);
+                submitted = true;
+            } finally {
+                if (!submitted) {
+                    synchronized (this) {
+                        mScheduled = false;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean reschedule = true;
+            try {
+                while (true) {
+                    final StatusChangeEvent event;
+                    synchronized (this) {
+                        if (mOrder.isEmpty()) {
+                            mScheduled = false;
+                            reschedule = false;
+                            return;
+                        }
+                        event = mPending.remove(mOrder.remove(0));
+                    }
+                    mListener.onStatusChanged(event);
+                }
+            } finally {
+                if (reschedule) {
+                    // リスナーが例外を投げても残りの通知は改めて配送する
+                    schedule();
+                }
+            }
+        }
+    }
+
+    private final Executor mDefaultExecutor;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private RL700SStatus mLast;
+    private long mLastPacked;
+
+    /**
+     * インスタンスを構築します.
+     *
+     * @param executor {@link #addListener(Listener)} で登録したリスナーへの通知に使うもの。
+     */
+    public StatusMonitor(Executor executor) {
+        super();
+        mDefaultExecutor = executor;
+    }
+
+    /**
+     * 構築時の {@link Executor} で通知を受けるリスナーを登録します.
+     *
+     * @param listener リスナー。
+     */
+    public void addListener(Listener listener) {
+        addListener(listener, mDefaultExecutor);
+    }
+
+    /**
+     * 指定した {@link Executor} で通知を受けるリスナーを登録します.
+     *
+     * @param listener リスナー。
+     * @param executor 通知に使うもの。
+     */
+    public void addListener(Listener listener, Executor executor) {
+        mSubscriptions.add(new Subscription(listener, executor));
+    }
+
+    /**
+     * リスナーの登録を解除します。保留中の通知は捨てずに配送します.
+     *
+     * @param listener リスナー。
+     */
+    public void removeListener(Listener listener) {
+        for (Subscription s : mSubscriptions) {
+            if (s.mListener == listener) {
+                mSubscriptions.remove(s);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 直前に受け取ったステータスを返します.
+     *
+     * @return ステータス。まだ受け取っていない場合は {@code null}。
+     */
+    public synchronized RL700SStatus getLastStatus() {
+        return mLast;
+    }
+
+    /**
+     * 現在時刻で受け取ったステータスを渡します.
+     *
+     * @param status ステータス。
+     */
+    public void onStatus(RL700SStatus status) {
+        onStatus(System.currentTimeMillis(), status);
+    }
+
+    /**
+     * 受け取ったステータスを渡します。直前のステータスからの変化をリスナーへ通知します.
+     *
+     * <p>
+     * 最初のステータスでは、エラーが立っていれば {@link Type#ERRORS_CHANGED} を、
+     * メディアの検出として {@link Type#MEDIA_CHANGED} を通知します。
+     * 印刷終了のステータスは直前と同じ内容でも毎回 {@link Type#PRINT_COMPLETE} を通知します。
+     * </p>
+     *
+     * @param timeMillis 受け取った時刻。
+     * @param status ステータス。
+     */
+    public void onStatus(long timeMillis, RL700SStatus status) {
+        final List<StatusChangeEvent> events = diff(timeMillis, status);
+        if (events == null) {
+            return;
+        }
+        for (Subscription s : mSubscriptions) {
+            s.offer(events);
+        }
+    }
+
+    private synchronized List<StatusChangeEvent> diff(long timeMillis, RL700SStatus status) {
+        final RL700SStatus prev = mLast;
+        final long packed = StatusHistory.pack(status);
+        final long changed;
+        if (prev == null) {
+            changed = (packed & ERRORS_MASK) | MEDIA_MASK;
+        } else {
+            changed = (packed ^ mLastPacked)
+                    | ((prev.getPhaseNumber() != status.getPhaseNumber()) ? PHASE_MASK : 0L);
+        }
+        mLast = status;
+        mLastPacked = packed;
+        final boolean complete = status.getStatusType() == RL700SStatus.STATUS_TYPE_PRINT_COMPLETE;
+        if ((changed & (ERRORS_MASK | MEDIA_MASK | PHASE_MASK)) == 0L && !complete) {
+            return null;
+        }
+
+        final List<StatusChangeEvent> events = new ArrayList<StatusChangeEvent>(2);
+        if ((changed & ERRORS_MASK) != 0L) {
+            final int before = (prev == null) ? 0 : prev.getErrorInfoRawValue();
+            final int after = status.getErrorInfoRawValue();
+            events.add(new StatusChangeEvent(Type.ERRORS_CHANGED, timeMillis, prev, status, after
+                    & ~before, before & ~after, 1));
+        }
+        if ((changed & MEDIA_MASK) != 0L) {
+            events.add(new StatusChangeEvent(Type.MEDIA_CHANGED, timeMillis, prev, status, 0, 0, 1));
+        }
+        if ((changed & PHASE_MASK) != 0L) {
+            events.add(new StatusChangeEvent(Type.PHASE_CHANGED, timeMillis, prev, status, 0, 0, 1));
+        }
+        if (complete) {
+            events.add(new StatusChangeEvent(Type.PRINT_COMPLETE, timeMillis, prev, status, 0, 0, 1));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多数のプリンタのステータスを 1 つのスレッドで定期的に取得するクラスです.
+ *
+ * <p>
+ * すべてのプリンタのチャネルを非ブロッキングモードで 1 つの {@link Selector} に登録し、
+ * タイマーホイールでプリンタごとにステータスリクエストを送る時刻を管理します。
+ * 印刷中のプリンタは短い間隔、待機中のプリンタは長い間隔で問い合わせます。
+ * </p>
+ * <p>
+ * 受信用のバッファは共有のダイレクトバッファから 1 台あたり {@link RL700SStatus#STATUS_SIZE}
+ * バイトずつ切り出し、ステータスはそのバッファ上でコピーせずに解釈します。
+ * {@link Listener} はセレクタのスレッドから呼び出すので、ブロックしないでください。
+ * </p>
+ */
+public final class StatusPoller implements Closeable {
+
+    /**
+     * ステータスの受信を通知するリスナです.
+     */
+    public interface Listener {
+
+        /**
+         * ステータスを受信しました.
+         *
+         * @param device プリンタ。
+         * @param status ステータス。リクエストへの返信以外に、プリンタから自発的に送られた
+         *            ステータスも含みます。
+         */
+        void onStatus(Device device, RL700SStatus status);
+
+        /**
+         * 待ち時間内に返信がありませんでした.
+         *
+         * @param device プリンタ。
+         */
+        void onTimeout(Device device);
+
+        /**
+         * 通信または解釈に失敗しました.
+         *
+         * @param device プリンタ。
+         * @param e {@link ParseException} の場合は受信途中のデータを捨てて継続します。
+         *            {@link IOException} の場合はプリンタを取り除き、チャネルを閉じています。
+         */
+        void onError(Device device, Exception e);
+    }
+
+    /** 印刷中の問い合わせ間隔のデフォルト値(ミリ秒). */
+    public static final long DEFAULT_BUSY_INTERVAL_MILLIS = 250L;
+    /** 待機中の問い合わせ間隔のデフォルト値(ミリ秒). */
+    public static final long DEFAULT_IDLE_INTERVAL_MILLIS = 5000L;
+    /** 返信を待つ時間のデフォルト値(ミリ秒). */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000L;
+
+    /** タイマーホイールの 1 目盛り(ミリ秒). */
+    private static final long TICK_MILLIS = 10L;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    /** 共有バッファを 1 度に確保する台数. */
+    private static final int ARENA_CHUNK_DEVICES = 64;
+
+    /** ステータスの先頭のバイト列. */
+    private static final byte[] STATUS_HEADER = {
+            (byte) 0x80, 0x20, 'B'
+    };
+
+    /** ステータスリクエスト. 各プリンタは複製を使います. */
+    private static final ByteBuffer STATUS_REQUEST;
+
+    static {
+        final ByteBuffer cmd = RL700SCommands.allocateOutBuffer();
+        RL700SCommands.getStatus(cmd);
+        final ByteBuffer request = ByteBuffer.allocateDirect(cmd.remaining());
+        request.put(cmd);
+        request.flip();
+        STATUS_REQUEST = request.asReadOnlyBuffer();
+    }
+
+    /**
+     * 問い合わせ対象のプリンタです.
+     *
+     * <p>
+     * 統計値はどのスレッドからでも読めます。
+     * </p>
+     */
+    public final class Device {
+        private final int mId;
+        private final SelectableChannel mSelectable;
+        private final ByteChannel mChannel;
+        private final ByteBuffer mOut = STATUS_REQUEST.duplicate();
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final RL700SMetrics.StatusTracker mTracker = new RL700SMetrics.StatusTracker();
+        private final AtomicLong mPollCount = new AtomicLong();
+        private final AtomicLong mTimeoutCount = new AtomicLong();
+        private volatile RL700SStatus mLastStatus;
+        private volatile boolean mBusy;
+
+        // 以下はセレクタのスレッドだけが使う
+        private SelectionKey mKey;
+        private ByteBuffer mIn;
+        private boolean mAwaiting;
+        private long mSentNanos;
+        /** タイマーホイール上の期限(目盛り). */
+        private long mDeadline;
+        /** 登録されているスロット. 登録されていなければ -1. */
+        private int mSlot = -1;
+        private Device mPrev;
+        private Device mNext;
+        private boolean mRemoved;
+
+        Device(int id, SelectableChannel selectable, ByteChannel channel) {
+            super();
+            mId = id;
+            mSelectable = selectable;
+            mChannel = channel;
+        }
+
+        /**
+         * プリンタ番号を返します.
+         *
+         * @return 追加順の 0 始まりの番号。
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * リクエストを送ってから返信を受け取るまでの時間の分布を返します.
+         *
+         * @return ナノ秒単位のヒストグラム。
+         */
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * ステータスリクエストを送った回数を返します.
+         *
+         * @return 回数。
+         */
+        public long getPollCount() {
+            return mPollCount.get();
+        }
+
+        /**
+         * 返信がなかった回数を返します.
+         *
+         * @return 回数。
+         */
+        public long getTimeoutCount() {
+            return mTimeoutCount.get();
+        }
+
+        /**
+         * 最後に受信したステータスを返します.
+         *
+         * @return ステータス。まだ受信していなければ {@code null}。
+         */
+        public RL700SStatus getLastStatus() {
+            return mLastStatus;
+        }
+
+        /**
+         * 最後に受信したステータスが印刷中だったかを返します.
+         *
+         * @return 印刷中であれば {@code true}。
+         */
+        public boolean isBusy() {
+            return mBusy;
+        }
+
+        @Override
+        public String toString() {
+            return "Device[" + mId + "]";
+        }
+    }
+
+    /**
+     * 受信用バッファを切り出す共有のダイレクトバッファです. セレクタのスレッドだけが使います.
+     */
+    private static final class Arena {
+        private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer mChunk;
+
+        ByteBuffer allocate() {
+            final ByteBuffer free = mFree.poll();
+            if (free != null) {
+                return free;
+            }
+            if (mChunk == null || !mChunk.hasRemaining()) {
+                mChunk = ByteBuffer.allocateDirect(ARENA_CHUNK_DEVICES * RL700SStatus.STATUS_SIZE);
+            }
+            final ByteBuffer b = mChunk.duplicate();
+            b.limit(b.position() + RL700SStatus.STATUS_SIZE);
+            mChunk.position(b.limit());
+            return b.slice();
+        }
+
+        void release(ByteBuffer b) {
+            b.clear();
+            mFree.add(b);
+        }
+    }
+
+    private final Listener mListener;
+    private final long mBusyIntervalMillis;
+    private final long mIdleIntervalMillis;
+    private final long mTimeoutMillis;
+    private final Selector mSelector;
+    private final Arena mArena = new Arena();
+    private final ConcurrentLinkedQueue<Device> mAdded = new ConcurrentLinkedQueue<Device>();
+    private final ConcurrentLinkedQueue<Device> mRemoved = new ConcurrentLinkedQueue<Device>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private volatile boolean mClosed;
+    private boolean mStarted;
+
+    /** タイマーホイール. スロットごとの双方向リストの先頭です. */
+    private final Device[] mWheel = new Device[WHEEL_SIZE];
+    private final long mStartNanos = System.nanoTime();
+    /** 処理を終えた目盛り. */
+    private long mTick;
+    private int mScheduled;
+
+    /**
+     * デフォルトの間隔でステータスを取得するインスタンスを構築します.
+     *
+     * @param listener リスナ。
+     * @throws IOException セレクタを開けなかった場合。
+     */
+    public StatusPoller(Listener listener) throws IOException {
+        this(listener, DEFAULT_BUSY_INTERVAL_MILLIS, DEFAULT_IDLE_INTERVAL_MILLIS,
+                DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * 問い合わせ間隔を指定してインスタンスを構築します.
+     *
+     * @param listener リスナ。
+     * @param busyIntervalMillis 印刷中の問い合わせ間隔(ミリ秒)。
+     * @param idleIntervalMillis 待機中、またはまだステータスを受信していない場合の問い合わせ間隔(ミリ秒)。
+     * @param timeoutMillis 返信を待つ時間(ミリ秒)。
+     * @throws IOException セレクタを開けなかった場合。
+     */
+    public StatusPoller(Listener listener, long busyIntervalMillis, long idleIntervalMillis,
+            long timeoutMillis) throws IOException {
+        super();
+        if (busyIntervalMillis <= 0 || idleIntervalMillis <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("intervals must be positive.");
+        }
+        mListener = listener;
+        mBusyIntervalMillis = busyIntervalMillis;
+        mIdleIntervalMillis = idleIntervalMillis;
+        mTimeoutMillis = timeoutMillis;
+        mSelector = Selector.open();
+    }
+
+    /**
+     * プリンタを追加します. 最初のリクエストはすぐに送ります.
+     *
+     * @param channel プリンタと通信するチャネル。非ブロッキングモードにします。
+     *            プリンタを取り除くか、このインスタンスを閉じると一緒に閉じます。
+     * @return 追加したプリンタ。
+     * @throws IOException 非ブロッキングモードにできなかった場合。
+     */
+    public <C extends SelectableChannel & ByteChannel> Device addPrinter(C channel)
+            throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("already closed.");
+        }
+        channel.configureBlocking(false);
+        final Device d = new Device(mNextId.getAndIncrement(), channel, channel);
+        mAdded.add(d);
+        mSelector.wakeup();
+        return d;
+    }
+
+    /**
+     * プリンタを取り除き、チャネルを閉じます.
+     *
+     * @param device プリンタ。
+     */
+    public void removePrinter(Device device) {
+        mRemoved.add(device);
+        mSelector.wakeup();
+    }
+
+    /**
+     * セレクタのスレッドを開始します.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("already started.");
+        }
+        mStarted = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "StatusPoller").start();
+    }
+
+    /**
+     * ステータスの取得を止め、すべてのプリンタのチャネルを閉じます.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mSelector.wakeup();
+        synchronized (this) {
+            if (!mStarted) {
+                for (Device d = mAdded.poll(); d != null; d = mAdded.poll()) {
+                    closeQuietly(d);
+                }
+                mSelector.close();
+            }
+        }
+    }
+
+    private void poll() {
+        try {
+            while (!mClosed) {
+                if (mScheduled == 0) {
+                    mSelector.select();
+                } else {
+                    mSelector.select(TICK_MILLIS);
+                }
+                for (Device d = mAdded.poll(); d != null; d = mAdded.poll()) {
+                    register(d);
+                }
+                for (Device d = mRemoved.poll(); d != null; d = mRemoved.poll()) {
+                    remove(d);
+                }
+                final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    handle(key, (Device) key.attachment());
+                }
+                advance();
+            }
+        } catch (IOException e) {
+            // セレクタが使えなくなったので停止する
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                closeQuietly((Device) key.attachment());
+            }
+            for (Device d = mAdded.poll(); d != null; d = mAdded.poll()) {
+                closeQuietly(d);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // 閉じるときの失敗は無視する
+            }
+        }
+    }
+
+    private void register(Device d) {
+        try {
+            d.mKey = d.mSelectable.register(mSelector, SelectionKey.OP_READ, d);
+        } catch (IOException e) {
+            closeQuietly(d);
+            mListener.onError(d, e);
+            return;
+        }
+        d.mIn = mArena.allocate();
+        schedule(d, 0L);
+    }
+
+    private void remove(Device d) {
+        if (d.mRemoved) {
+            return;
+        }
+        d.mRemoved = true;
+        unlink(d);
+        if (d.mIn != null) {
+            mArena.release(d.mIn);
+            d.mIn = null;
+        }
+        closeQuietly(d);
+    }
+
+    private void handle(SelectionKey key, Device d) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                onReadable(d);
+            }
+            if (key.isValid() && key.isWritable()) {
+                onWritable(d);
+            }
+        } catch (IOException e) {
+            fail(d, e);
+        }
+    }
+
+    private void fail(Device d, IOException e) {
+        remove(d);
+        mListener.onError(d, e);
+    }
+
+    private void onReadable(Device d) throws IOException {
+        final ByteBuffer in = d.mIn;
+        while (true) {
+            if (d.mChannel.read(in) < 0) {
+                throw new EOFException("printer closed the connection.");
+            }
+            if (in.hasRemaining()) {
+                return;
+            }
+            in.flip();
+            final RL700SStatus status;
+            try {
+                status = RL700SStatus.parse(in);
+            } catch (ParseException e) {
+                resync(in);
+                mListener.onError(d, e);
+                continue;
+            }
+            in.clear();
+            onStatus(d, status);
+        }
+    }
+
+    /**
+     * 解析できなかったステータスの、 2 バイト目以降にあるヘッダーの候補まで読み捨てます.
+     *
+     * @param in 解析に失敗したステータス 1 つ分。候補から後ろを先頭に詰め、続きを読める状態にします。
+     */
+    private static void resync(ByteBuffer in) {
+        final int limit = in.limit();
+        int start = 1;
+        for (; start < limit; start++) {
+            final int n = Math.min(STATUS_HEADER.length, limit - start);
+            int i = 0;
+            while (i < n && in.get(start + i) == STATUS_HEADER[i]) {
+                i++;
+            }
+            if (i == n) {
+                break;
+            }
+        }
+        in.position(start);
+        in.compact();
+    }
+
+    private void onStatus(Device d, RL700SStatus status) {
+        final long now = System.nanoTime();
+        d.mTracker.onStatus(status, now);
+        d.mLastStatus = status;
+        d.mBusy = (status.getPhaseType() == RL700SStatus.PHASE_TYPE_PRINTING);
+        if (d.mAwaiting) {
+            if (status.getStatusType() == RL700SStatus.STATUS_TYPE_REPLY) {
+                d.mLatency.record(now - d.mSentNanos);
+                d.mAwaiting = false;
+                schedule(d, interval(d));
+            }
+        } else {
+            // 自発的に送られたステータスで印刷中かどうかが変わることがあるので次の問い合わせを決め直す
+            schedule(d, interval(d));
+        }
+        mListener.onStatus(d, status);
+    }
+
+    private void onWritable(Device d) throws IOException {
+        d.mChannel.write(d.mOut);
+        if (!d.mOut.hasRemaining()) {
+            d.mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private long interval(Device d) {
+        return d.mBusy ? mBusyIntervalMillis : mIdleIntervalMillis;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - mStartNanos) / TICK_NANOS;
+    }
+
+    /**
+     * 期限を過ぎたプリンタに、リクエストの送信か返信待ちのタイムアウトを行います.
+     */
+    private void advance() {
+        final long now = currentTick();
+        final long last = Math.min(now, mTick + WHEEL_SIZE);
+        for (long t = mTick + 1; t <= last; t++) {
+            Device d = mWheel[(int) (t & WHEEL_MASK)];
+            while (d != null) {
+                final Device next = d.mNext;
+                if (d.mDeadline <= now) {
+                    fire(d, now);
+                }
+                d = next;
+            }
+        }
+        mTick = now;
+    }
+
+    private void fire(Device d, long now) {
+        unlink(d);
+        if (d.mAwaiting) {
+            d.mAwaiting = false;
+            d.mTimeoutCount.incrementAndGet();
+            // 受信途中のデータは遅れて届く残りとつながるので残しておく。
+            // ずれていた場合は解析に失敗した時点で先頭を探し直す
+            schedule(d, interval(d), now);
+            mListener.onTimeout(d);
+            return;
+        }
+        d.mOut.rewind();
+        try {
+            d.mChannel.write(d.mOut);
+        } catch (IOException e) {
+            fail(d, e);
+            return;
+        }
+        if (d.mOut.hasRemaining()) {
+            d.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        d.mAwaiting = true;
+        d.mSentNanos = System.nanoTime();
+        d.mTracker.onStatusRequested(d.mSentNanos);
+        d.mPollCount.incrementAndGet();
+        schedule(d, mTimeoutMillis, now);
+    }
+
+    private void schedule(Device d, long delayMillis) {
+        schedule(d, delayMillis, currentTick());
+    }
+
+    private void schedule(Device d, long delayMillis, long now) {
+        unlink(d);
+        if (d.mRemoved) {
+            return;
+        }
+        final long ticks = Math.max(1L, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        d.mDeadline = Math.max(now, mTick) + ticks;
+        final int slot = (int) (d.mDeadline & WHEEL_MASK);
+        d.mSlot = slot;
+        d.mPrev = null;
+        d.mNext = mWheel[slot];
+        if (d.mNext != null) {
+            d.mNext.mPrev = d;
+        }
+        mWheel[slot] = d;
+        mScheduled++;
+    }
+
+    private void unlink(Device d) {
+        if (d.mSlot < 0) {
+            return;
+        }
+        if (d.mPrev == null) {
+            mWheel[d.mSlot] = d.mNext;
+        } else {
+            d.mPrev.mNext = d.mNext;
+        }
+        if (d.mNext != null) {
+            d.mNext.mPrev = d.mPrev;
+        }
+        d.mPrev = null;
+        d.mNext = null;
+        d.mSlot = -1;
+        mScheduled--;
+    }
+
+    private static void closeQuietly(Device d) {
+        try {
+            d.mSelectable.close();
+        } catch (IOException e) {
+            // 閉じるときの失敗は無視する
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * コマンドをメモリに溜めずにチャネルへ書き出しながらジョブを組み立てるクラスです.
+ *
+ * <p>
+ * {@link JobEncoder} と同じコマンド列を生成しますが、ジョブ全体を {@link EncodedJob}
+ * として保持しないので、 {@link PbmRasterSource} などの巨大なラスターを一定のヒープで
+ * 印刷できます。その代わり、ページ単位の再送や切り替えはできません。
+ * </p>
+ * <p>
+ * チャネルはブロッキングモードであること。スレッドセーフではありません。
+ * </p>
+ */
+public final class StreamingJobWriter {
+
+    /** 書き出し用バッファの既定のサイズ(バイト). */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final WritableByteChannel mChannel;
+    private final PrintSettings mSettings;
+    private final ByteBuffer mCommand = RL700SCommands.allocateOutBuffer();
+    private final LineCommandEncoder mLines;
+    private final ByteBuffer mOut;
+
+    private long mBytesWritten;
+    private int mLineCount;
+    private int mPageCount;
+    private boolean mFinished;
+
+    /**
+     * 既定のバッファサイズでインスタンスを構築し、セットアップコマンドを書き込みます.
+     *
+     * @param channel 書き出し先。
+     * @param settings 印刷設定。
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public StreamingJobWriter(WritableByteChannel channel, PrintSettings settings)
+            throws IOException {
+        this(channel, settings, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * インスタンスを構築し、セットアップコマンドを書き込みます.
+     *
+     * @param channel 書き出し先。
+     * @param settings 印刷設定。
+     * @param bufferSize 書き出し用バッファのサイズ。 1 コマンド分以上であること。
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public StreamingJobWriter(WritableByteChannel channel, PrintSettings settings, int bufferSize)
+            throws IOException {
+        super();
+        if (bufferSize < mCommand.capacity()) {
+            throw new IllegalArgumentException("'bufferSize' too small: " + bufferSize);
+        }
+        mChannel = channel;
+        mSettings = settings;
+        mLines = new LineCommandEncoder(settings.getCompressionMode());
+        mOut = ByteBuffer.allocateDirect(bufferSize);
+        append(ByteBuffer.wrap(JobEncoder.setupBytes(settings)));
+    }
+
+    /**
+     * ラインを 1 つ追加します。すべてのビットが 0 の場合はゼロラスターラインとして送ります.
+     *
+     * @param line 非圧縮のラインビット列。
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void addLine(byte[] line) throws IOException {
+        checkNotFinished();
+        final ByteBuffer command = mLines.encode(line);
+        countLine(command);
+        append(command);
+        mLineCount++;
+    }
+
+    /**
+     * ラスターのすべてのラインを追加します。直前と同じ内容のラインは圧縮し直しません.
+     *
+     * @param source ラスター。
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void addLines(RasterSource source) throws IOException {
+        checkNotFinished();
+        for (int l = 0; l < source.getLineCount(); l++) {
+            final ByteBuffer command = mLines.encode(source, l);
+            countLine(command);
+            append(command);
+            mLineCount++;
+        }
+    }
+
+    /**
+     * 現在のページを閉じ、次のページを開始します.
+     *
+     * @param halfCut {@code true} の場合はカットライン前の印字司令、 {@code false}
+     *            の場合は通常の印字司令でページを閉じます。
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void endPage(boolean halfCut) throws IOException {
+        checkNotFinished();
+        if (halfCut) {
+            RL700SCommands.getStartPrintWithHalfCut(mCommand);
+        } else {
+            RL700SCommands.getStartPrint(mCommand);
+        }
+        append(mCommand);
+        mPageCount++;
+    }
+
+    /**
+     * 最後のページを排出動作を伴う印字司令で閉じ、残りをすべて書き出します.
+     *
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void finish() throws IOException {
+        checkNotFinished();
+        RL700SCommands.getStartPrintWithEvacuation(mCommand);
+        append(mCommand);
+        mPageCount++;
+        mFinished = true;
+        flush();
+
+        final RL700SMetrics metrics = RL700SMetrics.get();
+        if (metrics != null) {
+            metrics.onJobEncoded(mBytesWritten, mLineCount, -1L);
+        }
+    }
+
+    /**
+     * バッファに残っているコマンドを書き出します.
+     *
+     * @throws IOException 書き出しに失敗した場合。
+     */
+    public void flush() throws IOException {
+        final long start = RL700STracer.begin();
+        mOut.flip();
+        final int length = mOut.remaining();
+        while (mOut.hasRemaining()) {
+            mBytesWritten += mChannel.write(mOut);
+        }
+        mOut.clear();
+        RL700STracer.endCurrent(TraceEvent.CATEGORY_TRANSMIT, "write", start, "bytes=" + length);
+    }
+
+    /**
+     * チャネルへ書き出したバイト数を返します.
+     *
+     * @return バイト数。
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public int getPageCount() {
+        return mPageCount;
+    }
+
+    /**
+     * 計測が有効な場合、ラインコマンドを数えます.
+     */
+    private void countLine(ByteBuffer command) {
+        final RL700SMetrics metrics = RL700SMetrics.get();
+        if (metrics != null) {
+            metrics.onLineCommands(command, mSettings.getCompressionMode());
+        }
+    }
+
+    private void append(ByteBuffer command) throws IOException {
+        while (command.hasRemaining()) {
+            if (!mOut.hasRemaining()) {
+                flush();
+            }
+            final int n = Math.min(command.remaining(), mOut.remaining());
+            final ByteBuffer part = command.duplicate();
+            part.limit(part.position() + n);
+            mOut.put(part);
+            command.position(command.position() + n);
+        }
+    }
+
+    private void checkNotFinished() {
+        if (mFinished) {
+            throw new IllegalStateException("already finished.");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link BdfFont} の文字列を、ラスターラインへ直接書き込むクラスです.
+ *
+ * <p>
+ * 文字列はテープ送り方向に並べます。つまり文字列の横方向がライン番号、縦方向がライン内の
+ * ビット位置になり、文字の上端がビット位置の小さい側になります。
+ * グリフはこの向きに回転し、整数倍に拡大した状態でキャッシュしておき、描画時は
+ * {@code long} 単位のシフトと OR だけでラインに書き込みます。AWT は使いません。
+ * </p>
+ * <p>
+ * キャッシュはスレッドセーフで、同じインスタンスを複数のスレッドから使えます。
+ * ただし同じラインに同時に描画しないでください。
+ * </p>
+ */
+public final class TextRasterizer {
+
+    /**
+     * テープ送り方向に回転したグリフです.
+     */
+    private static final class RotatedGlyph {
+        /** 送り幅(ライン数). */
+        final int advance;
+        /** 原点から最初の列までのライン数. */
+        final int lineOffset;
+        /** 文字列の上端から最初のビットまでの距離. */
+        final int bitOffset;
+        /** 1 列のビット数. */
+        final int height;
+        /** 各列のビット列。空の列は {@code null}. */
+        final long[][] columns;
+
+        RotatedGlyph(int advance, int lineOffset, int bitOffset, int height, long[][] columns) {
+            this.advance = advance;
+            this.lineOffset = lineOffset;
+            this.bitOffset = bitOffset;
+            this.height = height;
+            this.columns = columns;
+        }
+    }
+
+    private static final RotatedGlyph MISSING = new RotatedGlyph(0, 0, 0, 0, new long[0][]);
+
+    private final BdfFont mFont;
+    private final int mScale;
+    private final ConcurrentMap<Integer, RotatedGlyph> mCache = new ConcurrentHashMap<Integer, RotatedGlyph>();
+
+    /**
+     * フォントと拡大率を指定してインスタンスを構築します.
+     *
+     * @param font フォント。
+     * @param scale 拡大率(1 以上の整数)。
+     */
+    public TextRasterizer(BdfFont font, int scale) {
+        super();
+        if (scale < 1) {
+            throw new IllegalArgumentException("'scale' must be positive: " + scale);
+        }
+        mFont = font;
+        mScale = scale;
+    }
+
+    public BdfFont getFont() {
+        return mFont;
+    }
+
+    public int getScale() {
+        return mScale;
+    }
+
+    /**
+     * 1 行の高さ(ライン内のビット数)を返します.
+     *
+     * @return 高さ。
+     */
+    public int getHeight() {
+        return mFont.getHeight() * mScale;
+    }
+
+    /**
+     * 文字列の長さ(ライン数)を返します.
+     *
+     * @param text 文字列。
+     * @return ライン数。
+     */
+    public int measure(CharSequence text) {
+        int lines = 0;
+        for (int i = 0; i < text.length();) {
+            final int cp = Character.codePointAt(text, i);
+            lines += glyph(cp).advance;
+            i += Character.charCount(cp);
+        }
+        return lines;
+    }
+
+    /**
+     * 文字列を新しいラインの配列に描画します.
+     *
+     * @param text 文字列。
+     * @param top ライン内での文字列の上端のビット位置。
+     * @return {@link #measure(CharSequence)} 本の、 {@link RL700SCommands#MAX_LINE_BYTES}
+     *         バイトのラインの配列。
+     */
+    public byte[][] render(CharSequence text, int top) {
+        final byte[][] lines = new byte[measure(text)][RL700SCommands.MAX_LINE_BYTES];
+        draw(text, lines, 0, top);
+        return lines;
+    }
+
+    /**
+     * 文字列を既存のラインに OR で描画します。範囲外にはみ出す部分は捨てます.
+     *
+     * @param text 文字列。
+     * @param lines 描画先のライン。
+     * @param firstLine 文字列の原点となるライン番号。
+     * @param top ライン内での文字列の上端のビット位置。
+     * @return 文字列の直後のライン番号。
+     */
+    public int draw(CharSequence text, byte[][] lines, int firstLine, int top) {
+        final long start = RL700STracer.begin();
+        int pen = firstLine;
+        for (int i = 0; i < text.length();) {
+            final int cp = Character.codePointAt(text, i);
+            i += Character.charCount(cp);
+            final RotatedGlyph g = glyph(cp);
+            final int base = pen + g.lineOffset;
+            final int bit = top + g.bitOffset;
+            final long[][] columns = g.columns;
+            for (int c = 0; c < columns.length; c++) {
+                final int line = base + c;
+                if (columns[c] == null || line < 0 || lines.length <= line) {
+                    continue;
+                }
+                PackedBits.orBits(lines[line], bit, columns[c], g.height);
+            }
+            pen += g.advance;
+        }
+        RL700STracer.endCurrent(TraceEvent.CATEGORY_RASTERIZE, "text", start, null);
+        return pen;
+    }
+
+    private RotatedGlyph glyph(int codePoint) {
+        final Integer key = Integer.valueOf(codePoint);
+        RotatedGlyph g = mCache.get(key);
+        if (g == null) {
+            g = rotate(mFont.getGlyph(codePoint));
+            final RotatedGlyph prev = mCache.putIfAbsent(key, g);
+            if (prev != null) {
+                g = prev;
+            }
+        }
+        return g;
+    }
+
+    private RotatedGlyph rotate(BdfFont.Glyph glyph) {
+        if (glyph == null) {
+            return MISSING;
+        }
+        final int s = mScale;
+        final int height = glyph.height * s;
+        final long[][] columns = new long[glyph.width * s][];
+        for (int x = 0; x < glyph.width; x++) {
+            long[] column = null;
+            for (int y = 0; y < glyph.height; y++) {
+                if (!glyph.get(x, y)) {
+                    continue;
+                }
+                if (column == null) {
+                    column = new long[PackedBits.words(height)];
+                }
+                for (int k = 0; k < s; k++) {
+                    PackedBits.set(column, y * s + k);
+                }
+            }
+            for (int k = 0; k < s; k++) {
+                // 拡大した列は同じ配列を共有してよい(描画時に書き換えないため)
+                columns[x * s + k] = column;
+            }
+        }
+        final int bitOffset = (mFont.getAscent() - glyph.yOffset - glyph.height) * s;
+        return new RotatedGlyph(glyph.advance * s, glyph.xOffset * s, bitOffset, height, columns);
+    }
+}
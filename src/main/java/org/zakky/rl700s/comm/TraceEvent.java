@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+/**
+ * {@link RL700STracer} が記録する 1 つの区間または瞬間です.
+ */
+public final class TraceEvent {
+
+    /** ラスター化. */
+    public static final String CATEGORY_RASTERIZE = "rasterize";
+    /** コマンドへのエンコード. */
+    public static final String CATEGORY_ENCODE = "encode";
+    /** スケジューラでの待ち. */
+    public static final String CATEGORY_QUEUE = "queue";
+    /** プリンタへの送信. */
+    public static final String CATEGORY_TRANSMIT = "transmit";
+    /** プリンタの状態変化. */
+    public static final String CATEGORY_PRINTER = "printer";
+
+    private final long mTraceId;
+    private final String mCategory;
+    private final String mName;
+    private final long mStartNanos;
+    private final long mDurationNanos;
+    private final long mThreadId;
+    private final String mThreadName;
+    private final String mDetail;
+
+    TraceEvent(long traceId, String category, String name, long startNanos, long durationNanos,
+            Thread thread, String detail) {
+        mTraceId = traceId;
+        mCategory = category;
+        mName = name;
+        mStartNanos = startNanos;
+        mDurationNanos = durationNanos;
+        mThreadId = thread.getId();
+        mThreadName = thread.getName();
+        mDetail = detail;
+    }
+
+    /**
+     * ジョブを識別する値を返します.
+     *
+     * @return トレース ID。
+     */
+    public long getTraceId() {
+        return mTraceId;
+    }
+
+    public String getCategory() {
+        return mCategory;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 開始時刻を返します.
+     *
+     * @return {@link System#nanoTime()} 基準の時刻。
+     */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * 区間の長さを返します.
+     *
+     * @return ナノ秒。瞬間の場合は -1。
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    /**
+     * 瞬間かどうかを返します.
+     *
+     * @return 瞬間であれば {@code true}。
+     */
+    public boolean isInstant() {
+        return mDurationNanos < 0;
+    }
+
+    public long getThreadId() {
+        return mThreadId;
+    }
+
+    public String getThreadName() {
+        return mThreadName;
+    }
+
+    /**
+     * 補足情報を返します.
+     *
+     * @return 補足情報。ない場合は {@code null}。
+     */
+    public String getDetail() {
+        return mDetail;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + mTraceId + "] " + mCategory + "/" + mName
+                + (isInstant() ? "" : " " + mDurationNanos + "ns")
+                + (mDetail == null ? "" : " " + mDetail) + " @" + mThreadName;
+    }
+}
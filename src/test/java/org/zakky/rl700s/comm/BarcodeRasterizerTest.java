@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.util.Arrays;
+
+public class BarcodeRasterizerTest {
+
+    private static String toString(boolean[] modules) {
+        final StringBuilder sb = new StringBuilder(modules.length);
+        for (boolean m : modules) {
+            sb.append(m ? '1' : '0');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void 正常_EAN13() {
+        final String expected = "101" // 開始ガード
+                + "0001011" + "0100111" + "0011001" + "0010011" + "0100001" + "0011101" // 901234 (LGLLGG)
+                + "01010" // センターガード
+                + "1001110" + "1010000" + "1000100" + "1001000" + "1110100" + "1011100" // 567894
+                + "101"; // 終了ガード
+        assertEquals(expected, toString(LinearBarcode.ean13("490123456789")));
+        assertEquals(4, LinearBarcode.ean13CheckDigit("490123456789"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_EAN13のチェックデジット不一致() {
+        LinearBarcode.ean13("4901234567890");
+    }
+
+    @Test
+    public void 正常_Code128() {
+        final boolean[] modules = LinearBarcode.code128("ABC");
+        // 開始 B(11) + 3 文字(33) + チェック(11) + ストップ(13)
+        assertEquals(68, modules.length);
+        assertEquals("11010010000", toString(modules).substring(0, 11));
+        assertEquals("1100011101011", toString(modules).substring(55));
+        // 数字の連続はコードセット C で 2 桁ずつになる
+        assertEquals(11 * 5 + 13, LinearBarcode.code128("123456").length);
+    }
+
+    @Test
+    public void 正常_1次元バーコードのラン() {
+        final BarcodeRasterizer r = new BarcodeRasterizer(2, true);
+        assertEquals(4, r.getModuleLines());
+        final BarcodeRaster raster = r.ean13("490123456789", 8, 64);
+        assertEquals((11 + 95 + 7) * 4, raster.getLineCount());
+        // バーとスペースの境目ごとにランが切り替わる
+        assertTrue(raster.getRunCount() < 95);
+
+        final byte[] bar = raster.getRunLine(1);
+        assertEquals(0, bar[0]);
+        assertEquals((byte) 0xff, bar[1]);
+        assertEquals((byte) 0xff, bar[8]);
+        assertEquals(0, bar[9]);
+        assertEquals(11 * 4, raster.getRunLength(0));
+        assertEquals(4, raster.getRunLength(1));
+    }
+
+    @Test
+    public void 正常_QRコード() {
+        final QrCode qr = QrCode.encode("RL-700S".getBytes(), QrCode.ErrorCorrection.M);
+        assertEquals(1, qr.getVersion());
+        assertEquals(21, qr.getSize());
+        // 位置検出パターン
+        assertTrue(qr.get(0, 0));
+        assertFalse(qr.get(1, 1));
+        assertTrue(qr.get(2, 2));
+
+        final BarcodeRaster raster = new BarcodeRasterizer(3, false).qr(qr, 0);
+        assertEquals((21 + 8) * 3, raster.getLineCount());
+        final byte[][] lines = raster.toLines();
+        // 最初の列(クワイエットゾーンの直後)は左上の位置検出パターンの左端
+        final byte[] column = lines[4 * 3];
+        assertFalse(PackedBits.get(column, 4 * 3 - 1));
+        for (int bit = 4 * 3; bit < (4 + 7) * 3; bit++) {
+            assertTrue(PackedBits.get(column, bit));
+        }
+        assertFalse(PackedBits.get(column, (4 + 7) * 3));
+    }
+
+    @Test
+    public void 正常_ランごとにエンコード() {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final BarcodeRaster raster = new BarcodeRasterizer(2, false).code128("A-1", 0, 100);
+
+        final JobEncoder runs = new JobEncoder(settings);
+        runs.addLines(raster);
+        final JobEncoder lines = new JobEncoder(settings);
+        for (byte[] line : raster.toLines()) {
+            lines.addLine(line);
+        }
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(lines.finish().getData()),
+                JobEncoderTest.toArray(runs.finish().getData())));
+    }
+}
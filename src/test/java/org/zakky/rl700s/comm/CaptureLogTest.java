@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.CaptureLog.Direction;
+import org.zakky.rl700s.comm.CaptureLog.Record;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class CaptureLogTest {
+
+    /**
+     * 排出動作付きの印字司令コマンドで終わる書き込みのたびにステータスを 1 つ返す模擬プリンタ.
+     */
+    private static final class FakePrinter implements ByteChannel {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final ByteBuffer pending = ByteBuffer.allocate(1024);
+
+        FakePrinter() {
+            pending.flip();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            final int n = src.remaining();
+            byte last = 0;
+            while (src.hasRemaining()) {
+                last = src.get();
+                received.write(last);
+            }
+            if (last == 0x1a) {
+                pending.compact();
+                final byte[] status = new byte[RL700SStatus.STATUS_SIZE];
+                status[0] = (byte) 0x80;
+                status[1] = 0x20;
+                pending.put(status);
+                pending.flip();
+            }
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!pending.hasRemaining()) {
+                return -1;
+            }
+            // 1 回の読み込みでは半分ずつしか返さない
+            final int n = Math.min(Math.min(dst.remaining(), pending.remaining()), 16);
+            final ByteBuffer part = pending.duplicate();
+            part.limit(part.position() + n);
+            dst.put(part);
+            pending.position(pending.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("capture", ".log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private static byte[] createJob() {
+        final JobEncoder encoder = new JobEncoder(JobEncoderTest.createSettings(CompressionMode.TIFF));
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < 100; i++) {
+            line[i % line.length] = (byte) i;
+            encoder.addLine(line);
+        }
+        return JobEncoderTest.toArray(encoder.finish().getData());
+    }
+
+    @Test
+    public void 正常_送受信の記録と再現() throws Exception {
+        final byte[] job = createJob();
+        final CaptureLog log = CaptureLog.create(mFile, 256);
+        final CapturingChannel channel = new CapturingChannel(new FakePrinter(), log);
+        channel.write(ByteBuffer.wrap(job, 0, 100));
+        channel.write(ByteBuffer.wrap(job, 100, job.length - 100));
+        final ByteBuffer status = ByteBuffer.allocate(RL700SStatus.STATUS_SIZE);
+        while (status.hasRemaining()) {
+            channel.read(status);
+        }
+        log.close();
+
+        final CaptureLog.Reader reader = CaptureLog.open(mFile);
+        assertTrue(reader.getStartMillis() <= System.currentTimeMillis());
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        int incoming = 0;
+        long prev = 0L;
+        for (Record r = reader.next(); r != null; r = reader.next()) {
+            assertTrue(prev <= r.getTimeNanos());
+            prev = r.getTimeNanos();
+            final byte[] data = JobEncoderTest.toArray(r.getData());
+            if (r.getDirection() == Direction.OUTGOING) {
+                sent.write(data);
+            } else {
+                incoming += data.length;
+            }
+        }
+        assertTrue(Arrays.equals(job, sent.toByteArray()));
+        assertEquals(RL700SStatus.STATUS_SIZE, incoming);
+
+        final FakePrinter printer = new FakePrinter();
+        final CaptureReplayer.Report report = new CaptureReplayer(printer,
+                CaptureReplayer.AS_FAST_AS_POSSIBLE).replay(CaptureLog.open(mFile));
+        assertTrue(Arrays.equals(job, printer.received.toByteArray()));
+        assertEquals(job.length, report.getBytesSent());
+        assertEquals(RL700SStatus.STATUS_SIZE, report.getBytesReceived());
+        assertEquals(2, report.getStatusWaits().size());
+        assertEquals(job.length, report.getStatusWaits().get(0).getBytesSent());
+        assertEquals(0L, report.getPacingNanos());
+    }
+
+    @Test
+    public void 正常_記録時の間隔で再現() throws Exception {
+        final CaptureLog log = CaptureLog.create(mFile);
+        final long t = System.nanoTime();
+        log.append(Direction.OUTGOING, t, ByteBuffer.wrap(new byte[] {
+                0
+        }));
+        log.append(Direction.OUTGOING, t + TimeUnit.MILLISECONDS.toNanos(100), ByteBuffer
+                .wrap(new byte[] {
+                    0
+                }));
+        log.close();
+
+        final CaptureReplayer.Report normal = new CaptureReplayer(new FakePrinter(), 1.0)
+                .replay(CaptureLog.open(mFile));
+        assertEquals(100L, TimeUnit.NANOSECONDS.toMillis(normal.getOriginalNanos()));
+        assertTrue(TimeUnit.MILLISECONDS.toNanos(100) <= normal.getElapsedNanos());
+
+        final CaptureReplayer.Report fast = new CaptureReplayer(new FakePrinter(), 4.0)
+                .replay(CaptureLog.open(mFile));
+        assertTrue(TimeUnit.MILLISECONDS.toNanos(25) <= fast.getElapsedNanos());
+        assertTrue(fast.getElapsedNanos() < normal.getElapsedNanos());
+    }
+
+    @Test
+    public void 正常_閉じずに終了したログ() throws Exception {
+        final CaptureLog log = CaptureLog.create(mFile, 1024);
+        log.append(Direction.OUTGOING, ByteBuffer.wrap(new byte[] {
+                1, 2, 3
+        }));
+        log.sync();
+        try {
+            // 閉じていないのでファイルの残りは 0 で埋まっている
+            assertEquals(1024L, mFile.length());
+            final CaptureLog.Reader reader = CaptureLog.open(mFile);
+            assertEquals(3, reader.next().getData().remaining());
+            assertNull(reader.next());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void 異常_ログでないファイル() throws Exception {
+        CaptureLog.open(mFile);
+    }
+}
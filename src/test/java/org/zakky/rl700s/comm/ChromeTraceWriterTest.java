@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+public class ChromeTraceWriterTest {
+
+    @Test
+    public void 正常_JSON配列として書き出す() throws Exception {
+        final StringWriter out = new StringWriter();
+        final ChromeTraceWriter writer = new ChromeTraceWriter(out);
+        final long now = System.nanoTime();
+        writer.onEvent(new TraceEvent(3L, TraceEvent.CATEGORY_ENCODE, "encode-page", now,
+                1500L, Thread.currentThread(), "page=0"));
+        writer.onEvent(new TraceEvent(3L, TraceEvent.CATEGORY_PRINTER, "error", now, -1L,
+                Thread.currentThread(), "[\"MEDIA_END\"]\n"));
+        writer.close();
+
+        final String json = out.toString();
+        assertTrue(json.startsWith("[\n{\"name\":\"thread_name\",\"ph\":\"M\""));
+        assertTrue(json.endsWith("\n]\n"));
+        assertTrue(json, json.contains("\"cat\":\"encode\",\"ph\":\"X\",\"dur\":1.500,"));
+        assertTrue(json, json.contains("\"ph\":\"i\",\"s\":\"t\""));
+        assertTrue(json, json.contains("\"args\":{\"job\":3,\"detail\":\"[\\\"MEDIA_END\\\"]\\n\"}"));
+        // スレッド名は 1 回だけ
+        assertEquals(json.indexOf("thread_name"), json.lastIndexOf("thread_name"));
+    }
+
+    @Test
+    public void 正常_マイクロ秒の書式() {
+        assertEquals("1.500", micros(1500L));
+        assertEquals("0.007", micros(7L));
+        assertEquals("0.000", micros(0L));
+        assertEquals("-0.500", micros(-500L));
+        assertEquals("-0.001", micros(-1L));
+        assertEquals("-1.250", micros(-1250L));
+    }
+
+    private static String micros(long nanos) {
+        final StringBuilder sb = new StringBuilder();
+        ChromeTraceWriter.appendMicros(sb, nanos);
+        return sb.toString();
+    }
+}
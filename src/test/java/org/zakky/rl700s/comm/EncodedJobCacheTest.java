@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.util.Arrays;
+
+public class EncodedJobCacheTest {
+
+    private static EncodedJob createJob(PrintSettings settings) {
+        final JobEncoder encoder = new JobEncoder(settings);
+        encoder.addZeroLine();
+        return encoder.finish();
+    }
+
+    @Test
+    public void 正常_ヒットとミス() {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final EncodedJobCache cache = new EncodedJobCache(1024);
+        final EncodedJob job = createJob(settings);
+
+        assertNull(cache.get("a", settings));
+        final EncodedJob stored = cache.put("a", job);
+        assertTrue(stored.getData().isDirect());
+        final EncodedJob hit = cache.get("a", settings);
+        assertNotNull(hit);
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(job.getData()),
+                JobEncoderTest.toArray(hit.getData())));
+        assertEquals(job.getPageCount(), hit.getPageCount());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void 正常_設定が変わると無効化() {
+        final PrintSettings tiff = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final PrintSettings none = JobEncoderTest.createSettings(CompressionMode.NONE);
+        final EncodedJobCache cache = new EncodedJobCache(1024);
+        cache.put("a", createJob(tiff));
+        cache.put("b", createJob(tiff));
+        cache.put("c", createJob(none));
+
+        assertNull(cache.get("a", none));
+        assertEquals(0, cache.getInvalidationCount());
+
+        cache.invalidateOtherThan(none);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("c", none));
+        assertEquals(2, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void 正常_設定の異なるエントリを同じキーで保持する() {
+        final PrintSettings tiff = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final PrintSettings none = JobEncoderTest.createSettings(CompressionMode.NONE);
+        final EncodedJobCache cache = new EncodedJobCache(1024);
+        cache.put("a", createJob(tiff));
+        cache.put("a", createJob(none));
+        assertEquals(2, cache.size());
+
+        // 設定の異なる 2 台のプリンタから交互に引いても追い出さない
+        for (int i = 0; i < 3; i++) {
+            assertEquals(tiff, cache.get("a", tiff).getSettings());
+            assertEquals(none, cache.get("a", none).getSettings());
+        }
+        assertEquals(6, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertEquals(0, cache.getInvalidationCount());
+
+        cache.invalidate("a");
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.getBytes());
+        assertEquals(2, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void 正常_LRUで追い出す() {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final EncodedJob job = createJob(settings);
+        final EncodedJobCache cache = new EncodedJobCache(job.getLength() * 2);
+        cache.put("a", job);
+        cache.put("b", job);
+        cache.get("a", settings);
+        cache.put("c", job);
+
+        assertNull(cache.get("b", settings));
+        assertNotNull(cache.get("a", settings));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(job.getLength() * 2, cache.getBytes());
+    }
+
+    @Test
+    public void 正常_Loader() {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final EncodedJobCache cache = new EncodedJobCache(1024);
+        final int[] loaded = new int[1];
+        final EncodedJobCache.Loader loader = new EncodedJobCache.Loader() {
+            @Override
+            public EncodedJob load(String key, PrintSettings s) {
+                loaded[0]++;
+                return createJob(s);
+            }
+        };
+        cache.get("a", settings, loader);
+        cache.get("a", settings, loader);
+        assertEquals(1, loaded[0]);
+    }
+}
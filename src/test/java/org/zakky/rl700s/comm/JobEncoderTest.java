@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+import org.zakky.rl700s.comm.RL700SCommands.Paper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+public class JobEncoderTest {
+
+    static PrintSettings createSettings(CompressionMode compression) {
+        return new PrintSettings(Paper.LAMINATE, Integer.valueOf(24), null,
+                EnumSet.of(Mode.AUTO_TAPE_CUT), EnumSet.noneOf(EnhancedMode.class), 14,
+                compression, true, false);
+    }
+
+    /**
+     * 各ページに {@code linesPerPage} 本のラインを持つジョブを生成します.
+     *
+     * <p>
+     * ラインにはページ番号を書き込むので、ページごとに内容が異なります。
+     * 最初のページはゼロラスターラインです。
+     * </p>
+     */
+    static EncodedJob createJob(int pages, int linesPerPage) {
+        final JobEncoder encoder = new JobEncoder(createSettings(CompressionMode.TIFF));
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int p = 0; p < pages; p++) {
+            if (p != 0) {
+                encoder.endPage(false);
+            }
+            line[p % line.length] = (byte) p;
+            encoder.addLine(line, linesPerPage);
+        }
+        return encoder.finish();
+    }
+
+    static byte[] toArray(ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    @Test
+    public void 正常_セットアップコマンド() {
+        final JobEncoder encoder = new JobEncoder(createSettings(CompressionMode.TIFF));
+        final EncodedJob job = encoder.finish();
+
+        final byte[] expected = {
+                0x1b, '@', // 初期化
+                0x1b, 'i', 'a', 1, // ラスタモード
+                0x1b, 'i', 'c', (byte) 0xf6, 1, 24, 0, 0, // 印刷情報
+                0x1b, 'i', 'M', 1 << 6, // モード
+                0x1b, 'i', 'K', 0, // 拡張モード
+                0x1b, 'i', 'd', 14, 0, // 余白
+                'M', 2, // 圧縮モード
+        };
+        assertTrue(Arrays.equals(expected, toArray(job.getSetup())));
+        assertEquals(expected.length, job.getSetupLength());
+        assertTrue(Arrays.equals(expected,
+                JobEncoder.setupBytes(createSettings(CompressionMode.TIFF))));
+        assertEquals(1, job.getPageCount());
+        assertTrue(Arrays.equals(new byte[] {
+            0x1a
+        }, toArray(job.getPage(0))));
+    }
+
+    @Test
+    public void 正常_ページ境界() {
+        final JobEncoder encoder = new JobEncoder(createSettings(CompressionMode.NONE));
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        line[0] = 1;
+        encoder.addLine(line);
+        encoder.addLine(new byte[RL700SCommands.MAX_LINE_BYTES]);
+        encoder.endPage(true);
+        encoder.addZeroLine();
+        final EncodedJob job = encoder.finish();
+
+        assertEquals(2, job.getPageCount());
+        assertEquals(3, job.getLineCount());
+        assertEquals(2, job.getPageLineCount(0));
+        assertEquals(1, job.getPageLineCount(1));
+
+        final byte[] page0 = toArray(job.getPage(0));
+        assertEquals(3 + 48 + 1 + 1, page0.length);
+        assertEquals('G', page0[0]);
+        assertEquals('Z', page0[51]);
+        assertEquals(0x0b, page0[52]);
+        assertTrue(Arrays.equals(new byte[] {
+                'Z', 0x1a
+        }, toArray(job.getPage(1))));
+
+        final byte[] resumed = toArray(job.resumeFrom(1));
+        assertEquals(job.getSetupLength() + 2, resumed.length);
+        assertEquals('Z', resumed[job.getSetupLength()]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void 異常_finish後の追加() {
+        final JobEncoder encoder = new JobEncoder(createSettings(CompressionMode.TIFF));
+        encoder.finish();
+        encoder.addZeroLine();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.LabelCanvas.Op;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LabelCanvasTest {
+
+    @Test
+    public void 正常_塗りつぶしとクリッピング() {
+        final LabelCanvas canvas = new LabelCanvas(10);
+        canvas.fill(-2, 60, 4, 10, true);
+        canvas.fill(5, 380, 1, 100, true);
+
+        for (int line = 0; line < 2; line++) {
+            assertFalse(canvas.get(line, 59));
+            assertTrue(canvas.get(line, 60));
+            assertTrue(canvas.get(line, 69));
+            assertFalse(canvas.get(line, 70));
+        }
+        assertTrue(canvas.isZeroLine(2));
+        assertFalse(canvas.get(5, 379));
+        assertTrue(canvas.get(5, 380));
+        assertTrue(canvas.get(5, LabelCanvas.WIDTH - 1));
+
+        assertEquals(0, canvas.getFirstDirtyLine());
+        assertEquals(6, canvas.getDirtyEnd());
+        assertFalse(canvas.isDirty(3));
+    }
+
+    @Test
+    public void 正常_任意のビット位置への合成() {
+        final Random random = new Random(700L);
+        final int srcBits = 77;
+        for (Op op : Op.values()) {
+            for (int bit = -80; bit <= LabelCanvas.WIDTH; bit += 13) {
+                final LabelCanvas canvas = new LabelCanvas(3);
+                final boolean[][] expected = new boolean[3][LabelCanvas.WIDTH];
+                final byte[][] background = new byte[3][RL700SCommands.MAX_LINE_BYTES];
+                for (byte[] line : background) {
+                    random.nextBytes(line);
+                }
+                canvas.blit(background, LabelCanvas.WIDTH, 0, 0, Op.COPY);
+                final byte[][] src = new byte[2][(srcBits + 7) / 8];
+                for (byte[] line : src) {
+                    random.nextBytes(line);
+                }
+                for (int l = 0; l < 3; l++) {
+                    for (int b = 0; b < LabelCanvas.WIDTH; b++) {
+                        boolean v = PackedBits.get(background[l], b);
+                        final int s = b - bit;
+                        if (1 <= l && 0 <= s && s < srcBits) {
+                            final boolean sv = PackedBits.get(src[l - 1], s);
+                            v = apply(op, v, sv);
+                        }
+                        expected[l][b] = v;
+                    }
+                }
+
+                canvas.blit(src, srcBits, 1, bit, op);
+                for (int l = 0; l < 3; l++) {
+                    for (int b = 0; b < LabelCanvas.WIDTH; b++) {
+                        assertEquals(op + " at " + bit + " (" + l + ", " + b + ")",
+                                expected[l][b], canvas.get(l, b));
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean apply(Op op, boolean dst, boolean src) {
+        switch (op) {
+            case COPY:
+                return src;
+            case OR:
+                return dst | src;
+            case AND:
+                return dst & src;
+            case XOR:
+                return dst ^ src;
+            default:
+                throw new AssertionError(op);
+        }
+    }
+
+    @Test
+    public void 正常_描画領域どうしの合成() {
+        final LabelCanvas logo = new LabelCanvas(4);
+        logo.fill(0, 0, 4, 8, true);
+        final LabelCanvas canvas = new LabelCanvas(10);
+        canvas.frame(0, 0, 10, LabelCanvas.WIDTH, 1);
+        canvas.blit(logo, 3, 100, Op.XOR);
+
+        assertTrue(canvas.get(3, 100));
+        assertTrue(canvas.get(6, 107));
+        assertFalse(canvas.get(7, 100));
+        assertTrue(canvas.get(5, 0));
+        assertTrue(canvas.get(5, LabelCanvas.WIDTH - 1));
+        assertFalse(canvas.get(5, 1));
+
+        canvas.blit(logo, 3, 100, Op.XOR);
+        assertFalse(canvas.get(3, 100));
+
+        canvas.clear();
+        assertEquals(-1, canvas.getFirstDirtyLine());
+        assertTrue(canvas.isZeroLine(0));
+    }
+
+    @Test
+    public void 正常_描画していないラインはゼロラスターライン() {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final LabelCanvas canvas = new LabelCanvas(20);
+        canvas.fill(5, 10, 3, 200, true);
+        canvas.fill(12, 0, 1, 8, false);
+
+        final JobEncoder expected = new JobEncoder(settings);
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int l = 0; l < canvas.getLineCount(); l++) {
+            canvas.getLine(l, line);
+            expected.addLine(line);
+        }
+        final JobEncoder actual = new JobEncoder(settings);
+        actual.addLines(canvas);
+
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(expected.finish().getData()),
+                JobEncoderTest.toArray(actual.finish().getData())));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.LabelTemplate.VariableField;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LabelTemplateTest {
+
+    /**
+     * 値の各文字コードを、ライン先頭のバイトに書き込むだけのフィールド.
+     */
+    private static final class CharCodeField implements VariableField {
+        private final int mFirstLine;
+        private final int mLineCount;
+
+        CharCodeField(int firstLine, int lineCount) {
+            mFirstLine = firstLine;
+            mLineCount = lineCount;
+        }
+
+        @Override
+        public String getName() {
+            return "serial";
+        }
+
+        @Override
+        public int getFirstLine() {
+            return mFirstLine;
+        }
+
+        @Override
+        public int getLineCount() {
+            return mLineCount;
+        }
+
+        @Override
+        public void render(String value, int line, byte[] dest) {
+            final int index = line - mFirstLine;
+            if (value != null && index < value.length()) {
+                dest[0] = (byte) value.charAt(index);
+            }
+        }
+    }
+
+    @Test
+    public void 正常_全体をエンコードした場合と一致する() {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final byte[][] lines = new byte[100][RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i][i % RL700SCommands.MAX_LINE_BYTES] = (byte) (i % 3 == 0 ? 0 : 0x55);
+            lines[i][47] = (byte) (i % 7 == 0 ? 0 : 0x80);
+        }
+        final CharCodeField field = new CharCodeField(40, 5);
+        final LabelTemplate template = new LabelTemplate(settings, lines,
+                Collections.<VariableField> singletonList(field));
+        assertEquals(5, template.getVariableLineCount());
+
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("serial", "A0123");
+        final EncodedJob actual = template.instantiate(values);
+
+        final JobEncoder encoder = new JobEncoder(settings);
+        for (int i = 0; i < lines.length; i++) {
+            final byte[] line = lines[i].clone();
+            if (40 <= i && i < 45) {
+                field.render("A0123", i, line);
+            }
+            encoder.addLine(line);
+        }
+        final EncodedJob expected = encoder.finish();
+
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(expected.getData()),
+                JobEncoderTest.toArray(actual.getData())));
+        assertEquals(expected.getLineCount(), actual.getLineCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_フィールドが範囲外() {
+        new LabelTemplate(JobEncoderTest.createSettings(CompressionMode.TIFF), new byte[10][48],
+                Collections.<VariableField> singletonList(new CharCodeField(8, 5)));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void 正常_バケットの境界() {
+        long prevUpper = -1L;
+        for (int b = 0; LatencyHistogram.upperBoundOf(b) < Long.MAX_VALUE; b++) {
+            final long upper = LatencyHistogram.upperBoundOf(b);
+            assertEquals(b, LatencyHistogram.bucketOf(prevUpper + 1));
+            assertEquals(b, LatencyHistogram.bucketOf(upper));
+            prevUpper = upper;
+        }
+        LatencyHistogram.bucketOf(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void 正常_パーセンタイル() {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0L, h.getValueAtPercentile(99.0));
+        for (long v = 1; v <= 10000; v++) {
+            h.record(v);
+        }
+        assertEquals(10000L, h.getCount());
+        assertEquals(10000L, h.getMax());
+        assertEquals(5000.5, h.getMean(), 0.001);
+        final long p50 = h.getValueAtPercentile(50.0);
+        assertTrue(p50 + " ~ 5000", 5000 <= p50 && p50 <= 5000 + 5000 / 16);
+        final long p99 = h.getValueAtPercentile(99.0);
+        assertTrue(p99 + " ~ 9900", 9900 <= p99 && p99 <= 9900 + 9900 / 16);
+        assertEquals(10000L, h.getValueAtPercentile(100.0));
+
+        h.reset();
+        assertEquals(0L, h.getCount());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.nio.ByteBuffer;
+
+public class LineCommandEncoderTest {
+
+    private static ByteBuffer expected(byte[] line) {
+        final ByteBuffer cmd = RL700SCommands.allocateOutBuffer();
+        JobEncoder.lineCommand(cmd, line, CompressionMode.TIFF);
+        return cmd;
+    }
+
+    @Test
+    public void 正常_同じラインは直前のコマンドを返す() {
+        final LineCommandEncoder encoder = new LineCommandEncoder(CompressionMode.TIFF);
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        line[3] = 0x55;
+        assertEquals(expected(line), encoder.encode(line));
+        // 読み終えたコマンドも巻き戻して返す
+        assertEquals(expected(line), encoder.encode(line.clone()));
+
+        // 同じ配列を書き換えても、前の内容と比べる
+        line[3] = 0x0f;
+        assertEquals(expected(line), encoder.encode(line));
+
+        final byte[] zero = new byte[RL700SCommands.MAX_LINE_BYTES];
+        assertEquals(expected(zero), encoder.encode(zero));
+        assertEquals(expected(line), encoder.encode(line));
+    }
+
+    @Test
+    public void 正常_同じバッファを書き換えるラスター() throws Exception {
+        final byte[][] lines = new byte[3][RL700SCommands.MAX_LINE_BYTES];
+        lines[0][0] = 1;
+        lines[1][0] = 2;
+        lines[2][0] = 2;
+        final ByteBuffer shared = ByteBuffer.allocate(RL700SCommands.MAX_LINE_BYTES);
+        final RasterSource source = new RasterSource() {
+            @Override
+            public int getLineCount() {
+                return lines.length;
+            }
+
+            @Override
+            public ByteBuffer getLine(int line) {
+                shared.clear();
+                shared.put(lines[line]);
+                shared.flip();
+                return shared;
+            }
+
+            @Override
+            public boolean isZeroLine(int line) {
+                return false;
+            }
+        };
+        final JobEncoder encoder = new JobEncoder(
+                JobEncoderTest.createSettings(CompressionMode.TIFF));
+        encoder.addLines(source);
+        assertTrue(RasterPreview.render(encoder.finish()).matches(0, lines));
+    }
+
+    @Test
+    public void 正常_ラスターのライン() {
+        final byte[][] lines = new byte[4][RL700SCommands.MAX_LINE_BYTES];
+        lines[0][0] = 1;
+        lines[1][0] = 1;
+        lines[3][47] = (byte) 0x80;
+        final RasterSource source = new RasterSource() {
+            @Override
+            public int getLineCount() {
+                return lines.length;
+            }
+
+            @Override
+            public ByteBuffer getLine(int line) {
+                return ByteBuffer.wrap(lines[line]).asReadOnlyBuffer();
+            }
+
+            @Override
+            public boolean isZeroLine(int line) {
+                return JobEncoder.isZero(lines[line]);
+            }
+        };
+        final LineCommandEncoder encoder = new LineCommandEncoder(CompressionMode.TIFF);
+        for (int l = 0; l < lines.length; l++) {
+            final ByteBuffer command = encoder.encode(source, l);
+            assertEquals("line " + l, expected(lines[l]), command);
+            // 呼び出し側は読み進めてから次のラインを渡す
+            command.position(command.limit());
+        }
+    }
+}
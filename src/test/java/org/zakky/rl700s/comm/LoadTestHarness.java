@@ -0,0 +1,409 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ラベルの生成からエンコード、送信、印刷終了のステータスまでを、複数の {@link SimulatedPrinter}
+ * に対して並行に行い、 1 つの JVM で維持できる処理量を測る負荷試験です.
+ *
+ * <p>
+ * プリンタごとに 1 つのスレッドが、 {@link LabelKind} の比率に従って生成したラベルを順に印刷します。
+ * ジョブのレイテンシはラベルの生成開始から印刷終了のステータスを受け取るまでです。
+ * 結果は {@link Result#toJson()} でリリースごとに比較できる JSON にします。
+ * </p>
+ *
+ * <pre>
+ * java org.zakky.rl700s.comm.LoadTestHarness printers jobsPerPrinter [output.json] [linesPerMilli]
+ * </pre>
+ */
+public final class LoadTestHarness {
+
+    /**
+     * 生成するラベルの種類と比率です.
+     */
+    public enum LabelKind {
+        /** 文字主体の短いラベル */
+        TEXT(40),
+        /** Code 128 のバーコード */
+        BARCODE(25),
+        /** ディザした写真(圧縮が効かない) */
+        PHOTO(10),
+        /** 大部分が空白のラベル */
+        BLANK_HEAVY(15),
+        /** 長い横断幕 */
+        BANNER(10);
+
+        final int weight;
+
+        private LabelKind(int weight) {
+            this.weight = weight;
+        }
+
+        static LabelKind choose(Random random) {
+            int total = 0;
+            for (LabelKind k : values()) {
+                total += k.weight;
+            }
+            int r = random.nextInt(total);
+            for (LabelKind k : values()) {
+                r -= k.weight;
+                if (r < 0) {
+                    return k;
+                }
+            }
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * 負荷試験の結果です.
+     */
+    public static final class Result {
+        int printers;
+        long jobs;
+        long elapsedNanos;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long bytesOnWire;
+        long rawBytes;
+        long lines;
+        long allocatedBytes = -1L;
+        final long[] kindCounts = new long[LabelKind.values().length];
+
+        public long getJobs() {
+            return jobs;
+        }
+
+        public double getLabelsPerMinute() {
+            return jobs * (double) TimeUnit.MINUTES.toNanos(1) / Math.max(1L, elapsedNanos);
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getBytesOnWire() {
+            return bytesOnWire;
+        }
+
+        /**
+         * @return 非圧縮のラスターのバイト数を、初期化や印刷コマンドも含めたワイヤー上のバイト数で割った値。
+         *         {@link RL700SMetrics#getCompressionRatio()} とは分子と分母が逆です。
+         */
+        public double getRawToWireRatio() {
+            return (bytesOnWire == 0L) ? 0.0 : (double) rawBytes / bytesOnWire;
+        }
+
+        /**
+         * @return 計測できない JVM では -1。
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public String toJson() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("{\n");
+            field(sb, "printers", String.valueOf(printers));
+            field(sb, "jobs", String.valueOf(jobs));
+            field(sb, "lines", String.valueOf(lines));
+            field(sb, "elapsedMillis", String.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+            field(sb, "labelsPerMinute", format(getLabelsPerMinute()));
+            sb.append("  \"latencyMicros\": {");
+            sb.append("\"p50\": ").append(micros(latency.getValueAtPercentile(50.0)));
+            sb.append(", \"p99\": ").append(micros(latency.getValueAtPercentile(99.0)));
+            sb.append(", \"p999\": ").append(micros(latency.getValueAtPercentile(99.9)));
+            sb.append(", \"max\": ").append(micros(latency.getMax()));
+            sb.append("},\n");
+            field(sb, "bytesOnWire", String.valueOf(bytesOnWire));
+            field(sb, "rawRasterBytes", String.valueOf(rawBytes));
+            field(sb, "rawToWireRatio", format(getRawToWireRatio()));
+            field(sb, "allocatedBytes", String.valueOf(allocatedBytes));
+            field(sb, "allocationRateBytesPerSec", (allocatedBytes < 0L) ? "-1"
+                    : format(allocatedBytes * (double) TimeUnit.SECONDS.toNanos(1)
+                            / Math.max(1L, elapsedNanos)));
+            sb.append("  \"mix\": {");
+            for (LabelKind k : LabelKind.values()) {
+                sb.append((k.ordinal() == 0) ? "" : ", ");
+                sb.append('"').append(k.name()).append("\": ").append(kindCounts[k.ordinal()]);
+            }
+            sb.append("}\n}\n");
+            return sb.toString();
+        }
+
+        private static void field(StringBuilder sb, String name, String value) {
+            sb.append("  \"").append(name).append("\": ").append(value).append(",\n");
+        }
+
+        private static String micros(long nanos) {
+            return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.US, "%.3f", Double.valueOf(value));
+        }
+    }
+
+    private final int mPrinters;
+    private final int mJobsPerPrinter;
+    private final double mLinesPerMilli;
+    private final long mSeed;
+    private final TextRasterizer mText;
+    private final BarcodeRasterizer mBarcode = new BarcodeRasterizer(2, false);
+    private final PrintSettings mSettings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+
+    /**
+     * @param printers 模擬プリンタの数。
+     * @param jobsPerPrinter プリンタごとのジョブ数。
+     * @param linesPerMilli 模擬プリンタの印刷速度。 0 の場合は印刷時間を待ちません。
+     * @param seed ラベルの種類と内容を決める乱数の種。
+     */
+    public LoadTestHarness(int printers, int jobsPerPrinter, double linesPerMilli, long seed)
+            throws Exception {
+        super();
+        mPrinters = printers;
+        mJobsPerPrinter = jobsPerPrinter;
+        mLinesPerMilli = linesPerMilli;
+        mSeed = seed;
+        mText = new TextRasterizer(TextRasterizerTest.loadFont(), 8);
+    }
+
+    /**
+     * 負荷試験を実行します.
+     *
+     * @return 結果。
+     */
+    public Result run() throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final boolean allocationSupported = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        final Result result = new Result();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong raw = new AtomicLong();
+        final AtomicLong lines = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicLongArray kinds = new AtomicLongArray(LabelKind.values().length);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final SimulatedPrinter[] printers = new SimulatedPrinter[mPrinters];
+        final Thread[] workers = new Thread[mPrinters];
+        for (int i = 0; i < mPrinters; i++) {
+            printers[i] = new SimulatedPrinter(24, mLinesPerMilli);
+            final SimulatedPrinter printer = printers[i];
+            final Random random = new Random(mSeed + i);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long before = allocatedBytes(allocationSupported);
+                    try {
+                        final ByteBuffer status = RL700SStatus.allocateInBuffer();
+                        for (int j = 0; j < mJobsPerPrinter; j++) {
+                            final long start = System.nanoTime();
+                            final LabelKind kind = LabelKind.choose(random);
+                            final EncodedJob job = encode(kind, random);
+                            final ByteBuffer data = job.getData();
+                            while (data.hasRemaining()) {
+                                printer.write(data);
+                            }
+                            waitForPrintComplete(printer, status);
+                            result.latency.record(System.nanoTime() - start);
+                            bytes.addAndGet(job.getLength());
+                            raw.addAndGet((long) job.getLineCount() * RL700SCommands.MAX_LINE_BYTES);
+                            lines.addAndGet(job.getLineCount());
+                            kinds.incrementAndGet(kind.ordinal());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                    if (allocationSupported) {
+                        allocated.addAndGet(allocatedBytes(true) - before);
+                    }
+                }
+            }, "LoadTestHarness-" + i);
+        }
+
+        final long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("worker failed: " + failures.get(0), failures.get(0));
+        }
+
+        long printed = 0L;
+        for (SimulatedPrinter p : printers) {
+            printed += p.getPrintedLines();
+            p.close();
+        }
+        if (printed != lines.get()) {
+            throw new IllegalStateException("printed " + printed + " lines, expected "
+                    + lines.get());
+        }
+        result.printers = mPrinters;
+        result.jobs = result.latency.getCount();
+        result.bytesOnWire = bytes.get();
+        result.rawBytes = raw.get();
+        result.lines = lines.get();
+        result.allocatedBytes = allocationSupported ? allocated.get() : -1L;
+        for (int k = 0; k < result.kindCounts.length; k++) {
+            result.kindCounts[k] = kinds.get(k);
+        }
+        return result;
+    }
+
+    private static long allocatedBytes(boolean supported) {
+        if (!supported) {
+            return 0L;
+        }
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void waitForPrintComplete(SimulatedPrinter printer, ByteBuffer status)
+            throws Exception {
+        while (true) {
+            status.clear();
+            while (status.hasRemaining()) {
+                if (printer.read(status) < 0) {
+                    throw new IOException("printer closed.");
+                }
+            }
+            status.flip();
+            if (RL700SStatus.parse(status).getStatusType() == RL700SStatus.STATUS_TYPE_PRINT_COMPLETE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 種類に応じたラベルを生成してエンコードします.
+     */
+    EncodedJob encode(LabelKind kind, Random random) {
+        final JobEncoder encoder = new JobEncoder(mSettings);
+        switch (kind) {
+            case TEXT:
+                addLines(encoder, mText.render(text(random, 8 + random.nextInt(16)), 40));
+                break;
+            case BARCODE:
+                encoder.addLines(mBarcode.code128("LT" + random.nextInt(1000000), 20, 300));
+                break;
+            case PHOTO:
+                addLines(encoder, photo(random, 400));
+                break;
+            case BLANK_HEAVY: {
+                final byte[][] lines = new byte[600][RL700SCommands.MAX_LINE_BYTES];
+                mText.draw(text(random, 4), lines, 280, 100);
+                addLines(encoder, lines);
+                break;
+            }
+            case BANNER: {
+                final byte[][] lines = new byte[4000][RL700SCommands.MAX_LINE_BYTES];
+                for (int l = 0; l < lines.length;) {
+                    l = mText.draw(text(random, 32), lines, l, 20 + random.nextInt(200));
+                }
+                addLines(encoder, lines);
+                break;
+            }
+            default:
+                throw new AssertionError(kind);
+        }
+        return encoder.finish();
+    }
+
+    private static void addLines(JobEncoder encoder, byte[][] lines) {
+        for (byte[] line : lines) {
+            encoder.addLine(line);
+        }
+    }
+
+    /**
+     * テスト用フォントにある文字だけの文字列を生成します.
+     */
+    private static String text(Random random, int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextBoolean() ? '+' : 'L');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 横方向のグラデーションに雑音を加えて 4x4 のベイヤー行列でディザした画像を生成します.
+     */
+    private static byte[][] photo(Random random, int lineCount) {
+        final int[] bayer = {
+                0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5
+        };
+        final byte[][] lines = new byte[lineCount][RL700SCommands.MAX_LINE_BYTES];
+        for (int l = 0; l < lineCount; l++) {
+            for (int x = 0; x < RL700SCommands.MAX_LINE_BYTES * 8; x++) {
+                final int level = (x * 16 / (RL700SCommands.MAX_LINE_BYTES * 8)
+                        + random.nextInt(5) - 2);
+                if (bayer[(l & 3) * 4 + (x & 3)] < level) {
+                    lines[l][x >>> 3] |= (byte) (0x80 >>> (x & 7));
+                }
+            }
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: LoadTestHarness printers jobsPerPrinter [output.json]"
+                    + " [linesPerMilli]");
+            System.exit(1);
+        }
+        final int printers = Integer.parseInt(args[0]);
+        final int jobs = Integer.parseInt(args[1]);
+        final double speed = (4 <= args.length) ? Double.parseDouble(args[3]) : 0.0;
+        final Result result = new LoadTestHarness(printers, jobs, speed, 1L).run();
+        final String json = result.toJson();
+        if (3 <= args.length) {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(new File(args[2])),
+                    "UTF-8");
+            try {
+                out.write(json);
+            } finally {
+                out.close();
+            }
+        } else {
+            System.out.print(json);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoadTestHarnessTest {
+
+    @Test
+    public void 正常_少量の負荷で結果を出力() throws Exception {
+        final LoadTestHarness.Result result = new LoadTestHarness(3, 20, 0.0, 1L).run();
+        assertEquals(60L, result.getJobs());
+        assertTrue(0 < result.getBytesOnWire());
+        assertTrue(1.0 < result.getRawToWireRatio());
+        assertTrue(0.0 < result.getLabelsPerMinute());
+        assertTrue(result.getLatency().getValueAtPercentile(50.0) <= result.getLatency()
+                .getValueAtPercentile(99.9));
+        final String json = result.toJson();
+        assertTrue(json, json.contains("\"jobs\": 60,"));
+        assertTrue(json, json.contains("\"p999\": "));
+        assertTrue(json, json.trim().endsWith("}"));
+    }
+
+    @Test
+    public void 正常_印刷速度を待つ() throws Exception {
+        final LoadTestHarness.Result result = new LoadTestHarness(2, 3, 1000.0, 2L).run();
+        assertEquals(6L, result.getJobs());
+        // どのラベルも 20 ライン以上あるので、 1 ジョブ 20 マイクロ秒以上かかる
+        assertTrue(20000L <= result.getLatency().getValueAtPercentile(0.0));
+    }
+}
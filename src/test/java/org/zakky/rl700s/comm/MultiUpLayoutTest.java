@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MultiUpLayoutTest {
+
+    /**
+     * 先頭のラインだけ、ラベルの幅いっぱいにビットを立てたラベル.
+     */
+    private static byte[][] createLabel(int widthDots, int lines) {
+        final byte[][] label = new byte[lines][RL700SCommands.MAX_LINE_BYTES];
+        for (int bit = 0; bit < widthDots; bit++) {
+            label[0][bit >>> 3] |= (byte) (0x80 >>> (bit & 7));
+        }
+        return label;
+    }
+
+    private static boolean get(byte[] line, int bit) {
+        return (line[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    @Test
+    public void 正常_テープ幅から並べる枚数を決める() throws Exception {
+        final RL700SStatus status = new RL700SStatus(0, 0, 0, 24, 1, 0, 0, 0, 0);
+        final MultiUpLayout layout = MultiUpLayout.forMedia(status, 40, 60, 4);
+        assertEquals(256, layout.getPrintableDots());
+        assertEquals(5, layout.getColumns());
+        // 40 * 5 + 4 * 4 = 216 ドットをヘッド中央に寄せる
+        assertEquals(84, layout.getColumnBit(0));
+        assertEquals(128, layout.getColumnBit(1));
+        assertEquals(2, layout.getPageCount(7));
+
+        assertEquals(2, MultiUpLayout.forMedia(new RL700SStatus(0, 0, 0, 9, 1, 0, 0, 0, 0), 40,
+                60, 4).getColumns());
+    }
+
+    @Test
+    public void 正常_テープ幅ごとの印字可能ドット数() throws Exception {
+        assertEquals(48, MultiUpLayout.printableDots(4));
+        assertEquals(140, MultiUpLayout.printableDots(12));
+        assertEquals(256, MultiUpLayout.printableDots(24));
+        assertEquals(LabelCanvas.WIDTH, MultiUpLayout.printableDots(36));
+        // 36mm テープには 60 ドット幅のラベルが 6 枚並ぶ
+        assertEquals(6, MultiUpLayout.forMedia(new RL700SStatus(0, 0, 0, 36, 1, 0, 0, 0, 0), 60,
+                60, 4).getColumns());
+    }
+
+    @Test
+    public void 正常_行ごとにハーフカットで区切る() throws Exception {
+        final MultiUpLayout layout = new MultiUpLayout(128, 40, 60, 4);
+        final List<byte[][]> labels = new ArrayList<byte[][]>();
+        for (int i = 0; i < 7; i++) {
+            labels.add(createLabel(40, 60));
+        }
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.NONE);
+        final EncodedJob job = layout.layout(labels, settings);
+        assertTrue(job.getSettings().isEnabled(EnhancedMode.HALF_CUT));
+        assertEquals(3, job.getPageCount());
+        for (int page = 0; page < 3; page++) {
+            assertEquals(60, job.getPageLineCount(page));
+            final ByteBuffer data = job.getPage(page);
+            assertEquals((page < 2) ? RL700SCommandParser.PRINT_WITH_HALF_CUT
+                    : RL700SCommandParser.PRINT_WITH_EVACUATION, data.get(data.limit() - 1));
+        }
+
+        // 各ページの先頭ラインに、並べたラベルの数だけ帯がある
+        final List<byte[]> firstLines = new ArrayList<byte[]>();
+        new RL700SCommandParser(new RL700SCommandParser.Adapter() {
+            private boolean mFirst = true;
+
+            @Override
+            public void onRasterLine(ByteBuffer data) {
+                if (mFirst) {
+                    final byte[] line = new byte[data.remaining()];
+                    data.get(line);
+                    firstLines.add(line);
+                    mFirst = false;
+                }
+            }
+
+            @Override
+            public void onPrint(int command) {
+                mFirst = true;
+            }
+        }).feed(job.getData());
+        assertEquals(3, firstLines.size());
+        final int[] expectedColumns = {
+                3, 3, 1
+        };
+        for (int page = 0; page < 3; page++) {
+            final byte[] line = firstLines.get(page);
+            int bits = 0;
+            for (int bit = 0; bit < LabelCanvas.WIDTH; bit++) {
+                if (get(line, bit)) {
+                    bits++;
+                }
+            }
+            assertEquals(40 * expectedColumns[page], bits);
+            assertTrue(get(line, 128) && !get(line, 127) && !get(line, 168));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_テープより広いラベル() throws Exception {
+        MultiUpLayout.forMedia(new RL700SStatus(0, 0, 0, 12, 1, 0, 0, 0, 0), 150, 60, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_対応していないテープ幅() throws Exception {
+        MultiUpLayout.printableDots(100);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class OffHeapRasterTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("raster", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static byte[][] createLines(int count) {
+        final Random random = new Random(360L);
+        final byte[][] lines = new byte[count][RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < count; i++) {
+            if (i % 7 == 0) {
+                continue; // ゼロライン
+            }
+            if (i % 5 == 0) {
+                lines[i] = lines[i - 1].clone(); // 直前と同じ
+                continue;
+            }
+            for (int j = random.nextInt(8); j < lines[i].length; j += 1 + random.nextInt(6)) {
+                lines[i][j] = (byte) random.nextInt(256);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void 正常_しきい値を超えるとファイルに移す() throws Exception {
+        final byte[][] lines = createLines(1000);
+        final OffHeapRaster raster = new OffHeapRaster(16 * 1024, mDirectory);
+        try {
+            for (byte[] line : lines) {
+                raster.addLine(line);
+                if (raster.getLineCount() == 100) {
+                    assertFalse(raster.isSpilled());
+                }
+            }
+            assertTrue(raster.isSpilled());
+            assertEquals(1, mDirectory.listFiles().length);
+
+            assertEquals(lines.length, raster.getLineCount());
+            for (int i = 0; i < lines.length; i++) {
+                final ByteBuffer b = raster.getLine(i);
+                final byte[] actual = new byte[b.remaining()];
+                b.get(actual);
+                assertTrue("line " + i, Arrays.equals(lines[i], actual));
+                assertEquals(JobEncoder.isZero(lines[i]), raster.isZeroLine(i));
+            }
+        } finally {
+            raster.close();
+        }
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void 正常_ゼロラインの読み飛ばし() throws Exception {
+        final OffHeapRaster raster = new OffHeapRaster();
+        raster.addZeroLines(100);
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        line[47] = 1;
+        raster.addLine(line);
+        raster.addZeroLines(3);
+
+        assertEquals(100, raster.nextNonZeroLine(0));
+        assertEquals(100, raster.nextNonZeroLine(100));
+        assertEquals(104, raster.nextNonZeroLine(101));
+
+        raster.setLine(2, line);
+        assertEquals(2, raster.nextNonZeroLine(0));
+        raster.close();
+    }
+
+    @Test
+    public void 正常_ヒープにコピーせずにエンコード() throws Exception {
+        final byte[][] lines = createLines(300);
+        for (CompressionMode mode : CompressionMode.values()) {
+            final PrintSettings settings = JobEncoderTest.createSettings(mode);
+            final OffHeapRaster raster = new OffHeapRaster(4096, mDirectory);
+            final JobEncoder expected = new JobEncoder(settings);
+            for (byte[] line : lines) {
+                raster.addLine(line);
+                expected.addLine(line);
+            }
+            final JobEncoder actual = new JobEncoder(settings);
+            actual.addLines(raster);
+            raster.close();
+
+            assertTrue(mode.name(), Arrays.equals(
+                    JobEncoderTest.toArray(expected.finish().getData()),
+                    JobEncoderTest.toArray(actual.finish().getData())));
+        }
+    }
+}
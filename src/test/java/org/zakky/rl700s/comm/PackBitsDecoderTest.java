@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PackBitsDecoderTest {
+
+    @Test
+    public void 正常_圧縮して展開すると元に戻る() throws Exception {
+        final Random random = new Random(45L);
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        final byte[] decoded = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < 2000; i++) {
+            // ランとリテラルが混ざるように、値の種類を絞ったり広げたりする
+            final int kinds = 1 + random.nextInt((i % 2 == 0) ? 3 : 256);
+            for (int j = 0; j < line.length; j++) {
+                line[j] = (byte) random.nextInt(kinds);
+            }
+            final byte[] packed = RL700SCommands.packBits(line);
+            PackBitsDecoder.decodeLine(ByteBuffer.wrap(packed), decoded);
+            assertTrue(Arrays.equals(line, decoded));
+        }
+    }
+
+    @Test
+    public void 正常_短いラインの残りは0() throws Exception {
+        final byte[] decoded = new byte[RL700SCommands.MAX_LINE_BYTES];
+        Arrays.fill(decoded, (byte) 0x55);
+        final ByteBuffer src = ByteBuffer.wrap(new byte[] {
+                (byte) -3, 7, 1, 8, 9, (byte) -128
+        });
+        PackBitsDecoder.decodeLine(src, decoded);
+        assertEquals(0, src.remaining());
+        final byte[] expected = new byte[RL700SCommands.MAX_LINE_BYTES];
+        expected[0] = expected[1] = expected[2] = expected[3] = 7;
+        expected[4] = 8;
+        expected[5] = 9;
+        assertTrue(Arrays.equals(expected, decoded));
+    }
+
+    @Test(expected = ParseException.class)
+    public void 異常_リテラルが途中で終わる() throws Exception {
+        PackBitsDecoder.decode(ByteBuffer.wrap(new byte[] {
+                3, 1, 2
+        }), new byte[8], 0, 8);
+    }
+
+    @Test(expected = ParseException.class)
+    public void 異常_展開後が長すぎる() throws Exception {
+        PackBitsDecoder.decode(ByteBuffer.wrap(new byte[] {
+                (byte) -8, 1
+        }), new byte[8], 0, 8);
+    }
+}
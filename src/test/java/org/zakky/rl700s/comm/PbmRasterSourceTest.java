@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PbmRasterSourceTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("label", ".pbm");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private void write(byte[] header, byte[][] rows) throws IOException {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(header);
+            for (byte[] row : rows) {
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[][] createRows(int count, int stride) {
+        final Random random = new Random(384L);
+        final byte[][] rows = new byte[count][stride];
+        for (int i = 0; i < count; i++) {
+            if (i % 3 != 0) {
+                random.nextBytes(rows[i]);
+            }
+        }
+        return rows;
+    }
+
+    private static byte[] pad(byte[] row) {
+        return Arrays.copyOf(row, RL700SCommands.MAX_LINE_BYTES);
+    }
+
+    @Test
+    public void 正常_PBMをヒープに読まずにエンコード() throws Exception {
+        final byte[][] rows = createRows(50, 38);
+        write("P4\n# label\n300 50\n".getBytes("US-ASCII"), rows);
+
+        final PbmRasterSource source = PbmRasterSource.openPbm(mFile);
+        assertEquals(300, source.getWidth());
+        assertEquals(38, source.getStride());
+        assertEquals(50, source.getLineCount());
+        assertTrue(source.isZeroLine(3));
+        assertFalse(source.isZeroLine(4));
+
+        for (CompressionMode mode : CompressionMode.values()) {
+            final PrintSettings settings = JobEncoderTest.createSettings(mode);
+            final JobEncoder expected = new JobEncoder(settings);
+            for (byte[] row : rows) {
+                // 300 ドット幅なので最後のバイトの下位 4 ビットは余り
+                final byte[] line = pad(row);
+                line[37] &= (byte) 0xf0;
+                expected.addLine(line);
+            }
+            final byte[] expectedBytes = JobEncoderTest.toArray(expected.finish().getData());
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final StreamingJobWriter writer = new StreamingJobWriter(Channels.newChannel(out),
+                    settings, 64);
+            writer.addLines(source);
+            writer.finish();
+            assertTrue(mode.name(), Arrays.equals(expectedBytes, out.toByteArray()));
+            assertEquals(expectedBytes.length, writer.getBytesWritten());
+            assertEquals(1, writer.getPageCount());
+        }
+    }
+
+    @Test
+    public void 正常_行末の余りビットは送らない() throws Exception {
+        final byte[][] rows = new byte[4][2];
+        // 幅 13 ドットなので 2 バイト目の下位 3 ビットは余り
+        rows[0][1] = 0x07;
+        rows[1][0] = (byte) 0x80;
+        rows[1][1] = 0x05;
+        rows[2][0] = (byte) 0x80;
+        rows[2][1] = 0x02;
+        rows[3][1] = (byte) 0x0f;
+        write("P4\n13 4\n".getBytes("US-ASCII"), rows);
+
+        final PbmRasterSource source = PbmRasterSource.openPbm(mFile);
+        assertTrue(source.isZeroLine(0));
+        assertFalse(source.isZeroLine(3));
+        final byte[] line = new byte[2];
+        source.getLine(3).get(line);
+        assertTrue(Arrays.equals(new byte[] {
+                0, 0x08
+        }, line));
+        // 余りビットだけが違うラインは同じラインとして扱われる
+        assertTrue(source.getLine(1).equals(source.getLine(2)));
+
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final JobEncoder encoder = new JobEncoder(settings);
+        encoder.addLines(source);
+        final RasterPreview preview = RasterPreview.render(encoder.finish());
+        for (int l = 0; l < rows.length; l++) {
+            for (int dot = 13; dot < RasterPreview.WIDTH; dot++) {
+                assertFalse(preview.isSet(0, l, dot));
+            }
+        }
+    }
+
+    @Test
+    public void 正常_ヘッダのないライン列() throws Exception {
+        final byte[][] rows = createRows(10, RL700SCommands.MAX_LINE_BYTES);
+        write(new byte[0], rows);
+
+        final PbmRasterSource source = PbmRasterSource.openRaw(mFile,
+                RL700SCommands.MAX_LINE_BYTES);
+        assertEquals(10, source.getLineCount());
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        source.getLine(7).get(line);
+        assertTrue(Arrays.equals(rows[7], line));
+    }
+
+    @Test
+    public void 異常_ヘッド幅を超えるPBM() throws Exception {
+        write("P4 400 2\n".getBytes("US-ASCII"), new byte[2][50]);
+        try {
+            PbmRasterSource.openPbm(mFile);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("384"));
+        }
+    }
+
+    @Test
+    public void 異常_壊れたファイル() throws Exception {
+        write("P4 300 10\n".getBytes("US-ASCII"), new byte[9][38]);
+        try {
+            PbmRasterSource.openPbm(mFile);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("truncated"));
+        }
+        write(new byte[0], new byte[3][7]);
+        try {
+            PbmRasterSource.openRaw(mFile, 8);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("stride"));
+        }
+        write("P1 3 3\n".getBytes("US-ASCII"), new byte[0][]);
+        try {
+            PbmRasterSource.openPbm(mFile);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("not a binary PBM"));
+        }
+    }
+}
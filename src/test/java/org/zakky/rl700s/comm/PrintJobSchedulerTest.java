@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.PrintJobScheduler.Chunk;
+import org.zakky.rl700s.comm.PrintJobScheduler.Priority;
+
+public class PrintJobSchedulerTest {
+
+    @Test
+    public void 正常_至急ジョブはページ境界で割り込む() {
+        final PrintJobScheduler scheduler = new PrintJobScheduler();
+        final EncodedJob batch = JobEncoderTest.createJob(3, 10);
+        final EncodedJob urgent = JobEncoderTest.createJob(1, 10);
+
+        final long batchId = scheduler.submit(batch, Priority.LOW);
+        final Chunk first = scheduler.next(0L);
+        assertEquals(batchId, first.getJobId());
+        assertEquals(0, first.getPage());
+        assertEquals(batch.getSetupLength() + batch.getPage(0).remaining(),
+                first.getData().remaining());
+
+        final long urgentId = scheduler.submit(urgent, Priority.URGENT);
+        final Chunk second = scheduler.next(0L);
+        assertEquals(urgentId, second.getJobId());
+        assertTrue(second.isLastPage());
+
+        // 中断されたジョブに戻る際はセットアップコマンドを付け直す
+        final Chunk third = scheduler.next(0L);
+        assertEquals(batchId, third.getJobId());
+        assertEquals(1, third.getPage());
+        assertEquals(batch.getSetupLength() + batch.getPage(1).remaining(),
+                third.getData().remaining());
+
+        // 続けて送る場合はページのみ
+        final Chunk fourth = scheduler.next(0L);
+        assertEquals(2, fourth.getPage());
+        assertEquals(batch.getPage(2).remaining(), fourth.getData().remaining());
+        assertTrue(fourth.isLastPage());
+
+        assertNull(scheduler.next(0L));
+    }
+
+    @Test
+    public void 正常_期限に間に合わないジョブは昇格する() {
+        final PrintTimeEstimator estimator = new PrintTimeEstimator(20.0, 10.0, 100L);
+        final PrintJobScheduler scheduler = new PrintJobScheduler(estimator);
+        final EncodedJob normal = JobEncoderTest.createJob(1, 10);
+        final EncodedJob low = JobEncoderTest.createJob(1, 10);
+
+        final long normalId = scheduler.submit(normal, Priority.NORMAL);
+        final long lowId = scheduler.submit(low, Priority.LOW, 10000L);
+
+        // 期限まで余裕があるうちは優先度の順
+        assertEquals(normalId, scheduler.next(0L).getJobId());
+        scheduler.submit(JobEncoderTest.createJob(1, 10), Priority.NORMAL);
+        // 期限が迫ると至急扱い
+        assertEquals(lowId, scheduler.next(9990L).getJobId());
+    }
+
+    @Test
+    public void 正常_送ったページの分だけ残りの見積もりが減る() {
+        final PrintTimeEstimator estimator = new PrintTimeEstimator(20.0, 10.0, 100L);
+        final PrintJobScheduler scheduler = new PrintJobScheduler(estimator);
+        final EncodedJob job = JobEncoderTest.createJob(3, 10);
+        final long deadline = 10000L;
+        final long all = estimator.estimateRemainingMillis(job, 0);
+        final long rest = estimator.estimateRemainingMillis(job, 1);
+
+        final long lowId = scheduler.submit(job, Priority.LOW, deadline);
+        final long normalId = scheduler.submit(JobEncoderTest.createJob(1, 10), Priority.NORMAL);
+        scheduler.submit(JobEncoderTest.createJob(1, 10), Priority.NORMAL);
+
+        // 3 ページ残っていると間に合わない
+        assertEquals(lowId, scheduler.next(deadline - all).getJobId());
+        // 1 ページ送った後は、残り 2 ページ分の余裕がある間は優先度の順
+        assertEquals(normalId, scheduler.next(deadline - rest - 1).getJobId());
+        assertEquals(lowId, scheduler.next(deadline - rest).getJobId());
+    }
+
+    @Test
+    public void 正常_cancel() {
+        final PrintJobScheduler scheduler = new PrintJobScheduler();
+        final long id = scheduler.submit(JobEncoderTest.createJob(2, 1), Priority.NORMAL);
+        assertEquals(1, scheduler.size());
+        assertTrue(scheduler.cancel(id));
+        assertFalse(scheduler.cancel(id));
+        assertNull(scheduler.next(0L));
+    }
+
+    @Test
+    public void 正常_見積もり() {
+        final PrintTimeEstimator estimator = new PrintTimeEstimator(25.4, 12.7, 0L);
+        final EncodedJob job = JobEncoderTest.createJob(1, 360);
+        // 360 ライン = 1 inch、余白 14 ドット x 2
+        assertEquals((long) Math.ceil((25.4 + 2 * 14 * 25.4 / 360) / 25.4 * 1000),
+                estimator.estimateMillis(job));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PrintPipelineTest {
+
+    /**
+     * 配列のラインをバンドごとに写す描画.
+     */
+    private static final class ArrayRenderer implements PrintPipeline.BandRenderer {
+        private final byte[][] mLines;
+        private final long mDelayMillis;
+
+        ArrayRenderer(byte[][] lines, long delayMillis) {
+            mLines = lines;
+            mDelayMillis = delayMillis;
+        }
+
+        @Override
+        public int render(int firstLine, byte[][] band) {
+            if (0L < mDelayMillis) {
+                try {
+                    Thread.sleep(mDelayMillis);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            final int n = Math.max(0, Math.min(band.length, mLines.length - firstLine));
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(mLines[firstLine + i], 0, band[i], 0, band[i].length);
+            }
+            return n;
+        }
+    }
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+    }
+
+    private static byte[][] createLines(int count) {
+        final byte[][] lines = new byte[count][RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < count; i++) {
+            if (i % 5 != 0) {
+                // 2 ラインずつ同じ内容にする
+                lines[i][(i / 2) % RL700SCommands.MAX_LINE_BYTES] = (byte) (i / 2);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void 正常_JobEncoderと同じバイト列() throws Exception {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final byte[][] lines = createLines(100);
+        final JobEncoder encoder = new JobEncoder(settings);
+        for (byte[] line : lines) {
+            encoder.addLine(line);
+        }
+        final byte[] expected = JobEncoderTest.toArray(encoder.finish().getData());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintPipeline pipeline = new PrintPipeline(Channels.newChannel(out), settings,
+                mExecutor, 7, 2);
+        for (int i = 0; i < 3; i++) {
+            out.reset();
+            final PrintPipeline.Report report = pipeline.print(new ArrayRenderer(lines, 0L));
+            assertTrue(Arrays.equals(expected, out.toByteArray()));
+            assertEquals(100, report.getLineCount());
+            assertEquals(expected.length, report.getBytesWritten());
+        }
+    }
+
+    @Test
+    public void 正常_描画中に送信を始める() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintPipeline pipeline = new PrintPipeline(Channels.newChannel(out),
+                JobEncoderTest.createSettings(CompressionMode.TIFF), mExecutor, 32, 2);
+        final PrintPipeline.Report report = pipeline.print(new ArrayRenderer(createLines(128),
+                30L));
+        assertTrue(report.getFirstByteNanos() <= report.getFirstLineNanos());
+        assertTrue(report.getFirstLineNanos() <= report.getFirstPrintNanos());
+        assertTrue(report.getFirstPrintNanos() <= report.getTotalNanos());
+        // セットアップコマンドは最初のバンドの描画を待たない
+        assertTrue(report.getFirstByteNanos() < TimeUnit.MILLISECONDS.toNanos(30));
+        // 最初のバンドは 5 回目の描画(終端の確認)より前に送られている
+        assertTrue(report.getFirstLineNanos() < report.getTotalNanos() / 2);
+        assertTrue(TimeUnit.MILLISECONDS.toNanos(120) <= report.getRenderNanos());
+    }
+
+    @Test
+    public void 異常_送信の失敗() throws Exception {
+        final WritableByteChannel broken = new WritableByteChannel() {
+            private int mWrites;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (2 <= ++mWrites) {
+                    throw new IOException("broken.");
+                }
+                final int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final PrintPipeline pipeline = new PrintPipeline(broken,
+                JobEncoderTest.createSettings(CompressionMode.TIFF), mExecutor, 4, 1);
+        for (int i = 0; i < 2; i++) {
+            try {
+                pipeline.print(new ArrayRenderer(createLines(100), 0L));
+                fail();
+            } catch (IOException e) {
+                assertEquals("broken.", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.PrintJobScheduler.Priority;
+import org.zakky.rl700s.comm.PrintServerProtocol.Frame;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.StatusChangeEvent.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PrintServerTest {
+
+    /**
+     * 印字司令コマンドで終わる書き込みのたびに印刷終了のステータスを返す模擬プリンタ.
+     */
+    private static final class FakePrinter implements ByteChannel {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final ByteBuffer mPending = ByteBuffer.allocate(1024);
+        private int mPages;
+
+        FakePrinter() {
+            mPending.flip();
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) {
+            final int n = src.remaining();
+            byte last = 0;
+            while (src.hasRemaining()) {
+                last = src.get();
+                received.write(last);
+            }
+            if (last == 0x0c || last == 0x1a) {
+                mPages++;
+                mPending.compact();
+                mPending.put(new byte[] {
+                        (byte) 0x80, 0x20, 'B', '3', '1', '0', 0, 0, 0, 0, 24, 1, 0, 0, 0, 0,
+                        0, 0, RL700SStatus.STATUS_TYPE_PRINT_COMPLETE, 0, 0, (byte) mPages,
+                        0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+                });
+                mPending.flip();
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) {
+            if (!mPending.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(dst.remaining(), mPending.remaining());
+            final ByteBuffer part = mPending.duplicate();
+            part.limit(part.position() + n);
+            dst.put(part);
+            mPending.position(mPending.position() + n);
+            return n;
+        }
+
+        synchronized byte[] getReceived() {
+            return received.toByteArray();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private FakePrinter mPrinter0;
+    private FakePrinter mPrinter1;
+    private PrintServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new PrintServer(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mPrinter0 = new FakePrinter();
+        mPrinter1 = new FakePrinter();
+        assertEquals(0, mServer.addPrinter(mPrinter0));
+        assertEquals(1, mServer.addPrinter(mPrinter1));
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    private SocketChannel connect() throws Exception {
+        return SocketChannel.open(mServer.getLocalAddress());
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer frame) throws Exception {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private static byte[][] createBitmap(int lineCount) {
+        final byte[][] lines = new byte[lineCount][RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < lineCount; i++) {
+            lines[i][i % RL700SCommands.MAX_LINE_BYTES] = (byte) i;
+        }
+        return lines;
+    }
+
+    @Test
+    public void 正常_ジョブを印刷してステータスを受け取る() throws Exception {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final byte[][] lines = createBitmap(20);
+        final JobEncoder encoder = new JobEncoder(settings);
+        for (byte[] line : lines) {
+            encoder.addLine(line);
+        }
+        final EncodedJob job = encoder.finish();
+
+        final SocketChannel client = connect();
+        write(client, PrintServerProtocol.subscribeFrame(0));
+        write(client, PrintServerProtocol.jobFrame(0, 1, Priority.NORMAL, job));
+        write(client, PrintServerProtocol.bitmapFrame(1, 2, Priority.HIGH, settings, lines));
+
+        final List<Integer> accepted = new ArrayList<Integer>();
+        final List<StatusChangeEvent> events = new ArrayList<StatusChangeEvent>();
+        int completed = 0;
+        while (completed < 2 || events.size() < 2) {
+            final Frame frame = PrintServerProtocol.read(client);
+            final ByteBuffer p = frame.getPayload();
+            switch (frame.getType()) {
+                case PrintServerProtocol.TYPE_ACCEPTED:
+                    accepted.add(Integer.valueOf(p.getInt()));
+                    break;
+                case PrintServerProtocol.TYPE_JOB_COMPLETE:
+                    p.getShort();
+                    p.getLong();
+                    assertEquals(0, p.getShort());
+                    completed++;
+                    break;
+                case PrintServerProtocol.TYPE_STATUS:
+                    assertEquals(0, p.getShort());
+                    events.add(PrintServerProtocol.toStatusChangeEvent(frame));
+                    break;
+                default:
+                    throw new AssertionError("unexpected frame: " + frame.getType());
+            }
+        }
+        client.close();
+
+        assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2)), accepted);
+        assertEquals(Type.MEDIA_CHANGED, events.get(0).getType());
+        assertEquals(24, events.get(0).getCurrent().getMediaWidth());
+        assertEquals(Type.PRINT_COMPLETE, events.get(1).getType());
+        // エンコード済みのジョブも、サーバでエンコードしたビットマップも同じバイト列になる
+        final byte[] expected = JobEncoderTest.toArray(job.getData());
+        assertTrue(Arrays.equals(expected, mPrinter0.getReceived()));
+        assertTrue(Arrays.equals(expected, mPrinter1.getReceived()));
+    }
+
+    @Test
+    public void 正常_プリンタのフェーズとジョブの終了をトレースする() throws Exception {
+        final List<String> names = new ArrayList<String>();
+        RL700STracer.enable(new RL700STracer.Sink() {
+            @Override
+            public void onEvent(TraceEvent event) {
+                if (TraceEvent.CATEGORY_PRINTER.equals(event.getCategory())) {
+                    synchronized (names) {
+                        names.add(event.getName());
+                    }
+                }
+            }
+        });
+        try {
+            final SocketChannel client = connect();
+            write(client, PrintServerProtocol.jobFrame(0, 1, Priority.NORMAL,
+                    JobEncoderTest.createJob(2, 1)));
+            assertEquals(PrintServerProtocol.TYPE_ACCEPTED, PrintServerProtocol.read(client)
+                    .getType());
+            assertEquals(PrintServerProtocol.TYPE_JOB_COMPLETE, PrintServerProtocol.read(client)
+                    .getType());
+            client.close();
+        } finally {
+            RL700STracer.disable();
+        }
+        synchronized (names) {
+            // 2 ページの印刷終了の後にジョブの終了
+            assertEquals(2, Collections.frequency(names, "print-complete"));
+            assertEquals(names.size() - 1, names.indexOf("job-complete"));
+            assertTrue(names.contains("phase"));
+        }
+    }
+
+    @Test
+    public void 正常_多数の同時接続() throws Exception {
+        final PrintSettings settings = JobEncoderTest.createSettings(CompressionMode.TIFF);
+        final byte[][] lines = createBitmap(5);
+        final SocketChannel[] clients = new SocketChannel[200];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = connect();
+            write(clients[i], PrintServerProtocol.bitmapFrame(i % 2, i, Priority.NORMAL,
+                    settings, lines));
+        }
+        for (int i = 0; i < clients.length; i++) {
+            final Frame accepted = PrintServerProtocol.read(clients[i]);
+            assertEquals(PrintServerProtocol.TYPE_ACCEPTED, accepted.getType());
+            assertEquals(i, accepted.getPayload().getInt());
+            final Frame complete = PrintServerProtocol.read(clients[i]);
+            assertEquals(PrintServerProtocol.TYPE_JOB_COMPLETE, complete.getType());
+            clients[i].close();
+        }
+    }
+
+    @Test
+    public void 異常_存在しないプリンタ() throws Exception {
+        final SocketChannel client = connect();
+        write(client, PrintServerProtocol.bitmapFrame(5, 7, Priority.NORMAL,
+                JobEncoderTest.createSettings(CompressionMode.NONE), createBitmap(1)));
+        final Frame frame = PrintServerProtocol.read(client);
+        assertEquals(PrintServerProtocol.TYPE_REJECTED, frame.getType());
+        assertEquals(7, frame.getPayload().getInt());
+        client.close();
+    }
+
+    /**
+     * ページ境界を直接指定した、ジョブ投入のフレームを生成します.
+     */
+    private static ByteBuffer rawJobFrame(int requestId, int setupLength, int[] pageEnds,
+            byte[] data) {
+        final byte[] settings = SpoolJournal.encodeSettings(JobEncoderTest
+                .createSettings(CompressionMode.TIFF));
+        final int length = 2 + 4 + 1 + 1 + settings.length + 4 + 4 + 8 * pageEnds.length
+                + data.length;
+        final ByteBuffer frame = ByteBuffer.allocate(PrintServerProtocol.HEADER_SIZE + length);
+        frame.put((byte) PrintServerProtocol.TYPE_SUBMIT_JOB);
+        frame.putInt(length);
+        frame.putShort((short) 0);
+        frame.putInt(requestId);
+        frame.put((byte) Priority.NORMAL.rawValue());
+        frame.put((byte) settings.length);
+        frame.put(settings);
+        frame.putInt(setupLength);
+        frame.putInt(pageEnds.length);
+        for (int end : pageEnds) {
+            frame.putInt(end);
+            frame.putInt(0);
+        }
+        frame.put(data);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 正しいジョブが受け付けられ、印刷を終えることを確認します.
+     */
+    private void assertPrintable(int requestId) throws Exception {
+        final SocketChannel client = connect();
+        write(client, PrintServerProtocol.bitmapFrame(0, requestId, Priority.NORMAL,
+                JobEncoderTest.createSettings(CompressionMode.TIFF), createBitmap(3)));
+        final Frame accepted = PrintServerProtocol.read(client);
+        assertEquals(PrintServerProtocol.TYPE_ACCEPTED, accepted.getType());
+        assertEquals(requestId, accepted.getPayload().getInt());
+        assertEquals(PrintServerProtocol.TYPE_JOB_COMPLETE, PrintServerProtocol.read(client)
+                .getType());
+        client.close();
+    }
+
+    @Test
+    public void 異常_ページのないジョブ() throws Exception {
+        final SocketChannel client = connect();
+        write(client, rawJobFrame(3, 0, new int[0], new byte[0]));
+        final Frame frame = PrintServerProtocol.read(client);
+        assertEquals(PrintServerProtocol.TYPE_REJECTED, frame.getType());
+        assertEquals(3, frame.getPayload().getInt());
+        client.close();
+        // 待ち受けもプリンタも止まっていない
+        assertPrintable(4);
+    }
+
+    @Test
+    public void 異常_負のセットアップ長() throws Exception {
+        final SocketChannel client = connect();
+        write(client, rawJobFrame(5, -1, new int[] {
+            0
+        }, new byte[0]));
+        final Frame frame = PrintServerProtocol.read(client);
+        assertEquals(PrintServerProtocol.TYPE_REJECTED, frame.getType());
+        assertEquals(5, frame.getPayload().getInt());
+        client.close();
+        assertPrintable(6);
+    }
+
+    @Test
+    public void 異常_不正なフレームで切断() throws Exception {
+        final SocketChannel client = connect();
+        write(client, ByteBuffer.wrap(new byte[] {
+                0x7f, 0, 0, 0, 2, 0, 0
+        }));
+        assertNull(PrintServerProtocol.read(client));
+        client.close();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+public class RL700SCommandParserTest {
+
+    private static final class Counter extends RL700SCommandParser.Adapter {
+        final StringBuilder log = new StringBuilder();
+        int lines;
+        int zeroLines;
+        int rasterBytes;
+
+        @Override
+        public void onInit() {
+            log.append("init,");
+        }
+
+        @Override
+        public void onStatusRequest() {
+            log.append("status,");
+        }
+
+        @Override
+        public void onSwitchCommandMode(int mode) {
+            log.append("mode=").append(mode).append(',');
+        }
+
+        @Override
+        public void onSetMergin(int mergin) {
+            log.append("mergin=").append(mergin).append(',');
+        }
+
+        @Override
+        public void onSelectCompressionMode(int mode) {
+            log.append("compression=").append(mode).append(',');
+        }
+
+        @Override
+        public void onRasterLine(ByteBuffer data) {
+            lines++;
+            rasterBytes += data.remaining();
+        }
+
+        @Override
+        public void onZeroRasterLine() {
+            zeroLines++;
+        }
+
+        @Override
+        public void onPrint(int command) {
+            log.append("print=").append(command).append(',');
+        }
+    }
+
+    private static EncodedJob createJob() {
+        final JobEncoder encoder = new JobEncoder(JobEncoderTest.createSettings(CompressionMode.TIFF));
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        for (int i = 0; i < 30; i++) {
+            line[i % line.length] = (byte) (i * 37);
+            encoder.addLine(line);
+            if (i == 9) {
+                encoder.endPage(true);
+            }
+        }
+        encoder.addZeroLine();
+        return encoder.finish();
+    }
+
+    @Test
+    public void 正常_任意の位置で区切っても同じ結果() throws Exception {
+        final byte[] job = JobEncoderTest.toArray(createJob().getData());
+        final Counter whole = new Counter();
+        new RL700SCommandParser(whole).feed(ByteBuffer.wrap(job));
+        // 最初のラインはすべて 0 なのでゼロラスターラインになる
+        assertEquals(29, whole.lines);
+        assertEquals(2, whole.zeroLines);
+        assertTrue(whole.log.toString(), whole.log.toString().startsWith("init,mode=1,"));
+        assertTrue(whole.log.toString(), whole.log.toString().endsWith("print=11,print=26,"));
+
+        for (int chunk = 1; chunk < 20; chunk++) {
+            final Counter split = new Counter();
+            final RL700SCommandParser parser = new RL700SCommandParser(split);
+            for (int i = 0; i < job.length; i += chunk) {
+                parser.feed(ByteBuffer.wrap(job, i, Math.min(chunk, job.length - i)));
+            }
+            assertTrue(parser.isAtBoundary());
+            assertEquals(job.length, parser.getOffset());
+            assertEquals(whole.log.toString(), split.log.toString());
+            assertEquals(whole.lines, split.lines);
+            assertEquals(whole.rasterBytes, split.rasterBytes);
+        }
+    }
+
+    @Test
+    public void 正常_途中で止まったコマンド() throws Exception {
+        final Counter counter = new Counter();
+        final RL700SCommandParser parser = new RL700SCommandParser(counter);
+        final ByteBuffer cmd = RL700SCommands.allocateOutBuffer();
+        RL700SCommands.getStatus(cmd);
+        parser.feed(cmd);
+        RL700SCommands.getSetMergin(cmd, 300);
+        cmd.limit(cmd.limit() - 1);
+        parser.feed(cmd);
+        assertEquals("status,", counter.log.toString());
+        assertTrue(!parser.isAtBoundary());
+        parser.feed(ByteBuffer.wrap(new byte[] {
+            (byte) (300 >>> 8)
+        }));
+        assertEquals("status,mergin=300,", counter.log.toString());
+    }
+
+    @Test(expected = ParseException.class)
+    public void 異常_不明なコマンド() throws Exception {
+        new RL700SCommandParser(new Counter()).feed(ByteBuffer.wrap(new byte[] {
+                'Z', 'Q'
+        }));
+    }
+}
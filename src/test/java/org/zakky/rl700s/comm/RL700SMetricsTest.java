@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+public class RL700SMetricsTest {
+
+    @After
+    public void tearDown() throws Exception {
+        RL700SMetrics.disable();
+    }
+
+    private static RL700SStatus createStatus(int errorInfo1) {
+        return new RL700SStatus(0, errorInfo1, 0, 24, 1, 0, 0, 0, 0);
+    }
+
+    private static void encode() {
+        final JobEncoder encoder = new JobEncoder(JobEncoderTest.createSettings(CompressionMode.TIFF));
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        encoder.addLine(line); // Z
+        line[0] = 1;
+        encoder.addLine(line, 3); // 圧縮は 1 回、 G は 3 つ
+        new Random(1L).nextBytes(line);
+        encoder.addLine(line); // 無圧縮
+        encoder.finish();
+    }
+
+    @Test
+    public void 正常_無効の間は数えない() {
+        encode();
+        assertNull(RL700SMetrics.get());
+        final RL700SMetrics metrics = RL700SMetrics.enable();
+        assertSame(metrics, RL700SMetrics.enable());
+        metrics.reset();
+        RL700SMetrics.disable();
+        encode();
+        assertEquals(0L, metrics.getRasterLineCommands());
+        assertEquals(0L, metrics.getJobsEncoded());
+    }
+
+    @Test
+    public void 正常_エンコードの計測() {
+        final RL700SMetrics metrics = RL700SMetrics.enable();
+        metrics.reset();
+        encode();
+
+        assertEquals(4L, metrics.getRasterLineCommands());
+        assertEquals(1L, metrics.getZeroLineCommands());
+        assertEquals(1L, metrics.getLiteralFallbackLines());
+        assertEquals(1L, metrics.getJobsEncoded());
+        assertEquals(5L, metrics.getLinesEncoded());
+        // 4 バイトに圧縮された 3 ラインと 49 バイトになったラインの平均
+        assertEquals((4 * 3 + 49) / (48.0 * 4), metrics.getCompressionRatio(), 1e-9);
+        assertTrue(0.0 < metrics.getMeanJobBytes());
+        assertEquals(1L, metrics.getEncodeNanosPerLine().getCount());
+    }
+
+    @Test
+    public void 正常_エンコード済みのラインも数える() {
+        final ByteBuffer cmd = RL700SCommands.allocateOutBuffer();
+        final byte[] line = new byte[RL700SCommands.MAX_LINE_BYTES];
+        line[0] = 1;
+        JobEncoder.lineCommand(cmd, line, CompressionMode.TIFF);
+        final byte[] commands = new byte[cmd.remaining() + 1];
+        cmd.get(commands, 0, commands.length - 1);
+        commands[commands.length - 1] = 'Z';
+
+        final RL700SMetrics metrics = RL700SMetrics.enable();
+        metrics.reset();
+        final JobEncoder encoder = new JobEncoder(JobEncoderTest.createSettings(CompressionMode.TIFF));
+        encoder.addEncodedLines(commands, 0, commands.length, 2);
+        encoder.addEncodedLines(commands, 0, commands.length, 2);
+        encoder.finish();
+
+        assertEquals(2L, metrics.getRasterLineCommands());
+        assertEquals(2L, metrics.getZeroLineCommands());
+        assertEquals(4L, metrics.getLinesEncoded());
+    }
+
+    @Test
+    public void 正常_ステータスの計測() throws Exception {
+        final RL700SMetrics metrics = RL700SMetrics.enable();
+        metrics.reset();
+        final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+        final RL700SMetrics.StatusTracker a = new RL700SMetrics.StatusTracker();
+        final RL700SMetrics.StatusTracker b = new RL700SMetrics.StatusTracker();
+
+        // 2 台のリクエストと応答が入れ違っても混ざらない
+        a.onStatusRequested(1000 * ms);
+        b.onStatusRequested(1001 * ms);
+        a.onStatus(createStatus(0), 1003 * ms);
+        a.onStatus(createStatus(1 << 1), 1010 * ms); // MEDIA_END
+        a.onStatus(createStatus((1 << 1) | (1 << 4)), 1030 * ms); // MEDIA_END + BUSY
+        b.onStatus(createStatus(0), 1051 * ms);
+        a.onStatus(createStatus(0), 1100 * ms);
+        b.onStatus(createStatus(0), 1101 * ms);
+
+        final Map<String, Long> states = metrics.getErrorStateMillis();
+        assertEquals(Long.valueOf(7L + 50L), states.get(RL700SMetrics.NO_ERROR));
+        assertEquals(Long.valueOf(90L), states.get("MEDIA_END"));
+        assertEquals(Long.valueOf(70L), states.get("BUSY"));
+        assertEquals(2L, metrics.getStatusRoundTripNanos().getCount());
+        final long rtt = metrics.getStatusRoundTripMicrosP50();
+        assertTrue(rtt + "us", 3000L <= rtt && rtt <= 3000L + 3000L / 16);
+        final long max = metrics.getStatusRoundTripMicrosMax();
+        assertTrue(max + "us", 50000L <= max && max <= 50000L + 50000L / 16);
+
+        // コマンド生成と解析だけでは、どのプリンタのものか分からないので数えない
+        RL700SCommands.getStatus(RL700SCommands.allocateOutBuffer());
+        final ByteBuffer raw = ByteBuffer.allocate(RL700SStatus.STATUS_SIZE);
+        raw.put(new byte[] {
+                (byte) 0x80, 0x20, 'B', '3', '1', '0', 0
+        });
+        raw.clear();
+        RL700SStatus.parse(raw);
+        assertEquals(2L, metrics.getStatusRoundTripNanos().getCount());
+    }
+
+    @Test
+    public void 正常_JMX() throws Exception {
+        final RL700SMetrics metrics = RL700SMetrics.enable();
+        metrics.reset();
+        encode();
+        metrics.registerMBean();
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(RL700SMetrics.OBJECT_NAME);
+        try {
+            assertEquals(Long.valueOf(1L), server.getAttribute(name, "ZeroLineCommands"));
+            assertTrue(server.getAttribute(name, "ErrorStateMillis") instanceof TabularData);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -163,6 +163,23 @@ public class RL700SStatusTest {
         assertEquals(0x827f, status.getPhaseNumber());
     }
 
+    @Test
+    public void 正常_Parse_ダイレクトバッファ() throws Exception {
+        final ByteBuffer heap = createDefaultStatusBuffer();
+        heap.put(19, (byte) RL700SStatus.PHASE_TYPE_PRINTING);
+        heap.put(21, (byte) 3);
+        // 前に余分なバイトを置いて position が 0 でない場合も確認する
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(RL700SStatus.STATUS_SIZE + 5);
+        buffer.position(5);
+        buffer.put(heap);
+        buffer.position(5);
+
+        final RL700SStatus status = RL700SStatus.parse(buffer.asReadOnlyBuffer());
+
+        assertEquals(RL700SStatus.PHASE_TYPE_PRINTING, status.getPhaseType());
+        assertEquals(3, status.getPhaseNumber());
+    }
+
     @Test(expected = ParseException.class)
     public void 異常_Parse_不正なヘッドマーカー() throws Exception {
         final ByteBuffer buffer = createDefaultStatusBuffer();
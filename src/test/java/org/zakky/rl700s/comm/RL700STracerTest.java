@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zakky.rl700s.comm.PrintJobScheduler.Chunk;
+import org.zakky.rl700s.comm.PrintJobScheduler.Priority;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RL700STracerTest {
+
+    private static final class ListSink implements RL700STracer.Sink {
+        final List<TraceEvent> events = new ArrayList<TraceEvent>();
+
+        @Override
+        public synchronized void onEvent(TraceEvent event) {
+            events.add(event);
+        }
+
+        synchronized List<TraceEvent> find(String name) {
+            final List<TraceEvent> result = new ArrayList<TraceEvent>();
+            for (TraceEvent e : events) {
+                if (e.getName().equals(name)) {
+                    result.add(e);
+                }
+            }
+            return result;
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        RL700STracer.disable();
+        RL700STracer.clearCurrentJob();
+    }
+
+    private static RL700SStatus createStatus(int statusType, int phaseType, int phaseNumber) {
+        return new RL700SStatus(0, 0, 0, 24, 1, 0, statusType, phaseType, phaseNumber);
+    }
+
+    @Test
+    public void 正常_スレッドをまたいだジョブの記録() throws Exception {
+        final ListSink sink = new ListSink();
+        RL700STracer.enable(sink);
+
+        final EncodedJob[] job = new EncodedJob[1];
+        final Thread encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RL700STracer.setCurrentJob(42L);
+                final JobEncoder e = new JobEncoder(JobEncoderTest.createSettings(CompressionMode.TIFF));
+                e.addLines(new BarcodeRasterizer(2, false).code128("A-1", 0, 100));
+                e.endPage(true);
+                e.addZeroLine();
+                job[0] = e.finish();
+            }
+        }, "encoder");
+        encoder.start();
+        encoder.join();
+        assertEquals(42L, job[0].getTraceId());
+
+        final PrintJobScheduler scheduler = new PrintJobScheduler();
+        scheduler.submit(job[0], Priority.NORMAL);
+        final Chunk chunk = scheduler.next();
+        assertEquals(42L, chunk.getTraceId());
+        scheduler.next();
+
+        assertEquals(1, sink.find("barcode").size());
+        assertEquals("encoder", sink.find("barcode").get(0).getThreadName());
+        final List<TraceEvent> pages = sink.find("encode-page");
+        assertEquals(2, pages.size());
+        assertEquals("page=1 lines=1", pages.get(1).getDetail());
+        final List<TraceEvent> waits = sink.find("queue-wait");
+        assertEquals(1, waits.size());
+        assertEquals(42L, waits.get(0).getTraceId());
+        assertEquals(Thread.currentThread().getName(), waits.get(0).getThreadName());
+        assertFalse(waits.get(0).isInstant());
+    }
+
+    @Test
+    public void 正常_フェーズの変化() {
+        final ListSink sink = new ListSink();
+        RL700STracer.enable(sink);
+
+        RL700STracer.onStatus(7L, createStatus(0x06, 1, 0));
+        RL700STracer.onStatus(7L, createStatus(0x00, 1, 0));
+        RL700STracer.onStatus(7L, createStatus(0x01, 1, 1));
+        RL700STracer.endJob(7L);
+
+        assertEquals(2, sink.find("phase").size());
+        assertEquals("type=1 number=1", sink.find("phase").get(1).getDetail());
+        assertEquals(1, sink.find("print-complete").size());
+        assertEquals(1, sink.find("job-complete").size());
+        for (TraceEvent e : sink.events) {
+            assertTrue(e.isInstant());
+            assertEquals(TraceEvent.CATEGORY_PRINTER, e.getCategory());
+        }
+    }
+
+    @Test
+    public void 正常_終わらなかったジョブのフェーズは上限を超えると忘れる() {
+        final ListSink sink = new ListSink();
+        RL700STracer.enable(sink);
+
+        RL700STracer.onStatus(1L, createStatus(0x06, 1, 0));
+        for (long id = 2L; id <= RL700STracer.MAX_TRACKED_JOBS + 10; id++) {
+            RL700STracer.onStatus(id, createStatus(0x06, 1, 0));
+            // 印刷中のジョブは使われ続けるので残る
+            RL700STracer.onStatus(1L, createStatus(0x06, 1, 0));
+        }
+        assertEquals(RL700STracer.MAX_TRACKED_JOBS, RL700STracer.getTrackedJobCount());
+        assertEquals(RL700STracer.MAX_TRACKED_JOBS + 10, sink.find("phase").size());
+
+        RL700STracer.endJob(1L);
+        assertEquals(RL700STracer.MAX_TRACKED_JOBS - 1, RL700STracer.getTrackedJobCount());
+    }
+
+    @Test
+    public void 正常_無効の間は記録しない() {
+        final ListSink sink = new ListSink();
+        assertEquals(0L, RL700STracer.begin());
+        RL700STracer.setCurrentJob(1L);
+        final JobEncoder e = new JobEncoder(JobEncoderTest.createSettings(CompressionMode.TIFF));
+        RL700STracer.enable(sink);
+        e.finish();
+        // 構築時に無効だったページは記録しない
+        assertTrue(sink.events.isEmpty());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+import org.zakky.rl700s.comm.RL700SCommands.Paper;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.EnumSet;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+public class RasterPreviewTest {
+
+    private static byte[][] createLines(int count, long seed) {
+        final Random random = new Random(seed);
+        final byte[][] lines = new byte[count][RL700SCommands.MAX_LINE_BYTES];
+        for (int l = 0; l < count; l++) {
+            if (l % 5 == 0) {
+                continue; // ゼロラスターライン
+            }
+            for (int i = 0; i < RL700SCommands.MAX_LINE_BYTES; i++) {
+                lines[l][i] = (byte) ((i < 8) ? random.nextInt() : (l & 0x0f));
+            }
+        }
+        return lines;
+    }
+
+    private static EncodedJob encode(PrintSettings settings, byte[][]... pages) {
+        final JobEncoder encoder = new JobEncoder(settings);
+        for (int p = 0; p < pages.length; p++) {
+            if (p != 0) {
+                encoder.endPage(true);
+            }
+            for (byte[] line : pages[p]) {
+                encoder.addLine(line);
+            }
+        }
+        return encoder.finish();
+    }
+
+    @Test
+    public void 正常_エンコード結果から復元() throws Exception {
+        final byte[][] page0 = createLines(120, 1L);
+        final byte[][] page1 = createLines(30, 2L);
+        for (CompressionMode mode : CompressionMode.values()) {
+            final RasterPreview preview = RasterPreview.render(encode(
+                    JobEncoderTest.createSettings(mode), page0, page1));
+            assertEquals(2, preview.getPageCount());
+            assertEquals(120, preview.getLineCount(0));
+            assertEquals(30, preview.getLineCount(1));
+            assertTrue(preview.matches(0, page0));
+            assertTrue(preview.matches(1, page1));
+            assertFalse(preview.matches(0, page1));
+            assertFalse(preview.isMirror(0));
+        }
+    }
+
+    @Test
+    public void 正常_ミラー印字はラインを反転() throws Exception {
+        final PrintSettings settings = new PrintSettings(Paper.LAMINATE, Integer.valueOf(24),
+                null, EnumSet.of(Mode.MIRROR), EnumSet.noneOf(EnhancedMode.class), 14,
+                CompressionMode.TIFF, true, false);
+        final byte[][] lines = createLines(10, 3L);
+        final RasterPreview preview = RasterPreview.render(encode(settings, lines));
+        assertTrue(preview.isMirror(0));
+        final byte[][] reversed = new byte[lines.length][];
+        for (int l = 0; l < lines.length; l++) {
+            reversed[l] = lines[lines.length - 1 - l];
+        }
+        assertTrue(preview.matches(0, reversed));
+        assertTrue(preview.isSet(0, 0, 0) == ((reversed[0][0] & 0x80) != 0));
+    }
+
+    @Test
+    public void 正常_PNG() throws Exception {
+        final byte[][] lines = createLines(40, 4L);
+        final RasterPreview preview = RasterPreview.render(encode(
+                JobEncoderTest.createSettings(CompressionMode.TIFF), lines));
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(preview.toPng(0)));
+        assertEquals(RasterPreview.WIDTH, image.getWidth());
+        assertEquals(lines.length, image.getHeight());
+        for (int y = 0; y < lines.length; y++) {
+            for (int x = 0; x < RasterPreview.WIDTH; x++) {
+                final boolean black = (image.getRGB(x, y) & 0xffffff) == 0;
+                assertEquals(preview.isSet(0, y, x), black);
+            }
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void 異常_途中で終わるコマンド() throws Exception {
+        final byte[] job = JobEncoderTest.toArray(encode(
+                JobEncoderTest.createSettings(CompressionMode.TIFF), createLines(3, 5L))
+                .getData());
+        RasterPreview.render(ByteBuffer.wrap(job, 0, job.length - 10));
+    }
+}
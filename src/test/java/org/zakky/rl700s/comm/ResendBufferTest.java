@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class ResendBufferTest {
+
+    private static RL700SStatus createStatus(int statusType, int errorInfo1, int phaseNumber) {
+        return new RL700SStatus(0, errorInfo1, 0, 24, 1, 0, statusType, 1, phaseNumber);
+    }
+
+    @Test
+    public void 正常_印刷途中のページから再送() {
+        final ResendBuffer buffer = new ResendBuffer(1024);
+        final EncodedJob job = JobEncoderTest.createJob(3, 1);
+        assertTrue(buffer.put(1L, job));
+
+        // フェーズ番号は前のジョブからの通し番号
+        buffer.onStatus(1L, createStatus(RL700SStatus.STATUS_TYPE_PHASE_CHANGE, 0, 7));
+        buffer.onStatus(1L, createStatus(RL700SStatus.STATUS_TYPE_PRINT_COMPLETE, 0, 7));
+        // MEDIA_END
+        final RL700SStatus status = createStatus(RL700SStatus.STATUS_TYPE_ERROR, 1 << 1, 8);
+        buffer.onStatus(1L, status);
+        assertTrue(ResendBuffer.needsResend(status));
+        final ByteBuffer data = buffer.recover(1L);
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(job.resumeFrom(1)),
+                JobEncoderTest.toArray(data)));
+        assertEquals(job.getSetupLength() + job.getLength() - job.getPageStart(1),
+                data.remaining());
+
+        assertFalse(ResendBuffer.needsResend(createStatus(RL700SStatus.STATUS_TYPE_ERROR,
+                1 << 3, 0))); // LOW_BATTERY
+        assertNull(buffer.recover(2L));
+    }
+
+    @Test
+    public void 正常_上限を超えると古いジョブを捨てる() {
+        final EncodedJob job = JobEncoderTest.createJob(1, 1);
+        final ResendBuffer buffer = new ResendBuffer(job.getLength() * 2);
+        buffer.put(1L, job);
+        buffer.put(2L, job);
+        buffer.put(3L, job);
+        assertEquals(2, buffer.size());
+        assertNull(buffer.get(1L));
+        assertEquals(job.getLength() * 2, buffer.getBytes());
+
+        buffer.remove(2L);
+        assertEquals(job.getLength(), buffer.getBytes());
+        assertFalse(new ResendBuffer(job.getLength() - 1).put(1L, job));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+import org.zakky.rl700s.comm.RL700SCommands.Paper;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Random;
+
+public class ScaledRasterSourceTest {
+
+    /**
+     * 配列のラインをそのまま返すラスター.
+     */
+    private static final class ArraySource implements RasterSource {
+        final byte[][] lines;
+
+        ArraySource(byte[][] lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public int getLineCount() {
+            return lines.length;
+        }
+
+        @Override
+        public ByteBuffer getLine(int line) {
+            return ByteBuffer.wrap(lines[line]).asReadOnlyBuffer();
+        }
+
+        @Override
+        public boolean isZeroLine(int line) {
+            return JobEncoder.isZero(lines[line]);
+        }
+    }
+
+    private static byte[][] createLines(int count, int bytes, long seed) {
+        final Random random = new Random(seed);
+        final byte[][] lines = new byte[count][bytes];
+        for (int l = 0; l < count; l++) {
+            if (l % 7 != 3) {
+                random.nextBytes(lines[l]);
+            }
+        }
+        return lines;
+    }
+
+    private static PrintSettings createSettings(boolean finePrint) {
+        return new PrintSettings(Paper.LAMINATE, Integer.valueOf(24), null,
+                EnumSet.of(Mode.AUTO_TAPE_CUT), finePrint ? EnumSet.of(EnhancedMode.FINE_PRINT)
+                        : EnumSet.noneOf(EnhancedMode.class), 14, CompressionMode.TIFF, true,
+                false);
+    }
+
+    @Test
+    public void 正常_ビットの複製と間引き() {
+        final byte[] src = new byte[RL700SCommands.MAX_LINE_BYTES * 2];
+        new Random(46L).nextBytes(src);
+        final byte[] doubled = new byte[RL700SCommands.MAX_LINE_BYTES];
+        ScaledRasterSource.doubleBits(ByteBuffer.wrap(src), doubled);
+        for (int bit = 0; bit < doubled.length * 8; bit++) {
+            assertEquals(PackedBits.get(src, bit / 2), PackedBits.get(doubled, bit));
+        }
+        final byte[] halved = new byte[RL700SCommands.MAX_LINE_BYTES];
+        ScaledRasterSource.halveBits(ByteBuffer.wrap(src), halved);
+        for (int bit = 0; bit < halved.length * 8; bit++) {
+            assertEquals(PackedBits.get(src, bit * 2) || PackedBits.get(src, bit * 2 + 1),
+                    PackedBits.get(halved, bit));
+        }
+    }
+
+    @Test
+    public void 正常_高精細印刷ではラインを繰り返して圧縮は1回() throws Exception {
+        final byte[][] lines = createLines(50, RL700SCommands.MAX_LINE_BYTES, 1L);
+        final PrintSettings settings = createSettings(true);
+        final ScaledRasterSource source = ScaledRasterSource.forSettings(new ArraySource(lines),
+                360, settings);
+        assertEquals(100, source.getLineCount());
+        assertSame(source.getLine(0), source.getLine(1));
+
+        final RL700SMetrics metrics = RL700SMetrics.enable();
+        final EncodedJob job;
+        try {
+            final JobEncoder encoder = new JobEncoder(settings);
+            encoder.addLines(source);
+            job = encoder.finish();
+            int nonZero = 0;
+            for (byte[] line : lines) {
+                nonZero += JobEncoder.isZero(line) ? 0 : 1;
+            }
+            // 繰り返したコマンドも送ったラインとして数える
+            assertEquals(nonZero * 2, metrics.getRasterLineCommands());
+        } finally {
+            RL700SMetrics.disable();
+        }
+
+        final byte[][] expected = new byte[lines.length * 2][];
+        for (int l = 0; l < expected.length; l++) {
+            expected[l] = lines[l / 2];
+        }
+        assertTrue(RasterPreview.render(job).matches(0, expected));
+    }
+
+    @Test
+    public void 正常_720dpiから通常印刷へ縮小() throws Exception {
+        final byte[][] lines = createLines(31, RL700SCommands.MAX_LINE_BYTES * 2, 2L);
+        final ScaledRasterSource source = ScaledRasterSource.forSettings(new ArraySource(lines),
+                720, createSettings(false));
+        assertEquals(16, source.getLineCount());
+        for (int l = 0; l < source.getLineCount(); l++) {
+            final ByteBuffer b = source.getLine(l);
+            final byte[] line = new byte[b.remaining()];
+            b.get(line);
+            boolean zero = true;
+            for (int bit = 0; bit < RasterPreview.WIDTH; bit++) {
+                boolean expected = false;
+                for (int s = l * 2; s < Math.min(l * 2 + 2, lines.length); s++) {
+                    expected |= PackedBits.get(lines[s], bit * 2)
+                            || PackedBits.get(lines[s], bit * 2 + 1);
+                }
+                assertEquals(expected, PackedBits.get(line, bit));
+                zero &= !expected;
+            }
+            assertEquals(zero, source.isZeroLine(l));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_未対応の解像度() {
+        new ScaledRasterSource(new ArraySource(new byte[1][1]), 300, false);
+    }
+}
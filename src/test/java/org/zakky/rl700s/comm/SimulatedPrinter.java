@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.text.ParseException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 受け取ったコマンド列を {@link RL700SCommandParser} で解釈し、実機と同じ形式のステータスを返す模擬プリンタです.
+ *
+ * <p>
+ * ステータス情報リクエストにはすぐに、印字司令にはそのページのライン数を印刷速度で割った時間の
+ * 後に印刷終了のステータスを返します。 {@link #read(ByteBuffer)} は返すものがなければ待ちます。
+ * </p>
+ */
+final class SimulatedPrinter implements ByteChannel {
+
+    private static final class Reply {
+        final long readyNanos;
+        final ByteBuffer data;
+
+        Reply(long readyNanos, byte[] data) {
+            this.readyNanos = readyNanos;
+            this.data = ByteBuffer.wrap(data);
+        }
+    }
+
+    private final int mMediaWidth;
+    private final double mLinesPerMilli;
+    private final RL700SCommandParser mParser;
+    private final LinkedList<Reply> mReplies = new LinkedList<Reply>();
+    private boolean mOpen = true;
+    private long mBusyUntil;
+
+    private int mPageLines;
+    private long mPrintedLines;
+    private int mPages;
+    private long mBytesReceived;
+
+    /**
+     * @param mediaWidth ステータスで返すメディア幅(mm)。
+     * @param linesPerMilli 1 ミリ秒あたりに印刷するライン数。 0 の場合は印字司令にすぐ応答します。
+     */
+    SimulatedPrinter(int mediaWidth, double linesPerMilli) {
+        super();
+        mMediaWidth = mediaWidth;
+        mLinesPerMilli = linesPerMilli;
+        mParser = new RL700SCommandParser(new RL700SCommandParser.Adapter() {
+            @Override
+            public void onStatusRequest() {
+                reply(System.nanoTime(), RL700SStatus.STATUS_TYPE_REPLY);
+            }
+
+            @Override
+            public void onRasterLine(ByteBuffer data) {
+                mPageLines++;
+            }
+
+            @Override
+            public void onZeroRasterLine() {
+                mPageLines++;
+            }
+
+            @Override
+            public void onPrint(int command) {
+                final long now = System.nanoTime();
+                final long printNanos = (mLinesPerMilli <= 0.0) ? 0L
+                        : (long) (mPageLines / mLinesPerMilli * TimeUnit.MILLISECONDS.toNanos(1));
+                mBusyUntil = Math.max(now, mBusyUntil) + printNanos;
+                mPrintedLines += mPageLines;
+                mPageLines = 0;
+                mPages++;
+                reply(mBusyUntil, RL700SStatus.STATUS_TYPE_PRINT_COMPLETE);
+            }
+        });
+    }
+
+    /**
+     * 実機と同じ形式のステータスを生成します.
+     */
+    static byte[] status(int mediaWidth, int errorInfo1, int errorInfo2, int statusType,
+            int phaseNumber) {
+        final byte[] s = new byte[RL700SStatus.STATUS_SIZE];
+        s[0] = (byte) 0x80;
+        s[1] = 0x20;
+        s[2] = 'B';
+        s[3] = '3';
+        s[4] = '1';
+        s[5] = '0';
+        s[8] = (byte) errorInfo1;
+        s[9] = (byte) errorInfo2;
+        s[10] = (byte) mediaWidth;
+        s[11] = 1;
+        s[18] = (byte) statusType;
+        s[20] = (byte) (phaseNumber >>> 8);
+        s[21] = (byte) phaseNumber;
+        return s;
+    }
+
+    private void reply(long readyNanos, int statusType) {
+        mReplies.add(new Reply(readyNanos, status(mMediaWidth, 0, 0, statusType, mPages)));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!mOpen) {
+            throw new IOException("closed.");
+        }
+        final int n = src.remaining();
+        try {
+            mParser.feed(src);
+        } catch (ParseException e) {
+            throw new IOException(e.getMessage() + " at " + e.getErrorOffset());
+        }
+        mBytesReceived += n;
+        return n;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        try {
+            while (true) {
+                if (!mOpen) {
+                    return -1;
+                }
+                final Reply head = mReplies.peek();
+                if (head != null) {
+                    final long wait = head.readyNanos - System.nanoTime();
+                    if (wait <= 0L) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        final Reply head = mReplies.peek();
+        final int n = Math.min(dst.remaining(), head.data.remaining());
+        final ByteBuffer part = head.data.duplicate();
+        part.limit(part.position() + n);
+        dst.put(part);
+        head.data.position(head.data.position() + n);
+        if (!head.data.hasRemaining()) {
+            mReplies.removeFirst();
+        }
+        return n;
+    }
+
+    synchronized long getPrintedLines() {
+        return mPrintedLines;
+    }
+
+    synchronized int getPages() {
+        return mPages;
+    }
+
+    synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public synchronized void close() {
+        mOpen = false;
+        notifyAll();
+    }
+}
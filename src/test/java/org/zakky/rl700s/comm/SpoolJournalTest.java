@@ -0,0 +1,199 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SCommands.CompressionMode;
+import org.zakky.rl700s.comm.RL700SCommands.EnhancedMode;
+import org.zakky.rl700s.comm.RL700SCommands.Mode;
+import org.zakky.rl700s.comm.RL700SCommands.Paper;
+import org.zakky.rl700s.comm.SpoolJournal.PendingJob;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+public class SpoolJournalTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("spool", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void 正常_再オープンで未確認ページから再開() throws Exception {
+        final EncodedJob job1 = JobEncoderTest.createJob(3, 1);
+        final EncodedJob job2 = JobEncoderTest.createJob(2, 1);
+
+        SpoolJournal journal = SpoolJournal.open(mDirectory, 4096, 64 * 1024);
+        final long id1 = journal.append(job1);
+        final long id2 = journal.append(job2);
+        journal.commitPages(id1, 2);
+        journal.commitPages(id1, 1); // 戻らない
+        journal.commitPages(id2, 2); // 全ページ完了
+        journal.close();
+
+        journal = SpoolJournal.open(mDirectory, 4096, 64 * 1024);
+        final List<PendingJob> pending = journal.getPendingJobs();
+        assertEquals(1, pending.size());
+        final PendingJob p = pending.get(0);
+        assertEquals(id1, p.getJobId());
+        assertEquals(2, p.getFirstUnconfirmedPage());
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(job1.getData()),
+                JobEncoderTest.toArray(p.getJob().getData())));
+        assertEquals(job1.getSettings(), p.getJob().getSettings());
+        assertTrue(Arrays.equals(JobEncoderTest.toArray(job1.resumeFrom(2)),
+                JobEncoderTest.toArray(p.getResumeData())));
+
+        // 新しいジョブの ID は重複しない
+        assertTrue(id2 < journal.append(job2));
+        journal.close();
+    }
+
+    @Test
+    public void 正常_印刷終了のステータスを数える() throws Exception {
+        final SpoolJournal journal = SpoolJournal.open(mDirectory, 4096, 64 * 1024);
+        final long id = journal.append(JobEncoderTest.createJob(3, 1));
+        // フェーズ番号は前のジョブからの通し番号
+        journal.onStatus(id, new RL700SStatus(0, 0, 0, 24, 1, 0,
+                RL700SStatus.STATUS_TYPE_PHASE_CHANGE, RL700SStatus.PHASE_TYPE_PRINTING, 5));
+        journal.onStatus(id, new RL700SStatus(0, 0, 0, 24, 1, 0,
+                RL700SStatus.STATUS_TYPE_PRINT_COMPLETE, RL700SStatus.PHASE_TYPE_PRINTING, 5));
+        final List<PendingJob> pending = journal.getPendingJobs();
+        assertEquals(1, pending.size());
+        assertEquals(1, pending.get(0).getFirstUnconfirmedPage());
+        journal.close();
+    }
+
+    @Test
+    public void 正常_完了したセグメントは削除される() throws Exception {
+        final SpoolJournal journal = SpoolJournal.open(mDirectory, 1024, 4 * 1024);
+        final EncodedJob job = JobEncoderTest.createJob(4, 1);
+        for (int i = 0; i < 20; i++) {
+            final long id = journal.append(job);
+            journal.commitPages(id, 1);
+            journal.complete(id);
+        }
+        assertTrue(journal.getDiskUsage() <= 4 * 1024);
+        assertEquals(0, journal.getPendingJobs().size());
+        journal.close();
+    }
+
+    @Test
+    public void 正常_compact() throws Exception {
+        SpoolJournal journal = SpoolJournal.open(mDirectory, 1024, 16 * 1024);
+        final EncodedJob job = JobEncoderTest.createJob(4, 1);
+        final long keep = journal.append(job);
+        journal.commitPages(keep, 3);
+        for (int i = 0; i < 10; i++) {
+            journal.complete(journal.append(job));
+        }
+        final int before = mDirectory.list().length;
+        journal.compact();
+        assertTrue(mDirectory.list().length < before);
+        journal.close();
+
+        journal = SpoolJournal.open(mDirectory, 1024, 16 * 1024);
+        final List<PendingJob> pending = journal.getPendingJobs();
+        assertEquals(1, pending.size());
+        assertEquals(keep, pending.get(0).getJobId());
+        assertEquals(3, pending.get(0).getFirstUnconfirmedPage());
+        journal.close();
+    }
+
+    @Test
+    public void 正常_完了レコードのセグメントはジョブのセグメントより先に消えない() throws Exception {
+        SpoolJournal journal = SpoolJournal.open(mDirectory, 1024, 64 * 1024);
+        final EncodedJob job = JobEncoderTest.createJob(1, 1);
+        final long a = journal.append(job);
+        final long b = journal.append(job);
+        // B の DONE レコードを次のセグメントに書く
+        String last = lastSegment();
+        while (last.equals(lastSegment())) {
+            journal.complete(journal.append(job));
+        }
+        journal.complete(b);
+        // DONE レコードのセグメントがアクティブでなくなるまで進める
+        last = lastSegment();
+        while (last.equals(lastSegment())) {
+            journal.complete(journal.append(job));
+        }
+        journal.close();
+
+        journal = SpoolJournal.open(mDirectory, 1024, 64 * 1024);
+        final List<PendingJob> pending = journal.getPendingJobs();
+        assertEquals(1, pending.size());
+        assertEquals(a, pending.get(0).getJobId());
+        journal.close();
+    }
+
+    private String lastSegment() {
+        final String[] names = mDirectory.list();
+        Arrays.sort(names);
+        return names[names.length - 1];
+    }
+
+    @Test
+    public void 正常_設定はenumの宣言順ではなくワイヤー上の値で保存する() {
+        final PrintSettings settings = new PrintSettings(Paper.SZ, Integer.valueOf(24), null,
+                EnumSet.of(Mode.AUTO_TAPE_CUT), EnumSet.noneOf(EnhancedMode.class), 14,
+                CompressionMode.TIFF, true, false);
+        final byte[] bytes = SpoolJournal.encodeSettings(settings);
+        assertEquals(Paper.SZ.rawValue(), bytes[0]);
+        assertEquals(CompressionMode.TIFF.rawValue(), bytes[9]);
+        assertEquals(settings, SpoolJournal.decodeSettings(bytes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_未知の圧縮モード() {
+        final byte[] bytes = SpoolJournal.encodeSettings(JobEncoderTest
+                .createSettings(CompressionMode.TIFF));
+        bytes[9] = 1;
+        SpoolJournal.decodeSettings(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void 異常_上限を超える() throws Exception {
+        final SpoolJournal journal = SpoolJournal.open(mDirectory, 1024, 2 * 1024);
+        final EncodedJob job = JobEncoderTest.createJob(4, 1);
+        for (int i = 0; i < 100; i++) {
+            journal.append(job);
+        }
+    }
+}
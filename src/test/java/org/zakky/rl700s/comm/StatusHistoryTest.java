@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+import org.zakky.rl700s.comm.StatusHistory.Entry;
+import org.zakky.rl700s.comm.StatusHistory.Field;
+import org.zakky.rl700s.comm.StatusHistory.Transition;
+
+import java.util.EnumSet;
+import java.util.List;
+
+public class StatusHistoryTest {
+
+    private static RL700SStatus createStatus(int errorInfo1, int errorInfo2, int phaseNumber) {
+        return new RL700SStatus(0, errorInfo1, errorInfo2, 24, 1, 0, 0, 1, phaseNumber);
+    }
+
+    @Test
+    public void 正常_詰めて戻す() {
+        final RL700SStatus status = new RL700SStatus(0x10, 0x12, 0x81, 36, 0x09, 17, 0x06,
+                0xff, 0xfffe);
+        final long packed = StatusHistory.pack(status);
+        final RL700SStatus unpacked = StatusHistory.unpack(packed, status.getPhaseNumber());
+        assertEquals(status.getEnhancedErrorCode(), unpacked.getEnhancedErrorCode());
+        assertEquals(status.getErrorInfoSet(), unpacked.getErrorInfoSet());
+        assertEquals(status.getErrorInfoRawValue(), unpacked.getErrorInfoRawValue());
+        assertEquals(status.getMediaWidth(), unpacked.getMediaWidth());
+        assertEquals(status.getMediaType(), unpacked.getMediaType());
+        assertEquals(status.getMediaLength(), unpacked.getMediaLength());
+        assertEquals(status.getStatusType(), unpacked.getStatusType());
+        assertEquals(status.getPhaseType(), unpacked.getPhaseType());
+        assertEquals(status.getPhaseNumber(), unpacked.getPhaseNumber());
+        assertEquals(packed, StatusHistory.pack(unpacked));
+    }
+
+    @Test
+    public void 正常_変化のないポーリングはまとめる() {
+        final StatusHistory history = new StatusHistory(4);
+        for (int t = 0; t < 1000; t++) {
+            history.record(t * 1000L, createStatus(0, 0, 0));
+        }
+        assertEquals(1, history.size());
+        assertEquals(1000L, history.getPollCount());
+        final Entry latest = history.getLatest();
+        assertEquals(1000L, latest.getPollCount());
+        assertEquals(0L, latest.getFirstMillis());
+        assertEquals(999000L, latest.getLastMillis());
+
+        // いっぱいになると古いものから上書き
+        for (int p = 1; p <= 5; p++) {
+            history.record(1000000L + p, createStatus(0, 0, p));
+        }
+        assertEquals(4, history.size());
+        assertEquals(2, history.query(0L, Long.MAX_VALUE).get(0).getPhaseNumber());
+    }
+
+    @Test
+    public void 正常_範囲指定と変化の抽出() {
+        final StatusHistory history = new StatusHistory(100);
+        history.record(0L, createStatus(0, 0, 0));
+        history.record(100L, createStatus(1 << 4, 0, 0)); // BUSY
+        history.record(150L, createStatus(1 << 4, 0, 1)); // BUSY, フェーズ番号だけ変化
+        history.record(200L, createStatus(0, 0, 1));
+        history.record(300L, createStatus(0, 1 << 4, 1)); // COVER_OPEN
+        history.record(400L, createStatus(0, 0, 1));
+
+        final List<Entry> entries = history.query(120L, 300L);
+        assertEquals(3, entries.size());
+        assertEquals(100L, entries.get(0).getFirstMillis());
+        assertEquals(200L, entries.get(2).getFirstMillis());
+
+        final List<Transition> errors = history.getTransitions(0L, 1000L, EnumSet.of(Field.ERRORS));
+        assertEquals(4, errors.size());
+        assertEquals(100L, errors.get(0).getTimeMillis());
+        assertEquals(ErrorInfo.BUSY.rawValue(), errors.get(0).getRaisedErrors());
+        assertEquals(ErrorInfo.BUSY.rawValue(), errors.get(1).getClearedErrors());
+        assertEquals(ErrorInfo.COVER_OPEN.rawValue(), errors.get(2).getRaisedErrors());
+        assertTrue(errors.get(2).getAfter().hasError(ErrorInfo.COVER_OPEN));
+
+        final List<Transition> phases = history.getTransitions(150L, 1000L, EnumSet.of(Field.PHASE));
+        assertEquals(1, phases.size());
+        assertEquals(0, phases.get(0).getBefore().getPhaseNumber());
+        assertEquals(1, phases.get(0).getAfter().getPhaseNumber());
+
+        assertEquals(100L, history.getDurationMillis(0L, 1000L, ErrorInfo.BUSY));
+        assertEquals(30L, history.getDurationMillis(170L, 1000L, ErrorInfo.BUSY));
+        assertEquals(100L, history.getDurationMillis(0L, 1000L, ErrorInfo.COVER_OPEN));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zakky.rl700s.comm.RL700SStatus.ErrorInfo;
+import org.zakky.rl700s.comm.StatusChangeEvent.Type;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class StatusMonitorTest {
+
+    /**
+     * {@link #runAll()} を呼ぶまで実行しない Executor.
+     */
+    private static final class ManualExecutor implements Executor {
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.removeFirst().run();
+            }
+        }
+    }
+
+    private static final class Recorder implements StatusMonitor.Listener {
+        final List<StatusChangeEvent> events = new ArrayList<StatusChangeEvent>();
+
+        @Override
+        public void onStatusChanged(StatusChangeEvent event) {
+            events.add(event);
+        }
+    }
+
+    private static RL700SStatus status(int e2, int width, int statusType, int phaseNumber) {
+        return new RL700SStatus(0, 0, e2, width, 1, 0, statusType, 0, phaseNumber);
+    }
+
+    private static final int COVER = ErrorInfo.COVER_OPEN.rawValue() >>> 8;
+
+    @Test
+    public void 正常_変化だけを通知() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        final StatusMonitor monitor = new StatusMonitor(executor);
+        final Recorder recorder = new Recorder();
+        monitor.addListener(recorder);
+
+        monitor.onStatus(1L, status(0, 24, 0, 0));
+        executor.runAll();
+        assertEquals(1, recorder.events.size());
+        assertEquals(Type.MEDIA_CHANGED, recorder.events.get(0).getType());
+        assertNull(recorder.events.get(0).getPrevious());
+
+        // 変化がなければ通知しない
+        monitor.onStatus(2L, status(0, 24, 0, 0));
+        assertTrue(executor.tasks.isEmpty());
+
+        monitor.onStatus(3L, status(COVER, 24, RL700SStatus.STATUS_TYPE_ERROR, 0));
+        monitor.onStatus(4L, status(0, 12, 0, 0));
+        monitor.onStatus(5L, status(0, 12, RL700SStatus.STATUS_TYPE_PRINT_COMPLETE, 1));
+        executor.runAll();
+        recorder.events.remove(0);
+        final List<Type> types = new ArrayList<Type>();
+        for (StatusChangeEvent e : recorder.events) {
+            types.add(e.getType());
+        }
+        assertEquals("[ERRORS_CHANGED, MEDIA_CHANGED, PHASE_CHANGED, PRINT_COMPLETE]",
+                types.toString());
+        final StatusChangeEvent errors = recorder.events.get(0);
+        // 立ってから解除されるまでを 1 つにまとめている
+        assertTrue(errors.isRaised(ErrorInfo.COVER_OPEN));
+        assertTrue(errors.isCleared(ErrorInfo.COVER_OPEN));
+        assertEquals(2, errors.getCount());
+        assertEquals(4L, errors.getTimeMillis());
+        assertEquals(24, errors.getPrevious().getMediaWidth());
+        assertEquals(12, errors.getCurrent().getMediaWidth());
+        assertEquals(5L, recorder.events.get(3).getTimeMillis());
+    }
+
+    @Test
+    public void 正常_止まったリスナーは他を待たせない() throws Exception {
+        final ManualExecutor slowExecutor = new ManualExecutor();
+        final ManualExecutor fastExecutor = new ManualExecutor();
+        final StatusMonitor monitor = new StatusMonitor(fastExecutor);
+        final Recorder slow = new Recorder();
+        final Recorder fast = new Recorder();
+        monitor.addListener(slow, slowExecutor);
+        monitor.addListener(fast);
+
+        monitor.onStatus(0L, status(0, 24, 0, 0));
+        for (int page = 1; page <= 1000; page++) {
+            monitor.onStatus(page, status(0, 24, RL700SStatus.STATUS_TYPE_PRINT_COMPLETE, page));
+            fastExecutor.runAll();
+        }
+        assertEquals(1 + 2 * 1000, fast.events.size());
+
+        // 遅いリスナーには 1 回だけ配送を依頼し、種類ごとにまとめている
+        assertEquals(1, slowExecutor.tasks.size());
+        slowExecutor.runAll();
+        assertEquals(3, slow.events.size());
+        assertEquals(Type.PRINT_COMPLETE, slow.events.get(2).getType());
+        assertEquals(1000, slow.events.get(2).getCount());
+        assertEquals(1000, slow.events.get(2).getCurrent().getPhaseNumber());
+    }
+
+    @Test
+    public void 正常_例外を投げたリスナーにも後続を配送() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        final StatusMonitor monitor = new StatusMonitor(executor);
+        final List<StatusChangeEvent> received = new ArrayList<StatusChangeEvent>();
+        final StatusMonitor.Listener listener = new StatusMonitor.Listener() {
+            @Override
+            public void onStatusChanged(StatusChangeEvent event) {
+                received.add(event);
+                if (received.size() == 1) {
+                    throw new IllegalStateException();
+                }
+            }
+        };
+        monitor.addListener(listener);
+        monitor.onStatus(0L, status(COVER, 24, 0, 0));
+        try {
+            executor.runAll();
+        } catch (IllegalStateException e) {
+            // 想定どおり
+        }
+        executor.runAll();
+        assertEquals(2, received.size());
+        assertTrue(executor.tasks.isEmpty());
+
+        monitor.removeListener(listener);
+        monitor.onStatus(1L, status(0, 24, 0, 0));
+        assertTrue(executor.tasks.isEmpty());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zakky.rl700s.comm.StatusPoller.Device;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StatusPollerTest {
+
+    /**
+     * ステータスリクエストに返信する模擬プリンタ.
+     */
+    private static final class FakePrinter implements Runnable {
+        private final SocketChannel mChannel;
+        private final int mPhaseType;
+        private final boolean mSilent;
+        /** 最初の返信の前に送るごみと、返信の途中で止まる時間(ミリ秒). */
+        private final byte[] mGarbage;
+        private final long mStallMillis;
+
+        FakePrinter(SocketChannel channel, int phaseType, boolean silent) {
+            this(channel, phaseType, silent, new byte[0], 0L);
+        }
+
+        FakePrinter(SocketChannel channel, int phaseType, boolean silent, byte[] garbage,
+                long stallMillis) {
+            mChannel = channel;
+            mPhaseType = phaseType;
+            mSilent = silent;
+            mGarbage = garbage;
+            mStallMillis = stallMillis;
+        }
+
+        @Override
+        public void run() {
+            final ByteBuffer request = ByteBuffer.allocate(3);
+            boolean first = true;
+            try {
+                while (true) {
+                    request.clear();
+                    while (request.hasRemaining()) {
+                        if (mChannel.read(request) < 0) {
+                            return;
+                        }
+                    }
+                    if (mSilent) {
+                        continue;
+                    }
+                    final byte[] status = SimulatedPrinter.status(24, 0, 0,
+                            RL700SStatus.STATUS_TYPE_REPLY, 0);
+                    status[19] = (byte) mPhaseType;
+                    if (first) {
+                        mChannel.write(ByteBuffer.wrap(mGarbage));
+                    }
+                    // 分割して返しても解釈できることを確認する
+                    mChannel.write(ByteBuffer.wrap(status, 0, 10));
+                    if (first) {
+                        sleep(mStallMillis);
+                    }
+                    mChannel.write(ByteBuffer.wrap(status, 10, status.length - 10));
+                    first = false;
+                }
+            } catch (IOException e) {
+                // 閉じられた
+            }
+        }
+
+        private static void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private ServerSocketChannel mServer;
+    private final List<SocketChannel> mPrinterSides = new ArrayList<SocketChannel>();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SocketChannel c : mPrinterSides) {
+            c.close();
+        }
+        mServer.close();
+    }
+
+    private SocketChannel connect(int phaseType, boolean silent) throws IOException {
+        return connect(phaseType, silent, new byte[0], 0L);
+    }
+
+    private SocketChannel connect(int phaseType, boolean silent, byte[] garbage,
+            long stallMillis) throws IOException {
+        final SocketChannel client = SocketChannel.open(mServer.socket()
+                .getLocalSocketAddress());
+        final SocketChannel printer = mServer.accept();
+        client.socket().setTcpNoDelay(true);
+        printer.socket().setTcpNoDelay(true);
+        mPrinterSides.add(printer);
+        final Thread t = new Thread(new FakePrinter(printer, phaseType, silent, garbage,
+                stallMillis));
+        t.setDaemon(true);
+        t.start();
+        return client;
+    }
+
+    @Test
+    public void 正常_印刷中は短い間隔で問い合わせる() throws Exception {
+        final AtomicInteger statuses = new AtomicInteger();
+        final AtomicInteger timeouts = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final StatusPoller poller = new StatusPoller(new StatusPoller.Listener() {
+            @Override
+            public void onStatus(Device device, RL700SStatus status) {
+                statuses.incrementAndGet();
+            }
+
+            @Override
+            public void onTimeout(Device device) {
+                timeouts.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Device device, Exception e) {
+                done.countDown();
+            }
+        }, 20L, 200L, 50L);
+        final Device busy = poller.addPrinter(connect(RL700SStatus.PHASE_TYPE_PRINTING, false));
+        final Device idle = poller.addPrinter(connect(RL700SStatus.PHASE_TYPE_RECEIVING, false));
+        final Device silent = poller.addPrinter(connect(RL700SStatus.PHASE_TYPE_RECEIVING, true));
+        poller.start();
+        try {
+            Thread.sleep(700L);
+        } finally {
+            poller.close();
+        }
+
+        assertTrue(busy.isBusy());
+        assertTrue(!idle.isBusy());
+        assertTrue(2 <= idle.getPollCount());
+        assertTrue(busy.getPollCount() + " vs " + idle.getPollCount(),
+                idle.getPollCount() * 3 < busy.getPollCount());
+        assertEquals(0L, busy.getTimeoutCount());
+        assertTrue(busy.getLatency().getCount() + 1 >= busy.getPollCount());
+        assertTrue(0 < busy.getLatency().getCount());
+        assertEquals(RL700SStatus.PHASE_TYPE_RECEIVING, idle.getLastStatus().getPhaseType());
+
+        assertTrue(2 <= silent.getTimeoutCount());
+        assertEquals(0L, silent.getLatency().getCount());
+        assertEquals(silent.getTimeoutCount(), timeouts.get());
+        assertEquals(busy.getLatency().getCount() + idle.getLatency().getCount(), statuses.get());
+        assertEquals(1L, done.getCount());
+    }
+
+    @Test
+    public void 異常_タイムアウトをまたいで分割された返信の後も同期を取り直す() throws Exception {
+        final AtomicInteger statuses = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final StatusPoller poller = new StatusPoller(new StatusPoller.Listener() {
+            @Override
+            public void onStatus(Device device, RL700SStatus status) {
+                statuses.incrementAndGet();
+            }
+
+            @Override
+            public void onTimeout(Device device) {
+            }
+
+            @Override
+            public void onError(Device device, Exception e) {
+                errors.incrementAndGet();
+            }
+        }, 20L, 20L, 50L);
+        // 最初の返信はごみの後に届き、途中でタイムアウトより長く止まる
+        final Device device = poller.addPrinter(connect(RL700SStatus.PHASE_TYPE_PRINTING, false,
+                new byte[] {
+                        1, 2, 3, 4, 5
+                }, 200L));
+        poller.start();
+        try {
+            Thread.sleep(600L);
+        } finally {
+            poller.close();
+        }
+
+        assertTrue(1L <= device.getTimeoutCount());
+        assertEquals(1, errors.get());
+        // 止まった返信も、その後の返信も解釈できている(ずれたままなら解析の失敗が続く)
+        assertTrue(device.getLatency().getCount() < statuses.get());
+        assertTrue(0 < device.getLatency().getCount());
+        assertTrue(device.isBusy());
+    }
+
+    @Test
+    public void 異常_切断されたプリンタは取り除く() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final StatusPoller poller = new StatusPoller(new StatusPoller.Listener() {
+            @Override
+            public void onStatus(Device device, RL700SStatus status) {
+            }
+
+            @Override
+            public void onTimeout(Device device) {
+            }
+
+            @Override
+            public void onError(Device device, Exception e) {
+                if (e instanceof IOException) {
+                    failed.countDown();
+                }
+            }
+        }, 20L, 20L, 1000L);
+        final SocketChannel client = connect(RL700SStatus.PHASE_TYPE_RECEIVING, true);
+        poller.addPrinter(client);
+        poller.start();
+        try {
+            mPrinterSides.get(0).close();
+            assertTrue(failed.await(5L, TimeUnit.SECONDS));
+            for (int i = 0; i < 100 && client.isOpen(); i++) {
+                Thread.sleep(10L);
+            }
+            assertTrue(!client.isOpen());
+        } finally {
+            poller.close();
+        }
+    }
+}
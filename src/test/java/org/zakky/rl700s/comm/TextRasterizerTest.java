@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 YAMAZAKI Makoto<makoto1975@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.zakky.rl700s.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.text.ParseException;
+import java.util.Arrays;
+
+public class TextRasterizerTest {
+
+    /** 4x4 のセルに、左上の 3x3 が「+」、右下が「L」の 2 文字を持つフォント. */
+    static final String FONT = "STARTFONT 2.1\n"
+            + "FONT -test-fixed-medium-r-normal--4-40-75-75-c-40-iso10646-1\n"
+            + "SIZE 4 75 75\n"
+            + "FONTBOUNDINGBOX 4 4 0 -1\n"
+            + "STARTPROPERTIES 2\n"
+            + "FONT_ASCENT 3\n"
+            + "FONT_DESCENT 1\n"
+            + "ENDPROPERTIES\n"
+            + "CHARS 2\n"
+            + "STARTCHAR plus\n"
+            + "ENCODING 43\n"
+            + "SWIDTH 1000 0\n"
+            + "DWIDTH 4 0\n"
+            + "BBX 3 3 0 0\n"
+            + "BITMAP\n"
+            + "40\n"
+            + "E0\n"
+            + "40\n"
+            + "ENDCHAR\n"
+            + "STARTCHAR L\n"
+            + "ENCODING 76\n"
+            + "SWIDTH 1000 0\n"
+            + "DWIDTH 4 0\n"
+            + "BBX 2 4 1 -1\n"
+            + "BITMAP\n"
+            + "80\n"
+            + "80\n"
+            + "80\n"
+            + "C0\n"
+            + "ENDCHAR\n"
+            + "ENDFONT\n";
+
+    static BdfFont loadFont() throws Exception {
+        return BdfFont.load(new ByteArrayInputStream(FONT.getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void 正常_BDF読み込み() throws Exception {
+        final BdfFont font = loadFont();
+        assertEquals(3, font.getAscent());
+        assertEquals(1, font.getDescent());
+        assertTrue(font.hasGlyph('+'));
+        assertTrue(font.hasGlyph('L'));
+        assertFalse(font.hasGlyph('A'));
+    }
+
+    @Test
+    public void 正常_回転して描画() throws Exception {
+        final TextRasterizer r = new TextRasterizer(loadFont(), 1);
+        assertEquals(8, r.measure("+L"));
+        final byte[][] lines = r.render("+L", 0);
+        assertEquals(8, lines.length);
+
+        // '+': 列 0 は中央の 1 ドット、列 1 は縦 3 ドット
+        assertEquals((byte) 0x40, lines[0][0]);
+        assertEquals((byte) 0xe0, lines[1][0]);
+        assertEquals((byte) 0x40, lines[2][0]);
+        assertEquals(0, lines[3][0]);
+        // 'L': xOffset 1 なので 1 ライン後ろから、ベースラインの下まで伸びる
+        assertEquals(0, lines[4][0]);
+        assertEquals((byte) 0xf0, lines[5][0]);
+        assertEquals((byte) 0x10, lines[6][0]);
+    }
+
+    @Test
+    public void 正常_拡大とビット位置() throws Exception {
+        final TextRasterizer r = new TextRasterizer(loadFont(), 2);
+        assertEquals(8, r.getHeight());
+        final byte[][] lines = r.render("+", 45 * 8 - 2);
+        assertEquals(8, lines.length);
+        // 列 1(拡大後 2, 3) はビット 358 から 6 ビット
+        assertEquals(0x03, lines[2][44] & 0xff);
+        assertEquals((byte) 0xf0, lines[2][45]);
+        assertTrue(Arrays.equals(lines[2], lines[3]));
+    }
+
+    @Test
+    public void 正常_範囲外は切り捨てる() throws Exception {
+        final TextRasterizer r = new TextRasterizer(loadFont(), 1);
+        final byte[][] lines = new byte[2][RL700SCommands.MAX_LINE_BYTES];
+        assertEquals(7, r.draw("+L", lines, -1, 383));
+        assertEquals(0x01, lines[0][47] & 0xff);
+    }
+
+    @Test(expected = ParseException.class)
+    public void 異常_STARTFONTなし() throws Exception {
+        BdfFont.load(new ByteArrayInputStream("FONT x\n".getBytes("US-ASCII")));
+    }
+}